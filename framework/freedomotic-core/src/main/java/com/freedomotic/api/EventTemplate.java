@@ -19,15 +19,14 @@
  */
 package com.freedomotic.api;
 
+import com.freedomotic.metrics.Span;
+import com.freedomotic.metrics.Tracer;
 import com.freedomotic.rules.Payload;
 import com.freedomotic.rules.Statement;
+import com.freedomotic.rules.TimeContext;
 import com.thoughtworks.xstream.annotations.XStreamOmitField;
 import java.io.Serializable;
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
-import java.util.Calendar;
 import java.util.List;
-import java.util.Locale;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -43,6 +42,9 @@ public class EventTemplate implements Serializable {
     protected Payload payload = new Payload();
     protected boolean isValid;
     private long creation;
+    // trace context, sent as JMS properties
+    private transient String traceId;
+    private transient String parentSpanId;
 
     @XStreamOmitField
     private static final Logger LOG = LoggerFactory.getLogger(EventTemplate.class.getName());
@@ -74,6 +76,22 @@ public class EventTemplate implements Serializable {
         fillPayloadWithDefaults();
     }
 
+    /**
+     * Creates a copy of an event, with its own payload holding the same
+     * statements
+     *
+     * @param event the event to copy
+     */
+    protected EventTemplate(EventTemplate event) {
+        eventName = event.eventName;
+        sender = event.sender;
+        isValid = event.isValid;
+        creation = event.creation;
+        traceId = event.traceId;
+        parentSpanId = event.parentSpanId;
+        payload.merge(event.payload);
+    }
+
     /**
      *
      * @return
@@ -90,6 +108,36 @@ public class EventTemplate implements Serializable {
         return creation;
     }
 
+    /**
+     * Returns the ID of the trace this event belongs to
+     *
+     * @return the trace ID or null if the event is not traced yet
+     */
+    public String getTraceId() {
+        return traceId;
+    }
+
+    /**
+     * Returns the ID of the span which caused or sent this event
+     *
+     * @return the parent span ID or null
+     */
+    public String getParentSpanId() {
+        return parentSpanId;
+    }
+
+    /**
+     * Sets the trace context of this event, see
+     * {@link com.freedomotic.metrics.Tracer}
+     *
+     * @param traceId the trace ID
+     * @param parentSpanId the ID of the span which caused or sent this event
+     */
+    public void setTraceContext(String traceId, String parentSpanId) {
+        this.traceId = traceId;
+        this.parentSpanId = parentSpanId;
+    }
+
     /**
      *
      * @param key
@@ -126,38 +174,19 @@ public class EventTemplate implements Serializable {
         //executed = true; //an event starts as executed as default value if an actuator don't deny it
         // isExecutable = true;
         creation = System.currentTimeMillis();
+        // an event created while processing another event or command is caused by it
+        Span cause = Tracer.current();
+        if (cause != null) {
+            setTraceContext(cause.getTraceId(), cause.getSpanId());
+        }
     }
 
     private final void fillPayloadWithDefaults() {
         init();
 
         try {
-            Calendar rightNow = Calendar.getInstance();
-            //adding date and time data
-            payload.addStatement("date.day.name",
-                    rightNow.getDisplayName(Calendar.DAY_OF_WEEK, Calendar.LONG, Locale.UK));
-            payload.addStatement("date.day",
-                    rightNow.get(Calendar.DAY_OF_MONTH));
-            payload.addStatement("date.month.name",
-                    rightNow.getDisplayName(Calendar.MONTH, Calendar.LONG, Locale.UK));
-            payload.addStatement("date.month", rightNow.get(Calendar.MONTH) + 1);
-            payload.addStatement("date.year",
-                    rightNow.get(Calendar.YEAR));
-            payload.addStatement("date.dow",
-                    rightNow.get(Calendar.DAY_OF_WEEK));
-            payload.addStatement("time.hour",
-                    rightNow.get(Calendar.HOUR_OF_DAY));
-            payload.addStatement("time.minute",
-                    rightNow.get(Calendar.MINUTE));
-            payload.addStatement("time.second",
-                    rightNow.get(Calendar.SECOND));
-
-            DateFormat datefmt = new SimpleDateFormat("yyyyMMdd");
-            DateFormat timefmt = new SimpleDateFormat("HHmmss");
-            payload.addStatement("time",
-                    timefmt.format(rightNow.getTime()));
-            payload.addStatement("date",
-                    datefmt.format(rightNow.getTime()));
+            //adding date and time data, shared by the events of the same second
+            payload.setTimeContext(TimeContext.at(creation));
             //adding event.sender to event payload. So it can be used by trigger
             payload.addStatement("sender",
                     getSender());
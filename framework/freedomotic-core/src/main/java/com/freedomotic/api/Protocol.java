@@ -19,16 +19,23 @@
  */
 package com.freedomotic.api;
 
+import com.freedomotic.core.AutomationExecutor;
+import com.freedomotic.events.ObjectHasChangedBehavior;
 import com.freedomotic.exceptions.PluginRuntimeException;
 import com.freedomotic.events.PluginHasChanged;
 import com.freedomotic.exceptions.PluginShutdownException;
 import com.freedomotic.exceptions.PluginStartupException;
 import com.freedomotic.exceptions.UnableToExecuteException;
+import com.freedomotic.metrics.Metrics;
+import com.freedomotic.metrics.Span;
+import com.freedomotic.metrics.Tracer;
+import com.freedomotic.model.ds.Config;
 import com.freedomotic.reactions.Command;
+import com.freedomotic.things.ThingChangeRateLimiter;
 import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import javax.jms.Destination;
 import javax.jms.JMSException;
 import javax.jms.ObjectMessage;
 
@@ -41,7 +48,11 @@ public abstract class Protocol extends Plugin {
     private static final Logger LOG = LoggerFactory.getLogger(Protocol.class.getName());
     private int pollingWaitTime = -1;
     private Protocol.SensorThread sensorThread;
-    private volatile Destination lastDestination;
+    // executes the received commands and events, created when the first message is received
+    private AutomationExecutor executor;
+    private final AtomicLong taskSequence = new AtomicLong();
+    private volatile long lastOverloadNotification;
+    private ThingChangeRateLimiter changeRateLimiter;
 
     /**
      *
@@ -174,6 +185,7 @@ public abstract class Protocol extends Plugin {
                             notifyError(shutdownEx.getMessage());
                         }
                         sensorThread = null;
+                        shutdownExecutor();
                         PluginHasChanged event = new PluginHasChanged(this, getName(), PluginHasChanged.PluginActions.STOP);
                         getBusService().send(event);
                         setStatus(PluginStatus.STOPPED);
@@ -224,19 +236,18 @@ public abstract class Protocol extends Plugin {
                 final Command command = (Command) payload;
                 LOG.info("{} receives command {} with parametes '{''{'{}'}''}'", new Object[]{this.getName(), command.getName(), command.getProperties()});
 
-                Protocol.ActuatorOnCommandRunnable action;
-                lastDestination = message.getJMSReplyTo();
-                action = new Protocol.ActuatorOnCommandRunnable(command,
-                        message.getJMSReplyTo(),
-                        message.getJMSCorrelationID());
-                Protocol.ActuatorPerforms task = new Protocol.ActuatorPerforms(getApi().getAuth().pluginBindRunnablePrivileges(this, action));
-                task.start();
+                // every command carries its own reply context, many commands can be executed at the same time
+                command.setReplyContext(message.getJMSReplyTo(), message.getJMSCorrelationID());
+                Protocol.ActuatorOnCommandRunnable action = new Protocol.ActuatorOnCommandRunnable(command);
+                if (!getExecutor().execute(getOrderingKey(command), 0, getApi().getAuth().pluginBindRunnablePrivileges(this, action))) {
+                    onCommandRejected(command);
+                }
             } else {
-                if (payload instanceof EventTemplate) {
-                    final EventTemplate event = (EventTemplate) payload;
-                    Protocol.ActuatorOnEventRunnable r = new Protocol.ActuatorOnEventRunnable(event);
-                    Protocol.ActuatorPerforms task = new Protocol.ActuatorPerforms(getApi().getAuth().pluginBindRunnablePrivileges(this, r));
-                    task.start();
+                ThingChangeRateLimiter limiter = payload instanceof ObjectHasChangedBehavior ? getChangeRateLimiter() : null;
+                if (limiter != null) {
+                    limiter.offer((ObjectHasChangedBehavior) payload);
+                } else if (payload instanceof EventTemplate) {
+                    executeEvent((EventTemplate) payload);
                 }
             }
         } catch (JMSException ex) {
@@ -245,6 +256,136 @@ public abstract class Protocol extends Plugin {
         }
     }
 
+    private void executeEvent(EventTemplate event) {
+        Protocol.ActuatorOnEventRunnable r = new Protocol.ActuatorOnEventRunnable(event);
+        getExecutor().execute(nextTaskKey(), 0, getApi().getAuth().pluginBindRunnablePrivileges(this, r));
+    }
+
+    /*
+     * Plugins with the object-change-min-interval property (milliseconds) in
+     * their manifest receive at most one ObjectHasChangedBehavior event per
+     * thing in that interval, see ThingChangeRateLimiter
+     */
+    private synchronized ThingChangeRateLimiter getChangeRateLimiter() {
+        if (changeRateLimiter == null) {
+            int interval = getConfiguration().getIntProperty("object-change-min-interval", 0);
+            if (interval > 0) {
+                changeRateLimiter = new ThingChangeRateLimiter(interval, new ThingChangeRateLimiter.Receiver() {
+                    @Override
+                    public void receive(ObjectHasChangedBehavior event) {
+                        if (isRunning()) {
+                            executeEvent(event);
+                        }
+                    }
+                });
+            }
+        }
+        return changeRateLimiter;
+    }
+
+    /*
+     * Creates the executor of this plugin on first use. Its configuration is
+     * read from the plugin manifest: executor-threads (default 8),
+     * executor-queue-size (default 200), executor-rejection-policy (one of
+     * AutomationExecutor.RejectionPolicy, default BLOCK which slows down the
+     * bus listener when the plugin is overloaded)
+     */
+    private synchronized AutomationExecutor getExecutor() {
+        if (executor == null) {
+            Config config = getConfiguration();
+            executor = new AutomationExecutor(getName(),
+                    config.getIntProperty("executor-threads", 8),
+                    config.getIntProperty("executor-queue-size", 200),
+                    AutomationExecutor.parsePolicy(config.getStringProperty("executor-rejection-policy",
+                                    AutomationExecutor.RejectionPolicy.BLOCK.name())));
+        }
+        return executor;
+    }
+
+    private synchronized void shutdownExecutor() {
+        if (executor != null) {
+            executor.shutdown();
+            executor = null;
+        }
+    }
+
+    /*
+     * Commands with the same value of the property configured as
+     * executor-ordered-by (default "address") are executed one at a time, in
+     * the order they are received, so commands to the same device stay
+     * ordered. Set it to an empty value to execute all commands concurrently.
+     */
+    private String getOrderingKey(Command command) {
+        String property = getConfiguration().getStringProperty("executor-ordered-by", "address");
+        if (property != null && !property.isEmpty()) {
+            String value = command.getProperty(property);
+            if (value != null && !value.isEmpty()) {
+                return property + ":" + value;
+            }
+        }
+        return nextTaskKey();
+    }
+
+    private String nextTaskKey() {
+        return "task-" + taskSequence.incrementAndGet();
+    }
+
+    /*
+     * The command is not executed, the sender is notified immediately instead
+     * of waiting for the reply timeout
+     */
+    private void onCommandRejected(Command command) {
+        Metrics.counter(Metrics.PLUGIN_COMMANDS_REJECTED + getName()).increment();
+        if (command.getReplyTimeout() > 0 && command.getReplyTo() != null) {
+            command.setExecuted(false);
+            reply(command);
+        }
+        // notify the overload at most every 10 seconds
+        long now = System.currentTimeMillis();
+        if (now - lastOverloadNotification > 10000) {
+            lastOverloadNotification = now;
+            PluginHasChanged event = new PluginHasChanged(this, getName(), PluginHasChanged.PluginActions.OVERLOAD);
+            event.addProperty("executor.queue.size", String.valueOf(getQueueSize()));
+            event.addProperty("executor.rejected", String.valueOf(getRejectedCommands()));
+            event.addProperty("executor.late", String.valueOf(getLateCommands()));
+            getBusService().send(event);
+        }
+    }
+
+    /**
+     * Returns the number of received commands and events waiting to be
+     * executed by this plugin
+     *
+     * @return the number of waiting commands and events
+     */
+    public int getQueueSize() {
+        AutomationExecutor current;
+        synchronized (this) {
+            current = executor;
+        }
+        return current != null ? current.getQueueSize() : 0;
+    }
+
+    /**
+     * Returns the number of commands not executed because the plugin queue
+     * was full, since startup
+     *
+     * @return the number of rejected commands
+     */
+    public long getRejectedCommands() {
+        return Metrics.counter(Metrics.PLUGIN_COMMANDS_REJECTED + getName()).get();
+    }
+
+    /**
+     * Returns the number of commands executed after their reply timeout (the
+     * sender has already considered them failed), since startup
+     *
+     * @return the number of late commands
+     */
+    public long getLateCommands() {
+        return Metrics.counter(Metrics.PLUGIN_COMMANDS_LATE + getName()).get();
+    }
+
     /**
      *
      * @param command
@@ -255,22 +396,20 @@ public abstract class Protocol extends Plugin {
     }
 
     /**
+     * Sends back a received command (marked as executed or not) to its
+     * sender. Plugins with automatic-reply-to-commands=false must call it
+     * with the received command instance (or a clone of it), which carries
+     * the reply destination and correlation ID of its own message.
      *
-     * @param command
+     * @param command the received command
      */
     public void reply(Command command) {
-        // sends back the command
-        final String defaultCorrelationID = "-1";
-        getBusService().reply(command, lastDestination, defaultCorrelationID);
-
-    }
-
-    private class ActuatorPerforms extends Thread {
-
-        public ActuatorPerforms(Runnable target) {
-            super(target, "freedomotic-protocol-executor");
+        if (command.getReplyTo() == null) {
+            LOG.warn("{} cannot reply to command ''{}'', it was not received from the bus", getName(), command.getName());
+            return;
         }
-
+        // the correlation ID is needed by the sender to match the reply with the command it is waiting for
+        getBusService().reply(command, command.getReplyTo(), command.getReplyCorrelationID());
     }
 
     public class ActuatorOnEventRunnable implements Runnable {
@@ -295,21 +434,39 @@ public abstract class Protocol extends Plugin {
     public class ActuatorOnCommandRunnable implements Runnable {
 
         private final Command command;
-        private final Destination reply;
-        private final String correlationID;
+        private final long received = System.currentTimeMillis();
 
-        ActuatorOnCommandRunnable(Command c, Destination reply, String correlationID) {
+        ActuatorOnCommandRunnable(Command c) {
             this.command = c;
-            this.reply = reply;
-            this.correlationID = correlationID;
         }
 
         @Override
         public void run() {
+            long waited = System.currentTimeMillis() - received;
+            if (command.getReplyTimeout() > 0 && waited > command.getReplyTimeout()) {
+                Metrics.counter(Metrics.PLUGIN_COMMANDS_LATE + getName()).increment();
+                LOG.warn("{} executes command ''{}'' after {}ms in queue, its reply timeout is already expired",
+                        new Object[]{getName(), command.getName(), waited});
+            }
+            Span span = Tracer.start("plugin.oncommand", command.getTraceId(), command.getParentSpanId())
+                    .tag(getName() + " " + command.getName());
+            try {
+                execute();
+            } finally {
+                span.end();
+            }
+        }
+
+        private void execute() {
             try {
                 // a command is supposed executed if the plugin doesen't say the contrary
                 command.setExecuted(true);
-                onCommand(command);
+                long start = System.nanoTime();
+                try {
+                    onCommand(command);
+                } finally {
+                    Metrics.histogram(Metrics.PLUGIN_ON_COMMAND + getName()).recordSince(start);
+                }
             } catch (IOException ex) {
                 LOG.error(ex.getLocalizedMessage());
                 command.setExecuted(false);
@@ -324,7 +481,7 @@ public abstract class Protocol extends Plugin {
             // it has to call reply(...) explicitely
             if ((getConfiguration().getBooleanProperty("automatic-reply-to-commands", true) == true) //default value is true
                     && (command.getReplyTimeout() > 0)) {
-                getBusService().reply(command, reply, correlationID); //sends back the command marked as executed or not
+                reply(command); //sends back the command marked as executed or not
             }
         }
     }
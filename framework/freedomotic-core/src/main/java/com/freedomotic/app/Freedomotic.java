@@ -40,8 +40,10 @@ import com.freedomotic.i18n.I18n;
 import com.freedomotic.marketplace.ClassPathUpdater;
 import com.freedomotic.marketplace.IPluginCategory;
 import com.freedomotic.marketplace.MarketPlaceService;
+import com.freedomotic.metrics.Tracer;
 import com.freedomotic.nlp.CommandsNlpService;
 import com.freedomotic.things.ThingRepository;
+import com.freedomotic.persistence.DataSnapshot;
 import com.freedomotic.plugins.ClientStorage;
 import com.freedomotic.plugins.PluginsManager;
 import com.freedomotic.reactions.Command;
@@ -66,6 +68,10 @@ import java.net.URISyntaxException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import org.slf4j.Logger;
 import java.util.logging.LogManager;
@@ -115,6 +121,8 @@ public class Freedomotic implements BusConsumer {
     private final CommandRepository commandRepository;
     private final ReactionRepository reactionRepository;
     private final Autodiscovery autodiscovery;
+    private final DataSnapshot dataSnapshot;
+    private ScheduledExecutorService autosave;
 
     /**
      *
@@ -132,6 +140,7 @@ public class Freedomotic implements BusConsumer {
      * @param topologyManager
      * @param synchManager
      * @param autodiscovery
+     * @param dataSnapshot
      */
     @Inject
     public Freedomotic(
@@ -149,7 +158,8 @@ public class Freedomotic implements BusConsumer {
             TopologyManager topologyManager,
             Auth auth,
             SynchManager synchManager,
-            Autodiscovery autodiscovery) {
+            Autodiscovery autodiscovery,
+            DataSnapshot dataSnapshot) {
         this.pluginsManager = pluginsLoader;
         this.environmentRepository = environmentRepository;
         this.thingsRepository = thingsRepository;
@@ -165,6 +175,7 @@ public class Freedomotic implements BusConsumer {
         this.i18n = i18n;
         this.auth = auth;
         this.autodiscovery = autodiscovery;
+        this.dataSnapshot = dataSnapshot;
     }
 
     /**
@@ -177,6 +188,10 @@ public class Freedomotic implements BusConsumer {
         String defaultPath = Info.PATHS.PATH_DATA_FOLDER.getAbsolutePath();
         Info.relocateDataPath(new File(config.getStringProperty("KEY_DATA_PATH", defaultPath)));
 
+        // spans of the processing stages of events and commands, see Tracer
+        Tracer.configure(config.getBooleanProperty("KEY_TRACING_ENABLED", true),
+                config.getIntProperty("KEY_TRACING_BUFFER_SIZE", 4096));
+
         // init localization
         i18n.setDefaultLocale(config.getStringProperty("KEY_ENABLE_I18N", "no"));
 
@@ -283,6 +298,9 @@ public class Freedomotic implements BusConsumer {
          * Dynamically load all plugins
          * *****************************************************************
          */
+        // Unchanged data files are decoded from the binary snapshot (if enabled)
+        dataSnapshot.open();
+        long phaseStart = System.currentTimeMillis();
         try {
             pluginsManager.loadAllPlugins();
         } catch (PluginLoadingException ex) {
@@ -329,7 +347,10 @@ public class Freedomotic implements BusConsumer {
         // Bootstrap Things in the environments
         // This should be done after loading all Things plugins otherwise
         // its java class will not be recognized by the system
+        long pluginsTime = System.currentTimeMillis() - phaseStart;
+        phaseStart = System.currentTimeMillis();
         environmentRepository.initFromDefaultFolder();
+        long environmentsTime = System.currentTimeMillis() - phaseStart;
         // for (EnvironmentLogic env : environmentRepository.findAll()) {
         // Load all the Things in this environment
         //    File thingsFolder = env.getObjectFolder();
@@ -342,11 +363,23 @@ public class Freedomotic implements BusConsumer {
         // }
 
         // Loads the entire Reactions system (Trigger + Commands + Reactions)
+        // in this order, reactions refer to already loaded triggers and commands
+        phaseStart = System.currentTimeMillis();
         triggerRepository.loadTriggers(new File(Info.PATHS.PATH_DATA_FOLDER + "/trg/"));
+        long triggersTime = System.currentTimeMillis() - phaseStart;
+        phaseStart = System.currentTimeMillis();
         commandRepository.loadCommands(new File(Info.PATHS.PATH_DATA_FOLDER + "/cmd/"));
+        long commandsTime = System.currentTimeMillis() - phaseStart;
+        phaseStart = System.currentTimeMillis();
         reactionRepository.loadReactions(new File(Info.PATHS.PATH_DATA_FOLDER + "/rea/"));
+        long reactionsTime = System.currentTimeMillis() - phaseStart;
+        if (dataSnapshot.isEnabled()) {
+            LOG.info("{} data files decoded from snapshot, {} parsed", dataSnapshot.getHits(), dataSnapshot.getMisses());
+            dataSnapshot.save();
+        }
 
         // Starting plugins
+        phaseStart = System.currentTimeMillis();
         for (Client plugin : clientStorage.getClients()) {
             String startupTime = plugin.getConfiguration().getStringProperty("startup-time", "undefined");
 
@@ -360,6 +393,41 @@ public class Freedomotic implements BusConsumer {
             }
         }
 
+        long pluginsStartTime = System.currentTimeMillis() - phaseStart;
+        LOG.info("Startup timings: plugins loading {}ms, environments and things {}ms, triggers {}ms, "
+                + "commands {}ms, reactions {}ms, plugins start {}ms",
+                new Object[]{pluginsTime, environmentsTime, triggersTime, commandsTime, reactionsTime, pluginsStartTime});
+
+        // Write-behind of the data changes, bursts of changes between two
+        // autosaves are written once and unchanged files are not written
+        int autosaveInterval = config.getIntProperty("KEY_AUTOSAVE_INTERVAL", 0);
+        if (autosaveInterval > 0) {
+            Runnable saveTask = new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        saveData();
+                    } catch (RuntimeException e) {
+                        LOG.error("Error while saving data", e);
+                    }
+                }
+            };
+            if (auth.isInited()) {
+                // runs with the same permissions of the boot thread
+                saveTask = auth.getSubject().associateWith(saveTask);
+            }
+            autosave = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "data-autosave");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            autosave.scheduleWithFixedDelay(saveTask, autosaveInterval, autosaveInterval, TimeUnit.SECONDS);
+            LOG.info("Changed data are saved every {} seconds", autosaveInterval);
+        }
+
         double MB = 1024 * 1024;
         Runtime runtime = Runtime.getRuntime();
         LOG.info("Used Memory:" + ((runtime.totalMemory() - runtime.freeMemory()) / MB));
@@ -480,6 +548,26 @@ public class Freedomotic implements BusConsumer {
         config.save();
         auth.save();
 
+        // wait for a running autosave, then save the last changes
+        if (autosave != null) {
+            autosave.shutdown();
+            try {
+                autosave.awaitTermination(30, TimeUnit.SECONDS);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        saveData();
+
+        System.exit(0);
+    }
+
+    /**
+     * Saves triggers, commands, reactions and environments (with their things
+     * if KEY_OVERRIDE_OBJECTS_ON_EXIT is true). Only the changed files are
+     * written.
+     */
+    private void saveData() {
         String savedDataRoot;
 
         if (config.getBooleanProperty("KEY_OVERRIDE_REACTIONS_ON_EXIT", false) == true) {
@@ -513,8 +601,6 @@ public class Freedomotic implements BusConsumer {
         } catch (RepositoryException ex) {
             LOG.error("Cannot save environment to folder {} due to {}", new Object[]{folder, ex.getCause()});
         }
-
-        System.exit(0);
     }
 
     /**
@@ -0,0 +1,614 @@
+/**
+ *
+ * Copyright (c) 2009-2016 Freedomotic team http://freedomotic.com
+ *
+ * This file is part of Freedomotic
+ *
+ * This Program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2, or (at your option) any later version.
+ *
+ * This Program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Freedomotic; see the file COPYING. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.freedomotic.bus;
+
+import com.freedomotic.api.EventTemplate;
+import com.freedomotic.model.ds.Config;
+import com.freedomotic.model.ds.Tuples;
+import com.freedomotic.reactions.Command;
+import com.freedomotic.rules.Payload;
+import com.freedomotic.rules.Statement;
+import com.freedomotic.rules.TimeContext;
+import com.thoughtworks.xstream.converters.reflection.ReflectionProvider;
+import com.thoughtworks.xstream.core.JVM;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A compact binary {@link BusCodec} for {@link Command}s and
+ * {@link EventTemplate}s.
+ * <p>
+ * Integers and lengths are written as varints. Strings are written once per
+ * message, later occurrences are a reference to the first one. The most common
+ * strings (statement operands, default event attributes, object properties)
+ * are written as an index in a fixed dictionary and are decoded to the same
+ * interned instance.
+ * </p>
+ * <p>
+ * Events are encoded field by field, as Java serialization does, so the
+ * receiver gets an instance of the same class. An event class can be encoded
+ * only if all its non transient fields are strings, primitives or a
+ * {@link Payload}, other events are sent as Java serialized objects.
+ * </p>
+ */
+public final class BinaryBusCodec implements BusCodec {
+
+    /**
+     * The name of this codec
+     */
+    public static final String NAME = "freedomotic-binary-1";
+    private static final int VERSION = 1;
+    private static final int TYPE_COMMAND = 1;
+    private static final int TYPE_EVENT = 2;
+    // string tokens, the token is (value << 2) | kind
+    private static final int STRING_NULL = 0;
+    private static final int STRING_DICTIONARY = 1;
+    private static final int STRING_REFERENCE = 2;
+    private static final int STRING_LITERAL = 3;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    // It is part of the encoding format: add new strings at the end only
+    private static final String[] DICTIONARY = {
+        Statement.AND, Statement.OR, Statement.NOT, Statement.SET,
+        Statement.EQUALS, Statement.GREATER_THAN, Statement.LESS_THAN,
+        Statement.GREATER_EQUAL_THAN, Statement.LESS_EQUAL_THAN,
+        Statement.REGEX, Statement.ANY, Statement.BETWEEN_TIME,
+        "date.day.name", "date.day", "date.month.name", "date.month",
+        "date.year", "date.dow", "time.hour", "time.minute", "time.second",
+        "time", "date", "sender", "UnknownSender",
+        "object.name", "object.uuid", "object.address", "object.protocol",
+        "object.type", "object.tags", "object.currentRepresentation",
+        "object.location.x", "object.location.y", "object.class",
+        "object.behavior", "object", "behavior", "value", "result",
+        "zone.name", "zone.type", "zone.uuid", "zone.description",
+        "person.id", "message.type", "message.level", "message.text",
+        "click", "protocol", "address", "plugin", "action", "id",
+        "true", "false", "0", "1",
+        "Monday", "Tuesday", "Wednesday", "Thursday", "Friday", "Saturday", "Sunday",
+        "January", "February", "March", "April", "May", "June", "July",
+        "August", "September", "October", "November", "December"
+    };
+    private static final Map<String, Integer> DICTIONARY_IDS = new HashMap<String, Integer>();
+    private static final ReflectionProvider REFLECTION = JVM.newReflectionProvider();
+    private static final EventLayout NOT_ENCODABLE = new EventLayout(null, new Field[0]);
+    // event class -> layout of its fields
+    private static final ConcurrentMap<Class<?>, EventLayout> LAYOUTS = new ConcurrentHashMap<Class<?>, EventLayout>();
+
+    static {
+        for (int i = 0; i < DICTIONARY.length; i++) {
+            DICTIONARY_IDS.put(DICTIONARY[i], i);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean canEncode(Object object) {
+        if (object instanceof Command) {
+            Command command = (Command) object;
+            return command.getName() != null && command.getProperties() != null;
+        }
+        if (object instanceof EventTemplate) {
+            return layout(object.getClass()) != NOT_ENCODABLE;
+        }
+        return false;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public byte[] encode(Object object) throws IOException {
+        Output out = new Output();
+        out.writeVarint(VERSION);
+        if (object instanceof Command) {
+            out.writeVarint(TYPE_COMMAND);
+            writeCommand(out, (Command) object);
+        } else if (object instanceof EventTemplate) {
+            out.writeVarint(TYPE_EVENT);
+            writeEvent(out, (EventTemplate) object);
+        } else {
+            throw new IOException("Cannot encode " + (object != null ? object.getClass().getName() : null));
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Object decode(byte[] bytes) throws IOException {
+        Input in = new Input(bytes);
+        int version = in.readVarint();
+        if (version != VERSION) {
+            throw new IOException("Unsupported " + NAME + " version " + version);
+        }
+        int type = in.readVarint();
+        switch (type) {
+            case TYPE_COMMAND:
+                return readCommand(in);
+            case TYPE_EVENT:
+                return readEvent(in);
+            default:
+                throw new IOException("Unknown encoded object type " + type);
+        }
+    }
+
+    private static void writeCommand(Output out, Command command) {
+        out.writeString(command.getName());
+        out.writeString(command.getReceiver());
+        out.writeString(command.getUuid());
+        out.writeString(command.getDescription());
+        out.writeString(command.getStopIf());
+        out.writeSignedVarint(command.getDelay());
+        out.writeSignedVarint(command.getReplyTimeout());
+        out.writeBoolean(command.isHardwareLevel());
+        out.writeBoolean(command.isEditable());
+        out.writeBoolean(command.isExecuted());
+
+        List<String> tags = new ArrayList<String>(command.getTags());
+        out.writeVarint(tags.size());
+        for (String tag : tags) {
+            out.writeString(tag);
+        }
+
+        Config properties = command.getProperties();
+        out.writeString(properties.getXmlFile());
+        writeProperties(out, properties.getProperties());
+        Tuples tuples = properties.getTuples();
+        out.writeVarint(tuples.size());
+        for (int i = 0; i < tuples.size(); i++) {
+            Map<String, String> tuple = tuples.getTuple(i);
+            out.writeVarint(tuple.size());
+            for (Entry<String, String> entry : tuple.entrySet()) {
+                out.writeString(entry.getKey());
+                out.writeString(entry.getValue());
+            }
+        }
+    }
+
+    private static void writeProperties(Output out, Properties properties) {
+        List<String> keysAndValues = new ArrayList<String>();
+        synchronized (properties) {
+            for (Entry<Object, Object> entry : properties.entrySet()) {
+                keysAndValues.add(String.valueOf(entry.getKey()));
+                keysAndValues.add(String.valueOf(entry.getValue()));
+            }
+        }
+        out.writeVarint(keysAndValues.size() / 2);
+        for (String string : keysAndValues) {
+            out.writeString(string);
+        }
+    }
+
+    private static Command readCommand(Input in) throws IOException {
+        Command command = new Command();
+        command.setName(in.readString());
+        command.setReceiver(in.readString());
+        command.setUUID(in.readString());
+        command.setDescription(in.readString());
+        command.setStopIf(in.readString());
+        command.setDelay(in.readSignedVarint());
+        command.setReplyTimeout(in.readSignedVarint());
+        command.setHardwareLevel(in.readBoolean());
+        command.setEditable(in.readBoolean());
+        command.setExecuted(in.readBoolean());
+
+        int tagsCount = in.readVarint();
+        HashSet<String> tags = new HashSet<String>();
+        for (int i = 0; i < tagsCount; i++) {
+            tags.add(in.readString());
+        }
+        command.setTags(tags);
+
+        Config properties = command.getProperties();
+        properties.setXmlFile(in.readString());
+        int propertiesCount = in.readVarint();
+        for (int i = 0; i < propertiesCount; i++) {
+            properties.setProperty(in.readString(), in.readString());
+        }
+        int tuplesCount = in.readVarint();
+        for (int i = 0; i < tuplesCount; i++) {
+            int tupleSize = in.readVarint();
+            HashMap<String, String> tuple = new HashMap<String, String>();
+            for (int j = 0; j < tupleSize; j++) {
+                tuple.put(in.readString(), in.readString());
+            }
+            properties.getTuples().add(tuple);
+        }
+        return command;
+    }
+
+    private static void writeEvent(Output out, EventTemplate event) throws IOException {
+        EventLayout layout = layout(event.getClass());
+        if (layout == NOT_ENCODABLE) {
+            throw new IOException("Cannot encode event class " + event.getClass().getName());
+        }
+        out.writeString(layout.type.getName());
+        out.writeSignedVarint(layout.hash);
+        try {
+            for (Field field : layout.fields) {
+                Class<?> type = field.getType();
+                if (type == String.class) {
+                    out.writeString((String) field.get(event));
+                } else if (type == Payload.class) {
+                    writePayload(out, (Payload) field.get(event));
+                } else if (type == int.class) {
+                    out.writeSignedVarint(field.getInt(event));
+                } else if (type == long.class) {
+                    out.writeSignedVarlong(field.getLong(event));
+                } else if (type == boolean.class) {
+                    out.writeBoolean(field.getBoolean(event));
+                } else if (type == double.class) {
+                    out.writeSignedVarlong(Double.doubleToLongBits(field.getDouble(event)));
+                } else {
+                    out.writeSignedVarint(Float.floatToIntBits(field.getFloat(event)));
+                }
+            }
+        } catch (IllegalAccessException e) {
+            throw new IOException("Cannot read the fields of event " + event, e);
+        }
+    }
+
+    private static EventTemplate readEvent(Input in) throws IOException {
+        String className = in.readString();
+        Class<?> type;
+        try {
+            // not initialized, the name comes from the message
+            type = Class.forName(className, false, classLoader());
+        } catch (ClassNotFoundException e) {
+            throw new IOException("Cannot decode event of unknown class " + className, e);
+        }
+        if (!EventTemplate.class.isAssignableFrom(type)) {
+            throw new IOException("Cannot decode " + className + ", it is not an event");
+        }
+        EventLayout layout = layout(type);
+        if (layout == NOT_ENCODABLE || layout.hash != in.readSignedVarint()) {
+            throw new IOException("Cannot decode event " + className + ", the fields of the sender class are different");
+        }
+
+        // created without running any constructor, as Java serialization does
+        EventTemplate event = (EventTemplate) REFLECTION.newInstance(type);
+        try {
+            for (Field field : layout.fields) {
+                Class<?> fieldType = field.getType();
+                if (fieldType == String.class) {
+                    field.set(event, in.readString());
+                } else if (fieldType == Payload.class) {
+                    field.set(event, readPayload(in));
+                } else if (fieldType == int.class) {
+                    field.setInt(event, in.readSignedVarint());
+                } else if (fieldType == long.class) {
+                    field.setLong(event, in.readSignedVarlong());
+                } else if (fieldType == boolean.class) {
+                    field.setBoolean(event, in.readBoolean());
+                } else if (fieldType == double.class) {
+                    field.setDouble(event, Double.longBitsToDouble(in.readSignedVarlong()));
+                } else {
+                    field.setFloat(event, Float.intBitsToFloat(in.readSignedVarint()));
+                }
+            }
+        } catch (IllegalAccessException e) {
+            throw new IOException("Cannot write the fields of event " + className, e);
+        }
+        return event;
+    }
+
+    private static void writePayload(Output out, Payload payload) {
+        if (payload == null) {
+            out.writeVarint(0);
+            return;
+        }
+        List<Statement> statements = payload.getExplicitStatements();
+        synchronized (statements) {
+            // read with the statements locked, so they are not copied meanwhile
+            TimeContext context = payload.getTimeContext();
+            out.writeVarint(statements.size() + 1);
+            for (Statement statement : statements) {
+                out.writeString(statement.getLogical());
+                out.writeString(statement.getAttribute());
+                out.writeString(statement.getOperand());
+                out.writeString(statement.getValue());
+            }
+            // the date and time statements are rebuilt from their second
+            out.writeBoolean(context != null);
+            if (context != null) {
+                out.writeSignedVarlong(context.getTime());
+                out.writeString(context.getPrefix());
+            }
+        }
+    }
+
+    private static Payload readPayload(Input in) throws IOException {
+        int size = in.readVarint() - 1;
+        if (size < 0) {
+            return null;
+        }
+        Payload payload = new Payload();
+        // the encoded statements are already unique
+        List<Statement> statements = payload.getExplicitStatements();
+        for (int i = 0; i < size; i++) {
+            Statement statement = new Statement();
+            statement.setLogical(in.readString());
+            statement.setAttribute(in.readString());
+            statement.setOperand(in.readString());
+            statement.setValue(in.readString());
+            statements.add(statement);
+        }
+        if (in.readBoolean()) {
+            long time = in.readSignedVarlong();
+            payload.setTimeContext(TimeContext.at(time).withPrefix(in.readString()));
+        }
+        return payload;
+    }
+
+    private static ClassLoader classLoader() {
+        ClassLoader loader = Thread.currentThread().getContextClassLoader();
+        return loader != null ? loader : BinaryBusCodec.class.getClassLoader();
+    }
+
+    /*
+     * Returns the encoded fields of the given event class, computed once per
+     * class
+     */
+    private static EventLayout layout(Class<?> type) {
+        EventLayout layout = LAYOUTS.get(type);
+        if (layout == null) {
+            layout = createLayout(type);
+            LAYOUTS.putIfAbsent(type, layout);
+        }
+        return layout;
+    }
+
+    private static EventLayout createLayout(Class<?> type) {
+        if (!EventTemplate.class.isAssignableFrom(type) || Modifier.isAbstract(type.getModifiers())) {
+            return NOT_ENCODABLE;
+        }
+        List<Field> fields = new ArrayList<Field>();
+        for (Class<?> current = type; current != Object.class; current = current.getSuperclass()) {
+            List<Field> declared = new ArrayList<Field>(Arrays.asList(current.getDeclaredFields()));
+            // the order of getDeclaredFields() is not specified
+            Collections.sort(declared, new Comparator<Field>() {
+
+                @Override
+                public int compare(Field f1, Field f2) {
+                    return f1.getName().compareTo(f2.getName());
+                }
+            });
+            for (Field field : declared) {
+                int modifiers = field.getModifiers();
+                if (Modifier.isStatic(modifiers) || Modifier.isTransient(modifiers)) {
+                    continue;
+                }
+                if (!isSupported(field.getType())) {
+                    return NOT_ENCODABLE;
+                }
+                field.setAccessible(true);
+                fields.add(field);
+            }
+        }
+        return new EventLayout(type, fields.toArray(new Field[fields.size()]));
+    }
+
+    private static boolean isSupported(Class<?> type) {
+        return type == String.class || type == Payload.class || type == int.class
+                || type == long.class || type == boolean.class || type == double.class
+                || type == float.class;
+    }
+
+    /**
+     * The encoded fields of an event class
+     */
+    private static final class EventLayout {
+
+        private final Class<?> type;
+        private final Field[] fields;
+        // changes if the fields of the class change, checked when decoding
+        private final int hash;
+
+        EventLayout(Class<?> type, Field[] fields) {
+            this.type = type;
+            this.fields = fields;
+            int h = type != null ? type.getName().hashCode() : 0;
+            for (Field field : fields) {
+                h = 31 * h + field.getName().hashCode();
+                h = 31 * h + field.getType().getName().hashCode();
+            }
+            this.hash = h;
+        }
+    }
+
+    /**
+     * A growable byte buffer with the string table of the message being
+     * encoded
+     */
+    private static final class Output {
+
+        private byte[] buffer = new byte[256];
+        private int position;
+        private final Map<String, Integer> written = new HashMap<String, Integer>();
+
+        void writeVarint(int value) {
+            while ((value & ~0x7F) != 0) {
+                writeByte((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            writeByte(value);
+        }
+
+        void writeSignedVarint(int value) {
+            writeVarint((value << 1) ^ (value >> 31));
+        }
+
+        void writeSignedVarlong(long value) {
+            long zigzag = (value << 1) ^ (value >> 63);
+            while ((zigzag & ~0x7FL) != 0) {
+                writeByte((int) ((zigzag & 0x7F) | 0x80));
+                zigzag >>>= 7;
+            }
+            writeByte((int) zigzag);
+        }
+
+        void writeBoolean(boolean value) {
+            writeByte(value ? 1 : 0);
+        }
+
+        void writeString(String value) {
+            if (value == null) {
+                writeVarint(STRING_NULL);
+                return;
+            }
+            Integer id = DICTIONARY_IDS.get(value);
+            if (id != null) {
+                writeVarint((id << 2) | STRING_DICTIONARY);
+                return;
+            }
+            Integer reference = written.get(value);
+            if (reference != null) {
+                writeVarint((reference << 2) | STRING_REFERENCE);
+                return;
+            }
+            written.put(value, written.size());
+            byte[] bytes = value.getBytes(UTF8);
+            writeVarint((bytes.length << 2) | STRING_LITERAL);
+            ensureCapacity(bytes.length);
+            System.arraycopy(bytes, 0, buffer, position, bytes.length);
+            position += bytes.length;
+        }
+
+        private void writeByte(int value) {
+            ensureCapacity(1);
+            buffer[position++] = (byte) value;
+        }
+
+        private void ensureCapacity(int length) {
+            if (position + length > buffer.length) {
+                buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, position + length));
+            }
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(buffer, position);
+        }
+    }
+
+    /**
+     * Reads an encoded message and its string table
+     */
+    private static final class Input {
+
+        private final byte[] buffer;
+        private int position;
+        private final List<String> read = new ArrayList<String>();
+
+        Input(byte[] buffer) {
+            this.buffer = buffer;
+        }
+
+        int readVarint() throws IOException {
+            int value = 0;
+            for (int shift = 0; shift < 32; shift += 7) {
+                int b = readByte();
+                value |= (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IOException("Malformed varint");
+        }
+
+        int readSignedVarint() throws IOException {
+            int value = readVarint();
+            return (value >>> 1) ^ -(value & 1);
+        }
+
+        long readSignedVarlong() throws IOException {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = readByte();
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return (value >>> 1) ^ -(value & 1);
+                }
+            }
+            throw new IOException("Malformed varlong");
+        }
+
+        boolean readBoolean() throws IOException {
+            return readByte() != 0;
+        }
+
+        String readString() throws IOException {
+            int token = readVarint();
+            int value = token >>> 2;
+            switch (token & 3) {
+                case STRING_NULL:
+                    return null;
+                case STRING_DICTIONARY:
+                    if (value >= DICTIONARY.length) {
+                        throw new IOException("Unknown dictionary string " + value);
+                    }
+                    return DICTIONARY[value];
+                case STRING_REFERENCE:
+                    if (value >= read.size()) {
+                        throw new IOException("Unknown string reference " + value);
+                    }
+                    return read.get(value);
+                default:
+                    if (value > buffer.length - position) {
+                        throw new IOException("Truncated string of " + value + " bytes");
+                    }
+                    String string = new String(buffer, position, value, UTF8);
+                    position += value;
+                    read.add(string);
+                    return string;
+            }
+        }
+
+        private int readByte() throws IOException {
+            if (position >= buffer.length) {
+                throw new IOException("Unexpected end of encoded message");
+            }
+            return buffer[position++] & 0xFF;
+        }
+    }
+}
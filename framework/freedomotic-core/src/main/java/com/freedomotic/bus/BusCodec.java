@@ -0,0 +1,70 @@
+/**
+ *
+ * Copyright (c) 2009-2016 Freedomotic team http://freedomotic.com
+ *
+ * This file is part of Freedomotic
+ *
+ * This Program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2, or (at your option) any later version.
+ *
+ * This Program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Freedomotic; see the file COPYING. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.freedomotic.bus;
+
+import java.io.IOException;
+
+/**
+ * Encodes the objects sent on the bus (events and commands) in a
+ * {@link javax.jms.BytesMessage} instead of a Java serialized
+ * {@link javax.jms.ObjectMessage}.
+ * <p>
+ * The name of the codec is stored in the message, so the receiver can decode
+ * it with the codec of the same name. Codecs are registered in
+ * {@link BusCodecs}, also using the standard service loader mechanism
+ * (META-INF/services/com.freedomotic.bus.BusCodec).
+ */
+public interface BusCodec {
+
+    /**
+     * The unique name of this codec, it should change if the encoding format
+     * changes
+     *
+     * @return the codec name
+     */
+    String getName();
+
+    /**
+     * Checks if the given object can be encoded by this codec. Objects which
+     * cannot be encoded are sent as {@link javax.jms.ObjectMessage}.
+     *
+     * @param object the object to send
+     * @return true if the object can be encoded
+     */
+    boolean canEncode(Object object);
+
+    /**
+     * Encodes the given object
+     *
+     * @param object the object to encode
+     * @return the encoded bytes
+     * @throws IOException if the object cannot be encoded
+     */
+    byte[] encode(Object object) throws IOException;
+
+    /**
+     * Decodes an object encoded by this codec
+     *
+     * @param bytes the encoded bytes
+     * @return the decoded object
+     * @throws IOException if the bytes cannot be decoded
+     */
+    Object decode(byte[] bytes) throws IOException;
+}
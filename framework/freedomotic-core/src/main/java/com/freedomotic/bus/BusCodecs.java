@@ -0,0 +1,118 @@
+/**
+ *
+ * Copyright (c) 2009-2016 Freedomotic team http://freedomotic.com
+ *
+ * This file is part of Freedomotic
+ *
+ * This Program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2, or (at your option) any later version.
+ *
+ * This Program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Freedomotic; see the file COPYING. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.freedomotic.bus;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.jms.BytesMessage;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.ObjectMessage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The registry of the available {@link BusCodec}s.
+ * <p>
+ * A message encoded by a codec is a {@link BytesMessage} with the codec name
+ * in the {@link #CODEC_PROPERTY} string property. Messages without this
+ * property are plain {@link ObjectMessage}s, so every receiver can always
+ * decode both formats.
+ */
+public final class BusCodecs {
+
+    private static final Logger LOG = LoggerFactory.getLogger(BusCodecs.class.getName());
+    /**
+     * The message property holding the name of the codec used to encode it
+     */
+    public static final String CODEC_PROPERTY = "codec";
+    private static final Map<String, BusCodec> CODECS = new ConcurrentHashMap<String, BusCodec>();
+
+    static {
+        register(new BinaryBusCodec());
+        try {
+            for (BusCodec codec : ServiceLoader.load(BusCodec.class)) {
+                register(codec);
+            }
+        } catch (ServiceConfigurationError e) {
+            LOG.error("Cannot load bus codecs", e);
+        }
+    }
+
+    private BusCodecs() {
+    }
+
+    /**
+     * Registers a codec, replacing the one with the same name if any
+     *
+     * @param codec the codec to register
+     */
+    public static void register(BusCodec codec) {
+        if (codec == null || codec.getName() == null || codec.getName().isEmpty()) {
+            throw new IllegalArgumentException("Cannot register a bus codec without name");
+        }
+        CODECS.put(codec.getName(), codec);
+    }
+
+    /**
+     * Returns the codec with the given name
+     *
+     * @param name the codec name
+     * @return the codec or null if no codec is registered with this name
+     */
+    public static BusCodec get(String name) {
+        return name != null ? CODECS.get(name) : null;
+    }
+
+    /**
+     * Returns the given message as an {@link ObjectMessage}, decoding it if it
+     * was encoded by a codec.
+     *
+     * @param message the received message
+     * @return the object message or null if the message cannot be decoded
+     * @throws JMSException if the message cannot be read
+     */
+    static ObjectMessage asObjectMessage(Message message) throws JMSException {
+        if (message instanceof ObjectMessage) {
+            return (ObjectMessage) message;
+        }
+        if (!(message instanceof BytesMessage) || !message.propertyExists(CODEC_PROPERTY)) {
+            return null;
+        }
+        String name = message.getStringProperty(CODEC_PROPERTY);
+        BusCodec codec = get(name);
+        if (codec == null) {
+            LOG.error("Cannot decode message encoded with unknown codec ''{}''", name);
+            return null;
+        }
+        BytesMessage bytesMessage = (BytesMessage) message;
+        byte[] bytes = new byte[(int) bytesMessage.getBodyLength()];
+        bytesMessage.readBytes(bytes);
+        try {
+            return new DecodedObjectMessage(message, codec.decode(bytes));
+        } catch (IOException e) {
+            LOG.error("Cannot decode message encoded with codec ''{}''", name, e);
+            return null;
+        }
+    }
+}
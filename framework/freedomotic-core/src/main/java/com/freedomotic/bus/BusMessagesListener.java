@@ -19,8 +19,12 @@
  */
 package com.freedomotic.bus;
 
+import com.freedomotic.api.EventTemplate;
 import com.freedomotic.app.Freedomotic;
-import com.freedomotic.app.Profiler;
+import com.freedomotic.metrics.Metrics;
+import com.freedomotic.metrics.Span;
+import com.freedomotic.metrics.Tracer;
+import com.freedomotic.reactions.Command;
 import com.freedomotic.util.UidGenerator;
 import java.util.ArrayList;
 import java.util.Iterator;
@@ -42,7 +46,8 @@ import javax.jms.Topic;
  * {@link MessageListener} implementation (former AbstractBusConnector class)
  * <p>
  * Receives an {@link ObjectMessage} (it can be an event or a command) and sends
- * it to his {@link BusConsumer}
+ * it to his {@link BusConsumer}. Messages encoded by a {@link BusCodec} are
+ * decoded and passed to the consumer as an {@link ObjectMessage} too.
  * <p>
  * This is the bus hook for any {@link BusConsumer} that should register itself
  * in this listener.
@@ -92,6 +97,31 @@ public class BusMessagesListener implements MessageListener {
         }
     }
 
+    /*
+     * Records the time the message spent on the bus and passes the trace
+     * context to the received event or command (its trace fields are not
+     * serialized)
+     */
+    private void restoreTraceContext(Message message, ObjectMessage objectMessage) {
+        try {
+            String traceId = message.getStringProperty(Tracer.TRACE_ID_PROPERTY);
+            if (traceId == null) {
+                return;
+            }
+            long sent = message.getJMSTimestamp() > 0 ? message.getJMSTimestamp() : System.currentTimeMillis();
+            Span transit = Tracer.record("bus.transit", traceId,
+                    message.getStringProperty(Tracer.SPAN_ID_PROPERTY), sent);
+            Object payload = objectMessage.getObject();
+            if (payload instanceof EventTemplate) {
+                ((EventTemplate) payload).setTraceContext(traceId, transit.getSpanId());
+            } else if (payload instanceof Command) {
+                ((Command) payload).setTraceContext(traceId, transit.getSpanId());
+            }
+        } catch (JMSException ex) {
+            LOG.debug("Cannot read the trace context of a message", ex);
+        }
+    }
+
     /**
      * Passes a message to the listener
      *
@@ -100,10 +130,18 @@ public class BusMessagesListener implements MessageListener {
     @Override
     public final void onMessage(Message message) {
 
-        Profiler.incrementReceivedEvents();
+        Metrics.counter(Metrics.MESSAGES_RECEIVED).increment();
+
+        ObjectMessage objectMessage = null;
+        try {
+            // messages encoded by a bus codec are decoded here
+            objectMessage = BusCodecs.asObjectMessage(message);
+        } catch (JMSException ex) {
+            LOG.error("Error while decoding a message", ex);
+        }
 
-        if (message instanceof ObjectMessage) {
-            final ObjectMessage objectMessage = (ObjectMessage) message;
+        if (objectMessage != null) {
+            restoreTraceContext(message, objectMessage);
             messageHandler.onMessage(objectMessage);
         } else {
 
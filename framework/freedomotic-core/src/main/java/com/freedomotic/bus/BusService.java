@@ -20,6 +20,7 @@ package com.freedomotic.bus;
 
 import com.freedomotic.api.EventTemplate;
 import com.freedomotic.reactions.Command;
+import com.google.common.util.concurrent.ListenableFuture;
 import javax.jms.Destination;
 import javax.jms.JMSException;
 import javax.jms.Session;
@@ -43,6 +44,20 @@ public interface BusService {
      */
     Command send(final Command command);
 
+    /**
+     * Sends a command to the bus without blocking the caller while waiting
+     * for the reply.
+     * <p>
+     * If the command has a reply timeout the returned future is completed with
+     * the reply command, or with the original command marked as not executed
+     * if the timeout is reached. Commands without reply timeout are completed
+     * immediately after they are sent.
+     *
+     * @param command The command to send
+     * @return a future completed with the command reply
+     */
+    ListenableFuture<Command> sendAsync(final Command command);
+
     /**
      * Sends a command reply to the bus
      *
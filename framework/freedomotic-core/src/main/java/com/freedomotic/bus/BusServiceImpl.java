@@ -21,18 +21,36 @@ package com.freedomotic.bus;
 
 import com.freedomotic.api.EventTemplate;
 import com.freedomotic.app.Freedomotic;
-import com.freedomotic.app.Profiler;
+import com.freedomotic.metrics.Metrics;
+import com.freedomotic.metrics.Span;
+import com.freedomotic.metrics.Tracer;
 import com.freedomotic.reactions.Command;
 import com.freedomotic.settings.AppConfig;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
 import com.google.inject.Injector;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import javax.inject.Inject;
+import javax.jms.BytesMessage;
 import javax.jms.DeliveryMode;
 import javax.jms.Destination;
 import javax.jms.JMSException;
 import javax.jms.Message;
 import javax.jms.MessageConsumer;
+import javax.jms.MessageListener;
 import javax.jms.MessageProducer;
 import javax.jms.ObjectMessage;
 import javax.jms.Queue;
@@ -62,6 +80,19 @@ final class BusServiceImpl extends LifeCycle implements BusService {
     private AppConfig conf;
     private Injector injector;
     protected MessageProducer messageProducer;
+    // replies to the commands sent by this instance are received on a single queue
+    private Session replySession;
+    private TemporaryQueue replyQueue;
+    private MessageConsumer replyConsumer;
+    private ScheduledThreadPoolExecutor replyTimeouts;
+    // correlation ID -> command waiting for its reply
+    private final ConcurrentMap<String, PendingReply> pendingReplies = new ConcurrentHashMap<String, PendingReply>();
+    private final AtomicLong correlationSequence = new AtomicLong();
+    // codec used for the destinations matching KEY_BUS_CODEC_DESTINATIONS, null if disabled
+    private BusCodec codec;
+    private String[] codecDestinations;
+    // destination name -> true if the codec is used for it
+    private final ConcurrentMap<String, Boolean> encodedDestinations = new ConcurrentHashMap<String, Boolean>();
 
     @Inject
     public BusServiceImpl(AppConfig config, Injector inj) {
@@ -101,6 +132,10 @@ final class BusServiceImpl extends LifeCycle implements BusService {
         // null parameter creates a producer with no specified destination
         messageProducer = createMessageProducer();
 
+        startReplyListener();
+
+        configureCodec();
+
         BootStatus.setCurrentStatus(BootStatus.STARTED);
     }
 
@@ -117,6 +152,81 @@ final class BusServiceImpl extends LifeCycle implements BusService {
         return createdProducer;
     }
 
+    private void startReplyListener() throws Exception {
+        // a dedicated session, as its consumer is listened asynchronously
+        replySession = createSession();
+        replyQueue = replySession.createTemporaryQueue();
+        replyConsumer = replySession.createConsumer(replyQueue);
+        replyConsumer.setMessageListener(new ReplyListener());
+
+        replyTimeouts = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "bus-reply-timeouts");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        replyTimeouts.setRemoveOnCancelPolicy(true);
+    }
+
+    private void configureCodec() {
+        configureCodec(conf.getStringProperty("KEY_BUS_CODEC", ""), conf.getStringProperty("KEY_BUS_CODEC_DESTINATIONS", ""));
+    }
+
+    /*
+     * Sets the codec and the comma separated prefixes of the destinations
+     * encoded with it
+     */
+    void configureCodec(String codecName, String destinations) {
+        codecName = codecName.trim();
+        codec = BusCodecs.get(codecName);
+        if (!codecName.isEmpty() && codec == null) {
+            LOG.warn("Bus codec ''{}'' is not available, messages are sent as Java serialized objects", codecName);
+        }
+        codecDestinations = destinations.trim().split("\\s*,\\s*");
+        encodedDestinations.clear();
+        if (codec != null) {
+            LOG.info("Messages to destinations {} are encoded with codec ''{}''", Arrays.toString(codecDestinations), codec.getName());
+        }
+    }
+
+    /*
+     * Returns the codec to use for the given object sent to the given
+     * destination, or null if it must be sent as an ObjectMessage. Only the
+     * destinations listed in KEY_BUS_CODEC_DESTINATIONS (none by default) are
+     * encoded, as STOMP and other remote clients expect an ObjectMessage and
+     * the in-VM delivery of an ObjectMessage does not serialize it at all
+     */
+    private BusCodec selectCodec(String destination, Object object) {
+        if (codec == null || destination == null || !codec.canEncode(object)) {
+            return null;
+        }
+        Boolean encoded = encodedDestinations.get(destination);
+        if (encoded == null) {
+            encoded = false;
+            for (String prefix : codecDestinations) {
+                if (prefix.equals("*") || (!prefix.isEmpty() && destination.startsWith(prefix))) {
+                    encoded = true;
+                    break;
+                }
+            }
+            encodedDestinations.put(destination, encoded);
+        }
+        return encoded ? codec : null;
+    }
+
+    private void stopReplyListener() throws Exception {
+        replyConsumer.close();
+        replyTimeouts.shutdownNow();
+        // nobody is going to receive the pending replies anymore
+        for (String correlationID : pendingReplies.keySet()) {
+            onReplyTimeout(correlationID);
+        }
+        closeSession(replySession);
+    }
+
     /**
      * {@inheritDoc}
      *
@@ -127,6 +237,8 @@ final class BusServiceImpl extends LifeCycle implements BusService {
 
         BootStatus.setCurrentStatus(BootStatus.STOPPING);
 
+        stopReplyListener();
+
         messageProducer.close();
         closeSession(sendSession);
 
@@ -207,6 +319,25 @@ final class BusServiceImpl extends LifeCycle implements BusService {
         return getSendSession().createObjectMessage();
     }
 
+    Message createMessage(Serializable object, String destination) throws JMSException {
+        BusCodec selected = selectCodec(destination, object);
+        if (selected != null) {
+            try {
+                byte[] bytes = selected.encode(object);
+                BytesMessage msg = getSendSession().createBytesMessage();
+                msg.writeBytes(bytes);
+                msg.setStringProperty(BusCodecs.CODEC_PROPERTY, selected.getName());
+                return msg;
+            } catch (IOException ex) {
+                LOG.warn("Cannot encode ''{}'' with codec ''{}'', it is sent as Java serialized object",
+                        new Object[]{object, selected.getName(), ex});
+            }
+        }
+        ObjectMessage msg = createObjectMessage();
+        msg.setObject(object);
+        return msg;
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -223,9 +354,13 @@ final class BusServiceImpl extends LifeCycle implements BusService {
             msg.setJMSDestination(destination);
             msg.setJMSCorrelationID(correlationID);
             msg.setStringProperty("provenance", Freedomotic.INSTANCE_ID);
+            if (command.getTraceId() != null) {
+                msg.setStringProperty(Tracer.TRACE_ID_PROPERTY, command.getTraceId());
+                msg.setStringProperty(Tracer.SPAN_ID_PROPERTY, command.getParentSpanId());
+            }
             LOG.info("Sending reply to command ''{}'' on {}", new Object[]{command.getName(), msg.getJMSDestination()});
             getMessageProducer().send(destination, msg); //Always pass the destination, otherwise it complains
-            Profiler.incrementSentReplies();
+            Metrics.counter(Metrics.REPLIES_SENT).increment();
         } catch (JMSException jmse) {
             LOG.error(Freedomotic.getStackTraceInfo(jmse));
         }
@@ -236,6 +371,23 @@ final class BusServiceImpl extends LifeCycle implements BusService {
      */
     @Override
     public Command send(final Command command) {
+        try {
+            return sendAsync(command).get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            LOG.warn("Interrupted while waiting the reply to command ''{}''", command.getName());
+        } catch (ExecutionException ex) {
+            LOG.error(Freedomotic.getStackTraceInfo(ex));
+        }
+        command.setExecuted(false);
+        return command;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public ListenableFuture<Command> sendAsync(final Command command) {
         if (command == null) {
             throw new IllegalArgumentException("Cannot send a null command");
         }
@@ -245,32 +397,37 @@ final class BusServiceImpl extends LifeCycle implements BusService {
 
         LOG.info("Sending command ''{}'' to destination ''{}'' with reply timeout {}", new Object[]{command.getName(), command.getReceiver(), command.getReplyTimeout()});
 
+        // ends when the reply is received, the command is part of the trace of the sending thread
+        Span span = Tracer.startDetached("command.send", null, null).tag(command.getName() + " -> " + command.getReceiver());
+        command.setTraceContext(span.getTraceId(), span.getSpanId());
         try {
-            ObjectMessage msg = createObjectMessage();
-            msg.setObject(command);
+            Message msg = createMessage(command, command.getReceiver());
             msg.setStringProperty("provenance", Freedomotic.INSTANCE_ID);
+            setTraceProperties(msg, span);
 
             Queue currDestination = new ActiveMQQueue(command.getReceiver());
             if (command.getReplyTimeout() > 0) {
-                return sendAndWaitReply(command, currDestination, msg);
+                return sendAndListenReply(command, currDestination, msg, span);
             } else {
-                return sendAndForget(command, currDestination, msg);
+                span.end();
+                return Futures.immediateFuture(sendAndForget(command, currDestination, msg));
             }
         } catch (JMSException ex) {
+            span.end();
             LOG.error(Freedomotic.getStackTraceInfo(ex));
             command.setExecuted(false);
-            return command;
+            return Futures.immediateFuture(command);
         }
     }
 
-    private Command sendAndForget(final Command command, Queue currDestination, ObjectMessage msg) throws JMSException {
+    private Command sendAndForget(final Command command, Queue currDestination, Message msg) throws JMSException {
         // send the message immediately without creating temporary
         // queues and consumers on it
         // this increments perfornances if no reply is expected
         final MessageProducer messageProducer = this.getMessageProducer();
         messageProducer.send(currDestination, msg);
 
-        Profiler.incrementSentCommands();
+        Metrics.counter(Metrics.COMMANDS_SENT).increment();
 
         command.setExecuted(true);
 
@@ -279,67 +436,57 @@ final class BusServiceImpl extends LifeCycle implements BusService {
         return command;
     }
 
-    private Command sendAndWaitReply(final Command command, Queue currDestination, ObjectMessage msg) throws JMSException {
+    private ListenableFuture<Command> sendAndListenReply(final Command command, Queue currDestination, Message msg, Span span) throws JMSException {
         // we have to wait an execution reply for an hardware device or
-        // an external client
-        final Session currUnlistenedSession = this.getUnlistenedSession();
-        TemporaryQueue temporaryQueue = currUnlistenedSession
-                .createTemporaryQueue();
-
-        msg.setJMSReplyTo(temporaryQueue);
+        // an external client. The reply is received on the shared reply queue
+        // and matched with this command using the correlation ID
+        final String correlationID = Freedomotic.INSTANCE_ID + "-" + correlationSequence.incrementAndGet();
+        PendingReply pending = new PendingReply(command, span);
+        pendingReplies.put(correlationID, pending);
+        pending.timeout = replyTimeouts.schedule(new Runnable() {
+
+            @Override
+            public void run() {
+                onReplyTimeout(correlationID);
+            }
+        }, command.getReplyTimeout(), TimeUnit.MILLISECONDS);
 
-        // a temporary consumer on a temporary queue
-        MessageConsumer temporaryConsumer = currUnlistenedSession
-                .createConsumer(temporaryQueue);
+        msg.setJMSReplyTo(replyQueue);
+        msg.setJMSCorrelationID(correlationID);
 
-        final MessageProducer currMessageProducer = this.getMessageProducer();
-        currMessageProducer.send(currDestination, msg);
+        try {
+            final MessageProducer currMessageProducer = this.getMessageProducer();
+            currMessageProducer.send(currDestination, msg);
+        } catch (JMSException ex) {
+            pendingReplies.remove(correlationID);
+            pending.timeout.cancel(false);
+            throw ex;
+        }
 
-        Profiler.incrementSentCommands();
+        Metrics.counter(Metrics.COMMANDS_SENT).increment();
 
-        // the receive() call is blocking
         LOG.info("Send and await reply to command ''{}'' for {}ms",
                 new Object[]{command.getName(), command.getReplyTimeout()});
 
-        Message jmsResponse = temporaryConsumer.receive(command.getReplyTimeout());
-
-        //cleanup after receiving
-        //temporaryConsumer.close();
-        //temporaryQueue.delete();
-        //TODO: commented as sometimes genenerates a "cannot publish on deleted queue" exception
-        //check n the documentation if a temporary queue with no consumers
-        //is automatically deleted
-        if (jmsResponse != null) {
-            // TODO unchecked cast!
-            ObjectMessage objMessage = (ObjectMessage) jmsResponse;
-
-            // a command is sent, we expect a command as reply
-            // TODO unchecked cast!
-            Command reply = (Command) objMessage.getObject();
-
-            LOG.info("Reply to command '"
-                    + command.getName() + "' is received. Result property inside this command is "
-                    + reply.getProperty("result")
-                    + ". It is used to pass data to the next command, can be empty or even null.");
-
-            Profiler.incrementReceivedReplies();
-
-            return reply;
-
-        } else {
-
-            LOG.info("Command '" + command.getName()
-                    + "' timed out after " + command.getReplyTimeout()
-                    + "ms");
+        return pending.future;
+    }
 
-            Profiler.incrementTimeoutedReplies();
+    private void onReplyTimeout(String correlationID) {
+        PendingReply pending = pendingReplies.remove(correlationID);
+        if (pending == null) {
+            // the reply was already received
+            return;
         }
+        LOG.info("Command '" + pending.command.getName()
+                + "' timed out after " + pending.command.getReplyTimeout()
+                + "ms");
 
-        // mark as failed
-        command.setExecuted(false);
+        Metrics.counter(Metrics.REPLIES_TIMED_OUT).increment();
+        pending.span.tag(pending.span.getDetail() + " (timed out)").end();
 
-        // returns back the original inaltered command
-        return command;
+        // mark as failed and return back the original inaltered command
+        pending.command.setExecuted(false);
+        pending.future.set(pending.command);
     }
 
     /**
@@ -360,21 +507,94 @@ final class BusServiceImpl extends LifeCycle implements BusService {
             throw new IllegalArgumentException("Cannot send a null event");
         }
 
+        Span span = Tracer.start("event.send", ev.getTraceId(), ev.getParentSpanId()).tag(ev.getEventName() + " -> " + to);
         try {
-
-            ObjectMessage msg = createObjectMessage();
-
-            msg.setObject(ev);
+            ev.setTraceContext(span.getTraceId(), span.getSpanId());
+            Message msg = createMessage(ev, to);
             msg.setStringProperty("provenance", Freedomotic.INSTANCE_ID);
+            setTraceProperties(msg, span);
 
             // Generate a new topic if not already exists, otherwire returns the old topic instance
             Topic topic = getReceiveSession().createTopic("VirtualTopic." + to);
             getMessageProducer().send(topic, msg);
-            Profiler.incrementSentEvents();
+            Metrics.counter(Metrics.EVENTS_SENT).increment();
 
         } catch (JMSException ex) {
 
             LOG.error(Freedomotic.getStackTraceInfo(ex));
+        } finally {
+            span.end();
+        }
+    }
+
+    private static void setTraceProperties(Message msg, Span span) throws JMSException {
+        if (span.getTraceId() != null) {
+            msg.setStringProperty(Tracer.TRACE_ID_PROPERTY, span.getTraceId());
+            msg.setStringProperty(Tracer.SPAN_ID_PROPERTY, span.getSpanId());
+        }
+    }
+
+    /**
+     * A command waiting for its reply
+     */
+    private static final class PendingReply {
+
+        private final Command command;
+        private final SettableFuture<Command> future = SettableFuture.create();
+        private final long sent = System.nanoTime();
+        private final Span span;
+        private volatile ScheduledFuture<?> timeout;
+
+        PendingReply(Command command, Span span) {
+            this.command = command;
+            this.span = span;
+        }
+    }
+
+    /**
+     * Receives the replies to all the commands sent by this instance and
+     * completes the future of the command with the same correlation ID
+     */
+    private final class ReplyListener implements MessageListener {
+
+        @Override
+        public void onMessage(Message jmsResponse) {
+            String correlationID = null;
+            try {
+                correlationID = jmsResponse.getJMSCorrelationID();
+            } catch (JMSException ex) {
+                LOG.error(Freedomotic.getStackTraceInfo(ex));
+            }
+            PendingReply pending = correlationID != null ? pendingReplies.remove(correlationID) : null;
+            if (pending == null) {
+                LOG.warn("Reply with correlation ID ''{}'' is discarded, its command is already timed out", correlationID);
+                return;
+            }
+            pending.timeout.cancel(false);
+            pending.span.end();
+
+            try {
+                ObjectMessage objMessage = BusCodecs.asObjectMessage(jmsResponse);
+                if (objMessage == null) {
+                    throw new JMSException("Reply to command '" + pending.command.getName() + "' cannot be decoded");
+                }
+                // a command is sent, we expect a command as reply
+                // TODO unchecked cast!
+                Command reply = (Command) objMessage.getObject();
+
+                LOG.info("Reply to command '"
+                        + pending.command.getName() + "' is received. Result property inside this command is "
+                        + reply.getProperty("result")
+                        + ". It is used to pass data to the next command, can be empty or even null.");
+
+                Metrics.counter(Metrics.REPLIES_RECEIVED).increment();
+                Metrics.histogram(Metrics.COMMAND_REPLY).recordSince(pending.sent);
+                pending.future.set(reply);
+            } catch (JMSException ex) {
+                LOG.error(Freedomotic.getStackTraceInfo(ex));
+                pending.command.setExecuted(false);
+                pending.future.set(pending.command);
+            }
         }
     }
 }
@@ -155,6 +155,7 @@ public final class Autodiscovery extends AbstractConsumer {
         loaded = thingsRepository.copy(loaded);
         loaded.getPojo().setProtocol(protocol);
         loaded.getPojo().setPhisicalAddress(address);
+        thingsRepository.reindex(loaded);
         // Remove the 'virtual' tag and any other actAs configuration. 
         //TODO: it would be better to remove the actAs property and manage all with tags
         loaded.getPojo().setActAs("");
@@ -0,0 +1,592 @@
+/**
+ *
+ * Copyright (c) 2009-2016 Freedomotic team http://freedomotic.com
+ *
+ * This file is part of Freedomotic
+ *
+ * This Program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2, or (at your option) any later version.
+ *
+ * This Program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Freedomotic; see the file COPYING. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.freedomotic.core;
+
+import com.freedomotic.metrics.Counter;
+import com.freedomotic.metrics.Gauge;
+import com.freedomotic.metrics.Histogram;
+import com.freedomotic.metrics.Metrics;
+import com.freedomotic.settings.AppConfig;
+import com.google.inject.Inject;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Executes the automations (the reactions bound to a fired trigger) on a
+ * bounded number of worker threads.
+ * <p>
+ * Tasks are submitted with an ordering key (eg: the trigger name) and a
+ * priority (eg: {@link com.freedomotic.reactions.Trigger#getPriority()}, the
+ * higher the sooner). Tasks with the same key are executed one at a time in
+ * the order they are submitted, while tasks with different keys are executed
+ * concurrently, higher priority first. The number of queued tasks is limited,
+ * when the limit is reached the configured {@link RejectionPolicy} is applied.
+ * </p>
+ * <p>
+ * Configuration keys (in config.xml):
+ * <ul>
+ * <li>KEY_AUTOMATION_THREADS the number of worker threads (default 8), a
+ * worker is busy while an automation waits for the reply of a command</li>
+ * <li>KEY_AUTOMATION_QUEUE_SIZE the max number of waiting tasks (default
+ * 1000)</li>
+ * <li>KEY_AUTOMATION_REJECTION_POLICY one of {@link RejectionPolicy} (default
+ * DISCARD_LOWEST_PRIORITY)</li>
+ * </ul>
+ * </p>
+ * <p>
+ * Plugins use their own instance to execute the received commands and events,
+ * see {@link com.freedomotic.api.Protocol}.
+ * </p>
+ * <p>
+ * The rejected tasks, the time tasks wait in the queue and the current and
+ * max queue size are published in {@link Metrics} with the executor name
+ * appended (eg: "executor.wait.automation-executor").
+ * </p>
+ */
+public class AutomationExecutor {
+
+    private static final Logger LOG = LoggerFactory.getLogger(AutomationExecutor.class.getName());
+
+    /**
+     * What to do when a task is submitted and the queue is full
+     */
+    public enum RejectionPolicy {
+
+        /**
+         * The submitted task is discarded
+         */
+        DISCARD,
+        /**
+         * The newest of the lowest priority waiting tasks is discarded if it
+         * has a lower priority than the submitted one, otherwise the submitted
+         * task is discarded
+         */
+        DISCARD_LOWEST_PRIORITY,
+        /**
+         * The caller waits (at most {@link #BLOCK_TIMEOUT} milliseconds) for a
+         * waiting task to be taken by a worker, slowing down the producer (eg:
+         * the bus listener). The submitted task is discarded if the queue is
+         * still full.
+         */
+        BLOCK
+    }
+
+    /**
+     * The max time (in milliseconds) a caller waits for free space in the
+     * queue with the {@link RejectionPolicy#BLOCK} policy
+     */
+    public static final long BLOCK_TIMEOUT = 10000;
+
+    private final String name;
+    private final int threads;
+    private final List<Thread> workers = new ArrayList<Thread>();
+    private boolean shutdown;
+    private final int maxQueueSize;
+    private final RejectionPolicy rejectionPolicy;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+    // ordering key -> tasks waiting for the previous task with the same key (guarded by lock)
+    private final Map<String, Lane> lanes = new HashMap<String, Lane>();
+    // lanes with a task ready to run, highest priority first (guarded by lock)
+    private final PriorityQueue<Lane> ready = new PriorityQueue<Lane>();
+    private int queueSize;
+    private int maxObservedQueueSize;
+    private long sequence;
+    // metrics
+    private final AtomicLong submitted = new AtomicLong();
+    private final AtomicLong executed = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong totalWaitTime = new AtomicLong();
+    private final AtomicLong maxWaitTime = new AtomicLong();
+    private final Counter rejectedCounter;
+    private final Histogram waitHistogram;
+    private final Gauge queueSizeGauge = new Gauge() {
+
+        @Override
+        public long get() {
+            return getQueueSize();
+        }
+    };
+    private final Gauge maxQueueSizeGauge = new Gauge() {
+
+        @Override
+        public long get() {
+            return getMaxObservedQueueSize();
+        }
+    };
+
+    @Inject
+    AutomationExecutor(AppConfig config) {
+        this(config.getIntProperty("KEY_AUTOMATION_THREADS", 8),
+                config.getIntProperty("KEY_AUTOMATION_QUEUE_SIZE", 1000),
+                parsePolicy(config.getStringProperty("KEY_AUTOMATION_REJECTION_POLICY",
+                                RejectionPolicy.DISCARD_LOWEST_PRIORITY.name())));
+    }
+
+    /**
+     * Creates an executor and starts its worker threads
+     *
+     * @param threads the number of worker threads
+     * @param maxQueueSize the max number of waiting tasks
+     * @param rejectionPolicy what to do when the queue is full
+     */
+    public AutomationExecutor(int threads, int maxQueueSize, RejectionPolicy rejectionPolicy) {
+        this("automation-executor", threads, maxQueueSize, rejectionPolicy);
+    }
+
+    /**
+     * Creates an executor and starts its worker threads
+     *
+     * @param name the name of the executor, used in the worker thread names
+     * and in the logs
+     * @param threads the number of worker threads
+     * @param maxQueueSize the max number of waiting tasks
+     * @param rejectionPolicy what to do when the queue is full
+     */
+    public AutomationExecutor(String name, int threads, int maxQueueSize, RejectionPolicy rejectionPolicy) {
+        if (name == null || threads < 1 || maxQueueSize < 1 || rejectionPolicy == null) {
+            throw new IllegalArgumentException("Invalid executor configuration");
+        }
+        this.name = name;
+        this.threads = threads;
+        this.maxQueueSize = maxQueueSize;
+        this.rejectionPolicy = rejectionPolicy;
+        this.rejectedCounter = Metrics.counter(Metrics.EXECUTOR_REJECTED + name);
+        this.waitHistogram = Metrics.histogram(Metrics.EXECUTOR_WAIT + name);
+        Metrics.gauge(Metrics.EXECUTOR_QUEUE_SIZE + name, queueSizeGauge);
+        Metrics.gauge(Metrics.EXECUTOR_QUEUE_MAX + name, maxQueueSizeGauge);
+        for (int i = 0; i < threads; i++) {
+            Thread worker = new Thread(new Worker(), name + "-" + i);
+            worker.setDaemon(true);
+            workers.add(worker);
+            worker.start();
+        }
+        LOG.info("Tasks of {} are executed by {} threads with a queue of {} tasks ({} when full)",
+                new Object[]{name, threads, maxQueueSize, rejectionPolicy});
+    }
+
+    /**
+     * Parses a rejection policy name
+     *
+     * @param value the policy name, case insensitive
+     * @return the policy or DISCARD_LOWEST_PRIORITY if the name is unknown
+     */
+    public static RejectionPolicy parsePolicy(String value) {
+        try {
+            return RejectionPolicy.valueOf(value.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            LOG.warn("Unknown automation rejection policy ''{}'', using {}", value, RejectionPolicy.DISCARD_LOWEST_PRIORITY);
+            return RejectionPolicy.DISCARD_LOWEST_PRIORITY;
+        }
+    }
+
+    /**
+     * Submits a task for execution.
+     *
+     * @param key tasks with the same key are executed in submission order
+     * @param priority tasks with higher priority are executed first
+     * @param task the task to execute
+     * @return false if the task was rejected (or discarded) because the queue
+     * is full
+     */
+    public boolean execute(String key, int priority, Runnable task) {
+        if (key == null || task == null) {
+            throw new IllegalArgumentException("Cannot execute a null task or a task without ordering key");
+        }
+        submitted.incrementAndGet();
+        Task submittedTask = new Task(task, priority, System.nanoTime());
+
+        lock.lock();
+        try {
+            if (shutdown) {
+                countRejected();
+                LOG.warn("{} is shut down, task ''{}'' is discarded", name, key);
+                return false;
+            }
+            if (queueSize >= maxQueueSize) {
+                switch (rejectionPolicy) {
+                    case BLOCK:
+                        // the task is never executed out of its lane, the caller waits instead
+                        if (!awaitNotFull(key, priority)) {
+                            return false;
+                        }
+                        break;
+                    case DISCARD_LOWEST_PRIORITY:
+                        if (!discardLowerThan(priority)) {
+                            reject(key, priority);
+                            return false;
+                        }
+                        break;
+                    default:
+                        reject(key, priority);
+                        return false;
+                }
+            }
+            enqueue(key, submittedTask);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /*
+     * Waits for a free place in the queue, the task is rejected if none is
+     * available in BLOCK_TIMEOUT milliseconds or the executor is shut down
+     * meanwhile. Must be called holding the lock.
+     */
+    private boolean awaitNotFull(String key, int priority) {
+        LOG.debug("Queue of {} is full ({} tasks), task ''{}'' waits for a free place",
+                new Object[]{name, maxQueueSize, key});
+        long nanos = TimeUnit.MILLISECONDS.toNanos(BLOCK_TIMEOUT);
+        try {
+            while (queueSize >= maxQueueSize && !shutdown && nanos > 0) {
+                nanos = notFull.awaitNanos(nanos);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (shutdown) {
+            countRejected();
+            LOG.warn("{} is shut down, task ''{}'' is discarded", name, key);
+            return false;
+        }
+        if (queueSize >= maxQueueSize) {
+            reject(key, priority);
+            return false;
+        }
+        return true;
+    }
+
+    private void enqueue(String key, Task task) {
+        Lane lane = lanes.get(key);
+        if (lane == null) {
+            lane = new Lane(key);
+            lanes.put(key, lane);
+        }
+        lane.tasks.addLast(task);
+        queueSize++;
+        if (queueSize > maxObservedQueueSize) {
+            maxObservedQueueSize = queueSize;
+        }
+        if (!lane.running && lane.tasks.size() == 1) {
+            schedule(lane);
+        }
+    }
+
+    private void schedule(Lane lane) {
+        Task head = lane.tasks.peekFirst();
+        lane.priority = head.priority;
+        lane.sequence = sequence++;
+        ready.add(lane);
+        notEmpty.signal();
+    }
+
+    private void reject(String key, int priority) {
+        countRejected();
+        LOG.warn("Queue of {} is full ({} tasks), task ''{}'' with priority {} is discarded",
+                new Object[]{name, maxQueueSize, key, priority});
+    }
+
+    private void countRejected() {
+        rejected.incrementAndGet();
+        rejectedCounter.increment();
+    }
+
+    /*
+     * Removes the newest waiting task with the lowest priority, if lower than
+     * the given one
+     */
+    private boolean discardLowerThan(int priority) {
+        Lane victim = null;
+        for (Lane lane : lanes.values()) {
+            Task last = lane.tasks.peekLast();
+            // the head of a ready lane is not yet running and can be discarded as well
+            if (last != null && last.priority < priority
+                    && (victim == null || last.priority < victim.tasks.peekLast().priority
+                    || (last.priority == victim.tasks.peekLast().priority
+                    && last.submission - victim.tasks.peekLast().submission > 0))) {
+                victim = lane;
+            }
+        }
+        if (victim == null) {
+            return false;
+        }
+        boolean wasHead = victim.tasks.size() == 1 && !victim.running;
+        victim.tasks.pollLast();
+        queueSize--;
+        countRejected();
+        LOG.warn("Queue of {} is full ({} tasks), a waiting task ''{}'' is discarded for a higher priority one",
+                new Object[]{name, maxQueueSize, victim.key});
+        if (wasHead) {
+            ready.remove(victim);
+            lanes.remove(victim.key);
+        }
+        return true;
+    }
+
+    /*
+     * Called by the workers: waits for a ready lane and takes its head task,
+     * returns null when the executor is shut down
+     */
+    private Lane take() {
+        lock.lock();
+        try {
+            while (ready.isEmpty()) {
+                if (shutdown) {
+                    return null;
+                }
+                try {
+                    notEmpty.await();
+                } catch (InterruptedException e) {
+                    // only the shutdown stops a worker, checked above
+                }
+            }
+            Lane lane = ready.poll();
+            lane.running = true;
+            lane.current = lane.tasks.pollFirst();
+            queueSize--;
+            notFull.signal();
+            return lane;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /*
+     * Called by the workers after a task is executed: schedules the next task
+     * with the same key, if any
+     */
+    private void done(Lane lane) {
+        lock.lock();
+        try {
+            lane.running = false;
+            lane.current = null;
+            if (shutdown) {
+                return;
+            }
+            if (lane.tasks.isEmpty()) {
+                lanes.remove(lane.key);
+            } else {
+                schedule(lane);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stops the worker threads, waiting tasks are discarded and running tasks
+     * are interrupted. Tasks submitted after the shutdown are rejected.
+     *
+     * @return the number of discarded waiting tasks
+     */
+    public int shutdown() {
+        int discarded;
+        lock.lock();
+        try {
+            if (shutdown) {
+                return 0;
+            }
+            shutdown = true;
+            discarded = queueSize;
+            queueSize = 0;
+            lanes.clear();
+            ready.clear();
+            notEmpty.signalAll();
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        for (Thread worker : workers) {
+            worker.interrupt();
+        }
+        Metrics.removeGauge(Metrics.EXECUTOR_QUEUE_SIZE + name, queueSizeGauge);
+        Metrics.removeGauge(Metrics.EXECUTOR_QUEUE_MAX + name, maxQueueSizeGauge);
+        if (discarded > 0) {
+            LOG.info("{} is shut down, {} waiting tasks are discarded", name, discarded);
+        }
+        return discarded;
+    }
+
+    /**
+     * Returns the number of tasks waiting to be executed
+     *
+     * @return the number of waiting tasks
+     */
+    public int getQueueSize() {
+        lock.lock();
+        try {
+            return queueSize;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the max number of waiting tasks observed since startup
+     *
+     * @return the max number of waiting tasks
+     */
+    public int getMaxObservedQueueSize() {
+        lock.lock();
+        try {
+            return maxObservedQueueSize;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of tasks discarded because the queue was full
+     *
+     * @return the number of rejected tasks
+     */
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+    /**
+     * Returns the number of submitted tasks
+     *
+     * @return the number of submitted tasks
+     */
+    public long getSubmittedCount() {
+        return submitted.get();
+    }
+
+    /**
+     * Returns the number of executed tasks
+     *
+     * @return the number of executed tasks
+     */
+    public long getExecutedCount() {
+        return executed.get();
+    }
+
+    /**
+     * Returns the average time (in milliseconds) a task waits in the queue
+     * before being executed
+     *
+     * @return the average wait time in milliseconds
+     */
+    public double getAverageWaitTime() {
+        long count = executed.get();
+        return count == 0 ? 0 : (double) totalWaitTime.get() / count;
+    }
+
+    /**
+     * Returns the max time (in milliseconds) a task has waited in the queue
+     * before being executed
+     *
+     * @return the max wait time in milliseconds
+     */
+    public long getMaxWaitTime() {
+        return maxWaitTime.get();
+    }
+
+    /**
+     * Returns the number of worker threads
+     *
+     * @return the number of worker threads
+     */
+    public int getThreads() {
+        return threads;
+    }
+
+    private static final class Task {
+
+        private final Runnable runnable;
+        private final int priority;
+        private final long submission;
+
+        Task(Runnable runnable, int priority, long submission) {
+            this.runnable = runnable;
+            this.priority = priority;
+            this.submission = submission;
+        }
+    }
+
+    /**
+     * The tasks sharing the same ordering key
+     */
+    private static final class Lane implements Comparable<Lane> {
+
+        private final String key;
+        private final ArrayDeque<Task> tasks = new ArrayDeque<Task>();
+        private boolean running;
+        private Task current;
+        // priority and order of arrival in the ready queue
+        private int priority;
+        private long sequence;
+
+        Lane(String key) {
+            this.key = key;
+        }
+
+        @Override
+        public int compareTo(Lane other) {
+            if (priority != other.priority) {
+                return priority > other.priority ? -1 : 1;
+            }
+            return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+        }
+    }
+
+    private final class Worker implements Runnable {
+
+        @Override
+        public void run() {
+            Lane lane;
+            while ((lane = take()) != null) {
+                Task task = lane.current;
+                long waitNanos = System.nanoTime() - task.submission;
+                waitHistogram.record(TimeUnit.NANOSECONDS.toMicros(waitNanos));
+                long wait = TimeUnit.NANOSECONDS.toMillis(waitNanos);
+                totalWaitTime.addAndGet(wait);
+                long max = maxWaitTime.get();
+                while (wait > max && !maxWaitTime.compareAndSet(max, wait)) {
+                    max = maxWaitTime.get();
+                }
+                try {
+                    task.runnable.run();
+                } catch (RuntimeException e) {
+                    LOG.error("Error while executing task ''{}'' of {}", new Object[]{lane.key, name, e});
+                } finally {
+                    // a task may leave the interrupted flag set, it must not
+                    // affect the next one
+                    Thread.interrupted();
+                    executed.incrementAndGet();
+                    done(lane);
+                }
+            }
+        }
+    }
+}
@@ -24,6 +24,8 @@ import com.freedomotic.bus.BusMessagesListener;
 import com.freedomotic.bus.BusService;
 import com.freedomotic.environment.EnvironmentLogic;
 import com.freedomotic.environment.ZoneLogic;
+import com.freedomotic.metrics.Span;
+import com.freedomotic.metrics.Tracer;
 import com.freedomotic.model.object.EnvObject;
 import com.freedomotic.behaviors.BehaviorLogic;
 import com.freedomotic.environment.EnvironmentRepository;
@@ -275,7 +277,16 @@ public final class BehaviorManager implements BusConsumer {
      * @param userLevelCommand
      */
     protected void parseCommand(Command userLevelCommand) {
+        Span span = Tracer.start("behavior.command", userLevelCommand.getTraceId(), userLevelCommand.getParentSpanId())
+                .tag(userLevelCommand.getName());
+        try {
+            applyCommand(userLevelCommand);
+        } finally {
+            span.end();
+        }
+    }
 
+    private void applyCommand(Command userLevelCommand) {
         if (userLevelCommand.getProperty(Command.PROPERTY_BEHAVIOR) == null) {
             throw new IllegalArgumentException("Command '" + userLevelCommand.getName() + "' has not behavior property defined");
         }
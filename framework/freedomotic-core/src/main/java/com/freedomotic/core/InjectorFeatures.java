@@ -37,6 +37,10 @@ public class InjectorFeatures extends AbstractModule {
         bind(TopologyManager.class).in(Singleton.class);
         bind(JoinPlugin.class).in(Singleton.class);
         bind(TriggerCheck.class).in(Singleton.class);
+        bind(AutomationExecutor.class).in(Singleton.class);
+        bind(ScriptEvaluator.class).in(Singleton.class);
+        bind(TriggerDispatcher.class).in(Singleton.class);
+        bind(TemporalTriggerEngine.class).in(Singleton.class);
         bind(BehaviorManager.class).in(Singleton.class);
         //TODO: bind(ResourcesManager.class).in(Singleton.class);
 
@@ -0,0 +1,509 @@
+/**
+ *
+ * Copyright (c) 2009-2016 Freedomotic team http://freedomotic.com
+ *
+ * This file is part of Freedomotic
+ *
+ * This Program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2, or (at your option) any later version.
+ *
+ * This Program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Freedomotic; see the file COPYING. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.freedomotic.core;
+
+import com.freedomotic.exceptions.VariableResolutionException;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A command property (or trigger statement) value parsed once into literal
+ * segments and <code>@namespace.key</code> references.
+ * <p>
+ * A reference is an <code>@</code> followed by the longest run of
+ * <code>[.A-Za-z0-9_-]</code> characters ending on a word boundary, optionally
+ * terminated by a <code>#</code> which is dropped (eg: "@event.temperature#C"
+ * becomes "25C"). This is the same syntax previously matched with the regular
+ * expression <code>@namespace[.A-Za-z0-9_-]*\b(#)?</code>. Since the
+ * references do not depend on the namespaces they are resolved against,
+ * templates are shared and cached by value.
+ * </p>
+ * <p>
+ * The value of a "=" script can also be resolved passing the references as
+ * script variables instead of replacing their text, see
+ * {@link #toScript(List, Lookup, Map)}. In this way the script source is the
+ * same for every resolution and it is compiled only once.
+ * </p>
+ */
+final class PropertyTemplate {
+
+    private static final int CACHE_SIZE = 10000;
+    private static final char REFERENCE_DELIMITER = '@';
+    private static final char REFERENCE_TERMINATOR = '#';
+    private static final List<String> NO_REFERENCES = Collections.emptyList();
+    // the keywords after which a '/' starts a regular expression
+    private static final Set<String> KEYWORDS = new HashSet<String>(Arrays.asList("return", "typeof",
+            "instanceof", "in", "of", "new", "delete", "void", "throw", "case", "do", "else", "yield"));
+    private static final LoadingCache<String, PropertyTemplate> TEMPLATES = CacheBuilder.newBuilder()
+            .maximumSize(CACHE_SIZE)
+            .build(new CacheLoader<String, PropertyTemplate>() {
+                @Override
+                public PropertyTemplate load(String value) {
+                    return parse(value);
+                }
+            });
+    private final String source;
+    // literal text before every reference, the last one is the text after the last reference
+    private final String[] literals;
+    // the references without '@' and '#' and their text in the source (same order)
+    private final String[] references;
+    private final String[] occurrences;
+    // the position of every reference in the source
+    private final int[] positions;
+    // the JavaScript string literal including every reference, computed when first needed
+    private volatile StringLiterals stringLiterals;
+
+    private PropertyTemplate(String source, List<String> literals, List<String> references, List<String> occurrences) {
+        this.source = source;
+        this.literals = literals.toArray(new String[literals.size()]);
+        this.references = references.toArray(new String[references.size()]);
+        this.occurrences = occurrences.toArray(new String[occurrences.size()]);
+        this.positions = new int[this.references.length];
+        int position = 0;
+        for (int i = 0; i < this.references.length; i++) {
+            position += this.literals[i].length();
+            positions[i] = position;
+            position += this.occurrences[i].length();
+        }
+    }
+
+    /**
+     * Returns the template of the given value, parsing it only the first time
+     * it is used.
+     *
+     * @param value the value containing references
+     * @return the compiled template
+     */
+    static PropertyTemplate compile(String value) {
+        if (value.indexOf(REFERENCE_DELIMITER) < 0) {
+            // nothing to resolve, not worth a cache entry
+            return new PropertyTemplate(value, Collections.singletonList(value), NO_REFERENCES, NO_REFERENCES);
+        }
+        return TEMPLATES.getUnchecked(value);
+    }
+
+    private static PropertyTemplate parse(String value) {
+        List<String> literals = new ArrayList<String>();
+        List<String> references = new ArrayList<String>();
+        List<String> occurrences = new ArrayList<String>();
+        int literalStart = 0;
+        int i = value.indexOf(REFERENCE_DELIMITER);
+
+        while (i >= 0) {
+            int start = i + 1;
+            int end = start;
+            while (end < value.length() && isReferenceChar(value.charAt(end))) {
+                end++;
+            }
+            // backtracks to the nearest word boundary, like the greedy regex does
+            while (end > start && isWordChar(value, end - 1) == isWordChar(value, end)) {
+                end--;
+            }
+            if (end > start) {
+                int next = end;
+                if (next < value.length() && value.charAt(next) == REFERENCE_TERMINATOR) {
+                    next++;
+                }
+                literals.add(value.substring(literalStart, i));
+                references.add(value.substring(start, end));
+                occurrences.add(value.substring(i, next));
+                literalStart = next;
+                i = value.indexOf(REFERENCE_DELIMITER, next);
+            } else {
+                i = value.indexOf(REFERENCE_DELIMITER, start);
+            }
+        }
+        literals.add(value.substring(literalStart));
+        return new PropertyTemplate(value, literals, references, occurrences);
+    }
+
+    private static boolean isReferenceChar(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+                || c == '.' || c == '_' || c == '-';
+    }
+
+    private static boolean isWordChar(String value, int index) {
+        if (index < 0 || index >= value.length()) {
+            return false;
+        }
+        char c = value.charAt(index);
+        return c == '_' || Character.isLetterOrDigit(c);
+    }
+
+    /**
+     * Returns true if the value contains at least one reference in the given
+     * namespaces.
+     *
+     * @param namespaces the namespaces, eg: "event."
+     * @return true if there is something to resolve
+     */
+    boolean hasReferences(List<String> namespaces) {
+        for (String reference : references) {
+            if (inNamespaces(reference, namespaces)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Replaces the references in the given namespaces with their values, the
+     * references in other namespaces are left as they are.
+     *
+     * @param namespaces the namespaces to resolve, eg: "event."
+     * @param lookup provides the value of a reference
+     * @param buffer a buffer reused between resolutions, it is cleared before
+     * use
+     * @return the resolved value
+     * @throws VariableResolutionException if a reference cannot be resolved
+     */
+    String resolve(List<String> namespaces, Lookup lookup, StringBuilder buffer)
+            throws VariableResolutionException {
+        if (!hasReferences(namespaces)) {
+            return source;
+        }
+        buffer.setLength(0);
+        for (int i = 0; i < references.length; i++) {
+            buffer.append(literals[i]);
+            if (inNamespaces(references[i], namespaces)) {
+                buffer.append(lookup.lookup(references[i]));
+            } else {
+                buffer.append(occurrences[i]);
+            }
+        }
+        buffer.append(literals[references.length]);
+        return buffer.toString();
+    }
+
+    /**
+     * Returns the script of the value with the references in the given
+     * namespaces replaced by variables, whose values are added to the given
+     * map. A reference in a JavaScript string literal makes the whole literal
+     * a variable. The result evaluates as the value resolved by
+     * {@link #resolve(List, Lookup, StringBuilder)} and it does not depend on
+     * the reference values, so it can be compiled once.
+     * <p>
+     * Numbers, booleans and text in string literals can be passed as
+     * variables. Null is returned when a reference value is something else
+     * (eg: a piece of code) or when the source has regular expression or
+     * template literals, the resolved value must be evaluated instead.
+     * </p>
+     *
+     * @param namespaces the namespaces to resolve, eg: "event."
+     * @param lookup provides the value of a reference
+     * @param variables receives the variable values by name
+     * @return the script, null if it cannot be evaluated with variables
+     * @throws VariableResolutionException if a reference cannot be resolved
+     */
+    String toScript(List<String> namespaces, Lookup lookup, Map<String, Object> variables)
+            throws VariableResolutionException {
+        if (!hasReferences(namespaces)) {
+            return source;
+        }
+        StringLiterals strings = getStringLiterals();
+        if (strings.ambiguous) {
+            return null;
+        }
+        StringBuilder script = new StringBuilder(source.length() + 16);
+        int position = 0;
+        int i = 0;
+        while (i < references.length) {
+            int literal = strings.including[i];
+            if (literal < 0) {
+                script.append(source, position, positions[i]);
+                if (inNamespaces(references[i], namespaces)) {
+                    Object value = toScriptValue(lookup.lookup(references[i]));
+                    if (value == null) {
+                        return null;
+                    }
+                    script.append(addVariable(variables, value));
+                } else {
+                    script.append(occurrences[i]);
+                }
+                position = positions[i] + occurrences[i].length();
+                i++;
+            } else {
+                int start = strings.starts[literal];
+                int end = strings.ends[literal];
+                if (end < 0) {
+                    // not terminated
+                    return null;
+                }
+                char quote = source.charAt(start);
+                StringBuilder text = new StringBuilder();
+                boolean resolved = false;
+                int textStart = start + 1;
+                for (; i < references.length && strings.including[i] == literal; i++) {
+                    text.append(source, textStart, positions[i]);
+                    if (inNamespaces(references[i], namespaces)) {
+                        String value = lookup.lookup(references[i]);
+                        if (value.indexOf(quote) >= 0 || value.indexOf('\\') >= 0 || value.indexOf('\n') >= 0) {
+                            // it would change the literal itself
+                            return null;
+                        }
+                        text.append(value);
+                        resolved = true;
+                    } else {
+                        text.append(occurrences[i]);
+                    }
+                    textStart = positions[i] + occurrences[i].length();
+                }
+                text.append(source, textStart, end - 1);
+                script.append(source, position, start);
+                if (resolved) {
+                    String value = unescape(text);
+                    if (value == null) {
+                        return null;
+                    }
+                    script.append(addVariable(variables, value));
+                } else {
+                    script.append(source, start, end);
+                }
+                position = end;
+            }
+        }
+        script.append(source, position, source.length());
+        return script.toString();
+    }
+
+    private static String addVariable(Map<String, Object> variables, Object value) {
+        String name = "__ref" + variables.size();
+        variables.put(name, value);
+        return name;
+    }
+
+    /*
+     * Converts a reference value to the value of the same JavaScript literal,
+     * null if it is not a plain number or boolean
+     */
+    private static Object toScriptValue(String value) {
+        if (value.equals("true") || value.equals("false")) {
+            return Boolean.valueOf(value);
+        }
+        int length = value.length();
+        if (length == 0 || length > 15 || !isDigit(value.charAt(0))
+                || (length > 1 && value.charAt(0) == '0' && isDigit(value.charAt(1)))) {
+            // empty, too long to be an exact number, signed or octal
+            return null;
+        }
+        boolean integer = true;
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c == '.' || c == 'e' || c == 'E' || ((c == '-' || c == '+') && (value.charAt(i - 1) == 'e' || value.charAt(i - 1) == 'E'))) {
+                integer = false;
+            } else if (!isDigit(c)) {
+                return null;
+            }
+        }
+        try {
+            // the JavaScript engine gives integers literals the Integer type
+            if (integer && length <= 9) {
+                return Integer.valueOf(value);
+            }
+            if (integer) {
+                return null;
+            }
+            // integral values like 2.0 could have the Integer type in the engine too
+            Double number = Double.valueOf(value);
+            return number == Math.rint(number) ? null : number;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    /*
+     * Returns the value of a string literal content, null if it has escape
+     * sequences other than the common ones
+     */
+    private static String unescape(CharSequence text) {
+        StringBuilder value = new StringBuilder(text.length());
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '\\') {
+                if (++i == text.length()) {
+                    return null;
+                }
+                c = text.charAt(i);
+                switch (c) {
+                    case 'n':
+                        c = '\n';
+                        break;
+                    case 't':
+                        c = '\t';
+                        break;
+                    case 'r':
+                        c = '\r';
+                        break;
+                    case '\\':
+                    case '\'':
+                    case '"':
+                        break;
+                    default:
+                        return null;
+                }
+            }
+            value.append(c);
+        }
+        return value.toString();
+    }
+
+    private StringLiterals getStringLiterals() {
+        StringLiterals strings = stringLiterals;
+        if (strings == null) {
+            strings = new StringLiterals(source, positions);
+            stringLiterals = strings;
+        }
+        return strings;
+    }
+
+    private static boolean inNamespaces(String reference, List<String> namespaces) {
+        for (int i = 0; i < namespaces.size(); i++) {
+            if (reference.startsWith(namespaces.get(i))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /*
+     * Returns true if the '/' at the given position is a division, false if it
+     * may start a regular expression literal
+     */
+    private static boolean isDivision(String source, int slash) {
+        int end = slash;
+        while (end > 0 && Character.isWhitespace(source.charAt(end - 1))) {
+            end--;
+        }
+        if (end == 0) {
+            return false;
+        }
+        char previous = source.charAt(end - 1);
+        if (previous == ')' || previous == ']') {
+            return true;
+        }
+        int start = end;
+        while (start > 0 && (isWordChar(source, start - 1) || source.charAt(start - 1) == '$')) {
+            start--;
+        }
+        return start < end && !KEYWORDS.contains(source.substring(start, end));
+    }
+
+    /**
+     * The JavaScript string literals of the source including at least one
+     * reference. Comments are skipped, the scan stops at the first template
+     * literal or regular expression literal (or '/' which may be one) and the
+     * source is marked as ambiguous.
+     */
+    private static final class StringLiterals {
+
+        // index of the literal including every reference, -1 if none
+        private final int[] including;
+        // start (the quote) and end (after the closing quote, -1 if missing) of the literals
+        private final int[] starts;
+        private final int[] ends;
+        // true if the literals cannot be told apart from the code
+        private final boolean ambiguous;
+
+        StringLiterals(String source, int[] positions) {
+            including = new int[positions.length];
+            List<int[]> literals = new ArrayList<int[]>();
+            int reference = 0;
+            int i = 0;
+            boolean unknown = false;
+            while (i < source.length() && reference < positions.length) {
+                char c = source.charAt(i);
+                if (c == '/' && i + 1 < source.length() && source.charAt(i + 1) == '/') {
+                    int end = source.indexOf('\n', i);
+                    i = end < 0 ? source.length() : end;
+                } else if (c == '/' && i + 1 < source.length() && source.charAt(i + 1) == '*') {
+                    int end = source.indexOf("*/", i + 2);
+                    i = end < 0 ? source.length() : end + 2;
+                } else if (c == '`' || (c == '/' && !isDivision(source, i))) {
+                    unknown = true;
+                    break;
+                } else if (c == '\'' || c == '"') {
+                    int end = i + 1;
+                    while (end < source.length() && source.charAt(end) != c && source.charAt(end) != '\n') {
+                        end += source.charAt(end) == '\\' ? 2 : 1;
+                    }
+                    boolean terminated = end < source.length() && source.charAt(end) == c;
+                    end = Math.min(end + 1, source.length());
+                    boolean found = false;
+                    while (reference < positions.length && positions[reference] < end) {
+                        if (positions[reference] >= i) {
+                            including[reference] = literals.size();
+                            found = true;
+                        } else {
+                            including[reference] = -1;
+                        }
+                        reference++;
+                    }
+                    if (found) {
+                        literals.add(new int[]{i, terminated ? end : -1});
+                    }
+                    i = end;
+                } else {
+                    while (reference < positions.length && positions[reference] <= i) {
+                        including[reference++] = -1;
+                    }
+                    i++;
+                }
+            }
+            while (reference < positions.length) {
+                including[reference++] = -1;
+            }
+            ambiguous = unknown;
+            starts = new int[literals.size()];
+            ends = new int[literals.size()];
+            for (int l = 0; l < literals.size(); l++) {
+                starts[l] = literals.get(l)[0];
+                ends[l] = literals.get(l)[1];
+            }
+        }
+    }
+
+    /**
+     * Provides the values of the references
+     */
+    interface Lookup {
+
+        /**
+         * Returns the value of a reference
+         *
+         * @param reference the reference without '@', eg: "event.object.name"
+         * @return the value, never null
+         * @throws VariableResolutionException if the reference cannot be
+         * resolved
+         */
+        String lookup(String reference) throws VariableResolutionException;
+    }
+}
@@ -26,8 +26,10 @@ import com.freedomotic.reactions.Command;
 import com.freedomotic.rules.Payload;
 import com.freedomotic.reactions.Reaction;
 import com.freedomotic.rules.Statement;
+import com.freedomotic.rules.TimeContext;
 import com.freedomotic.reactions.Trigger;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
@@ -35,10 +37,6 @@ import java.util.Map.Entry;
 import java.util.Set;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-import javax.script.ScriptEngine;
-import javax.script.ScriptEngineManager;
 import javax.script.ScriptException;
 
 /**
@@ -57,6 +55,10 @@ import javax.script.ScriptException;
  * event that has fired the reaction containing the command 'turn on this x10
  * device' in this case the event can be something like 'object receive click on
  * the GUI' with paramenter object = Light 1 click = SINGLE_CLICK </p>
+ * <p>
+ * Property values are parsed once in a {@link PropertyTemplate} (shared by all
+ * the resolutions of the same value) so resolving a reference does not require
+ * regular expressions. A resolver is not thread safe.</p>
  *
  * @author Enrico Nicoletti
  */
@@ -66,12 +68,27 @@ public final class Resolver {
     private static final Logger LOG = LoggerFactory.getLogger(Resolver.class.getName());
     private List<String> namespaces = new ArrayList<String>();
     private Payload context;
+    // reused to build the resolved values
+    private final StringBuilder buffer = new StringBuilder();
+    private final ScriptEvaluator scriptEvaluator;
 
     /**
-     * Creates an empty resolution context
+     * Creates an empty resolution context which evaluates the "=" scripts
+     * with the script evaluator of the application
      */
     public Resolver() {
+        this(Freedomotic.INJECTOR.getInstance(ScriptEvaluator.class));
+    }
+
+    /**
+     * Creates an empty resolution context which evaluates the "=" scripts
+     * with the given evaluator
+     *
+     * @param scriptEvaluator the script evaluator
+     */
+    public Resolver(ScriptEvaluator scriptEvaluator) {
         this.context = new Payload();
+        this.scriptEvaluator = scriptEvaluator;
     }
 
     /**
@@ -170,77 +187,44 @@ public final class Resolver {
      *
      * @param command
      */
-    private void performSubstitutionInCommand(Command command) throws VariableResolutionException {
-        for (Map.Entry aProperty : command.getProperties().entrySet()) {
-            String key = (String) aProperty.getKey();
-            String propertyValue = (String) aProperty.getValue();
-
-            for (final String namespace : namespaces) {
-                String regex = "@" + namespace + "[.A-Za-z0-9_-]*\\b(#)?";
-                Pattern pattern = Pattern.compile(regex);
-                Matcher matcher = pattern.matcher(propertyValue);
-
-                while (matcher.find()) {
-                    String occurrence = matcher.group();
-                    //re-read the property each loop because is possible the previous loop has already replaced something
-                    propertyValue = (String) aProperty.getValue();
-
-                    String referenceToResolve = occurrence;
-
-                    if (occurrence.endsWith("#")) {
-                        //cutting out the optional last '#'
-                        referenceToResolve = referenceToResolve.substring(0, referenceToResolve.length() - 1);
-                    }
-
-                    //cutting out the first char '@'
-                    referenceToResolve
-                            = referenceToResolve.substring(1,
-                                    referenceToResolve.length());
-
-                    String replacer = command.getProperty(referenceToResolve);
-                    if (((replacer != null) && !replacer.isEmpty())) {
-                        String propertyValueResolved = propertyValue.replaceFirst(occurrence, replacer);
-                        aProperty.setValue(propertyValueResolved);
-                    } else {
-                        throw new VariableResolutionException("Variable '" + referenceToResolve
-                                + "' cannot be resolved in command '" + command.getName() + "'.\n"
-                                + "Availabe tokens are: " + context.toString());
-                    }
+    private void performSubstitutionInCommand(final Command command) throws VariableResolutionException {
+        PropertyTemplate.Lookup lookup = new PropertyTemplate.Lookup() {
+            @Override
+            public String lookup(String reference) throws VariableResolutionException {
+                String replacer = command.getProperty(reference);
+                if ((replacer == null) || replacer.isEmpty()) {
+                    replacer = lookupTime(reference);
+                }
+                if ((replacer == null) || replacer.isEmpty()) {
+                    throw new VariableResolutionException("Variable '" + reference
+                            + "' cannot be resolved in command '" + command.getName() + "'.\n"
+                            + "Availabe tokens are: " + context.toString());
                 }
+                return replacer;
             }
+        };
+
+        for (Map.Entry aProperty : command.getProperties().entrySet()) {
+            String key = (String) aProperty.getKey();
+            PropertyTemplate template = PropertyTemplate.compile((String) aProperty.getValue());
+            //the property is updated in place because other properties can refer to it
+            aProperty.setValue(template.resolve(namespaces, lookup, buffer));
 
             //all references are replaced with real values in the current property, now perform scripting
             String possibleScript = (String) aProperty.getValue();
             boolean success = false;
 
             if (possibleScript.startsWith("=")) {
-                //this is a javascript
-                try {
-                    ScriptEngineManager mgr = new ScriptEngineManager();
-                    ScriptEngine js = mgr.getEngineByName("JavaScript");
-                    String script = possibleScript.substring(1); //removing equal sign on the head
-
-                    if (js == null) {
-                        LOG.error("Cannot instantiate a JavaScript engine");
-                    }
-
-                    try {
-                        js.eval(script);
-                    } catch (ScriptException scriptException) {
-                        LOG.error(scriptException.getMessage());
-                    }
-
-                    if (js.get(key) == null) {
-                        LOG.error(
-                                "Script evaluation has returned a null value, maybe the key ''{}'' is not evaluated properly.",
-                                key);
-                    }
-
-                    aProperty.setValue(js.get(key).toString());
+                //this is a javascript, removing equal sign on the head
+                String result = evaluateScript(template, possibleScript, lookup, key);
+
+                if (result == null) {
+                    LOG.error(
+                            "Script evaluation has returned a null value, maybe the key ''{}'' is not evaluated properly.",
+                            key);
+                } else {
+                    aProperty.setValue(result);
                     success = true;
-                } catch (Exception ex) {
-                    success = false;
-                    LOG.error("Error while evaluating script in command", ex);
                 }
             }
 
@@ -258,82 +242,46 @@ public final class Resolver {
      *
      * @param trigger
      */
-    private void performSubstitutionInTrigger(Trigger trigger) throws VariableResolutionException {
-        Iterator it = trigger.getPayload().iterator();
-
-        while (it.hasNext()) {
-            Statement statement = (Statement) it.next();
-            String key = (String) statement.getAttribute();
-            String propertyValue = (String) statement.getValue();
-
-            for (final String PREFIX : namespaces) {
-                Pattern pattern = Pattern.compile("@" + PREFIX + "[.A-Za-z0-9_-]*\\b(#)?"); //find any @token
-                Matcher matcher = pattern.matcher(propertyValue);
-                StringBuffer result = new StringBuffer();
-
-                while (matcher.find()) {
-                    matcher.appendReplacement(result, "");
-
-                    String tokenKey = matcher.group();
-
-                    if (tokenKey.endsWith("#")) {
-                        tokenKey = tokenKey.substring(0, tokenKey.length() - 1); //cutting out the optional last '#'
-                    }
-
-                    tokenKey
-                            = tokenKey.substring(1,
-                                    tokenKey.length()); //cutting out the first char '@'
-
-                    String tokenValue = trigger.getPayload().getStatementValue(tokenKey);
-
-                    if (tokenValue == null) {
-                        throw new VariableResolutionException("Variable '" + tokenValue + "' cannot be resolved in trigger '"
-                                + trigger.getName() + "'.\n" + "Availabe tokens are: "
-                                + context.toString());
-                    }
-
-                    //replace an @token.property with its real value
-                    //System.out.println("Replace all " + tokenKey + " with " + tokenValue + " in " + propertyValue);
-                    result.append(tokenValue);
+    private void performSubstitutionInTrigger(final Trigger trigger) throws VariableResolutionException {
+        PropertyTemplate.Lookup lookup = new PropertyTemplate.Lookup() {
+            @Override
+            public String lookup(String reference) throws VariableResolutionException {
+                String tokenValue = trigger.getPayload().getStatementValue(reference);
+                if (tokenValue == null) {
+                    throw new VariableResolutionException("Variable '" + reference + "' cannot be resolved in trigger '"
+                            + trigger.getName() + "'.\n" + "Availabe tokens are: "
+                            + context.toString());
                 }
-
-                matcher.appendTail(result);
-                statement.setValue(result.toString());
+                return tokenValue;
             }
+        };
+        // the date and time statements not yet copied in the payload have no references to resolve
+        List<Statement> statements;
+        synchronized (trigger.getPayload().getExplicitStatements()) {
+            statements = new ArrayList<Statement>(trigger.getPayload().getExplicitStatements());
+        }
+
+        for (Statement statement : statements) {
+            String key = (String) statement.getAttribute();
+            PropertyTemplate template = PropertyTemplate.compile(statement.getValue());
+            //replace every @token.property with its real value
+            statement.setValue(template.resolve(namespaces, lookup, buffer));
 
             //all references are replaced with real values in the current statement, now perform scripting
             String possibleScript = (String) statement.getValue().trim();
             boolean success = false;
 
             if (possibleScript.startsWith("=")) {
-                //this is a javascript
-                try {
-                    ScriptEngineManager mgr = new ScriptEngineManager();
-                    ScriptEngine js = mgr.getEngineByName("JavaScript");
-                    //removing equal sign on the head
-                    String script = possibleScript.substring(1);
-
-                    if (js == null) {
-                        LOG.error("Cannot instatiate a JavaScript engine");
-                    }
-
-                    try {
-                        js.eval(script);
-                    } catch (ScriptException scriptException) {
-                        LOG.error(scriptException.getMessage());
-                    }
-
-                    if (js.get(key) == null) {
-                        LOG.error(
-                                "Script evaluation in trigger ''{}'' has returned a null value, maybe the key ''{}'' is not evaluated properly.",
-                                new Object[]{trigger.getName(), key});
-                    }
-
-                    statement.setValue(js.get(key).toString());
+                //this is a javascript, removing equal sign on the head
+                String result = evaluateScript(template, possibleScript, lookup, key);
+
+                if (result == null) {
+                    LOG.error(
+                            "Script evaluation in trigger ''{}'' has returned a null value, maybe the key ''{}'' is not evaluated properly.",
+                            new Object[]{trigger.getName(), key});
+                } else {
+                    statement.setValue(result);
                     success = true;
-                } catch (Exception ex) {
-                    success = false;
-                    LOG.error(ex.getMessage());
                 }
             }
 
@@ -344,15 +292,58 @@ public final class Resolver {
         }
     }
 
+    /*
+     * Evaluates the script of a "=" value and returns the value of the
+     * variable named as the property (or statement) being resolved, null if
+     * not available. The references are passed to the script as variables
+     * when possible, so the compiled script is reused for every resolution of
+     * the same template. Otherwise the resolved value is evaluated.
+     */
+    private String evaluateScript(PropertyTemplate template, String resolved, PropertyTemplate.Lookup lookup, String key)
+            throws VariableResolutionException {
+        Map<String, Object> variables = new HashMap<String, Object>();
+        String script = template.toScript(namespaces, lookup, variables);
+        if (script != null) {
+            script = script.trim();
+        }
+        try {
+            if (script != null && script.startsWith("=")) {
+                return scriptEvaluator.eval(script.substring(1), key, variables);
+            }
+            return scriptEvaluator.eval(resolved.trim().substring(1), key);
+        } catch (ScriptException scriptException) {
+            LOG.error("Error while evaluating script for ''{}'': {}", key, scriptException.getMessage());
+            return null;
+        }
+    }
+
     private void mergeContextParamsIntoCommand(Command c) {
         //adding  parameters to command parameters with a  prefix
-        Iterator<Statement> it = context.iterator();
-        while (it.hasNext()) {
-            Statement statement = it.next();
-            c.setProperty(statement.getAttribute(), statement.getValue());
+        //the date and time statements are read only if a property refers to them, see lookupTime
+        List<Statement> statements = context.getExplicitStatements();
+        synchronized (statements) {
+            for (Statement statement : statements) {
+                c.setProperty(statement.getAttribute(), statement.getValue());
+            }
         }
     }
 
+    /*
+     * Returns the value of a date or time statement of the context not yet
+     * copied in its statements, null if there is none with the given name
+     */
+    private String lookupTime(String reference) {
+        TimeContext time = context.getTimeContext();
+        if (time != null && time.provides(reference)) {
+            for (Statement statement : time.getStatements()) {
+                if (statement.getAttribute().equalsIgnoreCase(reference)) {
+                    return statement.getValue();
+                }
+            }
+        }
+        return null;
+    }
+
     private void mergeContextParamsIntoTrigger(Trigger t) {
         //adding  parameters to command parameters with a  prefix
         t.getPayload().merge(context);
@@ -444,23 +435,9 @@ public final class Resolver {
             namespaces.add(PREFIX);
         }
 
-        // get an hold on the statements list mutex to avoid others to use it
-        synchronized (aContext.getStatements()) {
-            Iterator it = aContext.iterator();
-
-            while (it.hasNext()) {
-                String key;
-                Statement statement = (Statement) it.next();
-                //removing the prefix of the properties if already exists
-                //to avoid dublicate prefixes like @event.event.object.name
-                if (statement.getAttribute().startsWith(PREFIX)) {
-                    key = statement.getAttribute().substring(PREFIX.length());
-                } else {
-                    key = statement.getAttribute();
-                }
-                context.addStatement(PREFIX + key, statement.getValue());
-            }
-        }
+        //the prefix is not added twice to avoid dublicate prefixes like @event.event.object.name
+        //the date and time statements are resolved only if a trigger or command refers to them
+        context.addStatements(PREFIX, aContext);
     }
 
     void clear() {
@@ -0,0 +1,454 @@
+/**
+ *
+ * Copyright (c) 2009-2016 Freedomotic team http://freedomotic.com
+ *
+ * This file is part of Freedomotic
+ *
+ * This Program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2, or (at your option) any later version.
+ *
+ * This Program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Freedomotic; see the file COPYING. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.freedomotic.core;
+
+import com.freedomotic.settings.AppConfig;
+import com.google.inject.Inject;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.script.Bindings;
+import javax.script.Compilable;
+import javax.script.CompiledScript;
+import javax.script.ScriptContext;
+import javax.script.ScriptEngine;
+import javax.script.ScriptEngineManager;
+import javax.script.ScriptException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Evaluates the JavaScript of the "=" command properties and trigger
+ * statements (eg: <code>= temp=(@event.temperature*1.8)+32;</code>).
+ * <p>
+ * JavaScript engines are expensive to create and are not thread safe, so a
+ * bounded pool of engines is kept and every engine caches the scripts it has
+ * already compiled, keyed by source. The values of the event references are
+ * passed to the scripts as variables (see PropertyTemplate), so the same
+ * script is compiled once for all the events. The variables defined by a
+ * script are removed after its evaluation so every script starts from a clean
+ * global scope, as it did with a fresh engine. When the pool is exhausted
+ * callers wait for an engine to be released.
+ * </p>
+ * <p>
+ * An evaluation can have a timeout. In this case the script runs in a
+ * separate thread and, if it does not complete in time, the caller is released
+ * with a {@link ScriptException} and the engine is discarded. The script
+ * thread cannot be stopped (the JavaScript engine ignores interrupts) and it
+ * is abandoned until the script ends. Timed evaluations run on a bounded pool
+ * of threads: when it is full of abandoned scripts the evaluations with a
+ * timeout fail immediately instead of creating more threads.
+ * </p>
+ * <p>
+ * There is a single evaluator, injected where scripts are evaluated.
+ * </p>
+ * <p>
+ * Configuration keys (in config.xml):
+ * <ul>
+ * <li>KEY_SCRIPT_ENGINES the max number of pooled engines (default 4)</li>
+ * <li>KEY_SCRIPT_CACHE_SIZE the max number of compiled scripts kept by every
+ * engine (default 256)</li>
+ * <li>KEY_SCRIPT_TIMEOUT the default evaluation timeout in milliseconds, 0
+ * means no timeout (default 0)</li>
+ * </ul>
+ * </p>
+ */
+public class ScriptEvaluator {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ScriptEvaluator.class.getName());
+    private static final String ENGINE_NAME = "JavaScript";
+    private static final Map<String, Object> NO_VARIABLES = Collections.emptyMap();
+    private final ScriptEngineManager manager = new ScriptEngineManager();
+    private final int maxEngines;
+    private final int cacheSize;
+    private final long timeout;
+    private final BlockingQueue<PooledEngine> idle = new LinkedBlockingQueue<PooledEngine>();
+    private final AtomicInteger engines = new AtomicInteger();
+    private final ExecutorService timeoutExecutor;
+    // metrics
+    private final AtomicLong evaluations = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+    private final AtomicInteger abandoned = new AtomicInteger();
+    private final AtomicLong compilations = new AtomicLong();
+    private final AtomicLong totalEvaluationTime = new AtomicLong();
+    private final AtomicLong maxEvaluationTime = new AtomicLong();
+
+    @Inject
+    ScriptEvaluator(AppConfig config) {
+        this(config.getIntProperty("KEY_SCRIPT_ENGINES", 4),
+                config.getIntProperty("KEY_SCRIPT_CACHE_SIZE", 256),
+                config.getIntProperty("KEY_SCRIPT_TIMEOUT", 0));
+    }
+
+    /**
+     * Creates a script evaluator
+     *
+     * @param maxEngines the max number of pooled engines
+     * @param cacheSize the max number of compiled scripts kept by every engine
+     * @param timeout the default evaluation timeout in milliseconds, 0 means
+     * no timeout
+     */
+    public ScriptEvaluator(int maxEngines, int cacheSize, long timeout) {
+        if (maxEngines < 1 || cacheSize < 0 || timeout < 0) {
+            throw new IllegalArgumentException("Invalid script evaluator configuration");
+        }
+        this.maxEngines = maxEngines;
+        this.cacheSize = cacheSize;
+        this.timeout = timeout;
+        // a thread for every engine plus as many abandoned scripts, idle threads are not kept
+        this.timeoutExecutor = new ThreadPoolExecutor(0, maxEngines * 2, 60, TimeUnit.SECONDS,
+                new SynchronousQueue<Runnable>(), new ThreadFactory() {
+                    private final AtomicInteger count = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, "script-evaluator-" + count.getAndIncrement());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+    }
+
+    /**
+     * Evaluates a script using the default timeout and returns the value of
+     * one of its variables.
+     *
+     * @param script the JavaScript source
+     * @param key the name of the variable to read after the evaluation
+     * @return the variable value as a string, null if it is not defined
+     * @throws ScriptException if the script cannot be evaluated or it times
+     * out
+     */
+    public String eval(String script, String key) throws ScriptException {
+        return eval(script, key, NO_VARIABLES, timeout);
+    }
+
+    /**
+     * Evaluates a script with the given global variables using the default
+     * timeout and returns the value of one of its variables.
+     *
+     * @param script the JavaScript source
+     * @param key the name of the variable to read after the evaluation
+     * @param variables the variables defined before the evaluation, by name
+     * @return the variable value as a string, null if it is not defined
+     * @throws ScriptException if the script cannot be evaluated or it times
+     * out
+     */
+    public String eval(String script, String key, Map<String, Object> variables) throws ScriptException {
+        return eval(script, key, variables, timeout);
+    }
+
+    /**
+     * Evaluates a script and returns the value of one of its variables.
+     *
+     * @param script the JavaScript source
+     * @param key the name of the variable to read after the evaluation
+     * @param timeout the evaluation timeout in milliseconds, 0 means no
+     * timeout
+     * @return the variable value as a string, null if it is not defined
+     * @throws ScriptException if the script cannot be evaluated or it times
+     * out
+     */
+    public String eval(String script, String key, long timeout) throws ScriptException {
+        return eval(script, key, NO_VARIABLES, timeout);
+    }
+
+    /**
+     * Evaluates a script with the given global variables and returns the
+     * value of one of its variables.
+     *
+     * @param script the JavaScript source
+     * @param key the name of the variable to read after the evaluation
+     * @param variables the variables defined before the evaluation, by name
+     * @param timeout the evaluation timeout in milliseconds, 0 means no
+     * timeout
+     * @return the variable value as a string, null if it is not defined
+     * @throws ScriptException if the script cannot be evaluated or it times
+     * out
+     */
+    public String eval(final String script, final String key, final Map<String, Object> variables, long timeout)
+            throws ScriptException {
+        long start = System.nanoTime();
+        evaluations.incrementAndGet();
+        final PooledEngine pooled = borrow();
+        boolean reusable = true;
+
+        try {
+            Object value;
+            if (timeout > 0) {
+                // set by the first between the script completing and the caller giving up
+                final AtomicBoolean settled = new AtomicBoolean();
+                Future<Object> future;
+                try {
+                    future = timeoutExecutor.submit(new Callable<Object>() {
+                        @Override
+                        public Object call() throws ScriptException {
+                            try {
+                                return pooled.eval(script, key, variables);
+                            } finally {
+                                // the caller has given up, this thread is free again
+                                if (!settled.compareAndSet(false, true)) {
+                                    abandoned.decrementAndGet();
+                                }
+                            }
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    throw new ScriptException("Too many abandoned script evaluations (" + abandoned.get()
+                            + "), cannot evaluate scripts with a timeout");
+                }
+                try {
+                    value = future.get(timeout, TimeUnit.MILLISECONDS);
+                } catch (TimeoutException e) {
+                    reusable = false;
+                    timeouts.incrementAndGet();
+                    abandon(future, settled);
+                    throw new ScriptException("Script evaluation has not completed in " + timeout + "ms");
+                } catch (InterruptedException e) {
+                    reusable = false;
+                    abandon(future, settled);
+                    Thread.currentThread().interrupt();
+                    throw new ScriptException("Interrupted while waiting for script evaluation");
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof ScriptException) {
+                        throw (ScriptException) e.getCause();
+                    }
+                    throw new ScriptException(e.getCause() != null ? e.getCause().toString() : e.toString());
+                }
+            } else {
+                value = pooled.eval(script, key, variables);
+            }
+            return toString(value);
+        } catch (ScriptException | RuntimeException e) {
+            failures.incrementAndGet();
+            throw e;
+        } finally {
+            release(pooled, reusable);
+            long elapsed = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start);
+            totalEvaluationTime.addAndGet(elapsed);
+            long max = maxEvaluationTime.get();
+            while (elapsed > max && !maxEvaluationTime.compareAndSet(max, elapsed)) {
+                max = maxEvaluationTime.get();
+            }
+        }
+    }
+
+    /*
+     * Numbers are formatted as JavaScript does (15 and not 15.0): the engine
+     * returns integral numbers computed from variables as doubles, while the
+     * same computation on literals can give an integer
+     */
+    private static String toString(Object value) {
+        if (value instanceof Double) {
+            double number = (Double) value;
+            if (number == Math.rint(number) && Math.abs(number) < 1e15) {
+                return Long.toString((long) number);
+            }
+        }
+        return value == null ? null : value.toString();
+    }
+
+    /*
+     * Records that nobody waits for the script anymore, unless it has just
+     * completed
+     */
+    private void abandon(Future<Object> future, AtomicBoolean settled) {
+        if (settled.compareAndSet(false, true)) {
+            abandoned.incrementAndGet();
+            LOG.warn("A script evaluation is abandoned, {} abandoned scripts are still running", abandoned.get());
+        }
+        future.cancel(true);
+    }
+
+    private PooledEngine borrow() throws ScriptException {
+        PooledEngine pooled = idle.poll();
+        if (pooled != null) {
+            return pooled;
+        }
+        if (engines.incrementAndGet() <= maxEngines) {
+            ScriptEngine engine = manager.getEngineByName(ENGINE_NAME);
+            if (engine == null) {
+                engines.decrementAndGet();
+                throw new ScriptException("Cannot instantiate a JavaScript engine");
+            }
+            LOG.debug("Created JavaScript engine {} of {}", engines.get(), maxEngines);
+            return new PooledEngine(engine);
+        }
+        engines.decrementAndGet();
+        try {
+            return idle.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ScriptException("Interrupted while waiting for a JavaScript engine");
+        }
+    }
+
+    private void release(PooledEngine pooled, boolean reusable) {
+        if (reusable) {
+            idle.offer(pooled);
+        } else {
+            // a new engine can be created in place of the discarded one
+            engines.decrementAndGet();
+        }
+    }
+
+    /**
+     * Returns the number of evaluated scripts
+     *
+     * @return the number of evaluations
+     */
+    public long getEvaluationCount() {
+        return evaluations.get();
+    }
+
+    /**
+     * Returns the number of evaluations failed with an error or a timeout
+     *
+     * @return the number of failed evaluations
+     */
+    public long getFailureCount() {
+        return failures.get();
+    }
+
+    /**
+     * Returns the number of evaluations not completed in time
+     *
+     * @return the number of timed out evaluations
+     */
+    public long getTimeoutCount() {
+        return timeouts.get();
+    }
+
+    /**
+     * Returns the number of timed out evaluations whose script is still
+     * running in its thread
+     *
+     * @return the number of abandoned evaluations
+     */
+    public int getAbandonedCount() {
+        return abandoned.get();
+    }
+
+    /**
+     * Returns the number of scripts compiled, that is the number of
+     * evaluations that have not found the script in the cache of the engine
+     *
+     * @return the number of compiled scripts
+     */
+    public long getCompilationCount() {
+        return compilations.get();
+    }
+
+    /**
+     * Returns the average evaluation time in microseconds, including the time
+     * spent waiting for an engine
+     *
+     * @return the average evaluation time in microseconds
+     */
+    public double getAverageEvaluationTime() {
+        long count = evaluations.get();
+        return count == 0 ? 0 : (double) totalEvaluationTime.get() / count;
+    }
+
+    /**
+     * Returns the max evaluation time in microseconds
+     *
+     * @return the max evaluation time in microseconds
+     */
+    public long getMaxEvaluationTime() {
+        return maxEvaluationTime.get();
+    }
+
+    /**
+     * An engine with its compiled scripts, used by one thread at a time
+     */
+    private final class PooledEngine {
+
+        private final ScriptEngine engine;
+        private final Bindings bindings;
+        // the global names defined before any script is evaluated
+        private final Set<String> initialNames;
+        private final Map<String, CompiledScript> compiled;
+
+        PooledEngine(ScriptEngine engine) {
+            this.engine = engine;
+            this.bindings = engine.getBindings(ScriptContext.ENGINE_SCOPE);
+            this.initialNames = new HashSet<String>(bindings.keySet());
+            this.compiled = new LinkedHashMap<String, CompiledScript>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, CompiledScript> eldest) {
+                    return size() > cacheSize;
+                }
+            };
+        }
+
+        Object eval(String script, String key, Map<String, Object> variables) throws ScriptException {
+            try {
+                // removed by reset() as the variables defined by the script
+                bindings.putAll(variables);
+                if (engine instanceof Compilable && cacheSize > 0) {
+                    CompiledScript compiledScript = compiled.get(script);
+                    if (compiledScript == null) {
+                        compilations.incrementAndGet();
+                        compiledScript = ((Compilable) engine).compile(script);
+                        compiled.put(script, compiledScript);
+                    }
+                    compiledScript.eval();
+                } else {
+                    compilations.incrementAndGet();
+                    engine.eval(script);
+                }
+                return engine.get(key);
+            } finally {
+                reset();
+            }
+        }
+
+        /*
+         * Removes the variables defined by the last script
+         */
+        private void reset() {
+            for (String name : new ArrayList<String>(bindings.keySet())) {
+                if (!initialNames.contains(name)) {
+                    bindings.remove(name);
+                }
+            }
+        }
+    }
+}
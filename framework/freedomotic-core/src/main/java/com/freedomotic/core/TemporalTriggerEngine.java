@@ -0,0 +1,338 @@
+/**
+ *
+ * Copyright (c) 2009-2016 Freedomotic team http://freedomotic.com
+ *
+ * This file is part of Freedomotic
+ *
+ * This Program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2, or (at your option) any later version.
+ *
+ * This Program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Freedomotic; see the file COPYING. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.freedomotic.core;
+
+import com.freedomotic.events.ScheduledEvent;
+import com.freedomotic.metrics.Metrics;
+import com.freedomotic.reactions.Trigger;
+import com.freedomotic.rules.TimeCondition;
+import com.freedomotic.settings.AppConfig;
+import com.google.inject.Inject;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Fires the time based triggers (the ones listening on the
+ * {@link ScheduledEvent} channel) without a scheduled event broadcast every
+ * second.
+ * <p>
+ * The next instant in which a trigger can fire is computed from its date and
+ * time statements (see {@link TimeCondition}) and from its suspension time,
+ * then the trigger is stored in a {@link TimingWheel}. A single thread moves
+ * the wheel forward every second and, only when some trigger is due, creates
+ * a {@link ScheduledEvent} and checks it against the due triggers with
+ * {@link TriggerCheck#check}. Checked triggers are scheduled again starting
+ * from the next second, and once more when their execution is recorded (see
+ * {@link Trigger#setExecuted()}): the automations run later on the
+ * {@link AutomationExecutor} and the suspension time starts from their
+ * execution. A periodic trigger (eg: "every minute") is so checked
+ * once per period and a trigger bound to a date is checked once.
+ * </p>
+ * <p>
+ * Triggers with statements which cannot be analyzed (other attributes or
+ * values resolved at runtime) are checked every second, as before. Triggers
+ * which can never fire again (eg: bound to a past date or with all their
+ * executions done) are kept idle until registered again.
+ * </p>
+ * <p>
+ * Configuration keys (in config.xml):
+ * <ul>
+ * <li>KEY_TEMPORAL_TRIGGERS true to schedule the time based triggers with
+ * this engine, false to check them against the events broadcast by the
+ * scheduler plugin (default true)</li>
+ * </ul>
+ * </p>
+ */
+public class TemporalTriggerEngine {
+
+    private static final Logger LOG = LoggerFactory.getLogger(TemporalTriggerEngine.class.getName());
+    /**
+     * The channel of the time based triggers
+     */
+    public static final String CHANNEL = "app.event.sensor.calendar.event.schedule";
+    private static final long TICK = 1000;
+    // how far in the future the next fire time is searched
+    private static final long HORIZON = TimeUnit.DAYS.toMillis(8 * 366);
+    // a larger difference between the wall clock and the wheel is a clock change
+    private static final long MAX_CLOCK_DRIFT = TimeUnit.MINUTES.toMillis(1);
+    private final boolean enabled;
+    private final TriggerCheck triggerCheck;
+    // registered trigger -> its compiled statements, null if checked every second (guarded by this)
+    private final Map<Trigger, TimeCondition> triggers = new IdentityHashMap<Trigger, TimeCondition>();
+    // scheduled trigger -> its position in the wheel (guarded by this)
+    private final Map<Trigger, TimingWheel.Timeout<Trigger>> timeouts = new IdentityHashMap<Trigger, TimingWheel.Timeout<Trigger>>();
+    private TimingWheel<Trigger> wheel = new TimingWheel<Trigger>(TICK, System.currentTimeMillis());
+    private final boolean ticker;
+    private Thread thread;
+    // metrics
+    private final AtomicLong ticks = new AtomicLong();
+    private final AtomicLong events = new AtomicLong();
+    private final AtomicLong checks = new AtomicLong();
+
+    @Inject
+    TemporalTriggerEngine(AppConfig config, TriggerCheck triggerCheck) {
+        this(config.getBooleanProperty("KEY_TEMPORAL_TRIGGERS", true), triggerCheck);
+    }
+
+    TemporalTriggerEngine(boolean enabled, TriggerCheck triggerCheck) {
+        this(enabled, triggerCheck, true);
+    }
+
+    /*
+     * Without the ticker thread the wheel is moved forward only by tick(),
+     * used by the tests
+     */
+    TemporalTriggerEngine(boolean enabled, TriggerCheck triggerCheck, boolean ticker) {
+        this.enabled = enabled;
+        this.triggerCheck = triggerCheck;
+        this.ticker = ticker;
+    }
+
+    /**
+     * Checks if the given trigger is fired by this engine instead of the
+     * events received from the bus.
+     *
+     * @param trigger the trigger to check
+     * @return true if the engine is enabled and the trigger listens on the
+     * {@link #CHANNEL}
+     */
+    public boolean accepts(Trigger trigger) {
+        return enabled && CHANNEL.equals(trigger.getChannel());
+    }
+
+    /**
+     * Starts (or restarts after its statements are changed) firing the given
+     * trigger.
+     *
+     * @param trigger the trigger to schedule
+     */
+    public synchronized void schedule(Trigger trigger) {
+        TimeCondition condition = TimeCondition.compile(trigger.getPayload());
+        if (condition == null) {
+            LOG.info("Time based trigger '{}' cannot be scheduled, it is checked every second", trigger.getName());
+        }
+        if (ticker && thread == null) {
+            wheel = new TimingWheel<Trigger>(TICK, System.currentTimeMillis());
+            thread = new Thread(new Ticker(), "temporal-triggers");
+            thread.setDaemon(true);
+            thread.start();
+        }
+        cancel(trigger);
+        triggers.put(trigger, condition);
+        if (condition != null) {
+            reschedule(trigger, condition, System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * Schedules again a trigger after its execution is recorded, so that it is
+     * not checked again until its suspension time has elapsed. Does nothing if
+     * the trigger is not fired by this engine.
+     *
+     * @param trigger the executed trigger
+     */
+    public synchronized void executed(Trigger trigger) {
+        TimeCondition condition = triggers.get(trigger);
+        if (condition != null) {
+            wheel.cancel(timeouts.remove(trigger));
+            reschedule(trigger, condition, wheel.getCurrentTime() + TICK);
+        }
+    }
+
+    /**
+     * Stops firing the given trigger.
+     *
+     * @param trigger the trigger to cancel
+     * @return true if the trigger was scheduled by this engine
+     */
+    public synchronized boolean cancel(Trigger trigger) {
+        wheel.cancel(timeouts.remove(trigger));
+        boolean scheduled = triggers.containsKey(trigger);
+        triggers.remove(trigger);
+        return scheduled;
+    }
+
+    /**
+     * Returns the number of triggers fired by this engine.
+     *
+     * @return the number of registered triggers
+     */
+    public synchronized int size() {
+        return triggers.size();
+    }
+
+    /**
+     * Returns the number of triggers waiting in the timing wheel for their
+     * next fire time.
+     *
+     * @return the number of scheduled triggers
+     */
+    public synchronized int getScheduledCount() {
+        return wheel.size();
+    }
+
+    /**
+     * Returns the number of triggers checked every second because their
+     * statements cannot be analyzed.
+     *
+     * @return the number of polled triggers
+     */
+    public synchronized int getPolledCount() {
+        int count = 0;
+        for (TimeCondition condition : triggers.values()) {
+            if (condition == null) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Returns the number of seconds elapsed since the engine has started.
+     *
+     * @return the number of ticks
+     */
+    public long getTickCount() {
+        return ticks.get();
+    }
+
+    /**
+     * Returns the number of scheduled events created, that is the number of
+     * seconds in which at least a trigger was due.
+     *
+     * @return the number of created events
+     */
+    public long getEventCount() {
+        return events.get();
+    }
+
+    /**
+     * Returns the number of trigger checks performed.
+     *
+     * @return the number of trigger checks
+     */
+    public long getCheckCount() {
+        return checks.get();
+    }
+
+    /*
+     * Puts the trigger in the wheel at the first second, starting from the
+     * given time, in which it can fire. Called holding the lock
+     */
+    private void reschedule(Trigger trigger, TimeCondition condition, long from) {
+        long start = from;
+        if (!trigger.isHardwareLevel()) {
+            if (trigger.getMaxExecutions() > -1 && trigger.getNumberOfExecutions() >= trigger.getMaxExecutions()) {
+                LOG.debug("Time based trigger '{}' has done all its executions", trigger.getName());
+                return;
+            }
+            if (trigger.getNumberOfExecutions() > 0) {
+                start = Math.max(start, trigger.getSuspensionStart() + trigger.getSuspensionTime());
+            }
+        }
+        long searchStart = System.nanoTime();
+        long next = condition.next(start, start + HORIZON);
+        Metrics.histogram(Metrics.TRIGGER_SCHEDULE).recordSince(searchStart);
+        if (next < 0) {
+            LOG.info("Time based trigger '{}' will never fire again", trigger.getName());
+            return;
+        }
+        timeouts.put(trigger, wheel.schedule(trigger, next));
+    }
+
+    /*
+     * Called every second by the ticker thread
+     */
+    void tick(long now) {
+        ticks.incrementAndGet();
+        List<Trigger> due = new ArrayList<Trigger>();
+        synchronized (this) {
+            long drift = now - wheel.getCurrentTime();
+            if (drift < -TICK || drift > MAX_CLOCK_DRIFT) {
+                LOG.warn("System clock changed by {}ms, time based triggers are scheduled again", drift);
+                wheel = new TimingWheel<Trigger>(TICK, now);
+                timeouts.clear();
+                for (Map.Entry<Trigger, TimeCondition> entry : triggers.entrySet()) {
+                    if (entry.getValue() != null) {
+                        reschedule(entry.getKey(), entry.getValue(), now);
+                    }
+                }
+            }
+            wheel.advance(now, due);
+            for (Trigger trigger : due) {
+                timeouts.remove(trigger);
+            }
+            for (Map.Entry<Trigger, TimeCondition> entry : triggers.entrySet()) {
+                if (entry.getValue() == null) {
+                    due.add(entry.getKey());
+                }
+            }
+        }
+        if (due.isEmpty()) {
+            return;
+        }
+
+        // shared by the due triggers, as the events received from the bus
+        ScheduledEvent event = new ScheduledEvent(this);
+        events.incrementAndGet();
+        LOG.debug("Scheduled event is checked against {} due triggers", due.size());
+        long nextSecond = (now / TICK + 1) * TICK;
+        for (Trigger trigger : due) {
+            long start = System.nanoTime();
+            triggerCheck.check(event, trigger);
+            checks.incrementAndGet();
+            Metrics.histogram(Metrics.TRIGGER_CHECK).recordSince(start);
+            synchronized (this) {
+                // skipped if cancelled, or scheduled again while checking (eg: already executed)
+                TimeCondition condition = triggers.get(trigger);
+                if (condition != null && !timeouts.containsKey(trigger)) {
+                    reschedule(trigger, condition, nextSecond);
+                }
+            }
+        }
+    }
+
+    /**
+     * Moves the timing wheel at the beginning of every second
+     */
+    private final class Ticker implements Runnable {
+
+        @Override
+        public void run() {
+            LOG.info("Time based triggers are scheduled by the core");
+            while (!Thread.currentThread().isInterrupted()) {
+                try {
+                    Thread.sleep(TICK - System.currentTimeMillis() % TICK);
+                    tick(System.currentTimeMillis());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (RuntimeException e) {
+                    LOG.error("Error while firing time based triggers", e);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,270 @@
+/**
+ *
+ * Copyright (c) 2009-2016 Freedomotic team http://freedomotic.com
+ *
+ * This file is part of Freedomotic
+ *
+ * This Program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2, or (at your option) any later version.
+ *
+ * This Program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Freedomotic; see the file COPYING. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.freedomotic.core;
+
+import java.util.List;
+
+/**
+ * A hierarchical timing wheel: schedules items to expire at a given tick with
+ * O(1) insertion and cancellation, no matter how far in the future.
+ * <p>
+ * Ticks are grouped in four wheels (by default a tick is a second, so the
+ * wheels hold the seconds of the current minute, the minutes of the current
+ * hour, the hours of the current day and the next 512 days). An item is
+ * stored in the finest wheel whose range includes its deadline and is moved
+ * down to the finer wheels (cascaded) when the time reaches its slot. Items
+ * farther than the coarsest wheel are kept in an overflow list checked once
+ * per coarsest tick.
+ * </p>
+ * <p>
+ * The wheel is not thread safe and has no thread of its own: the owner calls
+ * {@link #advance(long, List)} to move the time forward and collect the
+ * expired items.
+ * </p>
+ *
+ * @param <T> the type of the scheduled items
+ */
+public final class TimingWheel<T> {
+
+    // slots of every wheel and ticks covered by a slot of every wheel
+    private static final int[] SIZES = {60, 60, 24, 512};
+    private static final long[] SPANS = {1, 60, 3600, 86400};
+    private final Bucket<T>[][] wheels;
+    private final Bucket<T> overflow = new Bucket<T>();
+    // expired before being scheduled, returned by the next advance
+    private final Bucket<T> overdue = new Bucket<T>();
+    private final long tickMillis;
+    private long current;
+    private int size;
+
+    /**
+     * Creates a timing wheel.
+     *
+     * @param tickMillis the duration of a tick in milliseconds
+     * @param startMillis the current time in milliseconds
+     */
+    @SuppressWarnings("unchecked")
+    public TimingWheel(long tickMillis, long startMillis) {
+        if (tickMillis < 1) {
+            throw new IllegalArgumentException("The tick of a timing wheel must be positive");
+        }
+        this.tickMillis = tickMillis;
+        this.current = startMillis / tickMillis;
+        this.wheels = new Bucket[SIZES.length][];
+        for (int level = 0; level < SIZES.length; level++) {
+            wheels[level] = new Bucket[SIZES[level]];
+            for (int slot = 0; slot < SIZES[level]; slot++) {
+                wheels[level][slot] = new Bucket<T>();
+            }
+        }
+    }
+
+    /**
+     * Schedules an item. It expires at the first {@link #advance(long, List)}
+     * reaching the tick of the given deadline, or at the next one if the
+     * deadline is already passed.
+     *
+     * @param item the item to schedule
+     * @param deadlineMillis the expiration time in milliseconds
+     * @return the handle to cancel the item
+     */
+    public Timeout<T> schedule(T item, long deadlineMillis) {
+        if (item == null) {
+            throw new IllegalArgumentException("Cannot schedule a null item");
+        }
+        Timeout<T> timeout = new Timeout<T>(item, deadlineMillis / tickMillis);
+        place(timeout);
+        size++;
+        return timeout;
+    }
+
+    /**
+     * Cancels a scheduled item. Does nothing if it is already expired or
+     * cancelled.
+     *
+     * @param timeout the handle returned by {@link #schedule(Object, long)}
+     * @return true if the item was scheduled
+     */
+    public boolean cancel(Timeout<T> timeout) {
+        if (timeout == null || timeout.bucket == null) {
+            return false;
+        }
+        timeout.bucket.remove(timeout);
+        size--;
+        return true;
+    }
+
+    /**
+     * Moves the time forward, tick by tick, collecting the expired items.
+     * Moving the time backward has no effect.
+     *
+     * @param nowMillis the current time in milliseconds
+     * @param expired the list where the expired items are added
+     */
+    public void advance(long nowMillis, List<T> expired) {
+        long now = nowMillis / tickMillis;
+        drain(overdue, expired);
+        while (current < now) {
+            current++;
+            // from the coarsest wheel down, so cascaded items can reach the finest one
+            for (int level = SIZES.length - 1; level > 0; level--) {
+                if (current % SPANS[level] == 0) {
+                    if (level == SIZES.length - 1) {
+                        cascade(overflow, expired);
+                    }
+                    cascade(wheels[level][(int) ((current / SPANS[level]) % SIZES[level])], expired);
+                }
+            }
+            drain(wheels[0][(int) (current % SIZES[0])], expired);
+        }
+    }
+
+    /**
+     * Returns the number of scheduled items.
+     *
+     * @return the number of scheduled items
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns the time of the last tick reached by
+     * {@link #advance(long, List)}.
+     *
+     * @return the current time in milliseconds, truncated to the tick
+     */
+    public long getCurrentTime() {
+        return current * tickMillis;
+    }
+
+    /*
+     * Stores the timeout in the finest wheel whose range includes its
+     * deadline, that is the one where the deadline slot is reached before the
+     * wheel turns around
+     */
+    private void place(Timeout<T> timeout) {
+        if (timeout.deadline <= current) {
+            overdue.add(timeout);
+            return;
+        }
+        for (int level = 0; level < SIZES.length; level++) {
+            if ((timeout.deadline / SPANS[level]) - (current / SPANS[level]) < SIZES[level]) {
+                wheels[level][(int) ((timeout.deadline / SPANS[level]) % SIZES[level])].add(timeout);
+                return;
+            }
+        }
+        overflow.add(timeout);
+    }
+
+    private void cascade(Bucket<T> bucket, List<T> expired) {
+        Timeout<T> timeout = bucket.head.next;
+        // detached all at once, the overflow timeouts can be placed in the same bucket again
+        bucket.clear();
+        while (timeout != bucket.head) {
+            Timeout<T> next = timeout.next;
+            place(timeout);
+            timeout = next;
+        }
+        drain(overdue, expired);
+    }
+
+    private void drain(Bucket<T> bucket, List<T> expired) {
+        Timeout<T> timeout = bucket.head.next;
+        while (timeout != bucket.head) {
+            Timeout<T> next = timeout.next;
+            bucket.remove(timeout);
+            size--;
+            expired.add(timeout.item);
+            timeout = next;
+        }
+    }
+
+    /**
+     * The handle of a scheduled item
+     *
+     * @param <T> the type of the scheduled item
+     */
+    public static final class Timeout<T> {
+
+        private final T item;
+        private final long deadline;
+        // the bucket holding this timeout, null when expired or cancelled
+        private Bucket<T> bucket;
+        private Timeout<T> previous;
+        private Timeout<T> next;
+
+        private Timeout(T item, long deadline) {
+            this.item = item;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Returns the scheduled item.
+         *
+         * @return the scheduled item
+         */
+        public T getItem() {
+            return item;
+        }
+
+        /**
+         * Checks if the item is still waiting to expire.
+         *
+         * @return true if the item is neither expired nor cancelled
+         */
+        public boolean isPending() {
+            return bucket != null;
+        }
+    }
+
+    /**
+     * A circular doubly linked list of timeouts, allows O(1) removals
+     */
+    private static final class Bucket<T> {
+
+        private final Timeout<T> head = new Timeout<T>(null, 0);
+
+        Bucket() {
+            clear();
+        }
+
+        void add(Timeout<T> timeout) {
+            timeout.bucket = this;
+            timeout.previous = head.previous;
+            timeout.next = head;
+            head.previous.next = timeout;
+            head.previous = timeout;
+        }
+
+        void clear() {
+            head.previous = head;
+            head.next = head;
+        }
+
+        void remove(Timeout<T> timeout) {
+            timeout.previous.next = timeout.next;
+            timeout.next.previous = timeout.previous;
+            timeout.previous = null;
+            timeout.next = null;
+            timeout.bucket = null;
+        }
+    }
+}
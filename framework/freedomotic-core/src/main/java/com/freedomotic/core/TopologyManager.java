@@ -22,13 +22,14 @@ package com.freedomotic.core;
 import com.freedomotic.bus.BusConsumer;
 import com.freedomotic.bus.BusMessagesListener;
 import com.freedomotic.bus.BusService;
+import com.freedomotic.environment.EnvironmentLogic;
 import com.freedomotic.environment.EnvironmentRepository;
 import com.freedomotic.environment.ZoneLogic;
 import com.freedomotic.events.LocationEvent;
 import com.freedomotic.model.geometry.FreedomPoint;
 import com.freedomotic.things.GenericPerson;
 import com.freedomotic.things.ThingRepository;
-import com.freedomotic.util.TopologyUtils;
+import java.util.List;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import javax.inject.Inject;
@@ -88,20 +89,25 @@ public class TopologyManager implements BusConsumer {
      * @param event the person's coordinates
      */
     private void fireEnterExitEvents(GenericPerson person, LocationEvent event) {
-        for (ZoneLogic zone : environmentRepository.findAll().get(0).getZones()) {
-            // are the new Person's coordinates inside the current zone?
-            boolean isZoneAffected = TopologyUtils.contains(zone.getPojo().getShape(), new FreedomPoint(event.getX(), event.getY()));
-            if (isZoneAffected) {
-                if (!zone.isInside(person)) {
-                    // received coordinates are inside this zone but previously 
-                    // the person was not inside this zone
-                    zone.enter(person); //update zone occupiers
-                }
-            } else {
-                if (zone.isInside(person)) {
-                    //this person is no more inside this (previously occupied) zone
-                    zone.exit(person); //update zone occupiers
-                }
+        EnvironmentLogic environment = environmentRepository.findAll().get(0);
+        // only the zones whose bounding box contains the new Person's coordinates are checked
+        List<ZoneLogic> currentZones = environment.findZonesContaining(new FreedomPoint(event.getX(), event.getY()));
+        // kept by the person, so they are dropped when it is deleted
+        List<ZoneLogic> previousZones = person.getLocationZones();
+        person.setLocationZones(currentZones);
+
+        // the first time the person may be inside any zone
+        for (ZoneLogic zone : previousZones != null ? previousZones : environment.getZones()) {
+            if (!currentZones.contains(zone) && zone.isInside(person)) {
+                //this person is no more inside this (previously occupied) zone
+                zone.exit(person); //update zone occupiers
+            }
+        }
+        for (ZoneLogic zone : currentZones) {
+            if (!zone.isInside(person)) {
+                // received coordinates are inside this zone but previously
+                // the person was not inside this zone
+                zone.enter(person); //update zone occupiers
             }
         }
     }
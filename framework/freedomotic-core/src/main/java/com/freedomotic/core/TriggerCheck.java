@@ -25,6 +25,9 @@ import com.freedomotic.events.MessageEvent;
 import com.freedomotic.exceptions.VariableResolutionException;
 import com.freedomotic.behaviors.BehaviorLogic;
 import com.freedomotic.exceptions.RepositoryException;
+import com.freedomotic.metrics.Metrics;
+import com.freedomotic.metrics.Span;
+import com.freedomotic.metrics.Tracer;
 import com.freedomotic.things.EnvObjectLogic;
 import com.freedomotic.things.ThingRepository;
 import com.freedomotic.reactions.Command;
@@ -36,9 +39,9 @@ import com.freedomotic.rules.Expression;
 import com.freedomotic.rules.ExpressionFactory;
 import com.google.inject.Inject;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import org.slf4j.Logger;
@@ -51,13 +54,14 @@ import org.slf4j.LoggerFactory;
 public class TriggerCheck {
 
     private static final Logger LOG = LoggerFactory.getLogger(TriggerCheck.class.getName());
-    private static final ExecutorService AUTOMATION_EXECUTOR = Executors.newCachedThreadPool();
     // Dependencies
     private final Autodiscovery autodiscovery;
     private final BusService busService;
     private final ThingRepository thingsRepository;
     private final ReactionRepository reactionRepository;
     private final BehaviorManager behaviorManager;
+    private final AutomationExecutor automationExecutor;
+    private final ScriptEvaluator scriptEvaluator;
 
     @Inject
     TriggerCheck(
@@ -65,12 +69,16 @@ public class TriggerCheck {
             ThingRepository thingsRepository,
             BusService busService,
             BehaviorManager behaviorManager,
-            ReactionRepository reactionRepository) {
+            ReactionRepository reactionRepository,
+            AutomationExecutor automationExecutor,
+            ScriptEvaluator scriptEvaluator) {
         this.autodiscovery = autodiscovery;
         this.thingsRepository = thingsRepository;
         this.busService = busService;
         this.behaviorManager = behaviorManager;
         this.reactionRepository = reactionRepository;
+        this.automationExecutor = automationExecutor;
+        this.scriptEvaluator = scriptEvaluator;
     }
 
     /**
@@ -85,6 +93,22 @@ public class TriggerCheck {
             throw new IllegalArgumentException("Event and Trigger cannot be null while performing trigger check");
         }
 
+        // only the checks of consistent triggers are recorded, the others would flood the trace buffer
+        Span span = Tracer.start("trigger.check", event.getTraceId(), event.getParentSpanId()).tag(trigger.getName());
+        boolean consistent = false;
+        try {
+            consistent = checkConsistency(event, trigger);
+            return consistent;
+        } finally {
+            if (consistent) {
+                span.end();
+            } else {
+                span.discard();
+            }
+        }
+    }
+
+    private boolean checkConsistency(final EventTemplate event, final Trigger trigger) {
         try {
             if (trigger.isHardwareLevel()) { //hardware triggers can always fire
 
@@ -117,7 +141,7 @@ public class TriggerCheck {
     }
 
     private Trigger resolveTrigger(final EventTemplate event, final Trigger trigger) throws VariableResolutionException {
-        Resolver resolver = new Resolver();
+        Resolver resolver = new Resolver(scriptEvaluator);
         resolver.addContext("event.", event.getPayload());
         return resolver.resolve(trigger);
     }
@@ -179,15 +203,35 @@ public class TriggerCheck {
         if (!done) {
             LOG.warn("Hardware trigger {} is not associated to any object.", resolved.getName());
         }
+        // the event is shared with the other triggers on the same channel, only the resolved clone is cleared
         resolved.getPayload().clear();
-        event.getPayload().clear();
     }
 
+    /*
+     * The commands of a reaction are sent in sequence and the automation
+     * executor worker waits (up to the command reply timeout) for the reply of
+     * each command before sending the next one, because a command not executed
+     * stops the sequence. So at most KEY_AUTOMATION_THREADS reactions can wait
+     * for their replies at the same time, the others wait in the executor
+     * queue (see the "executor.wait.automation-executor" metric).
+     */
     private void executeTriggeredAutomations(final Trigger trigger, final EventTemplate event) {
+        // the time waited in the automation executor queue
+        final Span queued = Tracer.startDetached("automation.queue", null, null).tag(trigger.getName());
         Runnable automation = new Runnable() {
 
             @Override
             public void run() {
+                queued.end();
+                Span span = Tracer.start("automation.execute", queued.getTraceId(), queued.getParentId()).tag(trigger.getName());
+                try {
+                    executeReactions();
+                } finally {
+                    span.end();
+                }
+            }
+
+            private void executeReactions() {
 
                 //Searching for reactions using this trigger
                 boolean found = false;
@@ -210,11 +254,14 @@ public class TriggerCheck {
                         try {
                             //executes the commands in sequence (only the first sequence is used) 
                             //if more then one sequence is needed it can be done with two reactions with the same trigger
-                            Resolver commandResolver = new Resolver();
-                            event.getPayload().addStatement("description",
-                                    trigger.getDescription()); //embedd the trigger description to the event payload
+                            Resolver commandResolver = new Resolver(scriptEvaluator);
                             commandResolver.addContext("event.",
                                     event.getPayload());
+                            //embedd the trigger description in the event context (the event itself is shared, so it is not altered)
+                            if (trigger.getDescription() != null) {
+                                commandResolver.addContext("event.",
+                                        Collections.singletonMap("description", trigger.getDescription()));
+                            }
 
                             for (final Command command : reaction.getCommands()) {
                                 if (command == null) {
@@ -240,7 +287,8 @@ public class TriggerCheck {
 
                                     final Command resolvedCommand = commandResolver.resolve(command);
                                     //it's not a user level command for objects (eg: turn it on), it is for another kind of actuator
-                                    Command reply = busService.send(resolvedCommand); //blocking wait until executed
+                                    //blocks this worker until executed or timed out, the next command depends on the outcome
+                                    Command reply = busService.send(resolvedCommand);
 
                                     if (reply == null) {
                                         command.setExecuted(false);
@@ -268,8 +316,10 @@ public class TriggerCheck {
                             return;
                         }
 
+                        long elapsed = System.currentTimeMillis() - event.getCreation();
+                        Metrics.histogram(Metrics.TRIGGER_REACTION).record(TimeUnit.MILLISECONDS.toMicros(elapsed));
                         String info = "Executing automation '" + reaction.toString() + "' takes "
-                                + (System.currentTimeMillis() - event.getCreation()) + "ms.";
+                                + elapsed + "ms.";
                         LOG.info(info);
 
                         MessageEvent message = new MessageEvent(null, info);
@@ -282,11 +332,12 @@ public class TriggerCheck {
                     LOG.info("No valid reaction bound to trigger ''{}''", trigger.getName());
                 }
                 trigger.getPayload().clear();
-                event.getPayload().clear();
             }
         };
 
-        AUTOMATION_EXECUTOR.execute(automation);
+        // automations of the same trigger are executed in order, higher priority triggers first
+        String orderingKey = trigger.getName() != null ? trigger.getName() : "";
+        automationExecutor.execute(orderingKey, trigger.getPriority(), automation);
     }
 
     /**
@@ -0,0 +1,349 @@
+/**
+ *
+ * Copyright (c) 2009-2016 Freedomotic team http://freedomotic.com
+ *
+ * This file is part of Freedomotic
+ *
+ * This Program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2, or (at your option) any later version.
+ *
+ * This Program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Freedomotic; see the file COPYING. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.freedomotic.core;
+
+import com.freedomotic.api.EventTemplate;
+import com.freedomotic.bus.BusConsumer;
+import com.freedomotic.bus.BusMessagesListener;
+import com.freedomotic.bus.BusService;
+import com.freedomotic.metrics.Metrics;
+import com.freedomotic.reactions.Trigger;
+import com.freedomotic.rules.PayloadIndex;
+import com.google.inject.Inject;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.jms.JMSException;
+import javax.jms.ObjectMessage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Listens once on every channel used by at least one registered
+ * {@link Trigger} and fans out the received events to all the triggers
+ * registered on that channel.
+ * <p>
+ * Before this class every trigger had its own bus listener, so the same event
+ * was copied into a virtual topic queue and deserialized once per trigger.
+ * Now an event is received and deserialized once per channel and then checked
+ * in-process using {@link TriggerCheck#check}. The received event is shared
+ * between the triggers of the channel, so it must be treated as read only
+ * while checking.
+ * <p>
+ * Every channel keeps a {@link PayloadIndex} of the statements of its
+ * triggers, so only the triggers which can be consistent with the event are
+ * resolved and checked. The index is built when a trigger is registered, a
+ * trigger whose statements are changed afterwards must be registered again
+ * (see {@link #reindex(Trigger)}).
+ * <p>
+ * The channels are dispatched concurrently by a shared pool of threads, so a
+ * slow trigger (eg: a hardware trigger joining a new thing) delays only the
+ * following events of its own channel. The events of a channel are still
+ * checked one at a time, in the order they are received.
+ * <p>
+ * The time based triggers (listening on the scheduled events channel) are not
+ * checked against the events received from the bus, they are handed over to
+ * the {@link TemporalTriggerEngine} which fires them only when they are due.
+ */
+public class TriggerDispatcher {
+
+    private static final Logger LOG = LoggerFactory.getLogger(TriggerDispatcher.class.getName());
+    // Channel name -> listener of that channel (guarded by this)
+    private final Map<String, ChannelListener> channels = new HashMap<String, ChannelListener>();
+    // Registered trigger instance -> channel it was registered on (guarded by this)
+    private final Map<Trigger, String> registrations = new IdentityHashMap<Trigger, String>();
+    // Dependencies
+    private final BusService busService;
+    private final TriggerCheck triggerCheck;
+    private final TemporalTriggerEngine temporalEngine;
+    // Checks the received events, at most one thread per channel at a time
+    private final ExecutorService dispatchers = Executors.newCachedThreadPool(new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "trigger-dispatcher-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    @Inject
+    TriggerDispatcher(BusService busService, TriggerCheck triggerCheck, TemporalTriggerEngine temporalEngine) {
+        this.busService = busService;
+        this.triggerCheck = triggerCheck;
+        this.temporalEngine = temporalEngine;
+    }
+
+    /**
+     * Starts checking the given trigger against the events received on its
+     * channel. Registering the same trigger instance twice has no effect,
+     * registering it after a channel change moves it on the new channel.
+     *
+     * @param trigger the trigger to register
+     */
+    public synchronized void register(Trigger trigger) {
+        if (trigger == null || trigger.getChannel() == null || trigger.getChannel().isEmpty()) {
+            throw new IllegalArgumentException("Cannot register a trigger without a channel");
+        }
+        String previous = registrations.get(trigger);
+        if (trigger.getChannel().equals(previous)) {
+            return;
+        }
+        if (previous != null) {
+            unregister(trigger);
+        }
+        registrations.put(trigger, trigger.getChannel());
+        if (temporalEngine.accepts(trigger)) {
+            temporalEngine.schedule(trigger);
+            return;
+        }
+        ChannelListener channelListener = channels.get(trigger.getChannel());
+        if (channelListener == null) {
+            channelListener = new ChannelListener(trigger.getChannel());
+            channels.put(trigger.getChannel(), channelListener);
+        }
+        channelListener.triggers.add(trigger);
+        channelListener.index.add(trigger, trigger.getPayload());
+    }
+
+    /**
+     * Updates the matching index after the statements of an already
+     * registered trigger are changed. Does nothing if the trigger is not
+     * registered.
+     *
+     * @param trigger the changed trigger
+     */
+    public synchronized void reindex(Trigger trigger) {
+        String channel = registrations.get(trigger);
+        if (channel != null) {
+            ChannelListener channelListener = channels.get(channel);
+            if (channelListener != null) {
+                channelListener.index.add(trigger, trigger.getPayload());
+            } else {
+                temporalEngine.schedule(trigger);
+            }
+        }
+    }
+
+    /**
+     * Called when the execution of a registered trigger is recorded, the time
+     * based triggers are scheduled again from their suspension.
+     *
+     * @param trigger the executed trigger
+     */
+    public void executed(Trigger trigger) {
+        temporalEngine.executed(trigger);
+    }
+
+    /**
+     * Stops checking the given trigger. The bus listener of a channel is
+     * destroyed when its last trigger is unregistered.
+     *
+     * @param trigger the trigger to unregister
+     */
+    public synchronized void unregister(Trigger trigger) {
+        String channel = registrations.remove(trigger);
+        if (channel == null || temporalEngine.cancel(trigger)) {
+            return;
+        }
+        ChannelListener channelListener = channels.get(channel);
+        if (channelListener != null) {
+            channelListener.triggers.remove(trigger);
+            channelListener.index.remove(trigger);
+            if (channelListener.triggers.isEmpty()) {
+                LOG.info("No more triggers listening on channel '{}' after {} received events and {} trigger checks",
+                        new Object[]{channel, channelListener.receivedEvents.get(), channelListener.fanOut.get()});
+                channelListener.destroy();
+                channels.remove(channel);
+            }
+        }
+    }
+
+    /**
+     * Returns the number of trigger checks performed on every channel, that is
+     * the sum of the candidate triggers each received event was fanned out to.
+     *
+     * @return a map channel name -> trigger checks performed
+     */
+    public synchronized Map<String, Long> getFanOutCounts() {
+        Map<String, Long> counts = new HashMap<String, Long>();
+        for (ChannelListener channelListener : channels.values()) {
+            counts.put(channelListener.channel, channelListener.fanOut.get());
+        }
+        return Collections.unmodifiableMap(counts);
+    }
+
+    /**
+     * Returns the number of trigger checks avoided on every channel because
+     * the matching index has excluded the trigger.
+     *
+     * @return a map channel name -> trigger checks skipped
+     */
+    public synchronized Map<String, Long> getSkippedCheckCounts() {
+        Map<String, Long> counts = new HashMap<String, Long>();
+        for (ChannelListener channelListener : channels.values()) {
+            counts.put(channelListener.channel, channelListener.skipped.get());
+        }
+        return Collections.unmodifiableMap(counts);
+    }
+
+    /**
+     * Returns the number of events received on every channel.
+     *
+     * @return a map channel name -> received events
+     */
+    public synchronized Map<String, Long> getReceivedEventCounts() {
+        Map<String, Long> counts = new HashMap<String, Long>();
+        for (ChannelListener channelListener : channels.values()) {
+            counts.put(channelListener.channel, channelListener.receivedEvents.get());
+        }
+        return Collections.unmodifiableMap(counts);
+    }
+
+    /**
+     * Returns the number of triggers currently registered on every channel.
+     *
+     * @return a map channel name -> registered triggers
+     */
+    public synchronized Map<String, Integer> getRegisteredTriggerCounts() {
+        Map<String, Integer> counts = new HashMap<String, Integer>();
+        for (ChannelListener channelListener : channels.values()) {
+            counts.put(channelListener.channel, channelListener.triggers.size());
+        }
+        if (temporalEngine.size() > 0) {
+            counts.put(TemporalTriggerEngine.CHANNEL, temporalEngine.size());
+        }
+        return Collections.unmodifiableMap(counts);
+    }
+
+    /**
+     * The single bus consumer of a channel
+     */
+    private final class ChannelListener implements BusConsumer, Runnable {
+
+        private final String channel;
+        private final List<Trigger> triggers = new CopyOnWriteArrayList<Trigger>();
+        private final PayloadIndex<Trigger> index = new PayloadIndex<Trigger>();
+        private final AtomicLong receivedEvents = new AtomicLong();
+        private final AtomicLong fanOut = new AtomicLong();
+        private final AtomicLong skipped = new AtomicLong();
+        // received events waiting to be checked, in arrival order
+        private final Queue<EventTemplate> pending = new ConcurrentLinkedQueue<EventTemplate>();
+        // true while a dispatcher thread is checking the pending events
+        private final AtomicBoolean dispatching = new AtomicBoolean();
+        private final BusMessagesListener listener;
+
+        ChannelListener(String channel) {
+            this.channel = channel;
+            LOG.info("Start listening for trigger events on channel '{}'", channel);
+            listener = new BusMessagesListener(this, busService);
+            listener.consumeEventFrom(channel);
+        }
+
+        /*
+         * Deserializes the event only once and queues it to be checked by a
+         * dispatcher thread, so the bus delivery thread is not held by the
+         * trigger checks
+         */
+        @Override
+        public void onMessage(ObjectMessage message) {
+            Object payload = null;
+
+            try {
+                payload = message.getObject();
+            } catch (JMSException ex) {
+                LOG.error(ex.getMessage());
+            }
+
+            if (payload instanceof EventTemplate) {
+                receivedEvents.incrementAndGet();
+                pending.add((EventTemplate) payload);
+                startDispatching();
+            }
+        }
+
+        private void startDispatching() {
+            if (dispatching.compareAndSet(false, true)) {
+                dispatchers.execute(this);
+            }
+        }
+
+        /*
+         * Checks the pending events, an event added after the queue is found
+         * empty but before the flag is cleared (or left behind by an escaping
+         * exception) is picked up by a new run
+         */
+        @Override
+        public void run() {
+            try {
+                EventTemplate event;
+                while ((event = pending.poll()) != null) {
+                    dispatch(event);
+                }
+            } finally {
+                dispatching.set(false);
+                if (!pending.isEmpty()) {
+                    startDispatching();
+                }
+            }
+        }
+
+        /*
+         * Performs the trigger check for every candidate trigger registered on
+         * this channel
+         */
+        private void dispatch(EventTemplate event) {
+            List<Trigger> candidates = index.candidates(event.getPayload());
+            skipped.addAndGet(triggers.size() - candidates.size());
+            LOG.debug("Event '{}' received on channel '{}' is dispatched to {} of {} triggers",
+                    new Object[]{event.getEventName(), channel, candidates.size(), triggers.size()});
+
+            for (Trigger trigger : candidates) {
+                long start = System.nanoTime();
+                try {
+                    triggerCheck.check(event, trigger);
+                } catch (RuntimeException e) {
+                    // a failing trigger must not prevent the check of the others
+                    LOG.error("Error while checking trigger '" + trigger.getName()
+                            + "' against event '" + event.getEventName() + "'", e);
+                }
+                fanOut.incrementAndGet();
+                Metrics.histogram(Metrics.TRIGGER_CHECK).recordSince(start);
+            }
+        }
+
+        void destroy() {
+            listener.destroy();
+            pending.clear();
+        }
+    }
+}
@@ -21,7 +21,9 @@ package com.freedomotic.environment;
 
 import com.freedomotic.model.environment.Environment;
 import com.freedomotic.model.environment.Zone;
+import com.freedomotic.model.geometry.FreedomPoint;
 import com.freedomotic.model.geometry.FreedomPolygon;
+import com.freedomotic.things.GenericGate;
 import com.freedomotic.util.UidGenerator;
 import java.io.File;
 import java.util.ArrayList;
@@ -39,10 +41,12 @@ public final class EnvironmentLogic {
 
     private static final Logger LOG = LoggerFactory.getLogger(EnvironmentLogic.class.getName());
 
-    private Graph graph = null;
+    private RoomGraph roomGraph = null;
     private Environment pojo = null;
     private List<ZoneLogic> zones = new ArrayList<ZoneLogic>();
     private File source = null;
+    // built on first use, discarded when the zones change
+    private volatile ZoneIndex zoneIndex = null;
 
     /**
      * Instantiation is disabled outside this package.
@@ -76,13 +80,30 @@ public final class EnvironmentLogic {
     }
 
     /**
-     * Returns a graph that describes how rooms are connected through gates.
+     * Returns the graph that describes how rooms are connected through gates.
      *
      * @return the environment rooms graph
      */
-    @RequiresPermissions("environments:read")
-    public Graph getGraph() {
-        return graph;
+    RoomGraph getRoomGraph() {
+        return roomGraph;
+    }
+
+    /**
+     * Updates the rooms connected by a gate and its open state. It must be
+     * called when a gate is opened, closed or moved.
+     *
+     * @param gate the changed gate
+     * @return the rooms whose reachable rooms are changed
+     */
+    @RequiresPermissions({"environments:read", "zones:update"})
+    public List<Room> updateGate(GenericGate gate) {
+        if (roomGraph == null) {
+            return new ArrayList<Room>();
+        }
+        if (gate.getFrom() == null || gate.getTo() == null) {
+            return roomGraph.removeGate(gate);
+        }
+        return roomGraph.setGate(gate, gate.getFrom(), gate.getTo(), gate.isOpen());
     }
 
     /**
@@ -138,6 +159,7 @@ public final class EnvironmentLogic {
         //append to the list and initialize
         getPojo().getZones().add(zone.getPojo());
         zones.add(zone);
+        invalidateZoneIndex();
 
         zone.init(this);
 
@@ -177,6 +199,15 @@ public final class EnvironmentLogic {
     public void removeZone(ZoneLogic zone) {
         getPojo().getZones().remove(zone.getPojo());
         zones.remove(zone);
+        invalidateZoneIndex();
+        zone.removed();
+        if (zone instanceof Room && roomGraph != null) {
+            //the rooms connected through the removed one are no more reachable
+            for (Room room : roomGraph.removeRoom((Room) zone)) {
+                room.visit();
+                room.updateDescription();
+            }
+        }
     }
 
     /**
@@ -186,12 +217,18 @@ public final class EnvironmentLogic {
     public void clear() {
         //release resources
         try {
+            if (zones != null) {
+                for (ZoneLogic zone : zones) {
+                    zone.removed();
+                }
+            }
             getPojo().clear();
-            graph = null;
+            roomGraph = null;
             zones.clear();
             zones = null;
         } catch (Exception e) {
         }
+        invalidateZoneIndex();
     }
 
     /**
@@ -200,7 +237,7 @@ public final class EnvironmentLogic {
      */
     @RequiresPermissions("environments:read")
     public void init() {
-        graph = new Graph(); //the graph data structure that describes how rooms are connected through gates
+        roomGraph = new RoomGraph(); //the graph data structure that describes how rooms are connected through gates
 
         if (zones == null) {
             zones = new ArrayList<ZoneLogic>();
@@ -231,6 +268,7 @@ public final class EnvironmentLogic {
                 }
             }
         }
+        invalidateZoneIndex();
     }
 
     /**
@@ -243,6 +281,57 @@ public final class EnvironmentLogic {
         return zones;
     }
 
+    /**
+     * Returns the zones containing the given point. Only the zones whose
+     * bounding box contains the point are checked.
+     *
+     * @param point the point to check
+     * @return the zones containing the point, in the same order of
+     * {@link #getZones()}
+     */
+    @RequiresPermissions({"environments:read", "zones:read"})
+    public List<ZoneLogic> findZonesContaining(FreedomPoint point) {
+        return getZoneIndex().findContaining(point);
+    }
+
+    /**
+     * Returns the zones intersecting the given polygon, as defined by
+     * {@link com.freedomotic.util.TopologyUtils#intersects}. Only the zones
+     * whose bounding box overlaps the polygon one are checked.
+     *
+     * @param polygon the polygon to check
+     * @return the zones intersecting the polygon, in the same order of
+     * {@link #getZones()}
+     */
+    @RequiresPermissions({"environments:read", "zones:read"})
+    public List<ZoneLogic> findZonesIntersecting(FreedomPolygon polygon) {
+        return getZoneIndex().findIntersecting(polygon);
+    }
+
+    /**
+     * Discards the spatial index of the zones. Adding and removing zones
+     * already does it, it must be called after changing the shape of a zone
+     * in place.
+     */
+    public synchronized void invalidateZoneIndex() {
+        zoneIndex = null;
+    }
+
+    private ZoneIndex getZoneIndex() {
+        ZoneIndex index = zoneIndex;
+        if (index == null) {
+            synchronized (this) {
+                index = zoneIndex;
+                if (index == null) {
+                    index = new ZoneIndex(zones != null ? new ArrayList<ZoneLogic>(zones) : new ArrayList<ZoneLogic>());
+                    zoneIndex = index;
+                    LOG.debug("Spatial index of environment {} built with {} zones", this, index.size());
+                }
+            }
+        }
+        return index;
+    }
+
     /**
      * Gets a zone by its name.
      *
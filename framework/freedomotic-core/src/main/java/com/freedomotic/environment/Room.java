@@ -23,7 +23,6 @@ import com.freedomotic.model.environment.Zone;
 import com.freedomotic.things.GenericGate;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.LinkedBlockingQueue;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.apache.shiro.authz.annotation.RequiresPermissions;
@@ -54,22 +53,17 @@ public class Room
     @RequiresPermissions("zones:update")
     public void addGate(GenericGate gate) {
         try {
-            gates.add(gate);
-            getEnv().getGraph().add(gate.getFrom(),
-                    gate.getTo(),
-                    gate);
+            if (!gates.contains(gate)) {
+                gates.add(gate);
+            }
+            for (Room room : getEnv().updateGate(gate)) {
+                room.visit();
+            }
         } catch (Exception e) {
             LOG.error("Error while adding a Gate", e);
         }
     }
 
-    @RequiresPermissions("zones:update")
-    private void addLink(Room link) {
-        if ((!reachable.contains(link)) && (link != this)) {
-            reachable.add(link);
-        }
-    }
-
     /**
      *
      * @param env
@@ -91,56 +85,12 @@ public class Room
     }
 
     /**
-     *
+     * Updates the rooms that can be reached from this room through open gates.
      */
     @RequiresPermissions("zones:read")
     public void visit() {
-        //reset current links
-        reachable.clear();
-
-        LinkedBlockingQueue<Room> queue = new LinkedBlockingQueue<Room>();
-        ArrayList<GraphEdge> visited = new ArrayList<GraphEdge>();
-        queue.add(this);
-
-        while (!queue.isEmpty()) {
-            // operazione di dequeue
-            Room node = queue.poll();
-
-            //LOG.info("Evaluating node " + node.getPojo().getName());
-            if (getEnv().getGraph().getEdgeSet(node) != null) { //if this room (the node) has adiacent rooms
-
-                for (Object object : getEnv().getGraph().getEdgeSet(node)) {
-                    GraphEdge adiacent = (GraphEdge) object;
-
-                    //LOG.info("  " + node.getPojo().getName() + " is linked with arch " + adiacent.toString());
-                    if (!visited.contains(adiacent)) {
-                        //LOG.info("    This arch is not visited ");
-                        visited.add(adiacent);
-
-                        //operazione di enqueue coda
-                        Room x = (Room) adiacent.getX();
-                        Room y = (Room) adiacent.getY();
-                        GenericGate gate = (GenericGate) adiacent.getValue();
-                        boolean open = gate.isOpen();
-
-                        if (open) {
-                            if (x.getPojo().getName().equalsIgnoreCase(node.getPojo().getName())) {
-                                queue.offer(y);
-                                addLink(node); //from node
-                                addLink(y); //to y
-                                //LOG.info("From " + node.getPojo().getName() + " you can reach " + y.getPojo().getName());
-                            } else {
-                                queue.offer(x);
-                                addLink(node);
-                                addLink(x);
-
-                                //LOG.info("From " + node.getPojo().getName() + " you can reach " + x.getPojo().getName());
-                            }
-                        }
-                    }
-                }
-            }
-        }
+        RoomGraph graph = getEnv().getRoomGraph();
+        reachable = graph != null ? graph.getReachable(this) : new ArrayList<Room>();
     }
 
     /**
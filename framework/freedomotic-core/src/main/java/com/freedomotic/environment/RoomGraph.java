@@ -0,0 +1,490 @@
+/**
+ *
+ * Copyright (c) 2009-2016 Freedomotic team http://freedomotic.com
+ *
+ * This file is part of Freedomotic
+ *
+ * This Program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2, or (at your option) any later version.
+ *
+ * This Program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Freedomotic; see the file COPYING. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.freedomotic.environment;
+
+import com.freedomotic.things.GenericGate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The rooms of an environment connected by their gates, with the rooms that
+ * can be reached from each other through open gates.
+ * <p>
+ * Rooms and gates are mapped to int ids, so adjacency lists and connected
+ * components are kept in primitive arrays. Every room is labeled with its
+ * connected component and every component keeps the list of its rooms:
+ * reachability queries never walk the graph. Opening a gate merges two
+ * components by relabeling the smaller one. Closing (or removing) a gate
+ * visits the graph from both sides of the gate in parallel and stops as soon
+ * as the two visits meet, or as soon as one of them is exhausted: that side is
+ * the new, smaller, component. The cost of a gate toggle is then bounded by
+ * the size of the smaller component instead of by the whole building.
+ * </p>
+ * <p>
+ * Removed gates are forgotten together with the rooms left without gates,
+ * their ids are reused. Rooms and gates are compared by identity. This class
+ * is thread safe.
+ * </p>
+ */
+final class RoomGraph {
+
+    private final Map<Room, Integer> roomIds = new IdentityHashMap<Room, Integer>();
+    private final Map<GenericGate, Integer> gateIds = new IdentityHashMap<GenericGate, Integer>();
+    // id -> room or gate, null for unused ids
+    private final List<Room> rooms = new ArrayList<Room>();
+    private final List<GenericGate> gates = new ArrayList<GenericGate>();
+    private final IntList freeRoomIds = new IntList();
+    private final IntList freeGateIds = new IntList();
+    // room id -> ids of the gates of the room
+    private IntList[] adjacency = new IntList[16];
+    // room id -> component label
+    private int[] label = new int[16];
+    // room id -> position of the room in the member list of its component
+    private int[] position = new int[16];
+    // component label -> ids of the rooms in the component, null for unused labels
+    private IntList[] members = new IntList[16];
+    private final IntList freeLabels = new IntList();
+    private int nextLabel;
+    // room id -> visit mark of the last split
+    private int[] mark = new int[16];
+    private int stamp;
+    // gate id -> connected rooms and state
+    private int[] gateFrom = new int[16];
+    private int[] gateTo = new int[16];
+    private boolean[] gateOpen = new boolean[16];
+
+    /**
+     * Adds or updates a gate. A gate connecting the same room on both sides
+     * (or missing a side) is removed.
+     *
+     * @param gate the gate
+     * @param from a room connected by the gate
+     * @param to the other room connected by the gate
+     * @param open if the gate is open
+     * @return the rooms whose reachable rooms are changed
+     */
+    synchronized List<Room> setGate(GenericGate gate, Room from, Room to, boolean open) {
+        if (from == null || to == null || from == to) {
+            return removeGate(gate);
+        }
+        List<Room> changed = new ArrayList<Room>();
+        int a = roomId(from);
+        int b = roomId(to);
+        Integer id = gateIds.get(gate);
+
+        if (id != null) {
+            int g = id;
+            boolean sameRooms = (gateFrom[g] == a && gateTo[g] == b) || (gateFrom[g] == b && gateTo[g] == a);
+            if (sameRooms) {
+                if (gateOpen[g] != open) {
+                    gateOpen[g] = open;
+                    if (open) {
+                        union(a, b, changed);
+                    } else {
+                        split(a, b, changed);
+                    }
+                }
+                return changed;
+            }
+            // the gate is moved between other rooms
+            int oldFrom = gateFrom[g];
+            int oldTo = gateTo[g];
+            detachGate(g, changed);
+            attachGate(g, a, b, open, changed);
+            forgetIfIsolated(oldFrom);
+            forgetIfIsolated(oldTo);
+        } else {
+            int g;
+            if (freeGateIds.size > 0) {
+                g = freeGateIds.data[--freeGateIds.size];
+                gates.set(g, gate);
+            } else {
+                g = gates.size();
+                gates.add(gate);
+                ensureGateCapacity(g + 1);
+            }
+            gateIds.put(gate, g);
+            attachGate(g, a, b, open, changed);
+        }
+        return deduplicate(changed);
+    }
+
+    /**
+     * Removes a gate.
+     *
+     * @param gate the gate to remove
+     * @return the rooms whose reachable rooms are changed
+     */
+    synchronized List<Room> removeGate(GenericGate gate) {
+        Integer id = gateIds.get(gate);
+        if (id == null) {
+            return Collections.emptyList();
+        }
+        List<Room> changed = new ArrayList<Room>();
+        forgetGate(id, changed);
+        return changed;
+    }
+
+    /**
+     * Removes a room and all its gates.
+     *
+     * @param room the room to remove
+     * @return the rooms whose reachable rooms are changed
+     */
+    synchronized List<Room> removeRoom(Room room) {
+        Integer id = roomIds.get(room);
+        if (id == null) {
+            return Collections.emptyList();
+        }
+        List<Room> changed = new ArrayList<Room>();
+        IntList roomGates = adjacency[id];
+        // the room is forgotten with its last gate
+        while (roomGates.size > 0) {
+            forgetGate(roomGates.data[roomGates.size - 1], changed);
+        }
+        List<Room> result = deduplicate(changed);
+        for (int i = 0; i < result.size(); i++) {
+            if (result.get(i) == room) {
+                result.remove(i);
+                break;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the rooms that can be reached from the given room through open
+     * gates, the room itself excluded.
+     *
+     * @param room the starting room
+     * @return a new list of the reachable rooms
+     */
+    synchronized List<Room> getReachable(Room room) {
+        Integer id = roomIds.get(room);
+        if (id == null) {
+            return new ArrayList<Room>();
+        }
+        IntList component = members[label[id]];
+        List<Room> result = new ArrayList<Room>(component.size);
+        for (int i = 0; i < component.size; i++) {
+            if (component.data[i] != id) {
+                result.add(rooms.get(component.data[i]));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Checks if a room can be reached from another one through open gates.
+     *
+     * @param from the starting room
+     * @param to the destination room
+     * @return true if the rooms are connected
+     */
+    synchronized boolean isReachable(Room from, Room to) {
+        Integer a = roomIds.get(from);
+        Integer b = roomIds.get(to);
+        return a != null && b != null && label[a] == label[b];
+    }
+
+    /**
+     * Returns the number of rooms with at least one gate
+     *
+     * @return the number of rooms
+     */
+    synchronized int getRoomCount() {
+        return roomIds.size();
+    }
+
+    /**
+     * Returns the number of gates
+     *
+     * @return the number of gates
+     */
+    synchronized int getGateCount() {
+        return gateIds.size();
+    }
+
+    private int roomId(Room room) {
+        Integer id = roomIds.get(room);
+        if (id != null) {
+            return id;
+        }
+        int newId;
+        if (freeRoomIds.size > 0) {
+            newId = freeRoomIds.data[--freeRoomIds.size];
+            rooms.set(newId, room);
+        } else {
+            newId = rooms.size();
+            rooms.add(room);
+            ensureRoomCapacity(newId + 1);
+        }
+        roomIds.put(room, newId);
+        adjacency[newId] = new IntList();
+        int newLabel = allocateLabel();
+        label[newId] = newLabel;
+        position[newId] = 0;
+        members[newLabel].add(newId);
+        return newId;
+    }
+
+    private int allocateLabel() {
+        int newLabel;
+        if (freeLabels.size > 0) {
+            newLabel = freeLabels.data[--freeLabels.size];
+        } else {
+            newLabel = nextLabel++;
+            if (newLabel >= members.length) {
+                members = Arrays.copyOf(members, members.length * 2);
+            }
+        }
+        members[newLabel] = new IntList();
+        return newLabel;
+    }
+
+    private void releaseLabel(int unused) {
+        members[unused] = null;
+        freeLabels.add(unused);
+    }
+
+    private void attachGate(int g, int a, int b, boolean open, List<Room> changed) {
+        gateFrom[g] = a;
+        gateTo[g] = b;
+        gateOpen[g] = open;
+        adjacency[a].add(g);
+        adjacency[b].add(g);
+        if (open) {
+            union(a, b, changed);
+        }
+    }
+
+    /*
+     * Detaches a gate and releases its id, together with the rooms left
+     * without gates
+     */
+    private void forgetGate(int g, List<Room> changed) {
+        int a = gateFrom[g];
+        int b = gateTo[g];
+        detachGate(g, changed);
+        gateIds.remove(gates.get(g));
+        gates.set(g, null);
+        freeGateIds.add(g);
+        forgetIfIsolated(a);
+        forgetIfIsolated(b);
+    }
+
+    /*
+     * Releases the id of a room without gates, which is alone in its
+     * component
+     */
+    private void forgetIfIsolated(int room) {
+        if (adjacency[room] == null || adjacency[room].size > 0) {
+            return;
+        }
+        removeMember(room);
+        roomIds.remove(rooms.get(room));
+        rooms.set(room, null);
+        adjacency[room] = null;
+        freeRoomIds.add(room);
+    }
+
+    private void detachGate(int g, List<Room> changed) {
+        int a = gateFrom[g];
+        int b = gateTo[g];
+        adjacency[a].remove(g);
+        adjacency[b].remove(g);
+        gateFrom[g] = -1;
+        gateTo[g] = -1;
+        if (gateOpen[g]) {
+            gateOpen[g] = false;
+            split(a, b, changed);
+        }
+    }
+
+    /*
+     * Called when a gate between a and b is opened
+     */
+    private void union(int a, int b, List<Room> changed) {
+        int la = label[a];
+        int lb = label[b];
+        if (la == lb) {
+            return;
+        }
+        int large = members[la].size >= members[lb].size ? la : lb;
+        int small = large == la ? lb : la;
+        IntList moved = members[small];
+        for (int i = 0; i < moved.size; i++) {
+            int room = moved.data[i];
+            label[room] = large;
+            position[room] = members[large].size;
+            members[large].add(room);
+        }
+        releaseLabel(small);
+        collect(members[large], changed);
+    }
+
+    /*
+     * Called when a gate between a and b is closed or removed
+     */
+    private void split(int a, int b, List<Room> changed) {
+        if (label[a] != label[b]) {
+            return;
+        }
+        if (stamp >= Integer.MAX_VALUE - 2) {
+            Arrays.fill(mark, 0);
+            stamp = 0;
+        }
+        int markA = ++stamp;
+        int markB = ++stamp;
+        IntList queueA = new IntList();
+        IntList queueB = new IntList();
+        queueA.add(a);
+        queueB.add(b);
+        mark[a] = markA;
+        mark[b] = markB;
+        int headA = 0;
+        int headB = 0;
+
+        // expands one room per side in turn until the visits meet or a side is exhausted
+        while (headA < queueA.size && headB < queueB.size) {
+            if (expand(queueA.data[headA++], queueA, markA, markB)
+                    || expand(queueB.data[headB++], queueB, markB, markA)) {
+                return;
+            }
+        }
+        IntList detached = headA >= queueA.size ? queueA : queueB;
+
+        IntList old = members[label[a]];
+        collect(old, changed);
+        for (int i = 0; i < detached.size; i++) {
+            removeMember(detached.data[i]);
+        }
+        int newLabel = allocateLabel();
+        for (int i = 0; i < detached.size; i++) {
+            int room = detached.data[i];
+            label[room] = newLabel;
+            position[room] = members[newLabel].size;
+            members[newLabel].add(room);
+        }
+    }
+
+    /*
+     * Adds the rooms reachable from a room through an open gate to the queue
+     * of a visit, returns true if a room of the other visit is reached
+     */
+    private boolean expand(int room, IntList queue, int ownMark, int otherMark) {
+        IntList roomGates = adjacency[room];
+        for (int i = 0; i < roomGates.size; i++) {
+            int g = roomGates.data[i];
+            if (!gateOpen[g]) {
+                continue;
+            }
+            int next = gateFrom[g] == room ? gateTo[g] : gateFrom[g];
+            if (mark[next] == otherMark) {
+                return true;
+            }
+            if (mark[next] != ownMark) {
+                mark[next] = ownMark;
+                queue.add(next);
+            }
+        }
+        return false;
+    }
+
+    private void removeMember(int room) {
+        int componentLabel = label[room];
+        IntList component = members[componentLabel];
+        int last = component.data[component.size - 1];
+        component.data[position[room]] = last;
+        position[last] = position[room];
+        component.size--;
+        if (component.size == 0) {
+            releaseLabel(componentLabel);
+        }
+    }
+
+    private void collect(IntList component, List<Room> changed) {
+        for (int i = 0; i < component.size; i++) {
+            changed.add(rooms.get(component.data[i]));
+        }
+    }
+
+    private static List<Room> deduplicate(List<Room> changed) {
+        if (changed.size() < 2) {
+            return changed;
+        }
+        Map<Room, Boolean> seen = new IdentityHashMap<Room, Boolean>();
+        List<Room> result = new ArrayList<Room>(changed.size());
+        for (Room room : changed) {
+            if (seen.put(room, Boolean.TRUE) == null) {
+                result.add(room);
+            }
+        }
+        return result;
+    }
+
+    private void ensureRoomCapacity(int size) {
+        if (size > label.length) {
+            int capacity = Math.max(size, label.length * 2);
+            adjacency = Arrays.copyOf(adjacency, capacity);
+            label = Arrays.copyOf(label, capacity);
+            position = Arrays.copyOf(position, capacity);
+            mark = Arrays.copyOf(mark, capacity);
+        }
+    }
+
+    private void ensureGateCapacity(int size) {
+        if (size > gateFrom.length) {
+            int capacity = Math.max(size, gateFrom.length * 2);
+            gateFrom = Arrays.copyOf(gateFrom, capacity);
+            gateTo = Arrays.copyOf(gateTo, capacity);
+            gateOpen = Arrays.copyOf(gateOpen, capacity);
+        }
+    }
+
+    /**
+     * A growable list of ints
+     */
+    private static final class IntList {
+
+        private int[] data = new int[4];
+        private int size;
+
+        void add(int value) {
+            if (size == data.length) {
+                data = Arrays.copyOf(data, size * 2);
+            }
+            data[size++] = value;
+        }
+
+        void remove(int value) {
+            for (int i = 0; i < size; i++) {
+                if (data[i] == value) {
+                    data[i] = data[--size];
+                    return;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,252 @@
+/**
+ *
+ * Copyright (c) 2009-2016 Freedomotic team http://freedomotic.com
+ *
+ * This file is part of Freedomotic
+ *
+ * This Program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2, or (at your option) any later version.
+ *
+ * This Program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Freedomotic; see the file COPYING. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.freedomotic.environment;
+
+import com.freedomotic.model.geometry.FreedomPoint;
+import com.freedomotic.model.geometry.FreedomPolygon;
+import com.freedomotic.util.TopologyUtils;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A uniform grid over the bounding boxes of the zones of an environment.
+ * <p>
+ * Every zone is stored in the grid cells covered by its bounding box, so a
+ * point-in-zone or a polygon overlap query only runs the exact
+ * {@link TopologyUtils} test on the zones whose bounding box can match. The
+ * bounding box filter never drops a zone the exact test would accept: a point
+ * outside the bounding box is never contained in a polygon and two polygons
+ * sharing a vertex always have overlapping bounding boxes.
+ * </p>
+ * <p>
+ * The index is immutable and is a snapshot of the zone shapes at build time,
+ * {@link EnvironmentLogic} builds a new one when its zones change.
+ * </p>
+ */
+final class ZoneIndex {
+
+    private static final int MIN_CELL_SIZE = 16;
+    // zones covering more cells than this are checked on every query
+    private static final int MAX_CELLS_PER_ZONE = 256;
+    private final Entry[] entries;
+    private final int cellSize;
+    private final Map<Long, List<Entry>> cells = new HashMap<Long, List<Entry>>();
+    private final List<Entry> oversized = new ArrayList<Entry>();
+
+    /**
+     * Builds the index of the given zones. Zones without a shape are skipped.
+     *
+     * @param zones the zones to index, the query results preserve this order
+     */
+    ZoneIndex(List<ZoneLogic> zones) {
+        List<Entry> valid = new ArrayList<Entry>(zones.size());
+        long sideSum = 0;
+        for (ZoneLogic zone : zones) {
+            FreedomPolygon shape = zone.getPojo().getShape();
+            if (shape == null || shape.getPoints().isEmpty()) {
+                continue;
+            }
+            Entry entry = new Entry(valid.size(), zone, shape);
+            valid.add(entry);
+            sideSum += Math.max(entry.maxX - entry.minX, entry.maxY - entry.minY);
+        }
+        entries = valid.toArray(new Entry[valid.size()]);
+        // about one zone per cell on typical floor plans
+        cellSize = entries.length == 0
+                ? MIN_CELL_SIZE
+                : (int) Math.max(MIN_CELL_SIZE, sideSum / entries.length);
+
+        for (Entry entry : entries) {
+            int fromX = cell(entry.minX);
+            int toX = cell(entry.maxX);
+            int fromY = cell(entry.minY);
+            int toY = cell(entry.maxY);
+            if ((long) (toX - fromX + 1) * (toY - fromY + 1) > MAX_CELLS_PER_ZONE) {
+                oversized.add(entry);
+                continue;
+            }
+            for (int x = fromX; x <= toX; x++) {
+                for (int y = fromY; y <= toY; y++) {
+                    Long key = key(x, y);
+                    List<Entry> bucket = cells.get(key);
+                    if (bucket == null) {
+                        bucket = new ArrayList<Entry>(2);
+                        cells.put(key, bucket);
+                    }
+                    bucket.add(entry);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the zones containing the given point, according to
+     * {@link TopologyUtils#contains(com.freedomotic.model.geometry.FreedomShape, FreedomPoint)}
+     *
+     * @param point the point to check
+     * @return the zones containing the point
+     */
+    List<ZoneLogic> findContaining(FreedomPoint point) {
+        int x = point.getX();
+        int y = point.getY();
+        BitSet candidates = new BitSet(entries.length);
+        List<Entry> bucket = cells.get(key(cell(x), cell(y)));
+        if (bucket != null) {
+            for (Entry entry : bucket) {
+                if (entry.contains(x, y)) {
+                    candidates.set(entry.order);
+                }
+            }
+        }
+        for (Entry entry : oversized) {
+            if (entry.contains(x, y)) {
+                candidates.set(entry.order);
+            }
+        }
+
+        List<ZoneLogic> result = new ArrayList<ZoneLogic>(candidates.cardinality());
+        for (int i = candidates.nextSetBit(0); i >= 0; i = candidates.nextSetBit(i + 1)) {
+            if (TopologyUtils.contains(entries[i].shape, point)) {
+                result.add(entries[i].zone);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the zones intersecting the given polygon, according to
+     * {@link TopologyUtils#intersects(FreedomPolygon, FreedomPolygon)}
+     *
+     * @param polygon the polygon to check
+     * @return the zones intersecting the polygon
+     */
+    List<ZoneLogic> findIntersecting(FreedomPolygon polygon) {
+        if (polygon == null || polygon.getPoints().isEmpty()) {
+            return Collections.emptyList();
+        }
+        Entry query = new Entry(-1, null, polygon);
+        BitSet candidates = new BitSet(entries.length);
+        int fromX = cell(query.minX);
+        int toX = cell(query.maxX);
+        int fromY = cell(query.minY);
+        int toY = cell(query.maxY);
+
+        if ((long) (toX - fromX + 1) * (toY - fromY + 1) > entries.length) {
+            // cheaper to check every bounding box than to visit the cells
+            for (Entry entry : entries) {
+                if (entry.overlaps(query)) {
+                    candidates.set(entry.order);
+                }
+            }
+        } else {
+            for (int x = fromX; x <= toX; x++) {
+                for (int y = fromY; y <= toY; y++) {
+                    List<Entry> bucket = cells.get(key(x, y));
+                    if (bucket != null) {
+                        for (Entry entry : bucket) {
+                            if (entry.overlaps(query)) {
+                                candidates.set(entry.order);
+                            }
+                        }
+                    }
+                }
+            }
+            for (Entry entry : oversized) {
+                if (entry.overlaps(query)) {
+                    candidates.set(entry.order);
+                }
+            }
+        }
+
+        List<ZoneLogic> result = new ArrayList<ZoneLogic>(candidates.cardinality());
+        for (int i = candidates.nextSetBit(0); i >= 0; i = candidates.nextSetBit(i + 1)) {
+            if (TopologyUtils.intersects(polygon, entries[i].shape)) {
+                result.add(entries[i].zone);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the number of indexed zones
+     *
+     * @return the number of indexed zones
+     */
+    int size() {
+        return entries.length;
+    }
+
+    private int cell(int coordinate) {
+        // rounds towards negative infinity also for negative coordinates
+        int cell = coordinate / cellSize;
+        return (coordinate % cellSize != 0 && coordinate < 0) ? cell - 1 : cell;
+    }
+
+    private static Long key(int x, int y) {
+        return ((long) x << 32) | (y & 0xFFFFFFFFL);
+    }
+
+    /**
+     * A zone with the bounding box of its shape
+     */
+    private static final class Entry {
+
+        private final int order;
+        private final ZoneLogic zone;
+        private final FreedomPolygon shape;
+        private final int minX;
+        private final int minY;
+        private final int maxX;
+        private final int maxY;
+
+        Entry(int order, ZoneLogic zone, FreedomPolygon shape) {
+            this.order = order;
+            this.zone = zone;
+            this.shape = shape;
+            int x1 = Integer.MAX_VALUE;
+            int y1 = Integer.MAX_VALUE;
+            int x2 = Integer.MIN_VALUE;
+            int y2 = Integer.MIN_VALUE;
+            for (FreedomPoint point : shape.getPoints()) {
+                x1 = Math.min(x1, point.getX());
+                y1 = Math.min(y1, point.getY());
+                x2 = Math.max(x2, point.getX());
+                y2 = Math.max(y2, point.getY());
+            }
+            this.minX = x1;
+            this.minY = y1;
+            this.maxX = x2;
+            this.maxY = y2;
+        }
+
+        boolean contains(int x, int y) {
+            return x >= minX && x <= maxX && y >= minY && y <= maxY;
+        }
+
+        boolean overlaps(Entry other) {
+            return other.minX <= maxX && other.maxX >= minX
+                    && other.minY <= maxY && other.maxY >= minY;
+        }
+    }
+}
@@ -42,9 +42,13 @@ import com.freedomotic.events.PersonEntersZone;
 import com.freedomotic.events.PersonExitsZone;
 import com.freedomotic.events.ZoneHasChanged;
 import com.freedomotic.model.environment.Zone;
+import com.freedomotic.things.EnvObjectLogic;
 import com.freedomotic.things.GenericPerson;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Set;
 import org.slf4j.LoggerFactory;
 import org.apache.shiro.authz.annotation.RequiresPermissions;
 import org.slf4j.Logger;
@@ -59,6 +63,8 @@ public class ZoneLogic {
     private Zone pojo;
     private Ownership owner = new LastOutStrategy();
     private final List<GenericPerson> occupiers = new ArrayList<GenericPerson>();
+    // things listed among the objects of this zone (guarded by itself)
+    private final Set<EnvObjectLogic> things = Collections.newSetFromMap(new IdentityHashMap<EnvObjectLogic, Boolean>());
     private EnvironmentLogic FatherEnv = null;
     private Ownership ownershipStrategy;
     private static final Logger LOG = LoggerFactory.getLogger(ZoneLogic.class.getName());
@@ -167,6 +173,56 @@ public class ZoneLogic {
         return success;
     }
 
+    /**
+     * Lists a thing among the objects of this zone.
+     *
+     * @param thing the thing inside this zone
+     */
+    @RequiresPermissions("zones:update")
+    public void addThing(EnvObjectLogic thing) {
+        synchronized (things) {
+            things.add(thing);
+        }
+        if (!getPojo().getObjects().contains(thing.getPojo())) {
+            getPojo().getObjects().add(thing.getPojo());
+        }
+    }
+
+    /**
+     * Removes a thing from the objects of this zone.
+     *
+     * @param thing the thing no more inside this zone
+     */
+    @RequiresPermissions("zones:update")
+    public void removeThing(EnvObjectLogic thing) {
+        synchronized (things) {
+            things.remove(thing);
+        }
+        getPojo().getObjects().remove(thing.getPojo());
+    }
+
+    /*
+     * Called when this zone is removed from its environment, so the things
+     * and the people inside it do not keep a reference to it
+     */
+    void removed() {
+        List<EnvObjectLogic> inside;
+        synchronized (things) {
+            inside = new ArrayList<EnvObjectLogic>(things);
+            things.clear();
+        }
+        List<GenericPerson> people;
+        synchronized (this) {
+            people = new ArrayList<GenericPerson>(occupiers);
+        }
+        for (EnvObjectLogic thing : inside) {
+            thing.zoneRemoved(this);
+        }
+        for (GenericPerson person : people) {
+            person.zoneRemoved(this);
+        }
+    }
+
     /**
      *
      * @return
@@ -182,6 +238,9 @@ public class ZoneLogic {
      */
     @RequiresPermissions("zones:update")
     public void setChanged() {
+        if (FatherEnv != null) {
+            FatherEnv.invalidateZoneIndex();
+        }
         ZoneHasChanged event = new ZoneHasChanged(this,
                 getPojo());
         Freedomotic.sendEvent(event);
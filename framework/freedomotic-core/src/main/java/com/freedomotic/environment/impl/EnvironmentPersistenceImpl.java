@@ -23,8 +23,10 @@ import com.freedomotic.exceptions.DataUpgradeException;
 import com.freedomotic.exceptions.RepositoryException;
 import com.freedomotic.model.environment.Environment;
 import com.freedomotic.model.environment.Zone;
+import com.freedomotic.persistence.DataSnapshot;
 import com.freedomotic.persistence.DataUpgradeService;
 import com.freedomotic.persistence.FreedomXStream;
+import com.freedomotic.persistence.ParallelFileLoader;
 import com.freedomotic.persistence.XmlPreprocessor;
 import com.freedomotic.settings.Info;
 import com.google.inject.Inject;
@@ -54,11 +56,13 @@ class EnvironmentPersistenceImpl implements EnvironmentPersistence {
     private final File directory;
     private boolean savedAsNewEnvironment;
     private final DataUpgradeService dataUpgradeService;
+    private final DataSnapshot dataSnapshot;
 
     @Inject
-    EnvironmentPersistenceImpl(@Assisted File directory, DataUpgradeService dataUpgradeService) {
+    EnvironmentPersistenceImpl(@Assisted File directory, DataUpgradeService dataUpgradeService, DataSnapshot dataSnapshot) {
         this.directory = directory;
         this.dataUpgradeService = dataUpgradeService;
+        this.dataSnapshot = dataSnapshot;
     }
 
     /**
@@ -113,7 +117,7 @@ class EnvironmentPersistenceImpl implements EnvironmentPersistence {
             throw new RepositoryException(directory.getAbsoluteFile() + " is not a valid environment folder. Skipped");
         }
         verifyFolderStructure(directory);
-        delete(environment);
+        // the old file is atomically replaced
         String fileName = getEnvFilename(environment);
         try {
             serialize(environment, new File(directory + "/" + fileName));
@@ -169,8 +173,23 @@ class EnvironmentPersistenceImpl implements EnvironmentPersistence {
         File[] files = directory.listFiles(envFileFilter);
 
         List<Environment> environments = new ArrayList<Environment>();
-        for (File file : files) {
-            environments.add(deserialize(file));
+        // Files are deserialized in parallel and returned in files order
+        List<ParallelFileLoader.Result<Environment>> results = ParallelFileLoader.load(files, dataSnapshot.cached(
+                new ParallelFileLoader.Parser<Environment>() {
+                    @Override
+                    public Environment parse(File file) throws RepositoryException {
+                        return deserialize(file);
+                    }
+                }));
+        for (ParallelFileLoader.Result<Environment> result : results) {
+            try {
+                environments.add(result.get());
+            } catch (RepositoryException | RuntimeException ex) {
+                throw ex;
+            } catch (Exception ex) {
+                // interrupted while waiting for the file to be loaded
+                throw new RepositoryException("Cannot load Environment file " + result.getFile().getAbsolutePath(), ex);
+            }
         }
 
         verifyFolderStructure(directory);
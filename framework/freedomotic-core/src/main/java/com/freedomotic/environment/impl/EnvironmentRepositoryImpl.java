@@ -113,10 +113,8 @@ class EnvironmentRepositoryImpl implements EnvironmentRepository {
         }
         // EnvironmentRepositoryImpl.initialized = true;
         List<EnvObjectLogic> loadedThings = thingsRepository.loadAll(findAll().get(0).getObjectFolder());
-        for (EnvObjectLogic thing : loadedThings) {
-            // stores the thing in repository. Important, otherwise it will be not visible in the environment
-            thingsRepository.create(thing);
-        }
+        // stores the things in repository. Important, otherwise they will be not visible in the environment
+        thingsRepository.createAll(loadedThings);
     }
 
     private File getDefaultEnvironmentFolder() throws RepositoryException {
@@ -86,6 +86,16 @@ public class ObjectHasChangedBehavior extends EventTemplate {
         }
     }
 
+    /**
+     * Creates a copy of an event, statements added to the copy are not added
+     * to the original
+     *
+     * @param event the event to copy
+     */
+    public ObjectHasChangedBehavior(ObjectHasChangedBehavior event) {
+        super(event);
+    }
+
     /**
      *
      */
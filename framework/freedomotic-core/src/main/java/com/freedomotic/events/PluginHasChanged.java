@@ -79,7 +79,11 @@ public class PluginHasChanged
         /**
          *
          */
-        DEQUEUE
+        DEQUEUE,
+        /**
+         * The plugin rejects commands because its queue is full
+         */
+        OVERLOAD
     };
 
     /**
@@ -0,0 +1,58 @@
+/**
+ *
+ * Copyright (c) 2009-2016 Freedomotic team http://freedomotic.com
+ *
+ * This file is part of Freedomotic
+ *
+ * This Program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2, or (at your option) any later version.
+ *
+ * This Program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Freedomotic; see the file COPYING. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.freedomotic.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A monotonically increasing counter, safe to be incremented by many threads.
+ */
+public final class Counter {
+
+    private final AtomicLong count = new AtomicLong();
+
+    Counter() {
+    }
+
+    /**
+     * Increments the counter by one
+     */
+    public void increment() {
+        count.incrementAndGet();
+    }
+
+    /**
+     * Increments the counter by the given amount
+     *
+     * @param delta the amount to add
+     */
+    public void add(long delta) {
+        count.addAndGet(delta);
+    }
+
+    /**
+     * Returns the current value of the counter
+     *
+     * @return the counter value
+     */
+    public long get() {
+        return count.get();
+    }
+}
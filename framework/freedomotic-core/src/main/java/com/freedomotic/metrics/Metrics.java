@@ -0,0 +1,257 @@
+/**
+ *
+ * Copyright (c) 2009-2016 Freedomotic team http://freedomotic.com
+ *
+ * This file is part of Freedomotic
+ *
+ * This Program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2, or (at your option) any later version.
+ *
+ * This Program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Freedomotic; see the file COPYING. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.freedomotic.metrics;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The registry of the runtime metrics of Freedomotic (replaces the old
+ * Profiler).
+ * <p>
+ * Metrics are created on first use and shared by name, so they can be updated
+ * from any thread without injection (eg: from the bus listeners and from the
+ * plugins). The names used by the core are the constants of this class.
+ * Histograms record latencies in microseconds.
+ * </p>
+ */
+public final class Metrics {
+
+    /**
+     * Events sent on the bus
+     */
+    public static final String EVENTS_SENT = "bus.events.sent";
+    /**
+     * Messages received by the bus listeners
+     */
+    public static final String MESSAGES_RECEIVED = "bus.messages.received";
+    /**
+     * Commands sent on the bus
+     */
+    public static final String COMMANDS_SENT = "bus.commands.sent";
+    /**
+     * Command replies sent on the bus
+     */
+    public static final String REPLIES_SENT = "bus.replies.sent";
+    /**
+     * Command replies received before the timeout
+     */
+    public static final String REPLIES_RECEIVED = "bus.replies.received";
+    /**
+     * Commands not replied within their reply timeout
+     */
+    public static final String REPLIES_TIMED_OUT = "bus.replies.timedout";
+    /**
+     * Time to check an event against a trigger
+     */
+    public static final String TRIGGER_CHECK = "trigger.check";
+    /**
+     * Time from the event creation to the end of the execution of the
+     * reactions bound to the triggers it fires
+     */
+    public static final String TRIGGER_REACTION = "trigger.reaction";
+    /**
+     * Time to compute the next fire time of a time based trigger
+     */
+    public static final String TRIGGER_SCHEDULE = "trigger.schedule";
+    /**
+     * Time from sending a command to receiving its reply
+     */
+    public static final String COMMAND_REPLY = "command.reply";
+    /**
+     * Prefix of the time spent by a plugin in its onCommand method, the
+     * plugin name is appended
+     */
+    public static final String PLUGIN_ON_COMMAND = "plugin.oncommand.";
+    /**
+     * Prefix of the commands a plugin has not executed because its queue was
+     * full, the plugin name is appended
+     */
+    public static final String PLUGIN_COMMANDS_REJECTED = "plugin.commands.rejected.";
+    /**
+     * Prefix of the commands a plugin has executed after their reply timeout,
+     * the plugin name is appended
+     */
+    public static final String PLUGIN_COMMANDS_LATE = "plugin.commands.late.";
+    /**
+     * Prefix of the tasks an {@link com.freedomotic.core.AutomationExecutor}
+     * has discarded because its queue was full, the executor name is appended
+     */
+    public static final String EXECUTOR_REJECTED = "executor.rejected.";
+    /**
+     * Prefix of the time a task waits in the queue of an
+     * {@link com.freedomotic.core.AutomationExecutor} before being executed,
+     * the executor name is appended
+     */
+    public static final String EXECUTOR_WAIT = "executor.wait.";
+    /**
+     * Prefix of the gauge of the tasks waiting in the queue of an
+     * {@link com.freedomotic.core.AutomationExecutor}, the executor name is
+     * appended
+     */
+    public static final String EXECUTOR_QUEUE_SIZE = "executor.queue.size.";
+    /**
+     * Prefix of the gauge of the max number of tasks observed in the queue of
+     * an {@link com.freedomotic.core.AutomationExecutor}, the executor name is
+     * appended
+     */
+    public static final String EXECUTOR_QUEUE_MAX = "executor.queue.max.";
+    private static final ConcurrentMap<String, Counter> COUNTERS = new ConcurrentHashMap<String, Counter>();
+    private static final ConcurrentMap<String, Histogram> HISTOGRAMS = new ConcurrentHashMap<String, Histogram>();
+    private static final ConcurrentMap<String, Gauge> GAUGES = new ConcurrentHashMap<String, Gauge>();
+    private static final double[] PERCENTILES = {50, 90, 99, 99.9};
+
+    /**
+     * Returns the counter with the given name, creating it if needed
+     *
+     * @param name the counter name
+     * @return the counter
+     */
+    public static Counter counter(String name) {
+        Counter counter = COUNTERS.get(name);
+        if (counter == null) {
+            Counter created = new Counter();
+            counter = COUNTERS.putIfAbsent(name, created);
+            if (counter == null) {
+                counter = created;
+            }
+        }
+        return counter;
+    }
+
+    /**
+     * Returns the histogram with the given name, creating it if needed
+     *
+     * @param name the histogram name
+     * @return the histogram
+     */
+    public static Histogram histogram(String name) {
+        Histogram histogram = HISTOGRAMS.get(name);
+        if (histogram == null) {
+            Histogram created = new Histogram();
+            histogram = HISTOGRAMS.putIfAbsent(name, created);
+            if (histogram == null) {
+                histogram = created;
+            }
+        }
+        return histogram;
+    }
+
+    /**
+     * Registers a gauge, replacing the one with the same name if any (eg:
+     * registered by a previous instance of a restarted plugin)
+     *
+     * @param name the gauge name
+     * @param gauge the gauge
+     */
+    public static void gauge(String name, Gauge gauge) {
+        GAUGES.put(name, gauge);
+    }
+
+    /**
+     * Unregisters a gauge if it is still the registered one
+     *
+     * @param name the gauge name
+     * @param gauge the gauge to unregister
+     */
+    public static void removeGauge(String name, Gauge gauge) {
+        GAUGES.remove(name, gauge);
+    }
+
+    /**
+     * Returns the current values of all the metrics, suitable to be converted
+     * to JSON. Counters and gauges are mapped to their value, histograms to a map of
+     * count, mean, max and percentiles (p50, p90, p99, p999) in milliseconds.
+     *
+     * @return metric name -> value, sorted by name
+     */
+    public static SortedMap<String, Object> snapshot() {
+        SortedMap<String, Object> result = new TreeMap<String, Object>();
+        for (Map.Entry<String, Counter> counter : COUNTERS.entrySet()) {
+            result.put(counter.getKey(), counter.getValue().get());
+        }
+        for (Map.Entry<String, Gauge> gauge : GAUGES.entrySet()) {
+            result.put(gauge.getKey(), gauge.getValue().get());
+        }
+        for (Map.Entry<String, Histogram> histogram : HISTOGRAMS.entrySet()) {
+            Histogram.Snapshot snapshot = histogram.getValue().snapshot();
+            Map<String, Object> values = new TreeMap<String, Object>();
+            values.put("count", snapshot.getCount());
+            values.put("mean", toMillis(Math.round(snapshot.getMean())));
+            values.put("max", toMillis(snapshot.getMax()));
+            for (double percentile : PERCENTILES) {
+                values.put(percentileName(percentile), toMillis(snapshot.getPercentile(percentile)));
+            }
+            result.put(histogram.getKey(), values);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the current values of all the metrics as plain text, one metric
+     * per line (eg: "trigger.check count=10 mean=0.120 p50=0.100 ... max=1.500"
+     * with latencies in milliseconds)
+     *
+     * @return the metrics as text
+     */
+    public static String print() {
+        StringBuilder buff = new StringBuilder();
+        for (Map.Entry<String, Counter> counter : new TreeMap<String, Counter>(COUNTERS).entrySet()) {
+            buff.append(counter.getKey()).append(' ').append(counter.getValue().get()).append('\n');
+        }
+        for (Map.Entry<String, Gauge> gauge : new TreeMap<String, Gauge>(GAUGES).entrySet()) {
+            buff.append(gauge.getKey()).append(' ').append(gauge.getValue().get()).append('\n');
+        }
+        for (Map.Entry<String, Histogram> histogram : new TreeMap<String, Histogram>(HISTOGRAMS).entrySet()) {
+            Histogram.Snapshot snapshot = histogram.getValue().snapshot();
+            buff.append(histogram.getKey())
+                    .append(" count=").append(snapshot.getCount())
+                    .append(" mean=").append(formatMillis(Math.round(snapshot.getMean())));
+            for (double percentile : PERCENTILES) {
+                buff.append(' ').append(percentileName(percentile)).append('=')
+                        .append(formatMillis(snapshot.getPercentile(percentile)));
+            }
+            buff.append(" max=").append(formatMillis(snapshot.getMax())).append('\n');
+        }
+        return buff.toString();
+    }
+
+    private static String percentileName(double percentile) {
+        // 99.9 -> p999
+        return "p" + (percentile == Math.rint(percentile)
+                ? String.valueOf((long) percentile)
+                : String.valueOf(percentile).replace(".", ""));
+    }
+
+    private static double toMillis(long micros) {
+        return micros / 1000.0;
+    }
+
+    private static String formatMillis(long micros) {
+        return String.format(Locale.ROOT, "%.3f", toMillis(micros));
+    }
+
+    private Metrics() {
+    }
+}
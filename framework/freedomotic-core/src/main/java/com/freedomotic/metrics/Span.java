@@ -0,0 +1,175 @@
+/**
+ *
+ * Copyright (c) 2009-2016 Freedomotic team http://freedomotic.com
+ *
+ * This file is part of Freedomotic
+ *
+ * This Program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2, or (at your option) any later version.
+ *
+ * This Program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Freedomotic; see the file COPYING. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.freedomotic.metrics;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A timed stage of the processing of an event or a command (eg: a trigger
+ * check, a reaction execution, a plugin onCommand). Spans with the same trace
+ * ID are caused by the same originating event, the parent span ID links a
+ * span to the stage that caused it.
+ * <p>
+ * Spans are created by the {@link Tracer} and are recorded in its buffer when
+ * they end.
+ * </p>
+ */
+public final class Span {
+
+    private final String traceId;
+    private final String spanId;
+    private final String parentId;
+    private final String name;
+    private final String thread;
+    private final long start;
+    private final long startNanos;
+    private volatile String detail;
+    private volatile long duration = -1;
+    // the span bound to the thread before this one, if this span is bound
+    Span previous;
+    boolean bound;
+
+    Span(String traceId, String spanId, String parentId, String name, long start, long startNanos) {
+        this.traceId = traceId;
+        this.spanId = spanId;
+        this.parentId = parentId;
+        this.name = name;
+        this.thread = Thread.currentThread().getName();
+        this.start = start;
+        this.startNanos = startNanos;
+    }
+
+    /**
+     * Returns the ID shared by all the spans of the same trace
+     *
+     * @return the trace ID
+     */
+    public String getTraceId() {
+        return traceId;
+    }
+
+    /**
+     * Returns the ID of this span
+     *
+     * @return the span ID
+     */
+    public String getSpanId() {
+        return spanId;
+    }
+
+    /**
+     * Returns the ID of the span which caused this one
+     *
+     * @return the parent span ID or null if this span starts the trace
+     */
+    public String getParentId() {
+        return parentId;
+    }
+
+    /**
+     * Returns the name of the stage (eg: trigger.check)
+     *
+     * @return the span name
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Returns a description of what is processed (eg: the trigger name)
+     *
+     * @return the span detail, can be null
+     */
+    public String getDetail() {
+        return detail;
+    }
+
+    /**
+     * Returns the name of the thread which started the span
+     *
+     * @return the thread name
+     */
+    public String getThread() {
+        return thread;
+    }
+
+    /**
+     * Returns the start time in milliseconds since the epoch
+     *
+     * @return the start time
+     */
+    public long getStart() {
+        return start;
+    }
+
+    /**
+     * Returns the duration in microseconds
+     *
+     * @return the duration or -1 if the span is not ended yet
+     */
+    public long getDuration() {
+        return duration;
+    }
+
+    /**
+     * Sets a description of what is processed (eg: the trigger name)
+     *
+     * @param detail the span detail
+     * @return this span
+     */
+    public Span tag(String detail) {
+        this.detail = detail;
+        return this;
+    }
+
+    /**
+     * Ends this span and records it. If the span is bound to the current
+     * thread the previously bound span is restored. Ending a span twice has no
+     * effect.
+     */
+    public void end() {
+        if (duration >= 0) {
+            return;
+        }
+        duration = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos);
+        Tracer.ended(this, true);
+    }
+
+    /**
+     * Ends this span without recording it, eg: when the stage turns out to be
+     * not relevant
+     */
+    public void discard() {
+        if (duration >= 0) {
+            return;
+        }
+        duration = 0;
+        Tracer.ended(this, false);
+    }
+
+    void setDuration(long duration) {
+        this.duration = duration;
+    }
+
+    @Override
+    public String toString() {
+        return name + " [" + traceId + "/" + spanId + "] " + duration + "us";
+    }
+}
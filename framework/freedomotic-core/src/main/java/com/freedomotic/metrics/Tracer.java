@@ -0,0 +1,251 @@
+/**
+ *
+ * Copyright (c) 2009-2016 Freedomotic team http://freedomotic.com
+ *
+ * This file is part of Freedomotic
+ *
+ * This Program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2, or (at your option) any later version.
+ *
+ * This Program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Freedomotic; see the file COPYING. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.freedomotic.metrics;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Records the stages of the processing of events and commands as
+ * {@link Span}s, so the time spent by a single automation can be followed from
+ * the sensor event to the actuator reply.
+ * <p>
+ * The trace context is propagated in three ways: within a thread the last
+ * started span is the parent of the next one, across the bus the trace and
+ * span IDs are JMS properties (and fields of {@link com.freedomotic.api.EventTemplate}
+ * and {@link com.freedomotic.reactions.Command}), across thread pools the
+ * caller passes the IDs explicitly.
+ * </p>
+ * <p>
+ * Ended spans are stored in a fixed size ring buffer, the oldest are
+ * overwritten. Tracing can be disabled, in this case spans have no IDs and
+ * are not recorded.
+ * </p>
+ */
+public final class Tracer {
+
+    /**
+     * The JMS property holding the trace ID
+     */
+    public static final String TRACE_ID_PROPERTY = "traceId";
+    /**
+     * The JMS property holding the ID of the span that sent the message
+     */
+    public static final String SPAN_ID_PROPERTY = "traceSpanId";
+    private static final int DEFAULT_CAPACITY = 4096;
+    private static final Span NOOP = new Span(null, null, null, "noop", 0, 0);
+    private static final ThreadLocal<Span> CURRENT = new ThreadLocal<Span>();
+    private static final AtomicLong SEQUENCE = new AtomicLong();
+    private static final String INSTANCE = Long.toHexString(new Random().nextLong() & 0xffffffL);
+    private static volatile boolean enabled = true;
+    private static volatile AtomicReferenceArray<Span> buffer = new AtomicReferenceArray<Span>(DEFAULT_CAPACITY);
+    private static final AtomicLong WRITES = new AtomicLong();
+
+    /**
+     * Enables or disables tracing and sets the number of recorded spans,
+     * already recorded spans are dropped
+     *
+     * @param enable false to disable tracing
+     * @param capacity the max number of spans kept in memory
+     */
+    public static void configure(boolean enable, int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Trace buffer capacity must be positive, found " + capacity);
+        }
+        enabled = enable;
+        buffer = new AtomicReferenceArray<Span>(capacity);
+    }
+
+    /**
+     * Returns true if tracing is enabled
+     *
+     * @return true if spans are recorded
+     */
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Returns the span bound to the current thread
+     *
+     * @return the current span or null
+     */
+    public static Span current() {
+        return CURRENT.get();
+    }
+
+    /**
+     * Starts a span, child of the span bound to the current thread (if any),
+     * and binds it to the current thread until it ends.
+     *
+     * @param name the stage name
+     * @return the started span
+     */
+    public static Span start(String name) {
+        return start(name, null, null);
+    }
+
+    /**
+     * Starts a span and binds it to the current thread until it ends. The
+     * given trace context is used if not null, otherwise the span is a child
+     * of the span bound to the current thread, otherwise it starts a new
+     * trace.
+     *
+     * @param name the stage name
+     * @param traceId the trace ID received with the message or object, can be
+     * null
+     * @param parentId the parent span ID received with the message or object,
+     * can be null
+     * @return the started span
+     */
+    public static Span start(String name, String traceId, String parentId) {
+        Span span = startDetached(name, traceId, parentId);
+        if (span != NOOP) {
+            span.previous = CURRENT.get();
+            span.bound = true;
+            CURRENT.set(span);
+        }
+        return span;
+    }
+
+    /**
+     * Starts a span that is not bound to the current thread, used for stages
+     * ending in another thread (eg: waiting for a reply). The parent is
+     * chosen as in {@link #start(String, String, String)}.
+     *
+     * @param name the stage name
+     * @param traceId the trace ID, can be null
+     * @param parentId the parent span ID, can be null
+     * @return the started span
+     */
+    public static Span startDetached(String name, String traceId, String parentId) {
+        if (!enabled) {
+            return NOOP;
+        }
+        if (traceId == null) {
+            Span current = CURRENT.get();
+            if (current != null) {
+                traceId = current.getTraceId();
+                parentId = current.getSpanId();
+            } else {
+                traceId = nextId();
+                parentId = null;
+            }
+        }
+        return new Span(traceId, nextId(), parentId, name, System.currentTimeMillis(), System.nanoTime());
+    }
+
+    /**
+     * Records an already completed span, eg: the time a message spent on the
+     * bus
+     *
+     * @param name the stage name
+     * @param traceId the trace ID
+     * @param parentId the parent span ID, can be null
+     * @param start the start time in milliseconds since the epoch
+     * @return the recorded span
+     */
+    public static Span record(String name, String traceId, String parentId, long start) {
+        if (!enabled || traceId == null) {
+            return NOOP;
+        }
+        Span span = new Span(traceId, nextId(), parentId, name, start, 0);
+        span.setDuration(TimeUnit.MILLISECONDS.toMicros(Math.max(0, System.currentTimeMillis() - start)));
+        ended(span, true);
+        return span;
+    }
+
+    /**
+     * Returns the recorded spans of a trace, sorted by start time
+     *
+     * @param traceId the trace ID
+     * @return the spans of the trace still in memory
+     */
+    public static List<Span> getTrace(String traceId) {
+        List<Span> result = new ArrayList<Span>();
+        AtomicReferenceArray<Span> spans = buffer;
+        for (int i = 0; i < spans.length(); i++) {
+            Span span = spans.get(i);
+            if (span != null && span.getTraceId().equals(traceId)) {
+                result.add(span);
+            }
+        }
+        Collections.sort(result, BY_START);
+        return result;
+    }
+
+    /**
+     * Returns the last recorded spans, most recent first
+     *
+     * @param limit the max number of spans to return
+     * @return the last recorded spans
+     */
+    public static List<Span> getRecentSpans(int limit) {
+        AtomicReferenceArray<Span> spans = buffer;
+        int capacity = spans.length();
+        long last = WRITES.get();
+        List<Span> result = new ArrayList<Span>(Math.min(limit, capacity));
+        for (long i = last - 1; i >= 0 && i >= last - capacity && result.size() < limit; i--) {
+            Span span = spans.get((int) (i % capacity));
+            if (span != null) {
+                result.add(span);
+            }
+        }
+        return result;
+    }
+
+    static void ended(Span span, boolean record) {
+        if (span == NOOP) {
+            return;
+        }
+        if (span.bound && CURRENT.get() == span) {
+            if (span.previous != null) {
+                CURRENT.set(span.previous);
+            } else {
+                CURRENT.remove();
+            }
+        }
+        span.previous = null;
+        if (record) {
+            AtomicReferenceArray<Span> spans = buffer;
+            spans.set((int) (WRITES.getAndIncrement() % spans.length()), span);
+        }
+    }
+
+    private static String nextId() {
+        return INSTANCE + "-" + Long.toHexString(SEQUENCE.incrementAndGet());
+    }
+
+    private static final Comparator<Span> BY_START = new Comparator<Span>() {
+        @Override
+        public int compare(Span a, Span b) {
+            return a.getStart() < b.getStart() ? -1 : (a.getStart() == b.getStart() ? 0 : 1);
+        }
+    };
+
+    private Tracer() {
+    }
+}
@@ -0,0 +1,371 @@
+/**
+ *
+ * Copyright (c) 2009-2016 Freedomotic team http://freedomotic.com
+ *
+ * This file is part of Freedomotic
+ *
+ * This Program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2, or (at your option) any later version.
+ *
+ * This Program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Freedomotic; see the file COPYING. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.freedomotic.nlp;
+
+import com.freedomotic.nlp.Nlp.Rank;
+import com.freedomotic.reactions.Command;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An inverted index of the words of the command names, used to compute the
+ * same similarity ranking of {@link NlpCommandStringDistanceImpl} without
+ * comparing the input text with every word of every command.
+ * <p>
+ * Every distinct word (lowercase) maps to the commands having it in their
+ * name, one entry per occurrence. An input word is compared only with the
+ * indexed words whose length is within the allowed number of typos: short
+ * words (no typo allowed) are looked up directly, the others are compared
+ * using {@link DamerauLevenshtein#getDistance(String, String, int)}. The
+ * points of the matching words are added to the commands of their posting
+ * lists and the best commands are selected with a bounded heap.
+ * </p>
+ * <p>
+ * Commands are added and removed incrementally, removed commands are
+ * skipped at query time and purged when they are the majority. This class
+ * is not thread safe.
+ * </p>
+ */
+final class CommandNameIndex {
+
+    // same points and typo tolerance of the original ranking
+    static final int EXACT_MATCH_POINTS = 30;
+    static final int TYPO_POINTS = 15;
+    static final int TYPO_PERCENT = 30;
+    private static final int MIN_PURGE = 1024;
+    private final DamerauLevenshtein algorithm = new DamerauLevenshtein();
+    // command slot (in insertion order) -> command, null if removed
+    private Command[] commands = new Command[64];
+    // command slot -> name when indexed
+    private String[] names = new String[64];
+    private int slots;
+    private int removed;
+    private final Map<Command, Integer> slotOf = new IdentityHashMap<Command, Integer>();
+    // word -> word id
+    private final Map<String, Integer> wordIds = new HashMap<String, Integer>();
+    private final List<String> words = new ArrayList<String>();
+    // word id -> slots of the commands having the word, repeated for every occurrence
+    private final List<IntList> postings = new ArrayList<IntList>();
+    // word length -> ids of the words with that length
+    private final List<IntList> byLength = new ArrayList<IntList>();
+    // query scratch space
+    private int[] scores = new int[64];
+    private int[] touched = new int[64];
+    private int touchedCount;
+    private int[] heap = new int[16];
+
+    /**
+     * Updates the index with the given commands: new commands (or commands
+     * whose name is changed) are added, missing commands are removed.
+     *
+     * @param current all the commands to index, in ranking order for
+     * commands with the same similarity
+     */
+    void sync(List<Command> current) {
+        Map<Command, Boolean> seen = new IdentityHashMap<Command, Boolean>();
+        for (Command command : current) {
+            seen.put(command, Boolean.TRUE);
+            Integer slot = slotOf.get(command);
+            if (slot != null && !names[slot].equals(command.getName())) {
+                remove(command);
+                slot = null;
+            }
+            if (slot == null) {
+                add(command);
+            }
+        }
+        if (seen.size() < slotOf.size()) {
+            for (Command command : new ArrayList<Command>(slotOf.keySet())) {
+                if (!seen.containsKey(command)) {
+                    remove(command);
+                }
+            }
+        }
+        if (removed > MIN_PURGE && removed > slotOf.size()) {
+            purge();
+        }
+    }
+
+    /**
+     * Indexes a command
+     *
+     * @param command the command to add
+     */
+    void add(Command command) {
+        if (slotOf.containsKey(command) || command.getName() == null) {
+            return;
+        }
+        if (slots == commands.length) {
+            commands = Arrays.copyOf(commands, slots * 2);
+            names = Arrays.copyOf(names, slots * 2);
+            scores = Arrays.copyOf(scores, slots * 2);
+        }
+        int slot = slots++;
+        commands[slot] = command;
+        names[slot] = command.getName();
+        slotOf.put(command, slot);
+        // the same words compared by the original ranking
+        for (String word : command.getName().split(" ")) {
+            postings.get(wordId(word.trim().toLowerCase())).add(slot);
+        }
+    }
+
+    /**
+     * Removes a command from the index
+     *
+     * @param command the command to remove
+     */
+    void remove(Command command) {
+        Integer slot = slotOf.remove(command);
+        if (slot != null) {
+            commands[slot] = null;
+            names[slot] = null;
+            removed++;
+        }
+    }
+
+    /**
+     * Returns the number of indexed commands
+     *
+     * @return the number of indexed commands
+     */
+    int size() {
+        return slotOf.size();
+    }
+
+    /**
+     * Ranks the indexed commands by similarity with the input text. Every
+     * word of the input is compared to every word of the command name: an
+     * identical word gives {@link #EXACT_MATCH_POINTS} points, a word with at
+     * most {@link #TYPO_PERCENT}% of typos gives {@link #TYPO_POINTS} points.
+     * If less than maxResults commands are similar the ranking is filled with
+     * other commands with similarity zero.
+     *
+     * @param input the text to analyze
+     * @param maxResults the max number of commands in the ranking
+     * @return the ranking, from the most similar command
+     */
+    List<Rank<Command>> rank(String input, int maxResults) {
+        List<Rank<Command>> ranking = new ArrayList<Rank<Command>>();
+        if (input == null || input.isEmpty() || maxResults <= 0) {
+            return ranking;
+        }
+        try {
+            for (String inputWord : input.split(" ")) {
+                score(inputWord);
+            }
+            int size = selectBest(maxResults);
+            for (int i = 0; i < size; i++) {
+                ranking.add(new Rank<Command>(scores[heap[i]], commands[heap[i]]));
+            }
+            // not similar commands, in insertion order
+            for (int slot = 0; slot < slots && ranking.size() < maxResults; slot++) {
+                if (commands[slot] != null && scores[slot] == 0) {
+                    ranking.add(new Rank<Command>(0, commands[slot]));
+                }
+            }
+        } finally {
+            for (int i = 0; i < touchedCount; i++) {
+                scores[touched[i]] = 0;
+            }
+            touchedCount = 0;
+        }
+        return ranking;
+    }
+
+    private void score(String inputWord) {
+        int length = inputWord.length();
+        if (length == 0) {
+            return;
+        }
+        String word = inputWord.trim().toLowerCase();
+        // distance * 100 / length <= TYPO_PERCENT
+        int maxDistance = (length * TYPO_PERCENT) / 100;
+        if (maxDistance == 0) {
+            Integer id = wordIds.get(word);
+            if (id != null) {
+                addPoints(postings.get(id), EXACT_MATCH_POINTS);
+            }
+            return;
+        }
+        int from = Math.max(0, word.length() - maxDistance);
+        int to = Math.min(byLength.size() - 1, word.length() + maxDistance);
+        for (int wordLength = from; wordLength <= to; wordLength++) {
+            IntList ids = byLength.get(wordLength);
+            for (int i = 0; i < ids.size; i++) {
+                int id = ids.data[i];
+                int distance = algorithm.getDistance(word, words.get(id), maxDistance);
+                if (distance == 0) {
+                    addPoints(postings.get(id), EXACT_MATCH_POINTS);
+                } else if (distance <= maxDistance) {
+                    addPoints(postings.get(id), TYPO_POINTS);
+                }
+            }
+        }
+    }
+
+    private void addPoints(IntList slotList, int points) {
+        for (int i = 0; i < slotList.size; i++) {
+            int slot = slotList.data[i];
+            if (commands[slot] == null) {
+                continue;
+            }
+            if (scores[slot] == 0) {
+                if (touchedCount == touched.length) {
+                    touched = Arrays.copyOf(touched, touchedCount * 2);
+                }
+                touched[touchedCount++] = slot;
+            }
+            scores[slot] += points;
+        }
+    }
+
+    /*
+     * Puts in the heap array the best scored commands, from the best one, and
+     * returns their number
+     */
+    private int selectBest(int maxResults) {
+        int limit = Math.min(maxResults, touchedCount);
+        if (heap.length < limit) {
+            heap = new int[Math.max(limit, heap.length * 2)];
+        }
+        int size = 0;
+        // min heap: the worst of the best commands is on top
+        for (int i = 0; i < touchedCount; i++) {
+            int slot = touched[i];
+            if (size < limit) {
+                heap[size] = slot;
+                siftUp(size++);
+            } else if (isBetter(slot, heap[0])) {
+                heap[0] = slot;
+                siftDown(0, size);
+            }
+        }
+        // heap sort, the best commands end up first
+        for (int last = size - 1; last > 0; last--) {
+            int swap = heap[0];
+            heap[0] = heap[last];
+            heap[last] = swap;
+            siftDown(0, last);
+        }
+        return size;
+    }
+
+    /*
+     * Higher score first, then insertion order
+     */
+    private boolean isBetter(int slot, int other) {
+        return scores[slot] > scores[other] || (scores[slot] == scores[other] && slot < other);
+    }
+
+    private void siftUp(int index) {
+        while (index > 0) {
+            int parent = (index - 1) / 2;
+            if (!isBetter(heap[parent], heap[index])) {
+                return;
+            }
+            int swap = heap[parent];
+            heap[parent] = heap[index];
+            heap[index] = swap;
+            index = parent;
+        }
+    }
+
+    private void siftDown(int index, int size) {
+        while (true) {
+            int worst = index;
+            int left = 2 * index + 1;
+            int right = left + 1;
+            if (left < size && isBetter(heap[worst], heap[left])) {
+                worst = left;
+            }
+            if (right < size && isBetter(heap[worst], heap[right])) {
+                worst = right;
+            }
+            if (worst == index) {
+                return;
+            }
+            int swap = heap[worst];
+            heap[worst] = heap[index];
+            heap[index] = swap;
+            index = worst;
+        }
+    }
+
+    private int wordId(String word) {
+        Integer id = wordIds.get(word);
+        if (id == null) {
+            id = words.size();
+            wordIds.put(word, id);
+            words.add(word);
+            postings.add(new IntList());
+            while (byLength.size() <= word.length()) {
+                byLength.add(new IntList());
+            }
+            byLength.get(word.length()).add(id);
+        }
+        return id;
+    }
+
+    /*
+     * Rebuilds the index without the removed commands
+     */
+    private void purge() {
+        Command[] live = new Command[slotOf.size()];
+        int count = 0;
+        for (int slot = 0; slot < slots; slot++) {
+            if (commands[slot] != null) {
+                live[count++] = commands[slot];
+            }
+        }
+        slots = 0;
+        removed = 0;
+        slotOf.clear();
+        wordIds.clear();
+        words.clear();
+        postings.clear();
+        byLength.clear();
+        Arrays.fill(commands, null);
+        Arrays.fill(names, null);
+        for (Command command : live) {
+            add(command);
+        }
+    }
+
+    /**
+     * A growable list of ints
+     */
+    private static final class IntList {
+
+        private int[] data = new int[4];
+        private int size;
+
+        void add(int value) {
+            if (size == data.length) {
+                data = Arrays.copyOf(data, size * 2);
+            }
+            data[size++] = value;
+        }
+    }
+}
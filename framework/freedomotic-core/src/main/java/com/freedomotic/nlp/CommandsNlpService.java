@@ -23,6 +23,7 @@ import com.freedomotic.api.AbstractConsumer;
 import com.freedomotic.api.EventTemplate;
 import com.freedomotic.bus.BusService;
 import com.freedomotic.core.Resolver;
+import com.freedomotic.core.ScriptEvaluator;
 import com.freedomotic.events.GenericEvent;
 import com.freedomotic.exceptions.NoResultsException;
 import com.freedomotic.exceptions.UnableToExecuteException;
@@ -61,11 +62,13 @@ public class CommandsNlpService extends AbstractConsumer {
     public static final String PARAM_NLP_TEXT = "text";
     // Dependencies
     private final NlpCommand nlpCommands;
+    private final ScriptEvaluator scriptEvaluator;
 
     @Inject
-    public CommandsNlpService(NlpCommand nlpCommands, BusService busService) {
+    public CommandsNlpService(NlpCommand nlpCommands, BusService busService, ScriptEvaluator scriptEvaluator) {
         super(busService);
         this.nlpCommands = nlpCommands;
+        this.scriptEvaluator = scriptEvaluator;
     }
 
     @Override
@@ -77,7 +80,7 @@ public class CommandsNlpService extends AbstractConsumer {
             mostSimilar = findMostSimilarCommand(text);
             // Generate an almost empty event used to resolve commands properites (eg: current time and date)
             GenericEvent event = new GenericEvent(this);
-            Resolver resolver = new Resolver();
+            Resolver resolver = new Resolver(scriptEvaluator);
             resolver.addContext("event.", event.getPayload());
             // Try to resolve the commands properties against the created event
             try {
@@ -29,6 +29,10 @@ public class DamerauLevenshtein {
     private String compTwo;
     private int[][] matrix;
     private Boolean calculated = false;
+    // reusable rows of the bounded distance: row i-2, i-1 and i
+    private int[] rowTwoBefore = new int[16];
+    private int[] rowBefore = new int[16];
+    private int[] row = new int[16];
 
     public void setWordsToCompare(String a, String b) {
         calculated = false; //reset for a new calucation
@@ -59,6 +63,73 @@ public class DamerauLevenshtein {
         return matrix[compOne.length()][compTwo.length()];
     }
 
+    /**
+     * Computes the same distance of {@link #getSimilarity()} only if it is not
+     * greater than the given max distance. Only the cells of the matrix near
+     * the diagonal are computed and the computation stops as soon as the
+     * distance is known to be greater than the max, reusing the same rows for
+     * every call.
+     *
+     * @param a the first word
+     * @param b the second word
+     * @param maxDistance the max distance of interest
+     * @return the distance between the words, or maxDistance + 1 if it is
+     * greater than maxDistance
+     */
+    public int getDistance(String a, String b, int maxDistance) {
+        int n = a.length();
+        int m = b.length();
+        int over = maxDistance + 1;
+        if (Math.abs(n - m) > maxDistance) {
+            return over;
+        }
+        if (n == 0 || m == 0) {
+            return Math.max(n, m);
+        }
+        if (row.length <= m) {
+            int size = Math.max(m + 1, row.length * 2);
+            rowTwoBefore = new int[size];
+            rowBefore = new int[size];
+            row = new int[size];
+        }
+
+        for (int j = 0; j <= m; j++) {
+            rowBefore[j] = Math.min(j, over);
+        }
+        int minBefore = 0;
+        for (int i = 1; i <= n; i++) {
+            // cells farther than maxDistance from the diagonal are always greater than it
+            int from = Math.max(1, i - maxDistance);
+            int to = Math.min(m, i + maxDistance);
+            row[0] = Math.min(i, over);
+            row[from - 1] = from == 1 ? row[0] : over;
+            int min = row[from - 1];
+            char charOne = a.charAt(i - 1);
+
+            for (int j = from; j <= to; j++) {
+                int cost = charOne == b.charAt(j - 1) ? 0 : 1;
+                int value = minimum(rowBefore[j] + 1, row[j - 1] + 1, rowBefore[j - 1] + cost);
+                if ((i > 1) && (j > 1) && (charOne == b.charAt(j - 2)) && (a.charAt(i - 2) == b.charAt(j - 1))) {
+                    value = minimum(value, rowTwoBefore[j - 2] + cost);
+                }
+                row[j] = Math.min(value, over);
+                min = Math.min(min, row[j]);
+            }
+            if (to < m) {
+                row[to + 1] = over;
+            }
+            if (min > maxDistance && minBefore > maxDistance) {
+                return over;
+            }
+            minBefore = min;
+            int[] swap = rowTwoBefore;
+            rowTwoBefore = rowBefore;
+            rowBefore = row;
+            row = swap;
+        }
+        return rowBefore[m];
+    }
+
     private void setupMatrix() {
         int cost = -1;
         int del, sub, ins;
@@ -22,8 +22,6 @@ package com.freedomotic.nlp;
 import com.freedomotic.exceptions.NoResultsException;
 import com.freedomotic.reactions.Command;
 import com.freedomotic.reactions.CommandRepository;
-import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import org.slf4j.LoggerFactory;
@@ -32,7 +30,8 @@ import org.slf4j.Logger;
 
 /**
  * Computes Commands similarity ranking usin Damerau-Levenstrin string distance
- * algorithm
+ * algorithm. The words of the command names are kept in a
+ * {@link CommandNameIndex}, updated when the commands repository changes.
  *
  * @see Command
  * @author Enrico Nicoletti
@@ -40,8 +39,10 @@ import org.slf4j.Logger;
 public class NlpCommandStringDistanceImpl implements NlpCommand {
 
     private static final Logger LOG = LoggerFactory.getLogger(NlpCommandStringDistanceImpl.class.getName());
-    private List<Rank<Command>> ranking;
     private final CommandRepository commandsRepository;
+    // guarded by itself
+    private final CommandNameIndex index = new CommandNameIndex();
+    private long indexedVersion = -1;
 
     @Inject
     public NlpCommandStringDistanceImpl(CommandRepository commandsRepository) {
@@ -56,55 +57,17 @@ public class NlpCommandStringDistanceImpl implements NlpCommand {
      */
     @Override
     public List<Rank<Command>> computeSimilarity(String inputText, int maxResults) throws NoResultsException {
-        ranking = new ArrayList<>();
-        buildRanking(inputText);
-        Collections.sort(ranking, new DescendingRankComparator());
-
-//        for (Rank<Command> r : ranking) {
-//            if (r.getSimilarity() > 0) {
-//                System.out.println(r.getElement().getName() + " points " + r.getSimilarity());
-//            }
-//        }
-        if (ranking.isEmpty()) {
-            return Collections.unmodifiableList(ranking);
-        } else {
-            return Collections.unmodifiableList(ranking.subList(0, Math.min(maxResults - 1, ranking.size())));
-        }
-    }
-
-    /**
-     * Tokenize the string and compute string distance using Damerau-Levensthein
-     * algorithm. May return also elements with similarity equals to zero.
-     *
-     * @param input
-     */
-    private void buildRanking(String input) {
-        if (input == null || input.isEmpty()) {
-            return;
-        }
-        DamerauLevenshtein algorithm = new DamerauLevenshtein();
-        for (Command command : commandsRepository.findAll()) {
-            int similarity = 0;
-            // Compare every word of the input to any word in the command name
-            for (String inputWord : Arrays.asList(input.split(" "))) {
-                // Use the command name not the command tags for this
-                for (String commandWord : Arrays.asList(command.getName().split(" "))) {
-                    algorithm.setWordsToCompare(inputWord.trim().toLowerCase(), commandWord.trim().toLowerCase());
-                    int distance = algorithm.getSimilarity();
-                    //convert word distance into a percent value
-                    double distancePercent = ((double) (distance * 100)) / ((double) inputWord.length());
-
-                    if (distancePercent == 0) {
-                        similarity += 30; //3 points for any idenitical word
-                    } else {
-                        if (distancePercent <= 30) { //30% of error, not too much, it can be a typo, give it some points
-                            similarity += 15;
-                        }
-                    }
-                }
+        List<Rank<Command>> ranking;
+        synchronized (index) {
+            long version = commandsRepository.getVersion();
+            if (version != indexedVersion) {
+                index.sync(commandsRepository.findAll());
+                indexedVersion = version;
+                LOG.debug("NLP index updated, {} commands indexed", index.size());
             }
-            ranking.add(new Rank(similarity, command));
+            // one less than the requested results, as it always has been
+            ranking = index.rank(inputText, maxResults - 1);
         }
+        return Collections.unmodifiableList(ranking);
     }
-
 }
@@ -0,0 +1,408 @@
+/**
+ *
+ * Copyright (c) 2009-2016 Freedomotic team http://freedomotic.com
+ *
+ * This file is part of Freedomotic
+ *
+ * This Program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2, or (at your option) any later version.
+ *
+ * This Program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Freedomotic; see the file COPYING. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.freedomotic.persistence;
+
+import com.freedomotic.settings.AppConfig;
+import com.freedomotic.settings.Info;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.thoughtworks.xstream.io.HierarchicalStreamWriter;
+import com.thoughtworks.xstream.io.binary.BinaryStreamDriver;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An optional binary snapshot of the data files (things, environments,
+ * triggers, commands and reactions) used to speed up the startup.
+ * <p>
+ * For every data file the snapshot keeps its last modification time, its size
+ * and the deserialized object encoded with the XStream binary format, so the
+ * same converters used for the XML files are used (eg: reactions still refer
+ * to triggers and commands by name). When a file is loaded through a
+ * {@link #cached(ParallelFileLoader.Parser)} parser and it is not changed
+ * since the snapshot was written, the object is decoded from the snapshot
+ * without DTD validation, XSLT upgrade and XML parsing. Otherwise the file is
+ * parsed as usual and the snapshot is updated. Deleted files are not
+ * loaded at all, because only the files found in the data folders are looked
+ * up in the snapshot.
+ * </p>
+ * <p>
+ * All the entries are stored in a single file (data/snapshot.bin) which is
+ * read in a single heap buffer, not memory mapped: the checksum reads every
+ * page anyway and a mapped file cannot be replaced on Windows until the
+ * mapping is garbage collected. It starts with a format version, the framework
+ * version and the data version and ends with a CRC32 checksum. A snapshot
+ * with a different version or a wrong checksum is ignored and the XML files
+ * are loaded. The snapshot is written to a temporary file and then renamed.
+ * </p>
+ * <p>
+ * It is enabled with the KEY_DATA_SNAPSHOT configuration key (default
+ * false).
+ * </p>
+ */
+@Singleton
+public class DataSnapshot {
+
+    private static final Logger LOG = LoggerFactory.getLogger(DataSnapshot.class.getName());
+    private static final int MAGIC = 0x46445331; // FDS1
+    private static final int FORMAT_VERSION = 1;
+    private static final int CHECKSUM_SIZE = 8;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final BinaryStreamDriver DRIVER = new BinaryStreamDriver();
+    private final boolean enabled;
+    // Entries of the snapshot file, read only after open()
+    private volatile Map<String, Entry> snapshot = Collections.emptyMap();
+    // Entries of the files loaded since open(), they are written by save()
+    private final ConcurrentMap<String, Entry> loaded = new ConcurrentHashMap<String, Entry>();
+    private final AtomicInteger hits = new AtomicInteger();
+    private final AtomicInteger misses = new AtomicInteger();
+    private File file;
+    private String versions;
+
+    @Inject
+    DataSnapshot(AppConfig config) {
+        this(config.getBooleanProperty("KEY_DATA_SNAPSHOT", false));
+    }
+
+    /**
+     * Creates a snapshot, it is empty until {@link #open()} is called.
+     *
+     * @param enabled if false the files are always parsed
+     */
+    public DataSnapshot(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * Returns true if the snapshot is used
+     *
+     * @return true if enabled
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Reads the snapshot file from the data folder. It must be called after
+     * the data folder is relocated and before loading the data files.
+     */
+    public void open() {
+        open(new File(Info.PATHS.PATH_DATA_FOLDER + "/snapshot.bin"), Info.getVersion() + "/" + readDataVersion());
+    }
+
+    /**
+     * Reads the given snapshot file.
+     *
+     * @param file the snapshot file
+     * @param versions the version of the framework and of the data, a
+     * snapshot written with different versions is ignored
+     */
+    public synchronized void open(File file, String versions) {
+        this.file = file;
+        this.versions = versions;
+        loaded.clear();
+        hits.set(0);
+        misses.set(0);
+        snapshot = Collections.emptyMap();
+        if (!enabled || !file.isFile()) {
+            return;
+        }
+        long start = System.currentTimeMillis();
+        try {
+            snapshot = read(file, versions);
+            LOG.info("Data snapshot {} with {} entries read in {}ms",
+                    new Object[]{file.getAbsolutePath(), snapshot.size(), System.currentTimeMillis() - start});
+        } catch (IOException | RuntimeException e) {
+            LOG.warn("Data snapshot {} is not valid, data files will be parsed: {}", file.getAbsolutePath(), e.getMessage());
+        }
+    }
+
+    /**
+     * Wraps a parser so that the files not changed since the snapshot was
+     * written are decoded from the snapshot. The returned parser can be used
+     * concurrently if the given one can.
+     *
+     * @param <T> the type of the loaded objects
+     * @param parser parses the changed files
+     * @return the caching parser, or the given one if the snapshot is not
+     * enabled
+     */
+    public <T> ParallelFileLoader.Parser<T> cached(final ParallelFileLoader.Parser<T> parser) {
+        if (!enabled) {
+            return parser;
+        }
+        return new ParallelFileLoader.Parser<T>() {
+            @Override
+            @SuppressWarnings("unchecked")
+            public T parse(File file) throws Exception {
+                String key = file.getAbsolutePath();
+                long lastModified = file.lastModified();
+                long length = file.length();
+                Entry entry = snapshot.get(key);
+                if (entry != null && entry.lastModified == lastModified && entry.length == length) {
+                    try {
+                        T object = (T) decode(entry.data);
+                        loaded.put(key, entry);
+                        hits.incrementAndGet();
+                        return object;
+                    } catch (RuntimeException e) {
+                        LOG.debug("Cannot decode {} from data snapshot, it will be parsed", key, e);
+                    }
+                }
+                T object = parser.parse(file);
+                loaded.put(key, new Entry(lastModified, length, ByteBuffer.wrap(encode(object))));
+                misses.incrementAndGet();
+                return object;
+            }
+        };
+    }
+
+    /**
+     * Returns the number of files decoded from the snapshot since
+     * {@link #open()}
+     *
+     * @return the number of snapshot hits
+     */
+    public int getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Returns the number of files parsed since {@link #open()} because they
+     * were not in the snapshot or changed
+     *
+     * @return the number of snapshot misses
+     */
+    public int getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Writes the files loaded since {@link #open()} in the snapshot file, if
+     * any of them changed.
+     */
+    public synchronized void save() {
+        if (!enabled || file == null) {
+            return;
+        }
+        if (misses.get() == 0 && loaded.keySet().equals(snapshot.keySet())) {
+            LOG.debug("Data snapshot is up to date");
+            return;
+        }
+        long start = System.currentTimeMillis();
+        try {
+            write(file, versions, loaded);
+            LOG.info("Data snapshot {} with {} entries written in {}ms",
+                    new Object[]{file.getAbsolutePath(), loaded.size(), System.currentTimeMillis() - start});
+        } catch (IOException e) {
+            LOG.warn("Cannot write data snapshot {}: {}", file.getAbsolutePath(), e.getMessage());
+        }
+    }
+
+    private static byte[] encode(Object object) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(1024);
+        HierarchicalStreamWriter writer = DRIVER.createWriter(bytes);
+        FreedomXStream.getXstream().marshal(object, writer);
+        writer.flush();
+        return bytes.toByteArray();
+    }
+
+    private static Object decode(ByteBuffer data) {
+        return FreedomXStream.getXstream().unmarshal(DRIVER.createReader(new ByteBufferInputStream(data.duplicate())));
+    }
+
+    private static Map<String, Entry> read(File file, String versions) throws IOException {
+        ByteBuffer buffer;
+        try (RandomAccessFile input = new RandomAccessFile(file, "r"); FileChannel channel = input.getChannel()) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Data snapshot too big");
+            }
+            buffer = ByteBuffer.allocate((int) channel.size());
+            while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+                // read the whole file
+            }
+            buffer.flip();
+        }
+        if (buffer.limit() < CHECKSUM_SIZE + 8 || buffer.getInt(0) != MAGIC) {
+            throw new IOException("Not a data snapshot");
+        }
+        int contentSize = buffer.limit() - CHECKSUM_SIZE;
+        if (checksum(buffer, contentSize) != buffer.getLong(contentSize)) {
+            throw new IOException("Wrong checksum");
+        }
+        buffer.position(4);
+        buffer.limit(contentSize);
+        if (buffer.getInt() != FORMAT_VERSION || !versions.equals(readString(buffer))) {
+            throw new IOException("Snapshot of another version");
+        }
+
+        int size = buffer.getInt();
+        Map<String, Entry> entries = new HashMap<String, Entry>(size * 2);
+        for (int i = 0; i < size; i++) {
+            String key = readString(buffer);
+            long lastModified = buffer.getLong();
+            long length = buffer.getLong();
+            int dataSize = buffer.getInt();
+            ByteBuffer data = buffer.slice();
+            data.limit(dataSize);
+            buffer.position(buffer.position() + dataSize);
+            entries.put(key, new Entry(lastModified, length, data));
+        }
+        return Collections.unmodifiableMap(entries);
+    }
+
+    private static void write(File file, String versions, Map<String, Entry> entries) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        try (FileOutputStream output = new FileOutputStream(temp)) {
+            CheckedOutputStream checked = new CheckedOutputStream(new BufferedOutputStream(output, 64 * 1024), new CRC32());
+            DataOutputStream data = new DataOutputStream(checked);
+            data.writeInt(MAGIC);
+            data.writeInt(FORMAT_VERSION);
+            writeString(data, versions);
+            data.writeInt(entries.size());
+            byte[] chunk = new byte[8 * 1024];
+            for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+                writeString(data, entry.getKey());
+                data.writeLong(entry.getValue().lastModified);
+                data.writeLong(entry.getValue().length);
+                ByteBuffer bytes = entry.getValue().data.duplicate();
+                data.writeInt(bytes.remaining());
+                while (bytes.hasRemaining()) {
+                    int count = Math.min(chunk.length, bytes.remaining());
+                    bytes.get(chunk, 0, count);
+                    data.write(chunk, 0, count);
+                }
+            }
+            data.flush();
+            // the checksum is not part of the checked content
+            new DataOutputStream(output).writeLong(checked.getChecksum().getValue());
+            output.getFD().sync();
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static long checksum(ByteBuffer buffer, int size) {
+        CRC32 crc = new CRC32();
+        ByteBuffer content = buffer.duplicate();
+        content.position(0);
+        content.limit(size);
+        byte[] chunk = new byte[64 * 1024];
+        while (content.hasRemaining()) {
+            int count = Math.min(chunk.length, content.remaining());
+            content.get(chunk, 0, count);
+            crc.update(chunk, 0, count);
+        }
+        return crc.getValue();
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, UTF8);
+    }
+
+    private static void writeString(DataOutputStream output, String value) throws IOException {
+        byte[] bytes = value.getBytes(UTF8);
+        output.writeInt(bytes.length);
+        output.write(bytes);
+    }
+
+    private static String readDataVersion() {
+        Properties dataProperties = new Properties();
+        try (InputStream input = new FileInputStream(new File(Info.PATHS.PATH_DATA_FOLDER + "/data.properties"))) {
+            dataProperties.load(input);
+            return dataProperties.getProperty("data.version");
+        } catch (IOException iOException) {
+            // the same fallback of the data loaders
+            return "5.5.0";
+        }
+    }
+
+    private static final class Entry {
+
+        private final long lastModified;
+        private final long length;
+        private final ByteBuffer data;
+
+        Entry(long lastModified, long length, ByteBuffer data) {
+            this.lastModified = lastModified;
+            this.length = length;
+            this.data = data;
+        }
+    }
+
+    /**
+     * Reads an entry without copying it from the snapshot buffer
+     */
+    private static final class ByteBufferInputStream extends InputStream {
+
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) {
+            if (length == 0) {
+                return 0;
+            }
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            int count = Math.min(length, buffer.remaining());
+            buffer.get(bytes, offset, count);
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+}
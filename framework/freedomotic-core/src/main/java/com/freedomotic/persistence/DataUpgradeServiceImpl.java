@@ -29,9 +29,9 @@ import com.freedomotic.settings.Info;
 import java.io.File;
 import java.io.StringReader;
 import java.io.StringWriter;
-import java.util.HashMap;
-import java.util.Map;
-import javax.xml.transform.Source;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import javax.xml.transform.Templates;
 import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerConfigurationException;
 import javax.xml.transform.TransformerException;
@@ -52,8 +52,11 @@ import org.slf4j.LoggerFactory;
 class DataUpgradeServiceImpl implements DataUpgradeService<String> {
 
     private static final Logger LOG = LoggerFactory.getLogger(DataUpgradeServiceImpl.class.getCanonicalName());
-    // Cache the loaded transformations
-    Map<File, Source> sources = new HashMap<>();
+    // Cache the compiled transformations, they are thread safe and can be
+    // shared by the threads loading the data files
+    private final ConcurrentMap<File, Templates> templates = new ConcurrentHashMap<>();
+    // Guarded by itself, a TransformerFactory is not thread safe
+    private final TransformerFactory factory = TransformerFactory.newInstance();
 
     /**
      * {@inheritDoc}
@@ -70,7 +73,7 @@ class DataUpgradeServiceImpl implements DataUpgradeService<String> {
         }
 
         String upgradedXml;
-        Source xsltAlgorthm;
+        Templates xsltAlgorthm;
         try {
             if (type == EnvObject.class) {
                 xsltAlgorthm = getTransformationAlgorithm("thing", fromVersion);
@@ -102,13 +105,12 @@ class DataUpgradeServiceImpl implements DataUpgradeService<String> {
      * @throws TransformerConfigurationException
      * @throws TransformerException
      */
-    private String upgradeContent(String input, Source xsltAlgorithm) throws TransformerConfigurationException, TransformerException {
+    private String upgradeContent(String input, Templates xsltAlgorithm) throws TransformerConfigurationException, TransformerException {
         // Load all the needed resources
         StreamSource streamSource = new StreamSource(new StringReader(input));
         StreamResult streamResult = new StreamResult(new StringWriter());
-        // Create the transformer
-        TransformerFactory factory = TransformerFactory.newInstance();
-        Transformer transformer = factory.newTransformer(xsltAlgorithm);
+        // Create the transformer, it is cheap and used by this thread only
+        Transformer transformer = xsltAlgorithm.newTransformer();
         // Apply the transformation algorithm defined in the XSLT file
         transformer.transform(streamSource, streamResult);
         return streamResult.getWriter().toString();
@@ -120,20 +122,27 @@ class DataUpgradeServiceImpl implements DataUpgradeService<String> {
      *
      * @param fromVersion The original data version which should be made
      * compatible with the current framework version
-     * @return the transformation Source
+     * @return the compiled transformation
+     * @throws TransformerConfigurationException if the XSLT file cannot be
+     * compiled
      */
-    private Source getTransformationAlgorithm(String baseFile, String fromVersion) {
-        // Take the source from cache or load it from file
+    private Templates getTransformationAlgorithm(String baseFile, String fromVersion) throws TransformerConfigurationException {
+        // Take the transformation from cache or compile it from file
         File xsltFile = new File(Info.PATHS.PATH_CONFIG_FOLDER + "/validator/" + baseFile + "-upgrade-" + fromVersion + ".xslt");
-        if (!sources.containsKey(xsltFile)) {
-            Source source = new StreamSource(xsltFile);
-            sources.put(xsltFile, source);
-        }
-        Source result = sources.get(xsltFile);
+        Templates result = templates.get(xsltFile);
         if (result == null) {
-            throw new IllegalStateException("Cannot load a valid XSLT transformation file from " + xsltFile.getAbsolutePath());
+            synchronized (factory) {
+                result = templates.get(xsltFile);
+                if (result == null) {
+                    result = factory.newTemplates(new StreamSource(xsltFile));
+                    if (result == null) {
+                        throw new IllegalStateException("Cannot load a valid XSLT transformation file from " + xsltFile.getAbsolutePath());
+                    }
+                    templates.put(xsltFile, result);
+                }
+            }
         }
-        return sources.get(xsltFile);
+        return result;
     }
 
 }
@@ -0,0 +1,274 @@
+/**
+ *
+ * Copyright (c) 2009-2016 Freedomotic team http://freedomotic.com
+ *
+ * This file is part of Freedomotic
+ *
+ * This Program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2, or (at your option) any later version.
+ *
+ * This Program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Freedomotic; see the file COPYING. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.freedomotic.persistence;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Saves the entities of a repository (things, triggers, commands, reactions)
+ * in a folder, one XML file per entity, writing only what changed since the
+ * last save.
+ * <p>
+ * An entity is dirty when its serialized XML differs from the content of its
+ * file, compared using a SHA-1 digest of the last written (or read) content.
+ * Dirty entities are written to temporary files which are synced to disk
+ * after all of them are written, so the disk can write them in a batch
+ * instead of one file at a time, and then renamed over the old ones. The
+ * folder is synced once after all the renames. The files of entities no longer in the repository are deleted
+ * only after the new files are in place. A crash in the middle of a save
+ * leaves every file either in its old or in its new version, never a missing
+ * or truncated one.
+ * </p>
+ * <p>
+ * There is a single persister per folder and extension, see
+ * {@link #of(File, String)}, saves on the same folder are serialized.
+ * </p>
+ */
+public final class FolderPersister {
+
+    private static final Logger LOG = LoggerFactory.getLogger(FolderPersister.class.getName());
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final String XML_HEADER = "<?xml version=\"1.0\" encoding=\"UTF-8\" ?>\n";
+    private static final String TEMP_EXTENSION = ".tmp";
+    private static final ConcurrentMap<String, FolderPersister> PERSISTERS = new ConcurrentHashMap<String, FolderPersister>();
+    private final File folder;
+    private final String extension;
+    // file name -> digest of its content, guarded by this
+    private final Map<String, byte[]> digests = new HashMap<String, byte[]>();
+
+    private FolderPersister(File folder, String extension) {
+        this.folder = folder;
+        this.extension = extension;
+    }
+
+    /**
+     * Returns the persister of the files with the given extension in the given
+     * folder.
+     *
+     * @param folder the folder of the entity files
+     * @param extension the extension of the entity files (eg: .xobj)
+     * @return the persister of the folder
+     */
+    public static FolderPersister of(File folder, String extension) {
+        String key = folder.getAbsolutePath() + File.pathSeparator + extension;
+        FolderPersister persister = PERSISTERS.get(key);
+        if (persister == null) {
+            persister = new FolderPersister(folder.getAbsoluteFile(), extension);
+            FolderPersister previous = PERSISTERS.putIfAbsent(key, persister);
+            if (previous != null) {
+                persister = previous;
+            }
+        }
+        return persister;
+    }
+
+    /**
+     * Makes the folder content equal to the given entities: changed and new
+     * entities are written, files of entities not in the map are deleted and
+     * unchanged files are not touched.
+     *
+     * @param entities the entities to save, file name without extension (eg:
+     * the UUID) -> entity
+     * @return the number of written files
+     * @throws IOException if a file cannot be written, files already written
+     * are consistent
+     */
+    public synchronized int save(Map<String, ?> entities) throws IOException {
+        if (!folder.isDirectory()) {
+            throw new IOException(folder + " is not a valid folder");
+        }
+        deleteTemporaryFiles();
+
+        // serialize everything first and keep only the changed entities
+        List<String> dirty = new ArrayList<String>();
+        List<byte[]> contents = new ArrayList<byte[]>();
+        List<byte[]> dirtyDigests = new ArrayList<byte[]>();
+        for (Map.Entry<String, ?> entity : entities.entrySet()) {
+            String fileName = entity.getKey() + extension;
+            byte[] content = serialize(entity.getValue());
+            byte[] digest = digest(content);
+            if (!Arrays.equals(digest, currentDigest(fileName))) {
+                dirty.add(fileName);
+                contents.add(content);
+                dirtyDigests.add(digest);
+            }
+        }
+
+        // write the temporary files, then replace the old ones
+        List<File> temporaryFiles = new ArrayList<File>(dirty.size());
+        try {
+            for (int i = 0; i < dirty.size(); i++) {
+                File temp = new File(folder, dirty.get(i) + TEMP_EXTENSION);
+                temporaryFiles.add(temp);
+                write(temp, contents.get(i));
+            }
+            for (File temp : temporaryFiles) {
+                sync(temp);
+            }
+            for (int i = 0; i < dirty.size(); i++) {
+                replace(temporaryFiles.get(i), new File(folder, dirty.get(i)));
+                digests.put(dirty.get(i), dirtyDigests.get(i));
+            }
+        } finally {
+            for (File temp : temporaryFiles) {
+                if (temp.exists() && !temp.delete()) {
+                    LOG.warn("Cannot delete temporary file {}", temp);
+                }
+            }
+        }
+
+        // remove the entities no longer in the repository
+        int deleted = 0;
+        for (File file : listFiles(extension)) {
+            String name = file.getName();
+            if (!entities.containsKey(name.substring(0, name.length() - extension.length()))) {
+                if (file.delete()) {
+                    digests.remove(name);
+                    deleted++;
+                } else {
+                    LOG.warn("Cannot delete file {}", file);
+                }
+            }
+        }
+        if (!dirty.isEmpty() || deleted > 0) {
+            syncFolder();
+        }
+        LOG.info("Saved {} changed files and deleted {} files of {} entities in {}",
+                new Object[]{dirty.size(), deleted, entities.size(), folder});
+        return dirty.size();
+    }
+
+    /**
+     * Atomically replaces the content of a file with the given XML
+     * serialization of an object. Readers see the old or the new content,
+     * never a partial one.
+     *
+     * @param object the object to serialize
+     * @param file the file to write
+     * @throws IOException if the file cannot be written
+     */
+    public static void write(Object object, File file) throws IOException {
+        File temp = new File(file.getPath() + TEMP_EXTENSION);
+        try {
+            write(temp, serialize(object));
+            sync(temp);
+            replace(temp, file);
+        } finally {
+            if (temp.exists() && !temp.delete()) {
+                LOG.warn("Cannot delete temporary file {}", temp);
+            }
+        }
+    }
+
+    private static byte[] serialize(Object object) {
+        return (XML_HEADER + FreedomXStream.getXstream().toXML(object)).getBytes(UTF8);
+    }
+
+    private byte[] currentDigest(String fileName) throws IOException {
+        File file = new File(folder, fileName);
+        byte[] digest = digests.get(fileName);
+        if (digest != null && !file.isFile()) {
+            // deleted by someone else
+            digests.remove(fileName);
+            digest = null;
+        } else if (digest == null) {
+            // not saved by this persister yet, compare with the file on disk
+            if (file.isFile()) {
+                digest = digest(Files.readAllBytes(file.toPath()));
+                digests.put(fileName, digest);
+            }
+        }
+        return digest;
+    }
+
+    private void deleteTemporaryFiles() {
+        for (File file : listFiles(extension + TEMP_EXTENSION)) {
+            file.delete();
+        }
+    }
+
+    private File[] listFiles(final String suffix) {
+        File[] files = folder.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                return file.isFile() && file.getName().endsWith(suffix);
+            }
+        });
+        return files != null ? files : new File[0];
+    }
+
+    private void syncFolder() {
+        // not supported on every platform, the renames are durable anyway on most filesystems
+        try (FileChannel channel = FileChannel.open(folder.toPath(), StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            LOG.debug("Cannot sync folder {}", folder, e);
+        }
+    }
+
+    private static void write(File file, byte[] content) throws IOException {
+        try (FileOutputStream output = new FileOutputStream(file)) {
+            output.write(content);
+        }
+    }
+
+    private static void sync(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+    }
+
+    private static void replace(File source, File target) throws IOException {
+        try {
+            Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private static byte[] digest(byte[] content) {
+        try {
+            return MessageDigest.getInstance("SHA-1").digest(content);
+        } catch (NoSuchAlgorithmException e) {
+            // SHA-1 is available in every Java platform
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -38,15 +38,9 @@ import com.freedomotic.reactions.Trigger;
 import com.freedomotic.security.User;
 import com.thoughtworks.xstream.XStream;
 import java.io.File;
-import java.io.FileOutputStream;
-import java.io.OutputStream;
-import java.io.OutputStreamWriter;
-import java.io.Writer;
-import java.nio.charset.Charset;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import javax.inject.Inject;
-import org.apache.commons.io.IOUtils;
 import org.apache.shiro.authz.SimpleRole;
 
 /**
@@ -55,7 +49,8 @@ import org.apache.shiro.authz.SimpleRole;
  */
 public class FreedomXStream {
 
-    private static XStream xstream = null;
+    // Once configured XStream is thread safe and shared by all the callers
+    private static volatile XStream xstream = null;
     private static final Logger LOG = LoggerFactory.getLogger(FreedomXStream.class.getName());
 
     @Inject
@@ -68,82 +63,84 @@ public class FreedomXStream {
      * @return
      */
     public static XStream getXstream() {
-        if (xstream == null) {
-            // Generic configuration
-            xstream = new XStream();
-            xstream.setMode(XStream.NO_REFERENCES);
-            xstream.autodetectAnnotations(true);
-
-            // Things
-            xstream.omitField(EnvObject.class, "LOG");
-
-            // Geometry
-            xstream.alias("polygon", FreedomPolygon.class);
-            xstream.addImplicitCollection(FreedomPolygon.class, "points", "point", FreedomPoint.class);
-            xstream.alias("ellipse", FreedomEllipse.class);
-            xstream.alias("point", FreedomPoint.class);
-            xstream.useAttributeFor(FreedomPoint.class, "x");
-            xstream.useAttributeFor(FreedomPoint.class, "y");
-            xstream.alias("shape", FreedomShape.class);
-            xstream.alias("view", Representation.class);
-
-            // Commands
-            xstream.omitField(Config.class, "xmlFile");
-            xstream.registerLocalConverter(Config.class, "tuples", new TupleConverter());
-
-            // Zones and topology
-            xstream.alias("object", EnvObject.class);
-            xstream.alias("environment", Environment.class);
-            xstream.alias("zone", Zone.class);
-            xstream.omitField(Zone.class, "occupiers");
-            xstream.omitField(Room.class, "gates");
-            xstream.omitField(Room.class, "reachable");
-            xstream.omitField(Environment.class, "occupiers");
-            xstream.omitField(Zone.class, "objects");
-
-            // Triggers and commands
-            xstream.alias("trigger", Trigger.class);
-            xstream.alias("statement", Statement.class);
-            xstream.alias("command", Command.class);
-            xstream.alias("reaction", Reaction.class);
-            xstream.alias("condition", Condition.class);
-            xstream.omitField(Trigger.class, "suspensionStart");
-            xstream.omitField(Trigger.class, "listener");
-            xstream.omitField(Trigger.class, "checker");
-            xstream.omitField(Trigger.class, "busService");
-            xstream.alias("payload", Payload.class);
-
-            // Register custom converters
-            xstream.registerConverter(reactionConverter);
-            xstream.registerConverter(new PayloadConverter());
-            xstream.registerConverter(new PropertiesConverter());
-            xstream.registerConverter(new TupleConverter());
-            xstream.alias("user", User.class);
-            xstream.alias("users", User[].class);
-            xstream.registerConverter(new UserConverter());
-            xstream.alias("role", SimpleRole.class);
-            xstream.alias("roles", SimpleRole[].class);
-            xstream.registerConverter(new RoleConverter());
+        XStream result = xstream;
+        if (result == null) {
+            synchronized (FreedomXStream.class) {
+                result = xstream;
+                if (result == null) {
+                    // publish it only when fully configured, files are loaded by many threads
+                    result = createXstream();
+                    xstream = result;
+                }
+            }
         }
+        return result;
+    }
+
+    private static XStream createXstream() {
+        // Generic configuration
+        XStream xstream = new XStream();
+        xstream.setMode(XStream.NO_REFERENCES);
+        xstream.autodetectAnnotations(true);
+
+        // Things
+        xstream.omitField(EnvObject.class, "LOG");
+
+        // Geometry
+        xstream.alias("polygon", FreedomPolygon.class);
+        xstream.addImplicitCollection(FreedomPolygon.class, "points", "point", FreedomPoint.class);
+        xstream.alias("ellipse", FreedomEllipse.class);
+        xstream.alias("point", FreedomPoint.class);
+        xstream.useAttributeFor(FreedomPoint.class, "x");
+        xstream.useAttributeFor(FreedomPoint.class, "y");
+        xstream.alias("shape", FreedomShape.class);
+        xstream.alias("view", Representation.class);
+
+        // Commands
+        xstream.omitField(Config.class, "xmlFile");
+        xstream.registerLocalConverter(Config.class, "tuples", new TupleConverter());
+
+        // Zones and topology
+        xstream.alias("object", EnvObject.class);
+        xstream.alias("environment", Environment.class);
+        xstream.alias("zone", Zone.class);
+        xstream.omitField(Zone.class, "occupiers");
+        xstream.omitField(Room.class, "gates");
+        xstream.omitField(Room.class, "reachable");
+        xstream.omitField(Environment.class, "occupiers");
+        xstream.omitField(Zone.class, "objects");
+
+        // Triggers and commands
+        xstream.alias("trigger", Trigger.class);
+        xstream.alias("statement", Statement.class);
+        xstream.alias("command", Command.class);
+        xstream.alias("reaction", Reaction.class);
+        xstream.alias("condition", Condition.class);
+        xstream.omitField(Trigger.class, "suspensionStart");
+        xstream.omitField(Trigger.class, "dispatcher");
+        xstream.alias("payload", Payload.class);
+
+        // Register custom converters
+        xstream.registerConverter(reactionConverter);
+        xstream.registerConverter(new PayloadConverter());
+        xstream.registerConverter(new PropertiesConverter());
+        xstream.registerConverter(new TupleConverter());
+        xstream.alias("user", User.class);
+        xstream.alias("users", User[].class);
+        xstream.registerConverter(new UserConverter());
+        xstream.alias("role", SimpleRole.class);
+        xstream.alias("roles", SimpleRole[].class);
+        xstream.registerConverter(new RoleConverter());
 
         return xstream;
     }
 
     public static boolean toXML(Object object, File file) {
-        XStream serializer = getXstream();
-        OutputStream outputStream = null;
-        Writer writer = null;
-
         try {
-            outputStream = new FileOutputStream(file);
-            writer = new OutputStreamWriter(outputStream, Charset.forName("UTF-8"));
-            writer.write("<?xml version=\"1.0\" encoding=\"UTF-8\" ?>\n");
-            serializer.toXML(object, writer);
+            // the file is replaced only when the new content is on disk
+            FolderPersister.write(object, file);
         } catch (Exception exp) {
             LOG.error("Error while serializing instance to disk", exp);
-        } finally {
-            IOUtils.closeQuietly(writer);
-            IOUtils.closeQuietly(outputStream);
         }
 
         return true;
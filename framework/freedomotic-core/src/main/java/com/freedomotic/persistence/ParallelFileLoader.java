@@ -0,0 +1,172 @@
+/**
+ *
+ * Copyright (c) 2009-2016 Freedomotic team http://freedomotic.com
+ *
+ * This file is part of Freedomotic
+ *
+ * This Program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2, or (at your option) any later version.
+ *
+ * This Program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Freedomotic; see the file COPYING. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.freedomotic.persistence;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Reads and deserializes a set of data files (things, triggers, commands,
+ * reactions, ...) on a pool of worker threads while the caller registers the
+ * results.
+ * <p>
+ * The files are parsed concurrently but the results are returned in the same
+ * order of the input files, so the caller can register them one by one in a
+ * deterministic order, starting as soon as the first file is parsed. The
+ * parser must not change shared state: it should only read, validate, upgrade
+ * and deserialize the file, everything else has to be done by the caller on
+ * the returned objects.
+ * </p>
+ * <p>
+ * The number of threads is the number of available processors (at most one
+ * per file), the pool is shut down as soon as all the files are parsed.
+ * </p>
+ */
+public final class ParallelFileLoader {
+
+    private static final AtomicInteger POOL_NUMBER = new AtomicInteger();
+
+    private ParallelFileLoader() {
+    }
+
+    /**
+     * Converts a data file into an object
+     *
+     * @param <T> the type of the loaded objects
+     */
+    public interface Parser<T> {
+
+        /**
+         * Reads the given file. Called concurrently by the loader threads.
+         *
+         * @param file the file to read
+         * @return the object read from the file
+         * @throws Exception if the file cannot be read
+         */
+        T parse(File file) throws Exception;
+    }
+
+    /**
+     * The outcome of the parsing of a single file
+     *
+     * @param <T> the type of the loaded object
+     */
+    public static final class Result<T> {
+
+        private final File file;
+        private final Future<T> future;
+
+        private Result(File file, Future<T> future) {
+            this.file = file;
+            this.future = future;
+        }
+
+        /**
+         * Returns the parsed file
+         *
+         * @return the file
+         */
+        public File getFile() {
+            return file;
+        }
+
+        /**
+         * Waits for the file to be parsed and returns the loaded object.
+         *
+         * @return the object returned by the parser
+         * @throws Exception the same exception thrown by the parser
+         */
+        public T get() throws Exception {
+            try {
+                return future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw e;
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof Exception) {
+                    throw (Exception) cause;
+                }
+                if (cause instanceof Error) {
+                    throw (Error) cause;
+                }
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Starts parsing the given files in parallel.
+     *
+     * @param <T> the type of the loaded objects
+     * @param files the files to parse, can be null
+     * @param parser converts a file into an object
+     * @return the results in the same order of the files (empty if there are
+     * no files)
+     */
+    public static <T> List<Result<T>> load(File[] files, final Parser<T> parser) {
+        if (parser == null) {
+            throw new IllegalArgumentException("Cannot load files without a parser");
+        }
+        List<Result<T>> results = new ArrayList<Result<T>>(files == null ? 0 : files.length);
+        if (files == null || files.length == 0) {
+            return results;
+        }
+
+        int threads = Math.min(files.length, Runtime.getRuntime().availableProcessors());
+        ExecutorService executor = Executors.newFixedThreadPool(threads, new LoaderThreadFactory());
+        try {
+            for (final File file : files) {
+                Future<T> future = executor.submit(new Callable<T>() {
+                    @Override
+                    public T call() throws Exception {
+                        return parser.parse(file);
+                    }
+                });
+                results.add(new Result<T>(file, future));
+            }
+        } finally {
+            // already submitted files are still parsed
+            executor.shutdown();
+        }
+        return results;
+    }
+
+    private static final class LoaderThreadFactory implements ThreadFactory {
+
+        private final int pool = POOL_NUMBER.incrementAndGet();
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "file-loader-" + pool + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -45,6 +45,7 @@ import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Map.Entry;
 import java.util.UUID;
+import javax.jms.Destination;
 import org.slf4j.LoggerFactory;
 import javax.xml.bind.annotation.XmlElement;
 import javax.xml.bind.annotation.XmlRootElement;
@@ -85,6 +86,12 @@ public final class Command implements Serializable, Cloneable {
     private boolean hardwareLevel;
     private boolean editable;
     private boolean executed;
+    // trace context, sent as JMS properties and never persisted
+    private transient String traceId;
+    private transient String parentSpanId;
+    // where to send the reply of a received command, never persisted
+    private transient Destination replyTo;
+    private transient String replyCorrelationID;
     @XmlElement(name = "props")
     private Config properties = new Config();
 
@@ -382,6 +389,74 @@ public final class Command implements Serializable, Cloneable {
         return executed;
     }
 
+    /**
+     * Returns the ID of the trace this command belongs to
+     *
+     * @return the trace ID or null if the command is not traced
+     */
+    @XmlTransient
+    public String getTraceId() {
+        return traceId;
+    }
+
+    /**
+     * Returns the ID of the span which sent this command
+     *
+     * @return the parent span ID or null
+     */
+    @XmlTransient
+    public String getParentSpanId() {
+        return parentSpanId;
+    }
+
+    /**
+     * Sets the trace context of this command, see
+     * {@link com.freedomotic.metrics.Tracer}
+     *
+     * @param traceId the trace ID
+     * @param parentSpanId the ID of the span which sent this command
+     */
+    public void setTraceContext(String traceId, String parentSpanId) {
+        this.traceId = traceId;
+        this.parentSpanId = parentSpanId;
+    }
+
+    /**
+     * Returns the destination the reply of this command must be sent to
+     *
+     * @return the reply destination or null if the command is not received
+     * from the bus
+     */
+    @XmlTransient
+    public Destination getReplyTo() {
+        return replyTo;
+    }
+
+    /**
+     * Returns the correlation ID the sender uses to match the reply of this
+     * command
+     *
+     * @return the correlation ID or null if the command is not received from
+     * the bus
+     */
+    @XmlTransient
+    public String getReplyCorrelationID() {
+        return replyCorrelationID;
+    }
+
+    /**
+     * Sets where the reply of this received command must be sent. It is set
+     * by the receiver, so that every command is replied to its own sender
+     * even if many commands are executed at the same time.
+     *
+     * @param replyTo the reply destination
+     * @param correlationID the correlation ID of the received message
+     */
+    public void setReplyContext(Destination replyTo, String correlationID) {
+        this.replyTo = replyTo;
+        this.replyCorrelationID = correlationID;
+    }
+
     /**
      * Two commands are considered equals if they have the same name
      *
@@ -435,6 +510,8 @@ public final class Command implements Serializable, Cloneable {
         clonedCmd.setDelay(getDelay());
         clonedCmd.setReplyTimeout(getReplyTimeout());
         clonedCmd.setExecuted(executed);
+        clonedCmd.setTraceContext(traceId, parentSpanId);
+        clonedCmd.setReplyContext(replyTo, replyCorrelationID);
         clonedCmd.setHardwareLevel(hardwareLevel);
         Iterator<Entry<Object, Object>> it = getProperties().entrySet().iterator();
         while (it.hasNext()) {
@@ -37,4 +37,13 @@ public interface CommandRepository extends Repository<Command> {
     public void loadCommands(File folder);
 
     public void saveCommands(File folder);
+
+    /**
+     * Returns a number that changes every time a command is added to or
+     * removed from the repository. Useful to keep derived data structures
+     * (eg: search indexes) up to date without checking all the commands.
+     *
+     * @return the current version of the repository content
+     */
+    public long getVersion();
 }
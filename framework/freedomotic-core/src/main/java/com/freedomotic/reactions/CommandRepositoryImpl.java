@@ -21,8 +21,11 @@ package com.freedomotic.reactions;
 
 import com.freedomotic.exceptions.DataUpgradeException;
 import com.freedomotic.exceptions.RepositoryException;
+import com.freedomotic.persistence.DataSnapshot;
 import com.freedomotic.persistence.DataUpgradeService;
+import com.freedomotic.persistence.FolderPersister;
 import com.freedomotic.persistence.FreedomXStream;
+import com.freedomotic.persistence.ParallelFileLoader;
 import com.freedomotic.persistence.XmlPreprocessor;
 import com.freedomotic.settings.Info;
 import com.google.inject.Inject;
@@ -38,12 +41,14 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
-import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -55,13 +60,18 @@ class CommandRepositoryImpl implements CommandRepository {
 
     private static final Logger LOG = LoggerFactory.getLogger(CommandRepositoryImpl.class.getName());
 
-    private static final Map<String, Command> userCommands = new HashMap<String, Command>();
-    private static final Map<String, Command> hardwareCommands = new HashMap<String, Command>();
+    // concurrent as they are saved by the autosave thread while commands are added or removed
+    private static final Map<String, Command> userCommands = new ConcurrentHashMap<String, Command>();
+    private static final Map<String, Command> hardwareCommands = new ConcurrentHashMap<String, Command>();
+    // incremented every time a command is added or removed
+    private static final AtomicLong version = new AtomicLong();
     private final DataUpgradeService dataUpgradeService;
+    private final DataSnapshot dataSnapshot;
 
     @Inject
-    public CommandRepositoryImpl(DataUpgradeService dataUpgradeService) {
+    public CommandRepositoryImpl(DataUpgradeService dataUpgradeService, DataSnapshot dataSnapshot) {
         this.dataUpgradeService = dataUpgradeService;
+        this.dataSnapshot = dataSnapshot;
     }
 
     /**
@@ -75,6 +85,7 @@ class CommandRepositoryImpl implements CommandRepository {
                 if (!userCommands.containsKey(c.getName().trim().toLowerCase())) {
                     userCommands.put(c.getName(),
                             c);
+                    version.incrementAndGet();
                     LOG.trace("Added command ''{}'' to the list of user commands", c.getName());
                 } else {
                     LOG.debug("Command ''{}'' already in the list of user commands. Skipped", c.getName());
@@ -82,6 +93,7 @@ class CommandRepositoryImpl implements CommandRepository {
             } else if (!hardwareCommands.containsKey(c.getName().trim().toLowerCase())) {
                 hardwareCommands.put(c.getName(),
                         c);
+                version.incrementAndGet();
                 LOG.trace("Added command ''{}'' to the list of hardware commands", c.getName());
             } else {
                 LOG.debug("Command ''{}'' already in the list of hardware commands. Skipped", c.getName());
@@ -102,6 +114,7 @@ class CommandRepositoryImpl implements CommandRepository {
         } else {
             userCommands.remove(input.getName());
         }
+        version.incrementAndGet();
     }
 
     /**
@@ -200,7 +213,7 @@ class CommandRepositoryImpl implements CommandRepository {
      */
     @Override
     public void loadCommands(File folder) {
-        XStream xstream = FreedomXStream.getXstream();
+        final XStream xstream = FreedomXStream.getXstream();
         File[] files = folder.listFiles();
 
         // This filter only returns object files
@@ -225,32 +238,43 @@ class CommandRepositoryImpl implements CommandRepository {
                 //print an header for the index.txt file
                 summary.append("#Filename \t\t #CommandName \t\t\t #Destination").append("\n");
 
-                for (File file : files) {
-                    Command command = null;
-                    String xml;
+                Properties dataProperties = new Properties();
+                String version;
+                try {
+                    dataProperties.load(new FileInputStream(new File(Info.PATHS.PATH_DATA_FOLDER + "/data.properties")));
+                    version = dataProperties.getProperty("data.version");
+                } catch (IOException iOException) {
+                    // Fallback to a default version for older version without that properties file
+                    version = "5.5.0";
+                }
+                final String fromVersion = version;
+
+                // Files are read, upgraded and deserialized in parallel
+                List<ParallelFileLoader.Result<Command>> results = ParallelFileLoader.load(files, dataSnapshot.cached(
+                        new ParallelFileLoader.Parser<Command>() {
+                            @Override
+                            public Command parse(File file) throws Exception {
+                                String xml = XmlPreprocessor.validate(file, Info.PATHS.PATH_CONFIG_FOLDER + "/validator/command.dtd");
+                                try {
+                                    xml = (String) dataUpgradeService.upgrade(Command.class, xml, fromVersion);
+                                    return (Command) xstream.fromXML(xml);
+                                } catch (DataUpgradeException dataUpgradeException) {
+                                    throw new RepositoryException("Cannot upgrade Command file " + file.getAbsolutePath(), dataUpgradeException);
+                                } catch (XStreamException e) {
+                                    throw new RepositoryException("XML parsing error. Readed XML is \n" + xml, e);
+                                }
+                            }
+                        }));
+
+                // While they are added in files order
+                for (ParallelFileLoader.Result<Command> result : results) {
+                    File file = result.getFile();
+                    Command command;
                     try {
-                        xml = XmlPreprocessor.validate(file, Info.PATHS.PATH_CONFIG_FOLDER + "/validator/command.dtd");
+                        command = result.get();
                     } catch (IOException ex) {
                         continue;
                     }
-                    try {
-                        Properties dataProperties = new Properties();
-                        String fromVersion;
-                        try {
-                            dataProperties.load(new FileInputStream(new File(Info.PATHS.PATH_DATA_FOLDER + "/data.properties")));
-                            fromVersion = dataProperties.getProperty("data.version");
-                        } catch (IOException iOException) {
-                            // Fallback to a default version for older version without that properties file
-                            fromVersion = "5.5.0";
-                        }
-                        xml = (String) dataUpgradeService.upgrade(Command.class, xml, fromVersion);
-                        command = (Command) xstream.fromXML(xml);
-
-                    } catch (DataUpgradeException dataUpgradeException) {
-                        throw new RepositoryException("Cannot upgrade Command file " + file.getAbsolutePath(), dataUpgradeException);
-                    } catch (XStreamException e) {
-                        throw new RepositoryException("XML parsing error. Readed XML is \n" + xml, e);
-                    }
                     try {
 
                         if (command.isHardwareLevel()) { //an hardware level command
@@ -268,7 +292,7 @@ class CommandRepositoryImpl implements CommandRepository {
                         summary.append(file.getName()).append("\t\t").append(command.getName())
                                 .append("\t\t\t").append(command.getReceiver()).append("\n");
                     } catch (CannotResolveClassException e) {
-                        LOG.error("Cannot unserialize command due to unrecognized class ''{}'' in \n{}", new Object[]{e.getMessage(), xml});
+                        LOG.error("Cannot unserialize command due to unrecognized class ''{}'' in {}", new Object[]{e.getMessage(), file.getName()});
                     }
                 }
 
@@ -309,11 +333,10 @@ class CommandRepositoryImpl implements CommandRepository {
             return;
         }
 
-        XStream xstream = FreedomXStream.getXstream();
-        deleteCommandFiles(folder);
-
         try {
             LOG.info("Saving commands to file in " + folder.getAbsolutePath());
+            // Only the changed commands are written, files of removed commands are deleted
+            Map<String, Command> commands = new LinkedHashMap<String, Command>();
             for (Command c : userCommands.values()) {
                 if (c.isEditable()) {
                     String uuid = c.getUuid();
@@ -322,38 +345,15 @@ class CommandRepositoryImpl implements CommandRepository {
                         c.setUUID(UUID.randomUUID().toString());
                     }
 
-                    String fileName = c.getUuid() + ".xcmd";
-                    File file = new File(folder + "/" + fileName);
-                    FreedomXStream.toXML(c, file);
+                    commands.put(c.getUuid(), c);
                 }
             }
+            FolderPersister.of(folder, ".xcmd").save(commands);
         } catch (Exception e) {
             LOG.error("Error while saving commands to " + folder.getAbsolutePath(), e);
         }
     }
 
-    private static void deleteCommandFiles(File folder) {
-        File[] files = folder.listFiles();
-
-        // This filter only returns object files
-        FileFilter objectFileFileter
-                = new FileFilter() {
-                    public boolean accept(File file) {
-                        if (file.isFile() && file.getName().endsWith(".xcmd")) {
-                            return true;
-                        } else {
-                            return false;
-                        }
-                    }
-                };
-
-        files = folder.listFiles(objectFileFileter);
-
-        for (File file : files) {
-            file.delete();
-        }
-    }
-
     @Override
     public List<Command> findAll() {
         List<Command> cl = new ArrayList<Command>(userCommands.values());
@@ -437,7 +437,13 @@ class CommandRepositoryImpl implements CommandRepository {
         } finally {
             hardwareCommands.clear();
             userCommands.clear();
+            version.incrementAndGet();
         }
     }
 
+    @Override
+    public long getVersion() {
+        return version.get();
+    }
+
 }
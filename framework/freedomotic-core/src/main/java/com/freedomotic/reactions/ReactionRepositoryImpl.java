@@ -23,9 +23,12 @@ import com.freedomotic.app.Freedomotic;
 import com.freedomotic.exceptions.DataUpgradeException;
 import com.freedomotic.exceptions.RepositoryException;
 import com.freedomotic.model.environment.Environment;
+import com.freedomotic.persistence.DataSnapshot;
 import com.freedomotic.persistence.DataUpgradeService;
 import com.freedomotic.persistence.Repository;
+import com.freedomotic.persistence.FolderPersister;
 import com.freedomotic.persistence.FreedomXStream;
+import com.freedomotic.persistence.ParallelFileLoader;
 import com.freedomotic.persistence.XmlPreprocessor;
 import com.freedomotic.settings.Info;
 import com.google.inject.Inject;
@@ -41,7 +44,9 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 import java.util.UUID;
 import org.slf4j.Logger;
@@ -57,10 +62,12 @@ public class ReactionRepositoryImpl implements ReactionRepository {
 
     private static final List<Reaction> list = new ArrayList<Reaction>(); //for persistence purposes. ELEMENTS CANNOT BE MODIFIED OUTSIDE THIS CLASS
     private final DataUpgradeService dataUpgradeService;
+    private final DataSnapshot dataSnapshot;
 
     @Inject
-    public ReactionRepositoryImpl(DataUpgradeService dataUpgradeService) {
+    public ReactionRepositoryImpl(DataUpgradeService dataUpgradeService, DataSnapshot dataSnapshot) {
         this.dataUpgradeService = dataUpgradeService;
+        this.dataSnapshot = dataSnapshot;
     }
 
     /**
@@ -79,55 +86,30 @@ public class ReactionRepositoryImpl implements ReactionRepository {
             return;
         }
 
-        deleteReactionFiles(folder);
-
         try {
             LOG.info("Saving reactions to file in {}", folder.getAbsolutePath());
+            // Only the changed reactions are written, files of removed reactions are deleted
+            Map<String, Reaction> reactions = new LinkedHashMap<String, Reaction>();
             for (Reaction reaction : list) {
                 String uuid = reaction.getUuid();
                 if ((uuid == null) || uuid.isEmpty()) {
                     reaction.setUuid(UUID.randomUUID().toString());
                 }
-                String fileName = reaction.getUuid() + ".xrea";
-                File file = new File(folder + "/" + fileName);
-                FreedomXStream.toXML(reaction, file);
+                reactions.put(reaction.getUuid(), reaction);
             }
+            FolderPersister.of(folder, ".xrea").save(reactions);
         } catch (Exception e) {
             LOG.error("Error while saving reations", e);
         }
     }
 
-    /**
-     * Deletes all .xrea reaction files from a given folder.
-     *
-     * @param folder the folder to save the files from
-     */
-    private void deleteReactionFiles(File folder) {
-        File[] files;
-
-        // This filter only returns object files
-        FileFilter objectFileFileter
-                = new FileFilter() {
-                    @Override
-                    public boolean accept(File file) {
-                        return file.isFile() && file.getName().endsWith(".xrea");
-                    }
-                };
-
-        files = folder.listFiles(objectFileFileter);
-
-        for (File file : files) {
-            file.delete();
-        }
-    }
-
     /**
      * Loads all .xrea reaction files from a given folder.
      *
      * @param folder the folder to load reaction files from
      */
     public synchronized void loadReactions(File folder) {
-        XStream xstream = FreedomXStream.getXstream();
+        final XStream xstream = FreedomXStream.getXstream();
 
         // This filter only returns object files
         FileFilter objectFileFileter
@@ -149,33 +131,45 @@ public class ReactionRepositoryImpl implements ReactionRepository {
             summary.append("#Filename \t\t #Reaction \t\t\t #Description").append("\n");
 
             if (files != null) {
-                for (File file : files) {
-                    Reaction reaction = null;
-                    String xml;
-                    //validate the object against a predefined DTD
-                    try {
-                        xml = XmlPreprocessor.validate(file, Info.PATHS.PATH_CONFIG_FOLDER + "/validator/reaction.dtd");
-                    } catch (IOException ex) {
-                        throw new RepositoryException(ex.getMessage(), ex);
-                    }
-                    try {
-                        Properties dataProperties = new Properties();
-                        String fromVersion;
-                        try {
-                            dataProperties.load(new FileInputStream(new File(Info.PATHS.PATH_DATA_FOLDER + "/data.properties")));
-                            fromVersion = dataProperties.getProperty("data.version");
-                        } catch (IOException iOException) {
-                            // Fallback to a default version for older version without that properties file
-                            fromVersion = "5.5.0";
-                        }
-                        xml = (String) dataUpgradeService.upgrade(Reaction.class, xml, fromVersion);
-                        reaction = (Reaction) xstream.fromXML(xml);
-
-                    } catch (DataUpgradeException dataUpgradeException) {
-                        throw new RepositoryException("Cannot upgrade Reaction file " + file.getAbsolutePath(), dataUpgradeException);
-                    } catch (XStreamException e) {
-                        throw new RepositoryException("XML parsing error. Readed XML is \n" + xml, e);
-                    }
+                Properties dataProperties = new Properties();
+                String version;
+                try {
+                    dataProperties.load(new FileInputStream(new File(Info.PATHS.PATH_DATA_FOLDER + "/data.properties")));
+                    version = dataProperties.getProperty("data.version");
+                } catch (IOException iOException) {
+                    // Fallback to a default version for older version without that properties file
+                    version = "5.5.0";
+                }
+                final String fromVersion = version;
+
+                // Files are read, upgraded and deserialized in parallel. Triggers and
+                // commands are already loaded and only read by the reaction converter
+                List<ParallelFileLoader.Result<Reaction>> results = ParallelFileLoader.load(files, dataSnapshot.cached(
+                        new ParallelFileLoader.Parser<Reaction>() {
+                            @Override
+                            public Reaction parse(File file) throws Exception {
+                                String xml;
+                                //validate the object against a predefined DTD
+                                try {
+                                    xml = XmlPreprocessor.validate(file, Info.PATHS.PATH_CONFIG_FOLDER + "/validator/reaction.dtd");
+                                } catch (IOException ex) {
+                                    throw new RepositoryException(ex.getMessage(), ex);
+                                }
+                                try {
+                                    xml = (String) dataUpgradeService.upgrade(Reaction.class, xml, fromVersion);
+                                    return (Reaction) xstream.fromXML(xml);
+                                } catch (DataUpgradeException dataUpgradeException) {
+                                    throw new RepositoryException("Cannot upgrade Reaction file " + file.getAbsolutePath(), dataUpgradeException);
+                                } catch (XStreamException e) {
+                                    throw new RepositoryException("XML parsing error. Readed XML is \n" + xml, e);
+                                }
+                            }
+                        }));
+
+                // While they are added in files order
+                for (ParallelFileLoader.Result<Reaction> result : results) {
+                    File file = result.getFile();
+                    Reaction reaction = result.get();
 
                     if (reaction.getTrigger() != null && reaction.getTrigger().getName() != null) {
                         add(reaction);
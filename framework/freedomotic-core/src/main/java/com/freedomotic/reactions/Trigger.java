@@ -23,11 +23,7 @@ import com.freedomotic.rules.Statement;
 import com.freedomotic.rules.Payload;
 import com.freedomotic.api.EventTemplate;
 import com.freedomotic.app.Freedomotic;
-import com.freedomotic.app.Profiler;
-import com.freedomotic.bus.BusConsumer;
-import com.freedomotic.bus.BusMessagesListener;
-import com.freedomotic.bus.BusService;
-import com.freedomotic.core.TriggerCheck;
+import com.freedomotic.core.TriggerDispatcher;
 import com.google.inject.Inject;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
@@ -36,8 +32,6 @@ import java.util.Iterator;
 import java.util.UUID;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import javax.jms.JMSException;
-import javax.jms.ObjectMessage;
 import javax.xml.bind.annotation.XmlAccessType;
 import javax.xml.bind.annotation.XmlAccessorType;
 import javax.xml.bind.annotation.XmlRootElement;
@@ -49,7 +43,7 @@ import javax.xml.bind.annotation.XmlTransient;
  */
 @XmlRootElement
 @XmlAccessorType(XmlAccessType.FIELD)
-public final class Trigger implements BusConsumer, Cloneable {
+public final class Trigger implements Cloneable {
 
     private static final Logger LOG = LoggerFactory.getLogger(Trigger.class.getName());
     private String name;
@@ -69,15 +63,10 @@ public final class Trigger implements BusConsumer, Cloneable {
     private long maxExecutions;
     private long numberOfExecutions;
     private long suspensionStart;
-    @XmlTransient
-    private BusMessagesListener listener;
     //dependencies
     @Inject
     @XmlTransient
-    private TriggerCheck checker;
-    @Inject
-    @XmlTransient
-    private BusService busService;
+    private TriggerDispatcher dispatcher;
 
     /**
      *
@@ -92,10 +81,10 @@ public final class Trigger implements BusConsumer, Cloneable {
     public void register() {
         Freedomotic.INJECTOR.injectMembers(this);
         LOG.info("Registering the trigger named '" + getName() + "'");
-        listener = new BusMessagesListener(this, busService);
-        listener.consumeEventFrom(channel);
+        // reset before registering, time based triggers are scheduled from them
         numberOfExecutions = 0;
         suspensionStart = System.currentTimeMillis();
+        dispatcher.register(this);
     }
 
     /**
@@ -220,6 +209,9 @@ public final class Trigger implements BusConsumer, Cloneable {
      */
     public void setPayload(Payload p) {
         this.payload = p;
+        if (dispatcher != null) {
+            dispatcher.reindex(this);
+        }
     }
 
     //can be moved to a stategy pattern
@@ -260,9 +252,25 @@ public final class Trigger implements BusConsumer, Cloneable {
     /**
      *
      */
-    public synchronized void setExecuted() {
-        suspensionStart = System.currentTimeMillis();
-        numberOfExecutions++;
+    public void setExecuted() {
+        synchronized (this) {
+            suspensionStart = System.currentTimeMillis();
+            numberOfExecutions++;
+        }
+        // time based triggers are scheduled from the suspension
+        if (dispatcher != null) {
+            dispatcher.executed(this);
+        }
+    }
+
+    /**
+     * Returns the time of the last execution (or registration) of this
+     * trigger, the suspension time is counted from it.
+     *
+     * @return the time in milliseconds
+     */
+    public long getSuspensionStart() {
+        return suspensionStart;
     }
 
     /**
@@ -378,32 +386,6 @@ public final class Trigger implements BusConsumer, Cloneable {
         return hash;
     }
 
-    /*
-     * Performs the Trigger check comparing the received event with itself (this
-     * trigger)
-     */
-    @Override
-    public void onMessage(ObjectMessage message) {
-        long start = System.currentTimeMillis();
-        Object payload = null;
-
-        try {
-            payload = message.getObject();
-        } catch (JMSException ex) {
-            LOG.error(ex.getMessage());
-        }
-
-        if (payload instanceof EventTemplate) {
-            EventTemplate event = (EventTemplate) payload;
-            LOG.debug("Trigger '" + this.getName() + "' filters event '" + event.getEventName()
-                    + "' on channel " + this.getChannel());
-
-            checker.check(event, this);
-            long end = System.currentTimeMillis();
-            Profiler.appendTriggerCheckingTime(end - start);
-        }
-    }
-
     /**
      *
      * @return
@@ -431,7 +413,7 @@ public final class Trigger implements BusConsumer, Cloneable {
         clone.setNumberOfExecutions(getNumberOfExecutions());
         clone.setSuspensionTime(getSuspensionTime());
         clone.suspensionStart = this.suspensionStart;
-        clone.setPriority(0);
+        clone.setPriority(getPriority());
 
         return clone;
     }
@@ -440,8 +422,8 @@ public final class Trigger implements BusConsumer, Cloneable {
      *
      */
     public void unregister() {
-        if (listener != null) {
-            listener.destroy();
+        if (dispatcher != null) {
+            dispatcher.unregister(this);
         }
     }
 
@@ -479,9 +461,4 @@ public final class Trigger implements BusConsumer, Cloneable {
     public boolean isToPersist() {
         return persistence;
     }
-
-    @Inject
-    private void setTriggerCheck(TriggerCheck checker) {
-        this.checker = checker;
-    }
 }
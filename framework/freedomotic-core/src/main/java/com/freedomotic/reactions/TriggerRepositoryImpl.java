@@ -21,8 +21,11 @@ package com.freedomotic.reactions;
 
 import com.freedomotic.exceptions.DataUpgradeException;
 import com.freedomotic.exceptions.RepositoryException;
+import com.freedomotic.persistence.DataSnapshot;
 import com.freedomotic.persistence.DataUpgradeService;
+import com.freedomotic.persistence.FolderPersister;
 import com.freedomotic.persistence.FreedomXStream;
+import com.freedomotic.persistence.ParallelFileLoader;
 import com.freedomotic.persistence.XmlPreprocessor;
 import com.freedomotic.settings.Info;
 import com.google.inject.Inject;
@@ -38,7 +41,9 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 import java.util.UUID;
 import org.slf4j.Logger;
@@ -53,10 +58,12 @@ class TriggerRepositoryImpl implements TriggerRepository {
     private static final Logger LOG = LoggerFactory.getLogger(TriggerRepositoryImpl.class.getName());
     private static ArrayList<Trigger> list = new ArrayList<Trigger>();
     private final DataUpgradeService dataUpgradeService;
+    private final DataSnapshot dataSnapshot;
 
     @Inject
-    public TriggerRepositoryImpl(DataUpgradeService dataUpgradeService) {
+    public TriggerRepositoryImpl(DataUpgradeService dataUpgradeService, DataSnapshot dataSnapshot) {
         this.dataUpgradeService = dataUpgradeService;
+        this.dataSnapshot = dataSnapshot;
     }
 
     /**
@@ -66,7 +73,12 @@ class TriggerRepositoryImpl implements TriggerRepository {
      */
     @Override
     public void saveTriggers(File folder) {
-        if (list.isEmpty()) {
+        // copied with the lock of add and remove, it is saved by the autosave thread
+        List<Trigger> triggerList;
+        synchronized (TriggerRepositoryImpl.class) {
+            triggerList = new ArrayList<Trigger>(list);
+        }
+        if (triggerList.isEmpty()) {
             LOG.warn("There are no triggers to persist, {} will not be altered", folder.getAbsolutePath());
             return;
         }
@@ -76,12 +88,11 @@ class TriggerRepositoryImpl implements TriggerRepository {
             return;
         }
 
-        XStream xstream = FreedomXStream.getXstream();
-        deleteTriggerFiles(folder);
-
         try {
             LOG.info("Saving triggers to file in {}", folder.getAbsolutePath());
-            for (Trigger trigger : list) {
+            // only the changed triggers are written, files of removed triggers are deleted
+            Map<String, Trigger> triggers = new LinkedHashMap<String, Trigger>();
+            for (Trigger trigger : triggerList) {
                 if (trigger.isToPersist()) {
                     String uuid = trigger.getUUID();
 
@@ -89,40 +100,15 @@ class TriggerRepositoryImpl implements TriggerRepository {
                         trigger.setUUID(UUID.randomUUID().toString());
                     }
 
-                    String fileName = trigger.getUUID() + ".xtrg";
-                    File file = new File(folder + "/" + fileName);
-                    FreedomXStream.toXML(trigger, file);
+                    triggers.put(trigger.getUUID(), trigger);
                 }
             }
+            FolderPersister.of(folder, ".xtrg").save(triggers);
         } catch (Exception e) {
             LOG.error("Error while saving triggers ", e);
         }
     }
 
-    /**
-     * Deletes all the triggers into the specified folder.
-     *
-     * @param folder the folder containing all the triggers to delete
-     */
-    private static void deleteTriggerFiles(File folder) {
-        File[] files = folder.listFiles();
-        // this filter only returns triggers files
-        FileFilter objectFileFilter
-                = new FileFilter() {
-                    public boolean accept(File file) {
-                        if (file.isFile() && file.getName().endsWith(".xtrg")) {
-                            return true;
-                        } else {
-                            return false;
-                        }
-                    }
-                };
-        files = folder.listFiles(objectFileFilter);
-        for (File file : files) {
-            file.delete();
-        }
-    }
-
     /**
      *
      * @return
@@ -138,8 +124,8 @@ class TriggerRepositoryImpl implements TriggerRepository {
      * @param folder the folder to load triggers from
      */
     @Override
-    public void loadTriggers(File folder) {
-        XStream xstream = FreedomXStream.getXstream();
+    public void loadTriggers(final File folder) {
+        final XStream xstream = FreedomXStream.getXstream();
 
         // this filter only returns triggers files
         FileFilter objectFileFileter
@@ -158,33 +144,43 @@ class TriggerRepositoryImpl implements TriggerRepository {
             summary.append("#Filename \t\t #TriggerName \t\t\t #ListenedChannel").append("\n");
 
             if (files != null) {
-                for (File file : files) {
-                    Trigger trigger = null;
-                    String xml;
+                Properties dataProperties = new Properties();
+                String version;
+                try {
+                    dataProperties.load(new FileInputStream(new File(Info.PATHS.PATH_DATA_FOLDER + "/data.properties")));
+                    version = dataProperties.getProperty("data.version");
+                } catch (IOException iOException) {
+                    // fallback to a default version for older version without that properties file
+                    version = "5.5.0";
+                }
+                final String fromVersion = version;
+
+                // files are read, upgraded and deserialized in parallel
+                List<ParallelFileLoader.Result<Trigger>> results = ParallelFileLoader.load(files, dataSnapshot.cached(
+                        new ParallelFileLoader.Parser<Trigger>() {
+                            @Override
+                            public Trigger parse(File file) throws Exception {
+                                //validate the object against a predefined DTD
+                                String xml = XmlPreprocessor.validate(file, Info.PATHS.PATH_CONFIG_FOLDER + "/validator/trigger.dtd");
+                                try {
+                                    xml = (String) dataUpgradeService.upgrade(Trigger.class, xml, fromVersion);
+                                    return (Trigger) xstream.fromXML(xml);
+                                } catch (DataUpgradeException dataUpgradeException) {
+                                    throw new RepositoryException("Cannot upgrade Trigger file " + file.getAbsolutePath(), dataUpgradeException);
+                                } catch (XStreamException e) {
+                                    throw new RepositoryException("XML parsing error. Readed XML is \n" + xml, e);
+                                }
+                            }
+                        }));
+
+                // while they are registered in files order
+                for (ParallelFileLoader.Result<Trigger> result : results) {
+                    Trigger trigger;
                     try {
-                        //validate the object against a predefined DTD
-                        xml = XmlPreprocessor.validate(file, Info.PATHS.PATH_CONFIG_FOLDER + "/validator/trigger.dtd");
+                        trigger = result.get();
                     } catch (IOException e) {
                         continue;
                     }
-                    try {
-                        Properties dataProperties = new Properties();
-                        String fromVersion;
-                        try {
-                            dataProperties.load(new FileInputStream(new File(Info.PATHS.PATH_DATA_FOLDER + "/data.properties")));
-                            fromVersion = dataProperties.getProperty("data.version");
-                        } catch (IOException iOException) {
-                            // fallback to a default version for older version without that properties file
-                            fromVersion = "5.5.0";
-                        }
-                        xml = (String) dataUpgradeService.upgrade(Trigger.class, xml, fromVersion);
-                        trigger = (Trigger) xstream.fromXML(xml);
-
-                    } catch (DataUpgradeException dataUpgradeException) {
-                        throw new RepositoryException("Cannot upgrade Trigger file " + file.getAbsolutePath(), dataUpgradeException);
-                    } catch (XStreamException e) {
-                        throw new RepositoryException("XML parsing error. Readed XML is \n" + xml, e);
-                    }
                     //addAndRegister trigger to the list if it is not a duplicate
                     if (!list.contains(trigger)) {
                         if (trigger.isHardwareLevel()) {
@@ -197,7 +193,9 @@ class TriggerRepositoryImpl implements TriggerRepository {
                                 trigger.setPersistence(true); //not hardware trigger and not plugin related
                             }
 
-                            list.add(trigger); //only in the list not registred. I will be registred only if used in mapping
+                            synchronized (TriggerRepositoryImpl.class) {
+                                list.add(trigger); //only in the list not registred. I will be registred only if used in mapping
+                            }
                         }
                     } else {
                         LOG.warn("Trigger '{}' is already in the list", trigger.getName());
@@ -378,7 +376,9 @@ class TriggerRepositoryImpl implements TriggerRepository {
 
     @Override
     public List<Trigger> findAll() {
-        Collections.sort(list, new TriggerNameComparator());
+        synchronized (TriggerRepositoryImpl.class) {
+            Collections.sort(list, new TriggerNameComparator());
+        }
         //return getTriggers();
         return list;
     }
@@ -487,7 +487,9 @@ class TriggerRepositoryImpl implements TriggerRepository {
             }
         } catch (Exception e) {
         } finally {
-            list.clear();
+            synchronized (TriggerRepositoryImpl.class) {
+                list.clear();
+            }
         }
     }
 
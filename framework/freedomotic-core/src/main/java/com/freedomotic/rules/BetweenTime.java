@@ -44,7 +44,7 @@ public class BetweenTime extends BinaryExpression {
         return OPERAND;
     }
 
-    // left is an hour in form HH:MM::SS
+    // left is an hour in form HH:MM::SS (or HHMMSS)
     //right is a time interval in form HH:MM::SS-HH:MM::SS
     //this class checks if left is inside the right interval
     public BetweenTime(String left, String right) {
@@ -57,13 +57,23 @@ public class BetweenTime extends BinaryExpression {
         }
     }
 
+    /*
+     * The "time" statement of the events is in the HHmmss form
+     */
+    private static String toTimeFormat(String value) {
+        if (value.length() == 6 && value.indexOf(':') < 0) {
+            return value.substring(0, 2) + ":" + value.substring(2, 4) + ":" + value.substring(4);
+        }
+        return value;
+    }
+
     @Override
     public Boolean evaluate() {
 
         Date time = null;
         // Parse the date which is supposed to be in between of the interval
         try {
-            time = TIME_FORMAT.parse(this.getLeft());
+            time = TIME_FORMAT.parse(toTimeFormat(this.getLeft()));
         } catch (ParseException ex) {
             LOG.warn("Cannot parse hours " + getLeft() + ", valid format is HH:mm:ss", ex);
         }
@@ -19,6 +19,8 @@
  */
 package com.freedomotic.rules;
 
+import java.io.IOException;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Collections;
@@ -40,6 +42,98 @@ public final class Payload implements Serializable {
     @XmlTransient
     private static final long serialVersionUID = -5799483105084939108L;
     private final List<Statement> payload = Collections.synchronizedList(new ArrayList<Statement>());
+    // date and time statements not yet copied in the payload, null if none
+    @XmlTransient
+    private transient volatile TimeContext timeContext;
+
+    /**
+     * Adds the date and time statements of the given context in front of the
+     * payload statements. They are copied in the payload only when they are
+     * read, as most of the payloads never need them.
+     *
+     * @param timeContext the date and time context
+     */
+    public void setTimeContext(TimeContext timeContext) {
+        materialize();
+        this.timeContext = timeContext;
+    }
+
+    /*
+     * Copies the date and time statements (if any) in front of the other
+     * statements
+     */
+    private void materialize() {
+        if (timeContext == null) {
+            return;
+        }
+        synchronized (payload) {
+            TimeContext context = timeContext;
+            if (context == null) {
+                return;
+            }
+            List<Statement> statements = new ArrayList<Statement>(context.getStatements().size());
+            for (Statement shared : context.getStatements()) {
+                if (!payload.contains(shared)) {
+                    // statements are mutable, never share them
+                    statements.add(new Statement().create(shared.getLogical(), shared.getAttribute(),
+                            shared.getOperand(), shared.getValue()));
+                }
+            }
+            payload.addAll(0, statements);
+            timeContext = null;
+        }
+    }
+
+    /**
+     * Returns the date and time statements not yet copied in this payload (see
+     * {@link #setTimeContext(TimeContext)}). Used to read the statements
+     * without copying them, callers must synchronize on the explicit
+     * statements to read both consistently.
+     *
+     * @return the pending date and time context, null if none
+     */
+    public TimeContext getTimeContext() {
+        return timeContext;
+    }
+
+    /**
+     * Returns the statements of this payload without the date and time ones
+     * not yet read (see {@link #setTimeContext(TimeContext)}). Callers must
+     * synchronize on the returned list while iterating it.
+     *
+     * @return the explicitly added statements
+     */
+    public List<Statement> getExplicitStatements() {
+        return payload;
+    }
+
+    /**
+     * Adds the statements of another payload with the given prefix in front
+     * of their attribute names, if not already there (eg: object.name becomes
+     * event.object.name). The date and time statements of the other payload
+     * are not copied until they are read.
+     *
+     * @param prefix the attribute prefix
+     * @param anotherPayload the payload to add
+     */
+    public void addStatements(String prefix, Payload anotherPayload) {
+        TimeContext pending;
+        synchronized (anotherPayload.payload) {
+            pending = anotherPayload.timeContext;
+            for (Statement statement : anotherPayload.payload) {
+                String attribute = statement.getAttribute();
+                addStatement(attribute.startsWith(prefix) ? attribute : prefix + attribute, statement.getValue());
+            }
+        }
+        if (pending != null) {
+            setTimeContext(pending.withPrefix(prefix));
+        }
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        materialize();
+        out.defaultWriteObject();
+    }
 
     /**
      *
@@ -90,6 +184,7 @@ public final class Payload implements Serializable {
      * @return
      */
     public int size() {
+        materialize();
         return payload.size();
     }
 
@@ -104,6 +199,11 @@ public final class Payload implements Serializable {
 
         if (obj instanceof Payload) {
             Payload eventPayload = (Payload) obj;
+            // the event.* date and time statements are skipped below, no need to copy them
+            TimeContext context = timeContext;
+            if (context != null && !context.getPrefix().startsWith("event.")) {
+                materialize();
+            }
             Iterator<Statement> it = payload.iterator();
 
             //check all statement for consistency
@@ -177,6 +277,7 @@ public final class Payload implements Serializable {
     @Override
     public int hashCode() {
         int hash = 7;
+        materialize();
         hash = (67 * hash) + ((this.payload != null) ? this.payload.hashCode() : 0);
 
         return hash;
@@ -195,6 +296,10 @@ public final class Payload implements Serializable {
      */
     public List<Statement> getStatements(String attribute) {
         ArrayList<Statement> statements = new ArrayList<Statement>();
+        TimeContext context = timeContext;
+        if (context != null && context.provides(attribute)) {
+            materialize();
+        }
 
         synchronized (payload) {
             for (Statement i : payload) {
@@ -208,6 +313,7 @@ public final class Payload implements Serializable {
     }
 
     public List<Statement> getStatements() {
+        materialize();
         return payload;
     }
 
@@ -234,6 +340,7 @@ public final class Payload implements Serializable {
      * @return
      */
     public Iterator<Statement> iterator() {
+        materialize();
         return payload.iterator();
     }
 
@@ -242,7 +349,20 @@ public final class Payload implements Serializable {
      * @param anotherPayload
      */
     public void merge(Payload anotherPayload) {
-        payload.addAll(anotherPayload.payload);
+        TimeContext pending;
+        List<Statement> statements;
+        synchronized (anotherPayload.payload) {
+            pending = anotherPayload.timeContext;
+            statements = new ArrayList<Statement>(anotherPayload.payload);
+        }
+        if (pending != null && timeContext == null) {
+            // the date and time statements of the other payload stay lazy
+            payload.addAll(statements);
+            setTimeContext(pending);
+        } else {
+            materialize();
+            payload.addAll(anotherPayload.getStatements());
+        }
     }
 
     /**
@@ -272,6 +392,7 @@ public final class Payload implements Serializable {
      *
      */
     public void clear() {
+        timeContext = null;
         payload.clear();
     }
 }
@@ -0,0 +1,406 @@
+/**
+ *
+ * Copyright (c) 2009-2016 Freedomotic team http://freedomotic.com
+ *
+ * This file is part of Freedomotic
+ *
+ * This Program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2, or (at your option) any later version.
+ *
+ * This Program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Freedomotic; see the file COPYING. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.freedomotic.rules;
+
+import com.freedomotic.util.EqualsUtil;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+/**
+ * A compiled matching index over the statements of many {@link Payload}s (eg:
+ * the payloads of all the triggers listening on a channel).
+ * <p>
+ * Given an event payload the index returns the owners whose payload can be
+ * consistent with it, without running {@link Payload#equals(Object)} for all
+ * of them. Every non <code>event.*</code> statement of an indexed payload is a
+ * condition stored under its attribute name: EQUALS statements go in a hash
+ * bucket keyed by value, GREATER_THAN/LESS_THAN (and the "or equal" variants)
+ * go in sorted maps keyed by the integer threshold, any other statement only
+ * requires the attribute to be present in the event. An owner is a candidate
+ * when all its conditions are satisfied by at least one event statement. When
+ * a payload has EQUALS statements only those are indexed, being the most
+ * selective ones, the others are left to the full evaluation.
+ * </p>
+ * <p>
+ * The index is only a pre-filter: candidates must still be evaluated with
+ * {@link Payload#equals(Object)} (after resolution). It never drops an owner
+ * which could match, so payloads that cannot be safely indexed (containing OR,
+ * SET or other logical operators) are always returned as candidates, as well
+ * as statements with values resolved at runtime (<code>@event.*</code>
+ * references and <code>=</code> scripts) which only require the attribute to
+ * be present.
+ * </p>
+ *
+ * @param <T> the type of the payload owner (eg: a trigger)
+ */
+public final class PayloadIndex<T> {
+
+    private static final String EVENT_PREFIX = "event.";
+    private final Map<T, Entry> entries = new IdentityHashMap<T, Entry>();
+    private final Map<String, AttributeNode> attributes = new HashMap<String, AttributeNode>();
+    // owners that are always candidates (not indexable or without conditions)
+    private final List<Entry> unconditional = new ArrayList<Entry>();
+    // incremented on every query, used to reset the per query counters in O(1)
+    private int stamp;
+
+    /**
+     * Adds (or replaces) the payload of the given owner to the index.
+     *
+     * @param owner the owner of the payload, compared by identity
+     * @param payload the payload to index
+     */
+    public synchronized void add(T owner, Payload payload) {
+        if (owner == null || payload == null) {
+            throw new IllegalArgumentException("Cannot index a null payload or owner");
+        }
+        remove(owner);
+
+        Entry entry = new Entry(owner);
+        List<Statement> statements = new ArrayList<Statement>();
+        boolean indexable = true;
+
+        synchronized (payload.getStatements()) {
+            for (Statement statement : payload.getStatements()) {
+                if (!Statement.AND.equalsIgnoreCase(statement.getLogical())) {
+                    indexable = false;
+                    break;
+                }
+                if (!statement.getAttribute().startsWith(EVENT_PREFIX)) {
+                    statements.add(statement);
+                }
+            }
+        }
+
+        if (indexable) {
+            List<Statement> selective = new ArrayList<Statement>();
+            for (Statement statement : statements) {
+                if (isSelective(statement)) {
+                    selective.add(statement);
+                }
+            }
+            if (!selective.isEmpty()) {
+                statements = selective;
+            }
+        }
+
+        if (!indexable || statements.isEmpty()) {
+            unconditional.add(entry);
+        } else {
+            for (Statement statement : statements) {
+                Condition condition = new Condition(entry);
+                entry.conditions.add(condition);
+                String key = EqualsUtil.normalizeCase(statement.getAttribute());
+                AttributeNode node = attributes.get(key);
+                if (node == null) {
+                    node = new AttributeNode();
+                    attributes.put(key, node);
+                }
+                node.add(statement, condition);
+                entry.nodes.add(node);
+            }
+        }
+        entries.put(owner, entry);
+    }
+
+    /**
+     * Removes the payload of the given owner from the index.
+     *
+     * @param owner the owner to remove
+     * @return true if the owner was indexed
+     */
+    public synchronized boolean remove(T owner) {
+        Entry entry = entries.remove(owner);
+        if (entry == null) {
+            return false;
+        }
+        if (entry.conditions.isEmpty()) {
+            unconditional.remove(entry);
+        } else {
+            for (int i = 0; i < entry.conditions.size(); i++) {
+                AttributeNode node = entry.nodes.get(i);
+                node.remove(entry.conditions.get(i));
+                if (node.isEmpty()) {
+                    attributes.values().remove(node);
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the owners whose payload can be consistent with the given event
+     * payload.
+     *
+     * @param event the event payload
+     * @return the candidate owners, the list is a new instance owned by the
+     * caller
+     */
+    public synchronized List<T> candidates(Payload event) {
+        List<T> result = new ArrayList<T>(unconditional.size() + 8);
+        for (Entry entry : unconditional) {
+            result.add(entry.owner);
+        }
+        if (attributes.isEmpty()) {
+            return result;
+        }
+
+        if (++stamp == 0) {
+            resetStamps();
+        }
+        // the date and time statements are not copied in the event payload for this
+        TimeContext timeContext = event.getTimeContext();
+        if (timeContext != null) {
+            match(timeContext.getStatements(), result);
+        }
+        List<Statement> statements = event.getExplicitStatements();
+        synchronized (statements) {
+            match(statements, result);
+        }
+        return result;
+    }
+
+    private void match(List<Statement> statements, List<T> result) {
+        for (Statement statement : statements) {
+            AttributeNode node = attributes.get(EqualsUtil.normalizeCase(statement.getAttribute()));
+            if (node != null) {
+                node.match(statement.getValue(), stamp, result);
+            }
+        }
+    }
+
+    /**
+     * Returns the number of indexed owners.
+     *
+     * @return the number of indexed owners
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Removes all the owners from the index.
+     */
+    public synchronized void clear() {
+        entries.clear();
+        attributes.clear();
+        unconditional.clear();
+    }
+
+    /*
+     * Called when the query counter wraps around, avoids old marks to be
+     * confused with the ones of the current query
+     */
+    private void resetStamps() {
+        for (Entry entry : entries.values()) {
+            entry.stamp = 0;
+            for (Condition condition : entry.conditions) {
+                condition.stamp = 0;
+            }
+        }
+        stamp = 1;
+    }
+
+    /*
+     * EQUALS statements with a literal value are indexed in hash buckets
+     */
+    private static boolean isSelective(Statement statement) {
+        return Statement.EQUALS.equals(statement.getOperand())
+                && !isResolvedAtRuntime(statement.getValue())
+                && !statement.getValue().trim().equals(Statement.ANY);
+    }
+
+    private static boolean isResolvedAtRuntime(String value) {
+        return value.contains("@") || value.trim().startsWith("=");
+    }
+
+    private static Integer parseInteger(String value) {
+        try {
+            return Integer.valueOf(value);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private final class Entry {
+
+        private final T owner;
+        private final List<Condition> conditions = new ArrayList<Condition>();
+        // the attribute node of every condition (same order)
+        private final List<AttributeNode> nodes = new ArrayList<AttributeNode>();
+        private int stamp;
+        private int satisfied;
+
+        Entry(T owner) {
+            this.owner = owner;
+        }
+    }
+
+    private final class Condition {
+
+        private final Entry entry;
+        // the bucket holding this condition and where the bucket is stored
+        private List<Condition> bucket;
+        private Map<?, List<Condition>> map;
+        private Object key;
+        private int stamp;
+
+        Condition(Entry entry) {
+            this.entry = entry;
+        }
+
+        /*
+         * Marks this condition as satisfied in the current query. When all the
+         * conditions of an entry are satisfied its owner is added to the result
+         */
+        void satisfy(int query, List<T> result) {
+            if (stamp == query) {
+                return;
+            }
+            stamp = query;
+            if (entry.stamp != query) {
+                entry.stamp = query;
+                entry.satisfied = 0;
+            }
+            entry.satisfied++;
+            if (entry.satisfied == entry.conditions.size()) {
+                result.add(entry.owner);
+            }
+        }
+
+        void detach() {
+            bucket.remove(this);
+            if (bucket.isEmpty() && map != null) {
+                map.remove(key);
+            }
+        }
+    }
+
+    /**
+     * All the conditions on a single attribute name
+     */
+    private final class AttributeNode {
+
+        // satisfied by the presence of the attribute
+        private final List<Condition> presence = new ArrayList<Condition>();
+        // normalized value -> conditions satisfied by an equal event value
+        private final Map<String, List<Condition>> equalTo = new HashMap<String, List<Condition>>();
+        // integer threshold -> conditions satisfied by event values in range
+        private final NavigableMap<Integer, List<Condition>> greaterThan = new TreeMap<Integer, List<Condition>>();
+        private final NavigableMap<Integer, List<Condition>> greaterEqualThan = new TreeMap<Integer, List<Condition>>();
+        private final NavigableMap<Integer, List<Condition>> lessThan = new TreeMap<Integer, List<Condition>>();
+        private final NavigableMap<Integer, List<Condition>> lessEqualThan = new TreeMap<Integer, List<Condition>>();
+        private int size;
+
+        void add(Statement statement, Condition condition) {
+            String operand = statement.getOperand() != null ? statement.getOperand() : "";
+            // values are trimmed by the resolver before evaluation
+            String value = statement.getValue().trim();
+            Integer threshold = parseInteger(value);
+            size++;
+
+            if (isResolvedAtRuntime(statement.getValue())) {
+                attach(condition, presence);
+            } else if (operand.equals(Statement.EQUALS)) {
+                if (value.equals(Statement.ANY)) {
+                    attach(condition, presence);
+                } else {
+                    attach(condition, equalTo, EqualsUtil.normalizeCase(value));
+                }
+            } else if (operand.equals(Statement.GREATER_THAN) && threshold != null) {
+                attach(condition, greaterThan, threshold);
+            } else if (operand.equals(Statement.GREATER_EQUAL_THAN) && threshold != null) {
+                attach(condition, greaterEqualThan, threshold);
+            } else if (operand.equals(Statement.LESS_THAN) && threshold != null) {
+                attach(condition, lessThan, threshold);
+            } else if (operand.equals(Statement.LESS_EQUAL_THAN) && threshold != null) {
+                attach(condition, lessEqualThan, threshold);
+            } else {
+                // REGEX, BETWEEN_TIME and unparsable thresholds
+                attach(condition, presence);
+            }
+        }
+
+        void remove(Condition condition) {
+            condition.detach();
+            size--;
+        }
+
+        boolean isEmpty() {
+            return size == 0;
+        }
+
+        void match(String eventValue, int query, List<T> result) {
+            satisfy(presence, query, result);
+
+            if (!equalTo.isEmpty()) {
+                List<Condition> conditions = equalTo.get(EqualsUtil.normalizeCase(eventValue));
+                if (conditions != null) {
+                    satisfy(conditions, query, result);
+                }
+            }
+
+            if (greaterThan.isEmpty() && greaterEqualThan.isEmpty()
+                    && lessThan.isEmpty() && lessEqualThan.isEmpty()) {
+                return;
+            }
+            // the same conversion used by the comparison expressions
+            Integer number = parseInteger(eventValue);
+            if (number != null) {
+                satisfyAll(greaterThan.headMap(number, false), query, result);
+                satisfyAll(greaterEqualThan.headMap(number, true), query, result);
+                satisfyAll(lessThan.tailMap(number, false), query, result);
+                satisfyAll(lessEqualThan.tailMap(number, true), query, result);
+            }
+        }
+
+        private void satisfyAll(Map<Integer, List<Condition>> range, int query, List<T> result) {
+            for (List<Condition> conditions : range.values()) {
+                satisfy(conditions, query, result);
+            }
+        }
+
+        private void satisfy(List<Condition> conditions, int query, List<T> result) {
+            for (int i = 0; i < conditions.size(); i++) {
+                conditions.get(i).satisfy(query, result);
+            }
+        }
+
+        private void attach(Condition condition, List<Condition> bucket) {
+            bucket.add(condition);
+            condition.bucket = bucket;
+        }
+
+        private <K> void attach(Condition condition, Map<K, List<Condition>> map, K key) {
+            List<Condition> bucket = map.get(key);
+            if (bucket == null) {
+                bucket = new ArrayList<Condition>(2);
+                map.put(key, bucket);
+            }
+            attach(condition, bucket);
+            condition.map = map;
+            condition.key = key;
+        }
+    }
+}
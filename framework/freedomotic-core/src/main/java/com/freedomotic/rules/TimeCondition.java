@@ -0,0 +1,438 @@
+/**
+ *
+ * Copyright (c) 2009-2016 Freedomotic team http://freedomotic.com
+ *
+ * This file is part of Freedomotic
+ *
+ * This Program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2, or (at your option) any later version.
+ *
+ * This Program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Freedomotic; see the file COPYING. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.freedomotic.rules;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The date and time statements of a payload (time.hour, date.dow, time
+ * BETWEEN_TIME ...) compiled to find the next instant in which an event
+ * carrying a {@link TimeContext} can be consistent with them.
+ * <p>
+ * The search goes through years, months, days, hours, minutes and seconds:
+ * every period is skipped as soon as the statements are known to be false for
+ * all the instants it contains, or returned as soon as they are known to be
+ * true for all of them. The statements on the fields fixed within the period
+ * are evaluated with the same expressions used by
+ * {@link Payload#equals(Object)}, the others are evaluated on the range of
+ * values the field can assume in the period. Statements are combined in order
+ * as {@link Payload#equals(Object)} does.
+ * </p>
+ * <p>
+ * The result is conservative: it can be earlier than the first consistent
+ * instant (eg: when the statements are too expensive to analyze, see
+ * {@link #MAX_EVALUATIONS}) but never later, so events must still be checked
+ * with {@link Payload#equals(Object)}.
+ * </p>
+ */
+public final class TimeCondition {
+
+    /**
+     * The max number of periods evaluated by a single search, when reached
+     * the start of the current period is returned
+     */
+    public static final int MAX_EVALUATIONS = 20000;
+    private static final int SECOND_LEVEL = 5;
+    // the calendar field of every search level, from years to seconds
+    private static final int[] LEVELS = {Calendar.YEAR, Calendar.MONTH, Calendar.DAY_OF_MONTH,
+        Calendar.HOUR_OF_DAY, Calendar.MINUTE, Calendar.SECOND};
+    private static final Pattern INTERVAL = Pattern.compile("(\\d{1,2}):(\\d{2}):(\\d{2})-(\\d{1,2}):(\\d{2}):(\\d{2})");
+    private final List<Condition> conditions;
+
+    private TimeCondition(List<Condition> conditions) {
+        this.conditions = conditions;
+    }
+
+    /**
+     * Compiles the statements of a payload. Only payloads made of date and
+     * time statements with constant values can be compiled, the
+     * <code>event.*</code> statements are ignored as in
+     * {@link Payload#equals(Object)}.
+     *
+     * @param payload the payload to compile (eg: the payload of a trigger)
+     * @return the compiled condition or null if the payload has other
+     * statements or values resolved at runtime (<code>@event.*</code>
+     * references and <code>=</code> scripts)
+     */
+    public static TimeCondition compile(Payload payload) {
+        List<Condition> conditions = new ArrayList<Condition>();
+        synchronized (payload.getStatements()) {
+            for (Statement statement : payload.getStatements()) {
+                if (statement.getAttribute().startsWith("event.")) {
+                    continue;
+                }
+                Field field = Field.of(statement.getAttribute());
+                String value = statement.getValue();
+                if (field == null || value == null || statement.getLogical() == null || statement.getOperand() == null
+                        || value.contains("@") || value.trim().startsWith("=")) {
+                    return null;
+                }
+                try {
+                    // fails on unknown operands, as the trigger check would do
+                    new ExpressionFactory<Expression>().createExpression("", statement.getOperand(), "");
+                } catch (UnsupportedOperationException e) {
+                    return null;
+                }
+                conditions.add(new Condition(statement.getLogical(), field, statement.getOperand(), value.trim()));
+            }
+        }
+        return new TimeCondition(Collections.unmodifiableList(conditions));
+    }
+
+    /**
+     * Checks if the condition has no statements, that is it is consistent
+     * with any date and time.
+     *
+     * @return true if the condition is always true
+     */
+    public boolean isUnconditional() {
+        return conditions.isEmpty();
+    }
+
+    /**
+     * Returns the first second, starting from the given time, in which the
+     * statements can be consistent with the time context of an event.
+     *
+     * @param fromMillis the start of the search in milliseconds, rounded up
+     * to the next second
+     * @param untilMillis the end of the search (exclusive) in milliseconds
+     * @return the start of the found second in milliseconds, -1 if the
+     * statements are always false until the end of the search
+     */
+    public long next(long fromMillis, long untilMillis) {
+        long from = ((fromMillis + 999) / 1000) * 1000;
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(from);
+        floor(calendar, 0);
+        return new Search(from, untilMillis).find(calendar, 0, Long.MAX_VALUE);
+    }
+
+    /*
+     * Truncates the calendar to the start of the period of the given level
+     */
+    private static void floor(Calendar calendar, int level) {
+        for (int i = level + 1; i < LEVELS.length; i++) {
+            calendar.set(LEVELS[i], calendar.getActualMinimum(LEVELS[i]));
+        }
+        calendar.set(Calendar.MILLISECOND, 0);
+    }
+
+    /*
+     * Evaluates the statements in the period starting at the calendar time,
+     * the fields up to the given level are fixed in the period
+     */
+    private Truth evaluate(Calendar calendar, int level) {
+        Truth result = Truth.TRUE;
+        for (Condition condition : conditions) {
+            if (condition.logical.equalsIgnoreCase(Statement.SET)) {
+                return Truth.TRUE;
+            }
+            Truth truth;
+            try {
+                truth = condition.evaluate(calendar, level);
+            } catch (RuntimeException e) {
+                // the trigger check fails as well
+                return Truth.FALSE;
+            }
+            if (condition.logical.equalsIgnoreCase(Statement.AND)) {
+                result = result.and(truth);
+            } else if (condition.logical.equalsIgnoreCase(Statement.OR)) {
+                result = result.or(truth);
+            }
+        }
+        return result;
+    }
+
+    private static Integer parseInteger(String value) {
+        try {
+            return Integer.valueOf(value);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * A three valued logic: MAYBE means the value can be different for
+     * different instants of the evaluated period
+     */
+    private enum Truth {
+
+        TRUE, FALSE, MAYBE;
+
+        Truth and(Truth other) {
+            if (this == FALSE || other == FALSE) {
+                return FALSE;
+            }
+            return this == TRUE && other == TRUE ? TRUE : MAYBE;
+        }
+
+        Truth or(Truth other) {
+            if (this == TRUE || other == TRUE) {
+                return TRUE;
+            }
+            return this == FALSE && other == FALSE ? FALSE : MAYBE;
+        }
+
+        static Truth of(boolean value) {
+            return value ? TRUE : FALSE;
+        }
+    }
+
+    /**
+     * The statements added by {@link TimeContext} and the search level at
+     * which they are fixed
+     */
+    private enum Field {
+
+        YEAR("date.year", 0),
+        MONTH("date.month", 1),
+        MONTH_NAME("date.month.name", 1),
+        DAY("date.day", 2),
+        DOW("date.dow", 2),
+        DAY_NAME("date.day.name", 2),
+        DATE("date", 2),
+        HOUR("time.hour", 3),
+        MINUTE("time.minute", 4),
+        SECOND("time.second", 5),
+        TIME("time", 5);
+        private final String attribute;
+        private final int level;
+
+        Field(String attribute, int level) {
+            this.attribute = attribute;
+            this.level = level;
+        }
+
+        static Field of(String attribute) {
+            for (Field field : values()) {
+                if (field.attribute.equalsIgnoreCase(attribute)) {
+                    return field;
+                }
+            }
+            return null;
+        }
+
+        /*
+         * The value of the statement, in the same format used by TimeContext
+         */
+        String format(Calendar calendar) {
+            switch (this) {
+                case YEAR:
+                    return Integer.toString(calendar.get(Calendar.YEAR));
+                case MONTH:
+                    return Integer.toString(calendar.get(Calendar.MONTH) + 1);
+                case MONTH_NAME:
+                    return calendar.getDisplayName(Calendar.MONTH, Calendar.LONG, Locale.UK);
+                case DAY:
+                    return Integer.toString(calendar.get(Calendar.DAY_OF_MONTH));
+                case DOW:
+                    return Integer.toString(calendar.get(Calendar.DAY_OF_WEEK));
+                case DAY_NAME:
+                    return calendar.getDisplayName(Calendar.DAY_OF_WEEK, Calendar.LONG, Locale.UK);
+                case DATE:
+                    return String.format("%04d%02d%02d", calendar.get(Calendar.YEAR),
+                            calendar.get(Calendar.MONTH) + 1, calendar.get(Calendar.DAY_OF_MONTH));
+                case HOUR:
+                    return Integer.toString(calendar.get(Calendar.HOUR_OF_DAY));
+                case MINUTE:
+                    return Integer.toString(calendar.get(Calendar.MINUTE));
+                case SECOND:
+                    return Integer.toString(calendar.get(Calendar.SECOND));
+                default:
+                    return String.format("%02d%02d%02d", calendar.get(Calendar.HOUR_OF_DAY),
+                            calendar.get(Calendar.MINUTE), calendar.get(Calendar.SECOND));
+            }
+        }
+
+        /*
+         * The lowest and highest numeric value of the statement in a period
+         * in which it is not fixed, null for the names
+         */
+        int[] range(Calendar calendar, int level) {
+            int year = calendar.get(Calendar.YEAR);
+            int month = calendar.get(Calendar.MONTH) + 1;
+            int hour = calendar.get(Calendar.HOUR_OF_DAY);
+            switch (this) {
+                case MONTH:
+                    return new int[]{1, 12};
+                case DAY:
+                    return new int[]{1, level >= 1 ? calendar.getActualMaximum(Calendar.DAY_OF_MONTH) : 31};
+                case DOW:
+                    return new int[]{1, 7};
+                case DATE:
+                    return level >= 1
+                            ? new int[]{year * 10000 + month * 100 + 1,
+                                year * 10000 + month * 100 + calendar.getActualMaximum(Calendar.DAY_OF_MONTH)}
+                            : new int[]{year * 10000 + 101, year * 10000 + 1231};
+                case HOUR:
+                    return new int[]{0, 23};
+                case MINUTE:
+                case SECOND:
+                    return new int[]{0, 59};
+                case TIME:
+                    if (level >= 4) {
+                        int minute = hour * 10000 + calendar.get(Calendar.MINUTE) * 100;
+                        return new int[]{minute, minute + 59};
+                    }
+                    return level == 3 ? new int[]{hour * 10000, hour * 10000 + 5959} : new int[]{0, 235959};
+                default:
+                    return null;
+            }
+        }
+    }
+
+    /**
+     * A compiled statement
+     */
+    private static final class Condition {
+
+        private final String logical;
+        private final Field field;
+        private final String operand;
+        private final String value;
+        private final Integer number;
+        // the HHmmss bounds of a BETWEEN_TIME interval
+        private final int[] interval;
+
+        Condition(String logical, Field field, String operand, String value) {
+            this.logical = logical;
+            this.field = field;
+            this.operand = operand;
+            this.value = value;
+            this.number = parseInteger(value);
+            Matcher matcher = INTERVAL.matcher(value);
+            if (operand.equals(Statement.BETWEEN_TIME) && matcher.matches()) {
+                interval = new int[]{
+                    Integer.parseInt(matcher.group(1)) * 10000 + Integer.parseInt(matcher.group(2)) * 100
+                    + Integer.parseInt(matcher.group(3)),
+                    Integer.parseInt(matcher.group(4)) * 10000 + Integer.parseInt(matcher.group(5)) * 100
+                    + Integer.parseInt(matcher.group(6))};
+            } else {
+                interval = null;
+            }
+        }
+
+        Truth evaluate(Calendar calendar, int level) {
+            if (field.level <= level) {
+                Expression expression = new ExpressionFactory<Expression>().createExpression(field.format(calendar), operand, value);
+                return Truth.of((Boolean) expression.evaluate());
+            }
+            if (operand.equals(Statement.EQUALS) && value.equals(Statement.ANY)) {
+                return Truth.TRUE;
+            }
+            int[] range = field.range(calendar, level);
+            if (range == null) {
+                return Truth.MAYBE;
+            }
+            int low = range[0];
+            int high = range[1];
+            // the numeric values are never equal to, nor comparable with, a non integer value
+            if (operand.equals(Statement.EQUALS)) {
+                return number == null || number < low || number > high ? Truth.FALSE : Truth.MAYBE;
+            } else if (operand.equals(Statement.GREATER_THAN)) {
+                return number == null || high <= number ? Truth.FALSE : (low > number ? Truth.TRUE : Truth.MAYBE);
+            } else if (operand.equals(Statement.GREATER_EQUAL_THAN)) {
+                return number == null || high < number ? Truth.FALSE : (low >= number ? Truth.TRUE : Truth.MAYBE);
+            } else if (operand.equals(Statement.LESS_THAN)) {
+                return number == null || low >= number ? Truth.FALSE : (high < number ? Truth.TRUE : Truth.MAYBE);
+            } else if (operand.equals(Statement.LESS_EQUAL_THAN)) {
+                return number == null || low > number ? Truth.FALSE : (high <= number ? Truth.TRUE : Truth.MAYBE);
+            } else if (interval != null && field == Field.TIME) {
+                return between(low, high, interval[0], interval[1]);
+            }
+            return Truth.MAYBE;
+        }
+
+        /*
+         * Same logic of BetweenTime: the bounds are excluded, unless the
+         * interval crosses midnight
+         */
+        private static Truth between(int low, int high, int start, int end) {
+            if (start < end) {
+                if (low > start && high < end) {
+                    return Truth.TRUE;
+                }
+                return high <= start || low >= end ? Truth.FALSE : Truth.MAYBE;
+            }
+            if (low >= start || high <= end) {
+                return Truth.TRUE;
+            }
+            return low > end && high < start ? Truth.FALSE : Truth.MAYBE;
+        }
+    }
+
+    /**
+     * The state of a single search
+     */
+    private final class Search {
+
+        private final long from;
+        private final long until;
+        private int evaluations;
+
+        Search(long from, long until) {
+            this.from = from;
+            this.until = until;
+        }
+
+        /*
+         * Goes through the periods of the given level from the calendar time
+         * to the end of the parent period
+         */
+        long find(Calendar start, int level, long end) {
+            Calendar calendar = (Calendar) start.clone();
+            while (true) {
+                long periodStart = calendar.getTimeInMillis();
+                if (periodStart >= end || periodStart >= until) {
+                    return -1;
+                }
+                Calendar next = (Calendar) calendar.clone();
+                next.add(LEVELS[level], 1);
+                if (next.getTimeInMillis() > from) {
+                    if (++evaluations > MAX_EVALUATIONS) {
+                        return Math.max(periodStart, from);
+                    }
+                    Truth truth = evaluate(calendar, level);
+                    if (truth == Truth.TRUE) {
+                        return Math.max(periodStart, from);
+                    }
+                    if (truth == Truth.MAYBE && level < SECOND_LEVEL) {
+                        Calendar child = (Calendar) calendar.clone();
+                        if (periodStart < from) {
+                            child.setTimeInMillis(from);
+                            floor(child, level + 1);
+                        }
+                        long found = find(child, level + 1, next.getTimeInMillis());
+                        if (found >= 0 || evaluations > MAX_EVALUATIONS) {
+                            return found >= 0 ? found : Math.max(periodStart, from);
+                        }
+                    }
+                }
+                calendar = next;
+            }
+        }
+    }
+}
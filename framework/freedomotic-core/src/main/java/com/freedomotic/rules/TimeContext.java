@@ -0,0 +1,182 @@
+/**
+ *
+ * Copyright (c) 2009-2016 Freedomotic team http://freedomotic.com
+ *
+ * This file is part of Freedomotic
+ *
+ * This Program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2, or (at your option) any later version.
+ *
+ * This Program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Freedomotic; see the file COPYING. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.freedomotic.rules;
+
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * The date and time statements added to every event payload (date.day,
+ * time.hour, ...).
+ * <p>
+ * They are computed at most once per second and shared by all the payloads
+ * created in the same second, which copy them in their statements only when
+ * they are read (see {@link Payload#setTimeContext(TimeContext)}). A
+ * resolution context (eg: @event.date.day) reads them through a prefixed view
+ * of the same second, see {@link #withPrefix(String)}.
+ */
+public final class TimeContext {
+
+    private static volatile TimeContext current;
+    private final long second;
+    private final String prefix;
+    private final List<Statement> statements;
+    // the last prefixed view of this context, in practice always "event."
+    private volatile TimeContext prefixed;
+
+    private TimeContext(long millis) {
+        this.second = millis / 1000;
+        this.prefix = "";
+        Calendar rightNow = Calendar.getInstance();
+        rightNow.setTimeInMillis(millis);
+        DateFormat datefmt = new SimpleDateFormat("yyyyMMdd");
+        DateFormat timefmt = new SimpleDateFormat("HHmmss");
+
+        List<Statement> list = new ArrayList<Statement>(12);
+        add(list, "date.day.name", rightNow.getDisplayName(Calendar.DAY_OF_WEEK, Calendar.LONG, Locale.UK));
+        add(list, "date.day", rightNow.get(Calendar.DAY_OF_MONTH));
+        add(list, "date.month.name", rightNow.getDisplayName(Calendar.MONTH, Calendar.LONG, Locale.UK));
+        add(list, "date.month", rightNow.get(Calendar.MONTH) + 1);
+        add(list, "date.year", rightNow.get(Calendar.YEAR));
+        add(list, "date.dow", rightNow.get(Calendar.DAY_OF_WEEK));
+        add(list, "time.hour", rightNow.get(Calendar.HOUR_OF_DAY));
+        add(list, "time.minute", rightNow.get(Calendar.MINUTE));
+        add(list, "time.second", rightNow.get(Calendar.SECOND));
+        add(list, "time", timefmt.format(rightNow.getTime()));
+        add(list, "date", datefmt.format(rightNow.getTime()));
+        this.statements = Collections.unmodifiableList(list);
+    }
+
+    private TimeContext(TimeContext context, String prefix) {
+        this.second = context.second;
+        this.prefix = context.prefix + prefix;
+        List<Statement> list = new ArrayList<Statement>(context.statements.size());
+        for (Statement statement : context.statements) {
+            list.add(new Statement().create(statement.getLogical(), prefix + statement.getAttribute(),
+                    statement.getOperand(), statement.getValue()));
+        }
+        this.statements = Collections.unmodifiableList(list);
+    }
+
+    private static void add(List<Statement> list, String attribute, int value) {
+        add(list, attribute, Integer.toString(value));
+    }
+
+    private static void add(List<Statement> list, String attribute, String value) {
+        Statement statement = new Statement().create(Statement.AND, attribute, Statement.EQUALS, value);
+        if (statement != null && !list.contains(statement)) {
+            list.add(statement);
+        }
+    }
+
+    /**
+     * Returns the time context of the second including the given time.
+     *
+     * @param millis the time in milliseconds
+     * @return the time context
+     */
+    public static TimeContext at(long millis) {
+        TimeContext context = current;
+        if (context == null || context.second != millis / 1000) {
+            context = new TimeContext(millis);
+            current = context;
+        }
+        return context;
+    }
+
+    /**
+     * Returns the same date and time statements with the given prefix in
+     * front of their attribute names (eg: event.date.day). The view is
+     * created once and reused by all the payloads of the same second.
+     *
+     * @param prefix the attribute prefix, can be empty
+     * @return the prefixed time context
+     */
+    public TimeContext withPrefix(String prefix) {
+        if (prefix.isEmpty()) {
+            return this;
+        }
+        TimeContext view = prefixed;
+        if (view == null || !view.prefix.equals(this.prefix + prefix)) {
+            view = new TimeContext(this, prefix);
+            prefixed = view;
+        }
+        return view;
+    }
+
+    /**
+     * Returns the start of the second of these date and time statements.
+     *
+     * @return the time in milliseconds
+     */
+    public long getTime() {
+        return second * 1000;
+    }
+
+    /**
+     * Returns the prefix of the attribute names, empty for the date and time
+     * statements of an event.
+     *
+     * @return the attribute prefix
+     */
+    public String getPrefix() {
+        return prefix;
+    }
+
+    /**
+     * Returns the date and time statements. They are shared, callers must not
+     * modify them.
+     *
+     * @return the read only list of statements
+     */
+    public List<Statement> getStatements() {
+        return statements;
+    }
+
+    /**
+     * Checks if this context has statements with the given attribute name
+     * (case insensitive).
+     *
+     * @param attribute the attribute name
+     * @return true if there are statements with the given attribute
+     */
+    public boolean provides(String attribute) {
+        if (attribute == null || attribute.length() < prefix.length() + 4
+                || !attribute.regionMatches(true, 0, prefix, 0, prefix.length())) {
+            return false;
+        }
+        // all the attributes start with the prefix and "date" or "time"
+        char first = attribute.charAt(prefix.length());
+        if (first != 'd' && first != 'D' && first != 't' && first != 'T') {
+            return false;
+        }
+        for (Statement statement : statements) {
+            if (statement.getAttribute().equalsIgnoreCase(attribute)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -23,13 +23,15 @@ import com.freedomotic.behaviors.BehaviorLogic;
 import com.freedomotic.app.Freedomotic;
 import com.freedomotic.bus.BusService;
 import com.freedomotic.core.Resolver;
+import com.freedomotic.core.ScriptEvaluator;
 import com.freedomotic.core.SynchAction;
 import com.freedomotic.core.SynchThingRequest;
 import com.freedomotic.environment.EnvironmentLogic;
 import com.freedomotic.environment.EnvironmentRepository;
 import com.freedomotic.environment.ZoneLogic;
-import com.freedomotic.events.ObjectHasChangedBehavior;
 import com.freedomotic.exceptions.VariableResolutionException;
+import com.freedomotic.metrics.Span;
+import com.freedomotic.metrics.Tracer;
 import com.freedomotic.model.ds.Config;
 import com.freedomotic.model.geometry.FreedomPolygon;
 import com.freedomotic.model.geometry.FreedomShape;
@@ -45,7 +47,9 @@ import com.freedomotic.reactions.TriggerRepository;
 import com.freedomotic.util.TopologyUtils;
 import com.google.inject.Inject;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
@@ -68,6 +72,8 @@ public class EnvObjectLogic {
     private Map<String, Command> commandsMapping; //mapping between action name -> hardware command instance
     private Map<String, BehaviorLogic> behaviors = new HashMap<String, BehaviorLogic>();
     private EnvironmentLogic environment;
+    // zones this object was found in by the last topology update
+    private List<ZoneLogic> occupiedZones;
 
     @Inject
     protected EnvironmentRepository environmentRepository;
@@ -78,7 +84,13 @@ public class EnvObjectLogic {
     @Inject
     protected ReactionRepository reactionRepository;
     @Inject
+    protected ThingRepository thingRepository;
+    @Inject
     private BusService busService;
+    @Inject
+    private ScriptEvaluator scriptEvaluator;
+    @Inject
+    private ThingChangeNotifier changeNotifier;
 
     /**
      * Instantiation disabled from outside its package. Use
@@ -157,6 +169,7 @@ public class EnvObjectLogic {
         LOG.warn("Renaming object ''{}'' in ''{}''", new Object[]{oldName, newName});
         //change the object name
         this.getPojo().setName(newName);
+        thingRepository.reindex(this);
 
         //change trigger references to this object
         for (Trigger t : triggerRepository.findAll()) {
@@ -259,12 +272,8 @@ public class EnvObjectLogic {
     public synchronized void setChanged(boolean value) {
         if (value == true) {
             this.changed = true;
-
-            ObjectHasChangedBehavior objectEvent = new ObjectHasChangedBehavior(this, this);
-            //send multicast because an event must be received by all triggers registred on the destination channel
-            LOG.debug("Object {} changes something in its status (eg: a behavior value)",
-                    this.getPojo().getName());
-            busService.send(objectEvent);
+            // the event can be coalesced with the next changes of this object
+            changeNotifier.changed(this);
         } else {
             changed = false;
         }
@@ -364,8 +373,18 @@ public class EnvObjectLogic {
      */
     @RequiresPermissions("objects:delete")
     public final void destroy() {
+        // a deleted object must not be listed in any zone
+        if (occupiedZones != null) {
+            for (ZoneLogic zone : occupiedZones) {
+                zone.removeThing(this);
+            }
+            occupiedZones = null;
+        }
         pojo = null;
-        commandsMapping.clear();
+        // not initialized if init() was never called
+        if (commandsMapping != null) {
+            commandsMapping.clear();
+        }
         commandsMapping = null;
         behaviors.clear();
         behaviors = null;
@@ -466,21 +485,58 @@ public class EnvObjectLogic {
         FreedomPolygon translatedObject
                 = (FreedomPolygon) TopologyUtils.translate((FreedomPolygon) shape, xoffset, yoffset);
 
-        //REGRESSION
-        for (EnvironmentLogic locEnv : environmentRepository.findAll()) {
-            for (ZoneLogic zone : locEnv.getZones()) {
-                if (this.getEnvironment() == locEnv && TopologyUtils.intersects(translatedObject, zone.getPojo().getShape())) {
-                    //DEBUG: System.out.println("object " + getPojo().getName() + " intersects zone " + zone.getPojo().getName());
-                    //add to the zones this object belongs
-                    zone.getPojo().getObjects().add(this.getPojo());
-                    LOG.debug("Object {} is in zone {}", new Object[]{getPojo().getName(), zone.getPojo().getName()});
-                } else {
+        // only the zones of the object environment whose bounding box overlaps the object are checked
+        List<ZoneLogic> currentZones = getEnvironment() != null
+                ? getEnvironment().findZonesIntersecting(translatedObject)
+                : Collections.<ZoneLogic>emptyList();
+
+        if (occupiedZones == null) {
+            // first update, the object may be listed in any zone
+            for (EnvironmentLogic locEnv : environmentRepository.findAll()) {
+                for (ZoneLogic zone : locEnv.getZones()) {
+                    if (!currentZones.contains(zone)) {
+                        zone.removeThing(this);
+                    }
+                }
+            }
+        } else {
+            for (ZoneLogic zone : occupiedZones) {
+                if (!currentZones.contains(zone)) {
                     //remove from the zone
-                    zone.getPojo().getObjects().remove(this.getPojo());
-                    //DEBUG: System.out.println("object " + getPojo().getName() + " NOT intersects zone " + zone.getPojo().getName());
+                    zone.removeThing(this);
                 }
             }
         }
+
+        for (ZoneLogic zone : currentZones) {
+            //add to the zones this object belongs
+            zone.addThing(this);
+            LOG.debug("Object {} is in zone {}", new Object[]{getPojo().getName(), zone.getPojo().getName()});
+        }
+        occupiedZones = currentZones;
+    }
+
+    /**
+     * Forgets a zone removed from the environment of this object.
+     *
+     * @param zone the removed zone
+     */
+    @RequiresPermissions("objects:update")
+    public void zoneRemoved(ZoneLogic zone) {
+        occupiedZones = without(occupiedZones, zone);
+    }
+
+    /*
+     * Returns the given zones without the given zone, a new list is created
+     * only if the zone is listed
+     */
+    static List<ZoneLogic> without(List<ZoneLogic> zones, ZoneLogic zone) {
+        if (zones == null || !zones.contains(zone)) {
+            return zones;
+        }
+        List<ZoneLogic> remaining = new ArrayList<ZoneLogic>(zones);
+        remaining.remove(zone);
+        return remaining;
     }
 
     /**
@@ -545,6 +601,15 @@ public class EnvObjectLogic {
      */
     @RequiresPermissions("objects:read")
     protected final boolean executeCommand(final String action, final Config params) {
+        Span span = Tracer.start("thing.command").tag(getPojo().getName() + " " + action);
+        try {
+            return executeHardwareCommand(action, params);
+        } finally {
+            span.end();
+        }
+    }
+
+    private boolean executeHardwareCommand(final String action, final Config params) {
         LOG.debug("Executing action ''{}'' of object ''{}''", new Object[]{action, getPojo().getName()});
 
         if (getPojo().getActAs().equalsIgnoreCase("virtual")) {
@@ -572,7 +637,7 @@ public class EnvObjectLogic {
         LOG.debug("Environment object ''{}'' tries to ''{}'' itself using hardware command ''{}''",
                 new Object[]{pojo.getName(), action, command.getName()});
 
-        Resolver resolver = new Resolver();
+        Resolver resolver = new Resolver(scriptEvaluator);
         //adding a resolution context for object that owns this hardware level command. 'owner.' is the prefix of this context
         resolver.addContext("", params);
         resolver.addContext("owner.", getExposedProperties());
@@ -641,21 +706,31 @@ public class EnvObjectLogic {
                 t.setName(t.getName().replace(oldName, newName));
                 LOG.warn("Trigger name renamed to {}", t.getName());
             }
+            boolean renamed = false;
             Iterator<Statement> it = t.getPayload().iterator();
             while (it.hasNext()) {
                 Statement statement = it.next();
                 if (statement.getValue().contains(oldName)) {
                     statement.setValue(statement.getValue().replace(oldName, newName));
                     LOG.warn("Trigger value in payload renamed to {}", statement.getValue());
+                    renamed = true;
                 }
             }
+            if (renamed) {
+                // the trigger dispatcher indexes the statement values when the payload is set
+                t.setPayload(t.getPayload());
+            }
         }
     }
 
     @RequiresPermissions({"objects:read", "commands:update"})
     private void renameValuesInCommand(Command c, String oldName, String newName) {
         if (c.getName().contains(oldName)) {
+            // the command is stored again with its new name, updating the
+            // repository version the command name indexes depend on
+            commandRepository.delete(c);
             c.setName(c.getName().replace(oldName, newName));
+            commandRepository.create(c);
             LOG.warn("Command name renamed to {}", c.getName());
         }
 
@@ -712,6 +787,7 @@ public class EnvObjectLogic {
         }
         this.environment = selEnv;
         getPojo().setEnvironmentID(selEnv.getPojo().getUUID());
+        thingRepository.reindex(this);
         // update topology information
         updateTopology();
     }
@@ -724,6 +800,7 @@ public class EnvObjectLogic {
     public void addTags(String tagList) {
         String[] tags = tagList.toLowerCase().split(",");
         getPojo().getTagsList().addAll(Arrays.asList(tags));
+        thingRepository.reindex(this);
     }
     private static final Logger LOG = LoggerFactory.getLogger(EnvObjectLogic.class.getName());
 }
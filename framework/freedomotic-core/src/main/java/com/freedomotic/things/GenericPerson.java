@@ -19,7 +19,10 @@
  */
 package com.freedomotic.things;
 
+import com.freedomotic.environment.ZoneLogic;
 import com.freedomotic.things.EnvObjectLogic;
+import java.util.List;
+import org.apache.shiro.authz.annotation.RequiresPermissions;
 
 /**
  *
@@ -27,4 +30,37 @@ import com.freedomotic.things.EnvObjectLogic;
  */
 public class GenericPerson extends EnvObjectLogic {
 
+    // zones containing the location of this person, set by the TopologyManager
+    private volatile List<ZoneLogic> locationZones;
+
+    /**
+     * Returns the zones containing the location of this person after the last
+     * location event.
+     *
+     * @return the zones, null if no location event was received yet
+     */
+    @RequiresPermissions("objects:read")
+    public List<ZoneLogic> getLocationZones() {
+        return locationZones;
+    }
+
+    /**
+     * Sets the zones containing the location of this person.
+     *
+     * @param zones the zones containing the person location
+     */
+    @RequiresPermissions("objects:update")
+    public void setLocationZones(List<ZoneLogic> zones) {
+        this.locationZones = zones;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    @RequiresPermissions("objects:update")
+    public void zoneRemoved(ZoneLogic zone) {
+        super.zoneRemoved(zone);
+        locationZones = without(locationZones, zone);
+    }
 }
@@ -0,0 +1,122 @@
+/**
+ *
+ * Copyright (c) 2009-2016 Freedomotic team http://freedomotic.com
+ *
+ * This file is part of Freedomotic
+ *
+ * This Program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2, or (at your option) any later version.
+ *
+ * This Program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Freedomotic; see the file COPYING. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.freedomotic.things;
+
+import com.freedomotic.bus.BusService;
+import com.freedomotic.events.ObjectHasChangedBehavior;
+import com.freedomotic.metrics.Metrics;
+import com.freedomotic.settings.AppConfig;
+import com.google.inject.Inject;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Sends the {@link ObjectHasChangedBehavior} events of the things.
+ * <p>
+ * The behaviors changed since the last event of a thing are marked as changed
+ * and the event includes only them (with the current object properties). If
+ * KEY_THING_CHANGE_WINDOW (milliseconds, default 0) is greater than zero the
+ * changes of a thing within the window are coalesced: the first change
+ * schedules the event at the end of the window and the event carries all the
+ * behaviors changed in the meantime, with their last value. Intermediate
+ * values are not notified, so keep the window at zero if triggers must see
+ * every transition (eg: short button presses).
+ * </p>
+ */
+public class ThingChangeNotifier {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ThingChangeNotifier.class.getName());
+    private static final String CHANGES = "things.changes";
+    private static final String CHANGE_EVENTS = "things.change.events";
+    private final BusService busService;
+    private final long window;
+    // things with an event already scheduled (guarded by itself)
+    private final Set<EnvObjectLogic> scheduled = Collections.newSetFromMap(new IdentityHashMap<EnvObjectLogic, Boolean>());
+    private ScheduledExecutorService scheduler;
+
+    @Inject
+    ThingChangeNotifier(AppConfig config, BusService busService) {
+        this.busService = busService;
+        this.window = config.getIntProperty("KEY_THING_CHANGE_WINDOW", 0);
+        if (window > 0) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "thing-change-notifier");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            LOG.info("Changes of things are notified every {}ms at most", window);
+        }
+    }
+
+    /**
+     * Notifies that the given thing has changed, its changed behaviors must
+     * be already marked as changed
+     *
+     * @param thing the changed thing
+     */
+    public void changed(final EnvObjectLogic thing) {
+        Metrics.counter(CHANGES).increment();
+        if (window <= 0) {
+            send(thing);
+            return;
+        }
+        synchronized (scheduled) {
+            if (!scheduled.add(thing)) {
+                // coalesced in the event already scheduled
+                return;
+            }
+        }
+        scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (scheduled) {
+                    scheduled.remove(thing);
+                }
+                try {
+                    send(thing);
+                } catch (RuntimeException e) {
+                    LOG.error("Cannot notify the changes of thing {}", thing.getPojo().getName(), e);
+                }
+            }
+        }, window, TimeUnit.MILLISECONDS);
+    }
+
+    private void send(EnvObjectLogic thing) {
+        ObjectHasChangedBehavior event;
+        // behaviors changed while the event is created are notified in the next one
+        synchronized (thing) {
+            event = new ObjectHasChangedBehavior(thing, thing);
+        }
+        LOG.debug("Object {} changes something in its status (eg: a behavior value)", thing.getPojo().getName());
+        Metrics.counter(CHANGE_EVENTS).increment();
+        //send multicast because an event must be received by all triggers registred on the destination channel
+        busService.send(event);
+    }
+}
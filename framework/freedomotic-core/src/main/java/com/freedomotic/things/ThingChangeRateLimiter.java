@@ -0,0 +1,216 @@
+/**
+ *
+ * Copyright (c) 2009-2016 Freedomotic team http://freedomotic.com
+ *
+ * This file is part of Freedomotic
+ *
+ * This Program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2, or (at your option) any later version.
+ *
+ * This Program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Freedomotic; see the file COPYING. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.freedomotic.things;
+
+import com.freedomotic.events.ObjectHasChangedBehavior;
+import com.freedomotic.rules.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits the rate of the {@link ObjectHasChangedBehavior} events received by
+ * a subscriber (eg: a frontend plugin) to one every given interval per thing.
+ * <p>
+ * An event arriving too early is kept and delivered at the end of the
+ * interval, merged with the events of the same thing arriving in the
+ * meantime: the last event is delivered with the behaviors changed only in
+ * the previous ones added to it. So the subscriber always receives the last
+ * value of every behavior, only intermediate values are skipped.
+ * </p>
+ * <p>
+ * The state of a thing is forgotten once its interval has elapsed with
+ * nothing left to deliver, so deleted things are not kept in memory.
+ * </p>
+ */
+public final class ThingChangeRateLimiter {
+
+    private static final String BEHAVIOR_PREFIX = "object.behavior.";
+    private final long minInterval;
+    private final Receiver receiver;
+    // thing UUID -> delivery state (guarded by this)
+    private final Map<String, State> states = new HashMap<String, State>();
+    // when the expired states have been removed (guarded by this)
+    private long lastSweep;
+
+    /**
+     * Receives the rate limited events
+     */
+    public interface Receiver {
+
+        /**
+         * Called when an event is delivered
+         *
+         * @param event the event, possibly merged with the previous ones of
+         * the same thing
+         */
+        void receive(ObjectHasChangedBehavior event);
+    }
+
+    /**
+     *
+     * @param minInterval the min interval in milliseconds between two events
+     * of the same thing
+     * @param receiver the receiver of the events
+     */
+    public ThingChangeRateLimiter(long minInterval, Receiver receiver) {
+        if (minInterval < 1 || receiver == null) {
+            throw new IllegalArgumentException("Invalid rate limiter configuration");
+        }
+        this.minInterval = minInterval;
+        this.receiver = receiver;
+    }
+
+    /**
+     * Delivers the event now or schedules its delivery at the end of the
+     * interval
+     *
+     * @param event the received event
+     */
+    public void offer(ObjectHasChangedBehavior event) {
+        final String thing = event.getProperty("object.uuid");
+        ObjectHasChangedBehavior deliverNow = null;
+        long delay = 0;
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            if (now - lastSweep >= minInterval) {
+                sweep(now);
+            }
+            State state = states.get(thing);
+            if (state == null) {
+                state = new State();
+                states.put(thing, state);
+            }
+            if (state.pending == null && now - state.lastDelivery >= minInterval) {
+                state.lastDelivery = now;
+                deliverNow = event;
+            } else {
+                state.pending = state.pending == null ? event : merge(state.pending, event);
+                if (state.scheduled) {
+                    return;
+                }
+                state.scheduled = true;
+                delay = Math.max(0, state.lastDelivery + minInterval - now);
+            }
+        }
+        if (deliverNow != null) {
+            receiver.receive(deliverNow);
+        } else {
+            Scheduler.INSTANCE.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    flush(thing);
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /*
+     * Removes the states of the things which would receive their next event
+     * right away, as if they were never seen
+     */
+    private void sweep(long now) {
+        Iterator<State> it = states.values().iterator();
+        while (it.hasNext()) {
+            State state = it.next();
+            if (state.pending == null && !state.scheduled && now - state.lastDelivery >= minInterval) {
+                it.remove();
+            }
+        }
+        lastSweep = now;
+    }
+
+    /**
+     * Returns the number of things whose state is kept
+     *
+     * @return the number of things
+     */
+    synchronized int size() {
+        return states.size();
+    }
+
+    private void flush(String thing) {
+        ObjectHasChangedBehavior event;
+        synchronized (this) {
+            State state = states.get(thing);
+            event = state.pending;
+            state.pending = null;
+            state.scheduled = false;
+            state.lastDelivery = System.currentTimeMillis();
+        }
+        if (event != null) {
+            receiver.receive(event);
+        }
+    }
+
+    /*
+     * Returns a copy of the newer event with the behaviors changed only in the
+     * older one, the received events may be shared with other subscribers so
+     * they are left untouched
+     */
+    static ObjectHasChangedBehavior merge(ObjectHasChangedBehavior older, ObjectHasChangedBehavior newer) {
+        List<Statement> missing = new ArrayList<Statement>();
+        List<Statement> statements = older.getPayload().getExplicitStatements();
+        synchronized (statements) {
+            for (Statement statement : statements) {
+                if (statement.getAttribute().startsWith(BEHAVIOR_PREFIX)
+                        && newer.getPayload().getStatements(statement.getAttribute()).isEmpty()) {
+                    missing.add(statement);
+                }
+            }
+        }
+        if (missing.isEmpty()) {
+            return newer;
+        }
+        ObjectHasChangedBehavior merged = new ObjectHasChangedBehavior(newer);
+        for (Statement statement : missing) {
+            merged.addProperty(statement.getAttribute(), statement.getValue());
+        }
+        return merged;
+    }
+
+    private static final class State {
+
+        private long lastDelivery;
+        private ObjectHasChangedBehavior pending;
+        private boolean scheduled;
+    }
+
+    /**
+     * A single timer thread shared by all the limiters, created on first use
+     */
+    private static final class Scheduler {
+
+        private static final ScheduledExecutorService INSTANCE = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "thing-change-rate-limiter");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+}
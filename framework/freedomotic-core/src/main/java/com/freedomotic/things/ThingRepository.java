@@ -31,6 +31,16 @@ import java.util.List;
  */
 public interface ThingRepository extends Repository<EnvObjectLogic> {
 
+    /**
+     * Returns all the things. The list is an immutable snapshot, it can be
+     * iterated while things are added or removed and it is not affected by
+     * these changes.
+     *
+     * @return the things in the repository
+     */
+    @Override
+    public List<EnvObjectLogic> findAll();
+
     public List<EnvObjectLogic> findByEnvironment(EnvironmentLogic env);
 
     public List<EnvObjectLogic> findByEnvironment(String uuid);
@@ -40,6 +50,34 @@ public interface ThingRepository extends Repository<EnvObjectLogic> {
     //TODO: should return a single element, done this way for backward compatibility
     public List<EnvObjectLogic> findByAddress(String protocol, String address);
 
+    /**
+     * Finds the things having at least one of the given tags
+     *
+     * @param tags a comma separated list of tags
+     * @return the things having at least one tag
+     */
+    public List<EnvObjectLogic> findByTags(String tags);
+
+    /**
+     * Updates the lookup indexes of a thing after its name, protocol,
+     * address, environment or tags are changed. Things not in the repository
+     * are ignored.
+     *
+     * @param thing the changed thing
+     */
+    public void reindex(EnvObjectLogic thing);
+
+    /**
+     * Adds many things at once, like {@link #create} does for each of
+     * them but publishing a single new version of the things list. Used to
+     * add the things loaded at startup.
+     *
+     * @param items the things to add
+     * @return the number of added things which did not replace a thing with
+     * the same UUID
+     */
+    public int createAll(List<EnvObjectLogic> items);
+
     //TODO: temporary for refactoring, should be removed
     public EnvObjectLogic load(File file) throws RepositoryException;
 
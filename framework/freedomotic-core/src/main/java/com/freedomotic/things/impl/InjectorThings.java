@@ -19,6 +19,7 @@
  */
 package com.freedomotic.things.impl;
 
+import com.freedomotic.things.ThingChangeNotifier;
 import com.freedomotic.things.ThingFactory;
 import com.freedomotic.things.ThingRepository;
 import com.google.inject.AbstractModule;
@@ -35,6 +36,7 @@ public class InjectorThings extends AbstractModule {
 
         bind(ThingRepository.class).to(ThingRepositoryImpl.class).in(Singleton.class);
         bind(ThingFactory.class);
+        bind(ThingChangeNotifier.class).in(Singleton.class);
 
     }
 }
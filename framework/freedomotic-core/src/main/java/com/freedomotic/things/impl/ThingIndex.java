@@ -0,0 +1,266 @@
+/**
+ *
+ * Copyright (c) 2009-2016 Freedomotic team http://freedomotic.com
+ *
+ * This file is part of Freedomotic
+ *
+ * This Program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2, or (at your option) any later version.
+ *
+ * This Program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Freedomotic; see the file COPYING. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.freedomotic.things.impl;
+
+import com.freedomotic.model.object.EnvObject;
+import com.freedomotic.things.EnvObjectLogic;
+import com.freedomotic.util.EqualsUtil;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Secondary indexes of the things in the repository, so that the lookups by
+ * name, protocol and address, protocol, tag, environment and UUID do not scan
+ * all the things.
+ * <p>
+ * Every index maps a key to the things (by UUID) having that key. The keys a
+ * thing is indexed with are remembered, so it can be removed or reindexed after
+ * its name, protocol, address, environment or tags are changed. Lookups check
+ * the current values of the candidates, so a thing changed and not yet
+ * reindexed is never returned for its old values. Names, protocols, addresses,
+ * environments and UUIDs are compared ignoring case, tags are compared as they
+ * are. Things deleted (and destroyed) while a lookup is running are skipped.
+ * </p>
+ */
+final class ThingIndex {
+
+    private final ConcurrentMap<String, EnvObjectLogic> byUuid = new ConcurrentHashMap<String, EnvObjectLogic>();
+    private final ConcurrentMap<String, ConcurrentMap<String, EnvObjectLogic>> byName = new ConcurrentHashMap<String, ConcurrentMap<String, EnvObjectLogic>>();
+    private final ConcurrentMap<String, ConcurrentMap<String, EnvObjectLogic>> byAddress = new ConcurrentHashMap<String, ConcurrentMap<String, EnvObjectLogic>>();
+    private final ConcurrentMap<String, ConcurrentMap<String, EnvObjectLogic>> byProtocol = new ConcurrentHashMap<String, ConcurrentMap<String, EnvObjectLogic>>();
+    private final ConcurrentMap<String, ConcurrentMap<String, EnvObjectLogic>> byEnvironment = new ConcurrentHashMap<String, ConcurrentMap<String, EnvObjectLogic>>();
+    private final ConcurrentMap<String, ConcurrentMap<String, EnvObjectLogic>> byTag = new ConcurrentHashMap<String, ConcurrentMap<String, EnvObjectLogic>>();
+    // the keys every thing is currently indexed with, by UUID (guarded by this for writes)
+    private final ConcurrentMap<String, Keys> indexed = new ConcurrentHashMap<String, Keys>();
+
+    /**
+     * Indexes a thing, replacing the thing with the same UUID if any
+     *
+     * @param thing the thing to index
+     */
+    synchronized void add(EnvObjectLogic thing) {
+        String uuid = thing.getPojo().getUUID();
+        remove(uuid);
+        Keys keys = new Keys(thing.getPojo());
+        byUuid.put(EqualsUtil.normalizeCase(uuid), thing);
+        put(byName, keys.name, uuid, thing);
+        put(byAddress, keys.address, uuid, thing);
+        put(byProtocol, keys.protocol, uuid, thing);
+        put(byEnvironment, keys.environment, uuid, thing);
+        for (String tag : keys.tags) {
+            put(byTag, tag, uuid, thing);
+        }
+        indexed.put(uuid, keys);
+    }
+
+    /**
+     * Updates the index of a thing after its values are changed. Things not
+     * in the index are ignored.
+     *
+     * @param thing the changed thing
+     */
+    synchronized void update(EnvObjectLogic thing) {
+        String uuid = thing.getPojo().getUUID();
+        if (uuid != null && byUuid.get(EqualsUtil.normalizeCase(uuid)) == thing) {
+            add(thing);
+        }
+    }
+
+    /**
+     * Removes a thing from the index
+     *
+     * @param uuid the UUID of the thing to remove
+     */
+    synchronized void remove(String uuid) {
+        if (uuid == null) {
+            return;
+        }
+        Keys keys = indexed.remove(uuid);
+        if (keys == null) {
+            return;
+        }
+        byUuid.remove(EqualsUtil.normalizeCase(uuid));
+        delete(byName, keys.name, uuid);
+        delete(byAddress, keys.address, uuid);
+        delete(byProtocol, keys.protocol, uuid);
+        delete(byEnvironment, keys.environment, uuid);
+        for (String tag : keys.tags) {
+            delete(byTag, tag, uuid);
+        }
+    }
+
+    /**
+     * Removes all the things from the index
+     */
+    synchronized void clear() {
+        indexed.clear();
+        byUuid.clear();
+        byName.clear();
+        byAddress.clear();
+        byProtocol.clear();
+        byEnvironment.clear();
+        byTag.clear();
+    }
+
+    EnvObjectLogic findByUuid(String uuid) {
+        if (uuid == null) {
+            return null;
+        }
+        EnvObjectLogic thing = byUuid.get(EqualsUtil.normalizeCase(uuid));
+        EnvObject pojo = thing != null ? thing.getPojo() : null;
+        return (pojo != null && uuid.equalsIgnoreCase(pojo.getUUID())) ? thing : null;
+    }
+
+    List<EnvObjectLogic> findByName(String name) {
+        List<EnvObjectLogic> result = new ArrayList<EnvObjectLogic>();
+        if (name != null) {
+            for (EnvObjectLogic thing : get(byName, EqualsUtil.normalizeCase(name))) {
+                EnvObject pojo = thing.getPojo();
+                if (pojo != null && name.equalsIgnoreCase(pojo.getName())) {
+                    result.add(thing);
+                }
+            }
+        }
+        return result;
+    }
+
+    List<EnvObjectLogic> findByAddress(String protocol, String address) {
+        List<EnvObjectLogic> result = new ArrayList<EnvObjectLogic>();
+        for (EnvObjectLogic thing : get(byAddress, addressKey(protocol, address))) {
+            EnvObject pojo = thing.getPojo();
+            if (pojo != null && protocol.equalsIgnoreCase(pojo.getProtocol())
+                    && address.equalsIgnoreCase(pojo.getPhisicalAddress())) {
+                result.add(thing);
+            }
+        }
+        return result;
+    }
+
+    List<EnvObjectLogic> findByProtocol(String protocol) {
+        List<EnvObjectLogic> result = new ArrayList<EnvObjectLogic>();
+        for (EnvObjectLogic thing : get(byProtocol, EqualsUtil.normalizeCase(protocol))) {
+            EnvObject pojo = thing.getPojo();
+            if (pojo != null && protocol.equalsIgnoreCase(pojo.getProtocol())) {
+                result.add(thing);
+            }
+        }
+        return result;
+    }
+
+    List<EnvObjectLogic> findByEnvironment(String uuid) {
+        List<EnvObjectLogic> result = new ArrayList<EnvObjectLogic>();
+        if (uuid != null) {
+            for (EnvObjectLogic thing : get(byEnvironment, EqualsUtil.normalizeCase(uuid))) {
+                EnvObject pojo = thing.getPojo();
+                if (pojo != null && uuid.equalsIgnoreCase(pojo.getEnvironmentID())) {
+                    result.add(thing);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the things having at least one of the given tags
+     *
+     * @param tags the tags to search
+     * @return the things having at least one tag, without duplicates
+     */
+    List<EnvObjectLogic> findByTags(Collection<String> tags) {
+        Set<String> found = new HashSet<String>();
+        List<EnvObjectLogic> result = new ArrayList<EnvObjectLogic>();
+        for (String tag : tags) {
+            for (EnvObjectLogic thing : get(byTag, tag)) {
+                EnvObject pojo = thing.getPojo();
+                if (pojo != null && pojo.getTagsList() != null && pojo.getTagsList().contains(tag) && found.add(pojo.getUUID())) {
+                    result.add(thing);
+                }
+            }
+        }
+        return result;
+    }
+
+    private static Collection<EnvObjectLogic> get(ConcurrentMap<String, ConcurrentMap<String, EnvObjectLogic>> index, String key) {
+        if (key == null) {
+            return Collections.emptyList();
+        }
+        ConcurrentMap<String, EnvObjectLogic> things = index.get(key);
+        return things != null ? things.values() : Collections.<EnvObjectLogic>emptyList();
+    }
+
+    private static void put(ConcurrentMap<String, ConcurrentMap<String, EnvObjectLogic>> index, String key, String uuid, EnvObjectLogic thing) {
+        if (key == null) {
+            return;
+        }
+        ConcurrentMap<String, EnvObjectLogic> things = index.get(key);
+        if (things == null) {
+            things = new ConcurrentHashMap<String, EnvObjectLogic>(4);
+            index.put(key, things);
+        }
+        things.put(uuid, thing);
+    }
+
+    private static void delete(ConcurrentMap<String, ConcurrentMap<String, EnvObjectLogic>> index, String key, String uuid) {
+        if (key == null) {
+            return;
+        }
+        ConcurrentMap<String, EnvObjectLogic> things = index.get(key);
+        if (things != null) {
+            things.remove(uuid);
+            if (things.isEmpty()) {
+                index.remove(key);
+            }
+        }
+    }
+
+    private static String addressKey(String protocol, String address) {
+        if (protocol == null || address == null) {
+            return null;
+        }
+        // the protocol cannot contain a line feed, so the key is not ambiguous
+        return EqualsUtil.normalizeCase(protocol) + '\n' + EqualsUtil.normalizeCase(address);
+    }
+
+    /**
+     * The keys a thing is indexed with
+     */
+    private static final class Keys {
+
+        private final String name;
+        private final String address;
+        private final String protocol;
+        private final String environment;
+        private final Set<String> tags;
+
+        Keys(EnvObject pojo) {
+            name = EqualsUtil.normalizeCase(pojo.getName());
+            protocol = EqualsUtil.normalizeCase(pojo.getProtocol());
+            address = addressKey(pojo.getProtocol(), pojo.getPhisicalAddress());
+            environment = EqualsUtil.normalizeCase(pojo.getEnvironmentID());
+            tags = pojo.getTagsList() != null ? new HashSet<String>(pojo.getTagsList()) : Collections.<String>emptySet();
+        }
+    }
+}
@@ -29,7 +29,10 @@ import com.freedomotic.things.EnvObjectLogic;
 import com.freedomotic.things.ThingFactory;
 import com.freedomotic.things.ThingRepository;
 import com.freedomotic.persistence.FreedomXStream;
+import com.freedomotic.persistence.DataSnapshot;
 import com.freedomotic.persistence.DataUpgradeService;
+import com.freedomotic.persistence.FolderPersister;
+import com.freedomotic.persistence.ParallelFileLoader;
 import com.freedomotic.persistence.XmlPreprocessor;
 import com.freedomotic.settings.Info;
 import com.freedomotic.util.SerialClone;
@@ -42,9 +45,10 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashMap;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
@@ -66,11 +70,16 @@ class ThingRepositoryImpl implements ThingRepository {
     public static final boolean MAKE_UNIQUE = true;
 
     public static final boolean MAKE_NOT_UNIQUE = false;
-    private static final Map<String, EnvObjectLogic> objectList = new HashMap<>();
+    // the current immutable snapshot of the things, replaced on every change (guarded by WRITE_LOCK for writes)
+    private static volatile Snapshot objectList = Snapshot.EMPTY;
+    private static final Object WRITE_LOCK = new Object();
+    // secondary indexes of objectList, updated when a thing is added, removed or changed
+    private static final ThingIndex index = new ThingIndex();
     private static final Logger LOG = LoggerFactory.getLogger(ThingRepositoryImpl.class.getName());
     // Dependencies
     private final ThingFactory thingsFactory;
     private final DataUpgradeService dataUpgradeService;
+    private final DataSnapshot dataSnapshot;
 
     /**
      *
@@ -78,15 +87,16 @@ class ThingRepositoryImpl implements ThingRepository {
      * @param environmentRepository
      */
     @Inject
-    public ThingRepositoryImpl(ThingFactory thingsFactory, DataUpgradeService dataUpgradeService) {
+    public ThingRepositoryImpl(ThingFactory thingsFactory, DataUpgradeService dataUpgradeService, DataSnapshot dataSnapshot) {
         this.thingsFactory = thingsFactory;
         this.dataUpgradeService = dataUpgradeService;
+        this.dataSnapshot = dataSnapshot;
     }
 
     @Deprecated
     @RequiresPermissions("objects:read")
     private static Collection<EnvObjectLogic> getObjectList() {
-        return objectList.values();
+        return objectList.things;
     }
 
     /**
@@ -96,7 +106,8 @@ class ThingRepositoryImpl implements ThingRepository {
      */
     @RequiresPermissions("objects:save")
     private static void saveObjects(File folder) throws RepositoryException {
-        if (objectList.isEmpty()) {
+        Snapshot snapshot = objectList;
+        if (snapshot.things.isEmpty()) {
             throw new RepositoryException("There are no object to persist, " + folder.getAbsolutePath()
                     + " will not be altered.");
         }
@@ -106,9 +117,9 @@ class ThingRepositoryImpl implements ThingRepository {
             throw new RepositoryException(folder.getAbsoluteFile() + " is not a valid object folder. Skipped");
         }
 
-        deleteObjectFiles(folder);
-
-        for (EnvObjectLogic envObject : objectList.values()) {
+        // only the changed things are written, files of removed things are deleted
+        Map<String, EnvObject> things = new LinkedHashMap<String, EnvObject>();
+        for (EnvObjectLogic envObject : snapshot.things) {
             String uuid = envObject.getPojo().getUUID();
 
             if ((uuid == null) || uuid.isEmpty()) {
@@ -121,40 +132,12 @@ class ThingRepositoryImpl implements ThingRepository {
 //                    envObject.getPojo()
 //                            .setEnvironmentID(EnvironmentPersistence.getEnvironments().get(0).getPojo().getUUID());
 //                }
-            String fileName = envObject.getPojo().getUUID() + ".xobj";
-            File file = new File(folder + "/" + fileName);
-            FreedomXStream.toXML(envObject.getPojo(), file);
-        }
-    }
-
-    private static void deleteObjectFiles(File folder) throws RepositoryException {
-        if ((folder == null) || !folder.isDirectory()) {
-            throw new IllegalArgumentException("Unable to delete objects files in a null or not valid folder");
+            things.put(envObject.getPojo().getUUID(), envObject.getPojo());
         }
-
-        File[] files = folder.listFiles();
-
-        // This filter only returns object files
-        FileFilter objectFileFileter
-                = new FileFilter() {
-                    @Override
-                    public boolean accept(File file) {
-                        if (file.isFile() && file.getName().endsWith(".xobj")) {
-                            return true;
-                        } else {
-                            return false;
-                        }
-                    }
-                };
-
-        files = folder.listFiles(objectFileFileter);
-
-        for (File file : files) {
-            boolean deleted = file.delete();
-
-            if (!deleted) {
-                throw new RepositoryException("Unable to delete file " + file.getAbsoluteFile());
-            }
+        try {
+            FolderPersister.of(folder, ".xobj").save(things);
+        } catch (IOException ex) {
+            throw new RepositoryException("Cannot save objects in " + folder.getAbsolutePath(), ex);
         }
     }
 
@@ -165,7 +148,7 @@ class ThingRepositoryImpl implements ThingRepository {
     @Deprecated
     @RequiresPermissions("objects:read")
     private static Iterator<EnvObjectLogic> iterator() {
-        return objectList.values().iterator();
+        return objectList.things.iterator();
     }
 
     /**
@@ -176,15 +159,8 @@ class ThingRepositoryImpl implements ThingRepository {
      */
     @RequiresPermissions("objects:read")
     private static EnvObjectLogic getObjectByName(String name) {
-        for (Iterator<EnvObjectLogic> it = ThingRepositoryImpl.iterator(); it.hasNext();) {
-            EnvObjectLogic object = it.next();
-            if (object.getPojo().getName().equalsIgnoreCase(name) //&& auth.isPermitted("objects:read:" + object.getPojo().getUUID())
-                    ) {
-                return object;
-            }
-        }
-
-        return null;
+        List<EnvObjectLogic> found = index.findByName(name);
+        return found.isEmpty() ? null : found.get(0);
     }
 
     /**
@@ -194,26 +170,15 @@ class ThingRepositoryImpl implements ThingRepository {
      */
     @RequiresPermissions("objects:read")
     private static ArrayList<EnvObjectLogic> getObjectByTags(String tags) {
-        ArrayList<EnvObjectLogic> results = new ArrayList<EnvObjectLogic>();
         // split tags string
-        String[] tagList = tags.split(",");
-
-        // search every object for at least one tag 
-        for (EnvObjectLogic obj : objectList.values()) {
-            Set<String> tagSet = new HashSet<String>();
-
-            for (String tag : tagList) {
-                if (!tag.trim().isEmpty()) {
-                    tagSet.add(tag.trim());
-                }
-            }
-            int prevCount = tagSet.size();
-            tagSet.removeAll(obj.getPojo().getTagsList());
-            if (prevCount > tagSet.size()) {
-                results.add(obj);
+        Set<String> tagSet = new HashSet<String>();
+        for (String tag : tags.split(",")) {
+            if (!tag.trim().isEmpty()) {
+                tagSet.add(tag.trim());
             }
         }
-        return results;
+        // search the objects having at least one tag
+        return new ArrayList<EnvObjectLogic>(index.findByTags(tagSet));
     }
 
     /**
@@ -225,14 +190,7 @@ class ThingRepositoryImpl implements ThingRepository {
     @Deprecated
     @RequiresPermissions("objects:read")
     private static EnvObjectLogic getObjectByUUID(String uuid) {
-        for (Iterator<EnvObjectLogic> it = iterator(); it.hasNext();) {
-            EnvObjectLogic object = it.next();
-            if (object.getPojo().getUUID().equalsIgnoreCase(uuid)) {
-                return object;
-            }
-        }
-
-        return null;
+        return index.findByUuid(uuid);
     }
 
     /**
@@ -251,15 +209,7 @@ class ThingRepositoryImpl implements ThingRepository {
             throw new IllegalArgumentException();
         }
 
-        ArrayList<EnvObjectLogic> list = new ArrayList<EnvObjectLogic>();
-        for (Iterator<EnvObjectLogic> it = ThingRepositoryImpl.iterator(); it.hasNext();) {
-            EnvObjectLogic object = it.next();
-            if ((object.getPojo().getProtocol().equalsIgnoreCase(protocol.trim()))
-                    && (object.getPojo().getPhisicalAddress().equalsIgnoreCase(address.trim())) //           && auth.isPermitted("objects:read:" + object.getPojo().getUUID())
-                    ) {
-                list.add(object);
-            }
-        }
+        ArrayList<EnvObjectLogic> list = new ArrayList<EnvObjectLogic>(index.findByAddress(protocol.trim(), address.trim()));
 
         if (list.isEmpty()) {
             LOG.warn("An object with protocol '" + protocol + "' and address '"
@@ -277,16 +227,7 @@ class ThingRepositoryImpl implements ThingRepository {
      */
     @RequiresPermissions("objects:read")
     private static ArrayList<EnvObjectLogic> getObjectByProtocol(String protocol) {
-        ArrayList<EnvObjectLogic> list = new ArrayList<EnvObjectLogic>();
-        for (Iterator<EnvObjectLogic> it = ThingRepositoryImpl.iterator(); it.hasNext();) {
-            EnvObjectLogic object = it.next();
-            if (object.getPojo().getProtocol().equalsIgnoreCase(protocol.trim()) // && auth.isPermitted("objects:read:" + object.getPojo().getUUID())
-                    ) {
-                list.add(object);
-            }
-        }
-
-        return list;
+        return new ArrayList<EnvObjectLogic>(index.findByProtocol(protocol.trim()));
     }
 
     /**
@@ -297,16 +238,7 @@ class ThingRepositoryImpl implements ThingRepository {
      */
     @RequiresPermissions("objects:read")
     private static ArrayList<EnvObjectLogic> getObjectByEnvironment(String uuid) {
-        ArrayList<EnvObjectLogic> list = new ArrayList<EnvObjectLogic>();
-        for (Iterator<EnvObjectLogic> it = ThingRepositoryImpl.iterator(); it.hasNext();) {
-            EnvObjectLogic object = it.next();
-            if (object.getPojo().getEnvironmentID().equalsIgnoreCase(uuid) //&& auth.isPermitted("objects:read:" + object.getPojo().getUUID().substring(0, 7))
-                    ) {
-                list.add(object);
-            }
-        }
-
-        return list;
+        return new ArrayList<EnvObjectLogic>(index.findByEnvironment(uuid));
     }
 
     /**
@@ -315,7 +247,7 @@ class ThingRepositoryImpl implements ThingRepository {
      */
     @RequiresPermissions("objects:read")
     private static int size() {
-        return objectList.size();
+        return objectList.things.size();
     }
 
     /**
@@ -325,14 +257,14 @@ class ThingRepositoryImpl implements ThingRepository {
     @Deprecated
     @RequiresPermissions("objects:delete")
     private static void remove(EnvObjectLogic input) {
-        objectList.remove(input.getPojo().getUUID());
+        removeThing(input.getPojo().getUUID());
         input.setChanged(true); //force repainting on frontends clients
         input.destroy(); //free memory
     }
 
     private static List<String> getObjectsNames() {
         List<String> list = new ArrayList<String>();
-        for (EnvObjectLogic obj : objectList.values()) {
+        for (EnvObjectLogic obj : objectList.things) {
             list.add(obj.getPojo().getName());
         }
         return list;
@@ -353,6 +285,15 @@ class ThingRepositoryImpl implements ThingRepository {
     @Deprecated
     @RequiresPermissions("objects:create")
     private EnvObjectLogic add(final EnvObjectLogic obj, final boolean MAKE_UNIQUE) {
+        EnvObjectLogic envObjectLogic = prepare(obj, MAKE_UNIQUE);
+        publish(envObjectLogic);
+        return envObjectLogic;
+    }
+
+    /*
+     * Validates the object in input and initializes it, or its unique copy
+     */
+    private EnvObjectLogic prepare(final EnvObjectLogic obj, final boolean MAKE_UNIQUE) {
         if ((obj == null)) {
             throw new IllegalArgumentException("Cannot add a null object to the environment");
         }
@@ -387,19 +328,99 @@ class ThingRepositoryImpl implements ThingRepository {
         }
 
         envObjectLogic.init();
+        return envObjectLogic;
+    }
 
-        if (!objectList.containsValue(envObjectLogic)) {
-            objectList.put(envObjectLogic.getPojo().getUUID(), envObjectLogic);
+    /*
+     * Adds an initialized object and notifies its creation. Returns false if
+     * it replaced an object with the same UUID
+     */
+    private boolean publish(EnvObjectLogic envObjectLogic) {
+        boolean added = addThing(envObjectLogic);
+        try {
+            envObjectLogic.setChanged(SynchAction.CREATED);
+        } catch (Exception e) {
+            LOG.warn("Thing was created, but cannot set it as Changed", e);
+        }
+        return added;
+    }
+
+    /*
+     * Adds initialized objects and notifies their creation, publishing a
+     * single snapshot for all of them. Returns the number of objects which
+     * did not replace an object with the same UUID
+     */
+    private int publish(List<EnvObjectLogic> envObjectLogics) {
+        int added = addThings(envObjectLogics);
+        for (EnvObjectLogic envObjectLogic : envObjectLogics) {
             try {
                 envObjectLogic.setChanged(SynchAction.CREATED);
             } catch (Exception e) {
                 LOG.warn("Thing was created, but cannot set it as Changed", e);
             }
-        } else {
-            throw new RuntimeException("Cannot add the same object more than one time");
         }
+        return added;
+    }
 
-        return envObjectLogic;
+    /*
+     * Publishes a new snapshot containing the given thing. Returns false if
+     * it replaced a thing with the same UUID
+     */
+    private static boolean addThing(EnvObjectLogic thing) {
+        return addThings(Collections.singletonList(thing)) == 1;
+    }
+
+    /*
+     * Publishes a single new snapshot containing the given things, so adding
+     * N things copies the snapshot once. Returns the number of things which
+     * did not replace a thing with the same UUID
+     */
+    private static int addThings(List<EnvObjectLogic> added) {
+        synchronized (WRITE_LOCK) {
+            Snapshot snapshot = objectList;
+            Map<String, EnvObjectLogic> things = new LinkedHashMap<String, EnvObjectLogic>(snapshot.byUuid);
+            int count = 0;
+            for (EnvObjectLogic thing : added) {
+                String uuid = thing.getPojo().getUUID();
+                if (thing.equals(things.get(uuid))) {
+                    throw new RuntimeException("Cannot add the same object more than one time");
+                }
+                if (things.put(uuid, thing) == null) {
+                    count++;
+                }
+            }
+            objectList = new Snapshot(things, snapshot.version + 1);
+            for (EnvObjectLogic thing : added) {
+                index.add(thing);
+            }
+            return count;
+        }
+    }
+
+    /*
+     * Publishes a new snapshot without the thing with the given UUID
+     */
+    private static EnvObjectLogic removeThing(String uuid) {
+        synchronized (WRITE_LOCK) {
+            Snapshot snapshot = objectList;
+            if (!snapshot.byUuid.containsKey(uuid)) {
+                return null;
+            }
+            Map<String, EnvObjectLogic> things = new LinkedHashMap<String, EnvObjectLogic>(snapshot.byUuid);
+            EnvObjectLogic removed = things.remove(uuid);
+            objectList = new Snapshot(things, snapshot.version + 1);
+            index.remove(uuid);
+            return removed;
+        }
+    }
+
+    /**
+     * Returns the version of the things snapshot, incremented on every change
+     *
+     * @return the snapshot version
+     */
+    static long getVersion() {
+        return objectList.version;
     }
 
     private String getNextInOrder(String name) {
@@ -420,33 +441,30 @@ class ThingRepositoryImpl implements ThingRepository {
     @Override
     public void deleteAll() {
         try {
-            for (EnvObjectLogic el : objectList.values()) {
+            for (EnvObjectLogic el : objectList.things) {
                 delete(el);
             }
         } catch (Exception e) {
         } finally {
-            objectList.clear();
+            synchronized (WRITE_LOCK) {
+                if (!objectList.things.isEmpty()) {
+                    objectList = new Snapshot(new LinkedHashMap<String, EnvObjectLogic>(), objectList.version + 1);
+                }
+                index.clear();
+            }
         }
     }
 
     @Override
     @RequiresPermissions("objects:read")
     public List<EnvObjectLogic> findAll() {
-        List<EnvObjectLogic> el = new ArrayList<EnvObjectLogic>();
-        el.addAll(objectList.values());
-        return el;
+        return objectList.things;
     }
 
     @Override
     @RequiresPermissions("objects:read")
     public List<EnvObjectLogic> findByName(String name) {
-        List<EnvObjectLogic> el = new ArrayList<EnvObjectLogic>();
-        for (EnvObjectLogic e : findAll()) {
-            if (e.getPojo().getName().equalsIgnoreCase(name)) {
-                el.add(e);
-            }
-        }
-        return el;
+        return index.findByName(name);
     }
 
     @Override
@@ -459,19 +477,32 @@ class ThingRepositoryImpl implements ThingRepository {
     @RequiresPermissions("objects:create")
     public boolean create(EnvObjectLogic item) {
         try {
-            int preSize = objectList.size();
-            add(item, false);
-            if (preSize + 1 == objectList.size()) {
-                return true;
-            } else {
-                return false;
-            }
+            return publish(prepare(item, false));
         } catch (Exception e) {
             LOG.error("Cannot create object", e);
             return false;
         }
     }
 
+    @Override
+    @RequiresPermissions("objects:create")
+    public int createAll(List<EnvObjectLogic> items) {
+        List<EnvObjectLogic> prepared = new ArrayList<EnvObjectLogic>(items.size());
+        for (EnvObjectLogic item : items) {
+            try {
+                prepared.add(prepare(item, false));
+            } catch (Exception e) {
+                LOG.error("Cannot create object", e);
+            }
+        }
+        try {
+            return publish(prepared);
+        } catch (Exception e) {
+            LOG.error("Cannot create objects", e);
+            return 0;
+        }
+    }
+
     @Override
     @RequiresPermissions("objects:delete")
     public boolean delete(EnvObjectLogic item) {
@@ -482,7 +513,7 @@ class ThingRepositoryImpl implements ThingRepository {
     @RequiresPermissions("objects:delete")
     public boolean delete(String uuid) {
         try {
-            EnvObjectLogic eol = objectList.remove(uuid);
+            EnvObjectLogic eol = removeThing(uuid);
             try {
                 eol.setChanged(SynchAction.DELETED); //force repainting on frontends clients
             } catch (Exception e) {
@@ -547,6 +578,22 @@ class ThingRepositoryImpl implements ThingRepository {
             throw new IllegalArgumentException("Thing file in input is not a file");
         }
 
+        EnvObjectLogic objectLogic = thingsFactory.create(parse(file, readDataVersion()));
+        LOG.info("Loaded Thing {} [id:{}] of type {}",
+                new Object[]{objectLogic.getPojo().getName(), objectLogic.getPojo().getUUID(), objectLogic.getClass().getCanonicalName()});
+        return objectLogic;
+    }
+
+    /**
+     * Reads, validates and upgrades a Thing file. It doesn't change the
+     * repository so it can be called concurrently.
+     *
+     * @param file the file to read
+     * @param fromVersion the version of the data to upgrade
+     * @return the deserialized Thing
+     * @throws RepositoryException
+     */
+    private EnvObject parse(File file, String fromVersion) throws RepositoryException {
         // Configure the deserialization engine
         LOG.debug("Loading Thing from file " + file.getAbsolutePath());
         XStream xstream = FreedomXStream.getXstream();
@@ -559,25 +606,12 @@ class ThingRepositoryImpl implements ThingRepository {
             //TODO: merge this upgrade code with the XmlPreprocessor (validation should be after the upgrade)
             // Upgrade the data to be compatible with the current version (skipped if already up to date)
             try {
-                Properties dataProperties = new Properties();
-                String fromVersion;
-                try {
-                    dataProperties.load(new FileInputStream(new File(Info.PATHS.PATH_DATA_FOLDER + "/data.properties")));
-                    fromVersion = dataProperties.getProperty("data.version");
-                } catch (IOException iOException) {
-                    // Fallback to a default version for older version without that properties file
-                    fromVersion = "5.5.0";
-                }
                 xml = (String) dataUpgradeService.upgrade(EnvObject.class, xml, fromVersion);
             } catch (DataUpgradeException dataUpgradeException) {
                 throw new RepositoryException("Cannot upgrade Thing file " + file.getAbsolutePath(), dataUpgradeException);
             }
             // Deserialize the object from the upgraded and validated xml
-            EnvObject pojo = (EnvObject) xstream.fromXML(xml);
-            EnvObjectLogic objectLogic = thingsFactory.create(pojo);
-            LOG.info("Loaded Thing {} [id:{}] of type {}",
-                    new Object[]{objectLogic.getPojo().getName(), objectLogic.getPojo().getUUID(), objectLogic.getClass().getCanonicalName()});
-            return objectLogic;
+            return (EnvObject) xstream.fromXML(xml);
         } catch (IOException ex) {
             throw new RepositoryException("Cannot read Thing file " + file.getAbsolutePath(), ex);
         } catch (XStreamException e) {
@@ -585,6 +619,17 @@ class ThingRepositoryImpl implements ThingRepository {
         }
     }
 
+    private static String readDataVersion() {
+        Properties dataProperties = new Properties();
+        try {
+            dataProperties.load(new FileInputStream(new File(Info.PATHS.PATH_DATA_FOLDER + "/data.properties")));
+            return dataProperties.getProperty("data.version");
+        } catch (IOException iOException) {
+            // Fallback to a default version for older version without that properties file
+            return "5.5.0";
+        }
+    }
+
     @Override
     public List<EnvObjectLogic> loadAll(File folder) throws RepositoryException {
         this.deleteAll();
@@ -606,12 +651,29 @@ class ThingRepositoryImpl implements ThingRepository {
         File[] files = folder.listFiles(objectFileFilter);
 
         if (files != null) {
-            for (File file : files) {
+            final String fromVersion = readDataVersion();
+            // Files are read and deserialized in parallel, the Things are
+            // created in files order
+            List<ParallelFileLoader.Result<EnvObject>> parsed = ParallelFileLoader.load(files, dataSnapshot.cached(
+                    new ParallelFileLoader.Parser<EnvObject>() {
+                        @Override
+                        public EnvObject parse(File file) throws RepositoryException {
+                            return ThingRepositoryImpl.this.parse(file, fromVersion);
+                        }
+                    }));
+            for (ParallelFileLoader.Result<EnvObject> result : parsed) {
                 try {
-                    EnvObjectLogic loaded = load(file);
+                    EnvObjectLogic loaded = thingsFactory.create(result.get());
+                    LOG.info("Loaded Thing {} [id:{}] of type {}",
+                            new Object[]{loaded.getPojo().getName(), loaded.getPojo().getUUID(), loaded.getClass().getCanonicalName()});
                     results.add(loaded);
                 } catch (RepositoryException ex) {
                     LOG.warn(ex.getMessage());
+                } catch (RuntimeException ex) {
+                    throw ex;
+                } catch (Exception ex) {
+                    // interrupted while waiting for the file to be loaded
+                    throw new RepositoryException("Cannot load Thing file " + result.getFile().getAbsolutePath(), ex);
                 }
             }
         }
@@ -627,4 +689,32 @@ class ThingRepositoryImpl implements ThingRepository {
     public List<EnvObjectLogic> findByProtocol(String protocolName) {
         return getObjectByProtocol(protocolName);
     }
+
+    @Override
+    public List<EnvObjectLogic> findByTags(String tags) {
+        return getObjectByTags(tags);
+    }
+
+    @Override
+    public void reindex(EnvObjectLogic thing) {
+        index.update(thing);
+    }
+
+    /**
+     * An immutable version of the things in the repository. Readers iterate
+     * it without locks or copies, writers publish a new snapshot.
+     */
+    private static final class Snapshot {
+
+        private static final Snapshot EMPTY = new Snapshot(new LinkedHashMap<String, EnvObjectLogic>(), 0);
+        private final Map<String, EnvObjectLogic> byUuid;
+        private final List<EnvObjectLogic> things;
+        private final long version;
+
+        Snapshot(Map<String, EnvObjectLogic> byUuid, long version) {
+            this.byUuid = Collections.unmodifiableMap(byUuid);
+            this.things = Collections.unmodifiableList(new ArrayList<EnvObjectLogic>(byUuid.values()));
+            this.version = version;
+        }
+    }
 }
@@ -121,6 +121,26 @@ public class EqualsUtil {
         return (aThis == null) ? (aThat == null) : aThis.equals(aThat);
     }
 
+    /**
+     * Normalizes a string so that two strings are equal after normalization
+     * if and only if they are equal according to
+     * {@link String#equalsIgnoreCase(String)}. Useful as key of a case
+     * insensitive lookup.
+     *
+     * @param value the string to normalize, can be null
+     * @return the normalized string, null if the given string is null
+     */
+    static public String normalizeCase(String value) {
+        if (value == null) {
+            return null;
+        }
+        char[] chars = value.toCharArray();
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = Character.toLowerCase(Character.toUpperCase(chars[i]));
+        }
+        return new String(chars);
+    }
+
     private EqualsUtil() {
     }
 }
@@ -0,0 +1,66 @@
+/**
+ *
+ * Copyright (c) 2009-2016 Freedomotic team http://freedomotic.com
+ *
+ * This file is part of Freedomotic
+ *
+ * This Program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2, or (at your option) any later version.
+ *
+ * This Program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Freedomotic; see the file COPYING. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.freedomotic.api;
+
+import com.freedomotic.core.Resolver;
+import com.freedomotic.core.ScriptEvaluator;
+import com.freedomotic.events.GenericEvent;
+import com.freedomotic.reactions.Trigger;
+import org.junit.Ignore;
+
+/**
+ * Measures how many events per second can be created and checked against a
+ * trigger which does not use the date and time statements (the common case).
+ * Every check resolves the trigger in the event context as the TriggerCheck
+ * does. It is not a unit test, run it with
+ * <code>java -cp ... com.freedomotic.api.EventTemplateBenchmark</code>
+ */
+@Ignore
+public class EventTemplateBenchmark {
+
+    private static final int EVENTS = 200000;
+
+    public static void main(String[] args) throws Exception {
+        ScriptEvaluator scriptEvaluator = new ScriptEvaluator(1, 16, 0);
+        Trigger trigger = new Trigger();
+        trigger.setName("Thing 7 is powered");
+        trigger.getPayload().addStatement("object.name", "Thing 7");
+        trigger.getPayload().addStatement("object.behavior.powered", "true");
+        for (int run = 0; run < 3; run++) {
+            // the first runs are the warm up
+            long start = System.nanoTime();
+            long found = 0;
+            for (int i = 0; i < EVENTS; i++) {
+                GenericEvent event = new GenericEvent(EventTemplateBenchmark.class);
+                event.addProperty("object.name", "Thing " + (i % 100));
+                event.addProperty("object.behavior.powered", "true");
+                Resolver resolver = new Resolver(scriptEvaluator);
+                resolver.addContext("event.", event.getPayload());
+                if (resolver.resolve(trigger).isConsistentWith(event)) {
+                    found++;
+                }
+            }
+            long time = System.nanoTime() - start;
+            if (run == 2) {
+                System.out.println(String.format("%.1f events/sec (%d consistent)", EVENTS / (time / 1e9), found));
+            }
+        }
+    }
+}
@@ -0,0 +1,258 @@
+/**
+ *
+ * Copyright (c) 2009-2016 Freedomotic team http://freedomotic.com
+ *
+ * This file is part of Freedomotic
+ *
+ * This Program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2, or (at your option) any later version.
+ *
+ * This Program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Freedomotic; see the file COPYING. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.freedomotic.api;
+
+import com.freedomotic.app.Freedomotic;
+import com.freedomotic.bus.BusService;
+import com.freedomotic.exceptions.PluginRuntimeException;
+import com.freedomotic.exceptions.UnableToExecuteException;
+import com.freedomotic.reactions.Command;
+import com.freedomotic.settings.Info;
+import com.google.inject.AbstractModule;
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+import javax.jms.Destination;
+import javax.jms.ObjectMessage;
+import org.junit.After;
+import static org.junit.Assert.*;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Commands received by a protocol are executed concurrently, every reply
+ * must reach the sender of its own command. The bus and the framework API are
+ * replaced by stubs recording the sent replies.
+ */
+public class ProtocolTest {
+
+    private final List<Object[]> replies = new ArrayList<Object[]>();
+    private Injector previousInjector;
+    private File createdFolder;
+    private File manifest;
+
+    @Before
+    public void setUp() throws IOException {
+        previousInjector = Freedomotic.INJECTOR;
+        Freedomotic.INJECTOR = Guice.createInjector(new AbstractModule() {
+            @Override
+            protected void configure() {
+                bind(API.class).toInstance(stub(API.class));
+                bind(BusService.class).toInstance(stub(BusService.class));
+            }
+        });
+        // the manifest path is relative to the devices folder
+        File folder = new File(Info.PATHS.PATH_DEVICES_FOLDER, "protocol-test");
+        createdFolder = folder;
+        while (!createdFolder.getParentFile().exists()) {
+            createdFolder = createdFolder.getParentFile();
+        }
+        assertTrue(folder.isDirectory() || folder.mkdirs());
+        manifest = new File(folder, "manifest.xml");
+        Writer writer = new OutputStreamWriter(new FileOutputStream(manifest), "UTF-8");
+        try {
+            writer.write("<config>\n"
+                    + "    <properties>\n"
+                    + "        <property name=\"category\" value=\"test\"/>\n"
+                    + "        <property name=\"short-name\" value=\"replying\"/>\n"
+                    + "        <property name=\"automatic-reply-to-commands\" value=\"false\"/>\n"
+                    + "    </properties>\n"
+                    + "</config>\n");
+        } finally {
+            writer.close();
+        }
+    }
+
+    @After
+    public void tearDown() {
+        Freedomotic.INJECTOR = previousInjector;
+        delete(createdFolder);
+    }
+
+    /**
+     * Two commands are executed at the same time and reply explicitly, in the
+     * reverse order they were received. Each reply is sent to the destination
+     * and with the correlation ID of its own message.
+     */
+    @Test
+    public void testOverlappingCommandsReplyToTheirSender() throws Exception {
+        ReplyingProtocol protocol = new ReplyingProtocol("/protocol-test/manifest.xml");
+        protocol.markRunning();
+        try {
+            Destination firstSender = stub(Destination.class);
+            Destination secondSender = stub(Destination.class);
+            protocol.onMessage(message(command("first"), firstSender, "ID:first"));
+            protocol.onMessage(message(command("second"), secondSender, "ID:second"));
+            assertTrue("Commands not replied", protocol.replied.await(10, TimeUnit.SECONDS));
+
+            synchronized (replies) {
+                assertEquals(2, replies.size());
+                assertEquals("second", ((Command) replies.get(0)[0]).getName());
+                assertSame(secondSender, replies.get(0)[1]);
+                assertEquals("ID:second", replies.get(0)[2]);
+                assertEquals("first", ((Command) replies.get(1)[0]).getName());
+                assertSame(firstSender, replies.get(1)[1]);
+                assertEquals("ID:first", replies.get(1)[2]);
+            }
+        } finally {
+            protocol.stop();
+        }
+    }
+
+    private static Command command(String name) {
+        Command command = new Command();
+        command.setName(name);
+        command.setReplyTimeout(10000);
+        return command;
+    }
+
+    private ObjectMessage message(final Command command, final Destination replyTo, final String correlationID) {
+        return stub(ObjectMessage.class, new Stub() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                switch (method.getName()) {
+                    case "getObject":
+                        return command;
+                    case "getJMSReplyTo":
+                        return replyTo;
+                    case "getJMSCorrelationID":
+                        return correlationID;
+                    default:
+                        return super.invoke(proxy, method, args);
+                }
+            }
+        });
+    }
+
+    private <T> T stub(Class<T> type) {
+        return stub(type, new Stub());
+    }
+
+    private static <T> T stub(Class<T> type, InvocationHandler handler) {
+        return type.cast(Proxy.newProxyInstance(ProtocolTest.class.getClassLoader(), new Class<?>[]{type}, handler));
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    /**
+     * Answers every call with a default value (a stub for interfaces),
+     * executes the runnables bound to the plugin privileges as they are and
+     * records the command replies.
+     */
+    private class Stub implements InvocationHandler {
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return "stub of " + proxy.getClass().getInterfaces()[0].getSimpleName();
+                case "pluginBindRunnablePrivileges":
+                    return args[1];
+                case "reply":
+                    synchronized (replies) {
+                        replies.add(args);
+                    }
+                    return null;
+                default:
+                    Class<?> type = method.getReturnType();
+                    if (type.isInterface()) {
+                        return stub(type);
+                    } else if (type == boolean.class) {
+                        return false;
+                    } else if (type == int.class) {
+                        return 0;
+                    } else if (type == long.class) {
+                        return 0L;
+                    }
+                    return null;
+            }
+        }
+    }
+
+    private static class ReplyingProtocol extends Protocol {
+
+        // both commands are running when they pass this barrier
+        private final CyclicBarrier running = new CyclicBarrier(2);
+        private final CountDownLatch secondReplied = new CountDownLatch(1);
+        private final CountDownLatch replied = new CountDownLatch(2);
+
+        ReplyingProtocol(String manifest) {
+            super("ReplyingProtocol", manifest);
+        }
+
+        void markRunning() {
+            setStatus(PluginStatus.RUNNING);
+        }
+
+        @Override
+        protected void onCommand(Command c) throws IOException, UnableToExecuteException {
+            try {
+                running.await(10, TimeUnit.SECONDS);
+                if (c.getName().equals("first")) {
+                    secondReplied.await(10, TimeUnit.SECONDS);
+                }
+            } catch (Exception ex) {
+                throw new UnableToExecuteException(ex.getMessage());
+            }
+            reply(c);
+            if (c.getName().equals("second")) {
+                secondReplied.countDown();
+            }
+            replied.countDown();
+        }
+
+        @Override
+        protected void onRun() throws PluginRuntimeException {
+        }
+
+        @Override
+        protected boolean canExecute(Command c) {
+            return true;
+        }
+
+        @Override
+        protected void onEvent(EventTemplate event) {
+        }
+    }
+}
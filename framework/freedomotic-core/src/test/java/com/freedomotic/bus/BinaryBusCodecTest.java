@@ -0,0 +1,166 @@
+/**
+ *
+ * Copyright (c) 2009-2016 Freedomotic team http://freedomotic.com
+ *
+ * This file is part of Freedomotic
+ *
+ * This Program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2, or (at your option) any later version.
+ *
+ * This Program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Freedomotic; see the file COPYING. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.freedomotic.bus;
+
+import com.freedomotic.api.EventTemplate;
+import com.freedomotic.events.GenericEvent;
+import com.freedomotic.events.LocationEvent;
+import com.freedomotic.model.geometry.FreedomPoint;
+import com.freedomotic.reactions.Command;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.HashMap;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+public class BinaryBusCodecTest {
+
+    private static boolean notAnEventInitialized;
+    private final BinaryBusCodec codec = new BinaryBusCodec();
+
+    /**
+     * Test of encode and decode methods with a command.
+     */
+    @Test
+    public void testCommandRoundTrip() throws IOException {
+        Command command = new Command();
+        command.setName("Turn on light");
+        command.setReceiver("app.events.sensors.behavior.request.objects");
+        command.setDescription("turns on a light");
+        command.setReplyTimeout(2000);
+        command.setDelay(-1);
+        command.setExecuted(true);
+        command.setProperty("object", "Light 1");
+        command.setProperty("behavior", "powered");
+        command.setProperty("value", "true");
+        HashMap<String, String> tuple = new HashMap<String, String>();
+        tuple.put("key", "Light 1");
+        command.getProperties().getTuples().add(tuple);
+
+        assertTrue(codec.canEncode(command));
+        Command decoded = (Command) codec.decode(codec.encode(command));
+
+        assertEquals(command.getName(), decoded.getName());
+        assertEquals(command.getReceiver(), decoded.getReceiver());
+        assertEquals(command.getUuid(), decoded.getUuid());
+        assertEquals(command.getDescription(), decoded.getDescription());
+        assertEquals(command.getReplyTimeout(), decoded.getReplyTimeout());
+        assertEquals(command.getDelay(), decoded.getDelay());
+        assertEquals(command.isExecuted(), decoded.isExecuted());
+        assertEquals(command.getTags(), decoded.getTags());
+        assertEquals(command.getProperties().getProperties(), decoded.getProperties().getProperties());
+        assertEquals("Light 1", decoded.getProperties().getTuples().getProperty(0, "key"));
+    }
+
+    /**
+     * Decoded events must be of the same class, with the same fields.
+     */
+    @Test
+    public void testEventRoundTrip() throws IOException {
+        GenericEvent event = new GenericEvent(this);
+        event.setDestination("app.event.sensor.test");
+        event.addProperty("object.name", "Light 1");
+        event.addProperty("object.name", "Light 1");
+        event.addProperty("unicode", "è ✓");
+        EventTemplate decoded = (EventTemplate) codec.decode(codec.encode(event));
+
+        assertSame(GenericEvent.class, decoded.getClass());
+        // the date and time statements are not encoded, they stay lazy
+        assertNotNull(event.getPayload().getTimeContext());
+        assertEquals(event.getPayload().getTimeContext().getTime(), decoded.getPayload().getTimeContext().getTime());
+        assertEquals(event.getPayload().getExplicitStatements(), decoded.getPayload().getExplicitStatements());
+        assertEquals(event.getEventName(), decoded.getEventName());
+        assertEquals(event.getCreation(), decoded.getCreation());
+        assertEquals(event.getDefaultDestination(), decoded.getDefaultDestination());
+        assertEquals(event.getPayload().getStatements(), decoded.getPayload().getStatements());
+
+        LocationEvent location = new LocationEvent(this, "person-uuid", new FreedomPoint(-10, 200));
+        LocationEvent decodedLocation = (LocationEvent) codec.decode(codec.encode(location));
+        assertEquals(location.getUuid(), decodedLocation.getUuid());
+        assertEquals(location.getX(), decodedLocation.getX());
+        assertEquals(location.getY(), decodedLocation.getY());
+    }
+
+    /**
+     * Events with fields the codec does not support are sent as Java
+     * serialized objects.
+     */
+    @Test
+    public void testNotEncodableEvent() throws IOException {
+        assertFalse(codec.canEncode(new EventWithObject()));
+        assertFalse(codec.canEncode("a string"));
+
+        byte[] encoded = codec.encode(new GenericEvent(this));
+        try {
+            codec.decode(Arrays.copyOf(encoded, encoded.length / 2));
+            fail("A truncated message cannot be decoded");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    /**
+     * A class name read from the message which is not an event must be
+     * refused without initializing the class.
+     */
+    @Test
+    public void testNotAnEventClass() throws IOException {
+        Charset utf8 = Charset.forName("UTF-8");
+        byte[] encoded = codec.encode(new PlainEvent());
+        byte[] eventName = PlainEvent.class.getName().getBytes(utf8);
+        byte[] otherName = NotAnEvent.class.getName().getBytes(utf8);
+        assertEquals(eventName.length, otherName.length);
+        int start = indexOf(encoded, eventName);
+        assertTrue(start >= 0);
+        System.arraycopy(otherName, 0, encoded, start, otherName.length);
+        try {
+            codec.decode(encoded);
+            fail("Only events can be decoded");
+        } catch (IOException e) {
+            // expected
+        }
+        assertFalse(notAnEventInitialized);
+    }
+
+    private static int indexOf(byte[] array, byte[] target) {
+        for (int i = 0; i <= array.length - target.length; i++) {
+            if (Arrays.equals(Arrays.copyOfRange(array, i, i + target.length), target)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static class EventWithObject extends EventTemplate {
+
+        private final Object object = new Object();
+    }
+
+    private static class PlainEvent extends EventTemplate {
+    }
+
+    private static class NotAnEvent {
+
+        static {
+            notAnEventInitialized = true;
+        }
+    }
+}
@@ -0,0 +1,125 @@
+/**
+ *
+ * Copyright (c) 2009-2016 Freedomotic team http://freedomotic.com
+ *
+ * This file is part of Freedomotic
+ *
+ * This Program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2, or (at your option) any later version.
+ *
+ * This Program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Freedomotic; see the file COPYING. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.freedomotic.bus;
+
+import com.freedomotic.events.GenericEvent;
+import com.freedomotic.reactions.Command;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import org.junit.Ignore;
+
+/**
+ * Compares the size and the encode/decode time of the {@link BinaryBusCodec}
+ * with the Java serialization used by the ObjectMessages. It is not a unit
+ * test, run it with
+ * <code>java -cp ... com.freedomotic.bus.BusCodecBenchmark</code>
+ */
+@Ignore
+public class BusCodecBenchmark {
+
+    private static final int ITERATIONS = 20000;
+
+    public static void main(String[] args) throws Exception {
+        BinaryBusCodec codec = new BinaryBusCodec();
+
+        // like an ObjectHasChangedBehavior event of a light
+        GenericEvent event = new GenericEvent(BusCodecBenchmark.class);
+        event.addProperty("object.name", "Kitchen Light");
+        event.addProperty("object.uuid", "e5b0a0b2-4e4b-4b39-9c3e-5cb1e5a2c2a1");
+        event.addProperty("object.address", "A01");
+        event.addProperty("object.protocol", "X10");
+        event.addProperty("object.type", "EnvObject.ElectricDevice.Light");
+        event.addProperty("object.tags", "light,kitchen");
+        event.addProperty("object.currentRepresentation", "1");
+        event.addProperty("object.behavior.powered", "true");
+        event.addProperty("object.behavior.brightness", "80");
+
+        Command command = new Command();
+        command.setName("Turn on kitchen light");
+        command.setReceiver("app.events.sensors.behavior.request.objects");
+        command.setReplyTimeout(2000);
+        command.setProperty("object", "Kitchen Light");
+        command.setProperty("behavior", "powered");
+        command.setProperty("value", "true");
+
+        for (int run = 0; run < 2; run++) {
+            // the first run is the warm up
+            boolean print = run == 1;
+            compare("event", event, codec, print);
+            compare("command", command, codec, print);
+        }
+    }
+
+    private static void compare(String name, Object object, BinaryBusCodec codec, boolean print) throws Exception {
+        byte[] serialized = serialize(object);
+        byte[] encoded = codec.encode(object);
+
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            serialize(object);
+        }
+        long serializeTime = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            deserialize(serialized);
+        }
+        long deserializeTime = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            codec.encode(object);
+        }
+        long encodeTime = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            codec.decode(encoded);
+        }
+        long decodeTime = System.nanoTime() - start;
+
+        if (print) {
+            System.out.println(String.format("%-8s Java serialization %5d bytes, write %6.2f us, read %6.2f us",
+                    name, serialized.length, serializeTime / 1e3 / ITERATIONS, deserializeTime / 1e3 / ITERATIONS));
+            System.out.println(String.format("%-8s %-18s %5d bytes, write %6.2f us, read %6.2f us",
+                    name, BinaryBusCodec.NAME, encoded.length, encodeTime / 1e3 / ITERATIONS, decodeTime / 1e3 / ITERATIONS));
+        }
+    }
+
+    private static byte[] serialize(Object object) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(object);
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    private static Object deserialize(byte[] bytes) throws Exception {
+        ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes));
+        try {
+            return in.readObject();
+        } finally {
+            in.close();
+        }
+    }
+}
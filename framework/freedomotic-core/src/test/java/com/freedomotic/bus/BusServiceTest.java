@@ -22,6 +22,7 @@ package com.freedomotic.bus;
 import com.freedomotic.api.AbstractConsumer;
 import com.freedomotic.api.EventTemplate;
 import com.freedomotic.app.FreedomoticInjector;
+import com.freedomotic.events.GenericEvent;
 import com.freedomotic.exceptions.UnableToExecuteException;
 import com.freedomotic.reactions.Command;
 import com.freedomotic.testutils.GuiceJUnitRunner;
@@ -29,7 +30,9 @@ import java.io.IOException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import javax.inject.Inject;
+import javax.jms.BytesMessage;
 import javax.jms.JMSException;
+import javax.jms.Message;
 import javax.jms.ObjectMessage;
 import org.junit.After;
 import org.junit.AfterClass;
@@ -95,6 +98,31 @@ public class BusServiceTest {
     public void test() {
     }
 
+    /**
+     * Only the destinations listed in the codec configuration receive encoded
+     * messages, the others (eg: read by STOMP clients) still receive a plain
+     * ObjectMessage.
+     */
+    @Test
+    public void testCodecDestinations() throws JMSException {
+        BusServiceImpl bus = (BusServiceImpl) busService;
+        GenericEvent event = new GenericEvent(this);
+
+        bus.configureCodec(BinaryBusCodec.NAME, "");
+        Message message = bus.createMessage(event, "app.event.sensor.internal.test");
+        assertTrue("The codec is disabled by default", message instanceof ObjectMessage);
+
+        bus.configureCodec(BinaryBusCodec.NAME, "app.event.sensor.internal.");
+        message = bus.createMessage(event, "app.event.sensor.internal.test");
+        assertTrue(message instanceof BytesMessage);
+        assertEquals(BinaryBusCodec.NAME, message.getStringProperty(BusCodecs.CODEC_PROPERTY));
+
+        message = bus.createMessage(event, "app.event.sensor.stomp.test");
+        assertTrue(message instanceof ObjectMessage);
+        assertFalse(message.propertyExists(BusCodecs.CODEC_PROPERTY));
+        assertTrue(((ObjectMessage) message).getObject() instanceof GenericEvent);
+    }
+
     /**
      * Test of send method, of class BusService.
      */
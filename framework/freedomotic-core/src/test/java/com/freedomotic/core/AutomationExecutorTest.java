@@ -0,0 +1,289 @@
+/**
+ *
+ * Copyright (c) 2009-2016 Freedomotic team http://freedomotic.com
+ *
+ * This file is part of Freedomotic
+ *
+ * This Program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2, or (at your option) any later version.
+ *
+ * This Program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Freedomotic; see the file COPYING. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.freedomotic.core;
+
+import com.freedomotic.core.AutomationExecutor.RejectionPolicy;
+import com.freedomotic.metrics.Metrics;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+public class AutomationExecutorTest {
+
+    /**
+     * Tasks with the same key must be executed in submission order even if
+     * there are many worker threads.
+     */
+    @Test
+    public void testSameKeyIsOrdered() throws InterruptedException {
+        AutomationExecutor executor = new AutomationExecutor(4, 1000, RejectionPolicy.DISCARD);
+        final List<Integer> executed = Collections.synchronizedList(new ArrayList<Integer>());
+        final CountDownLatch done = new CountDownLatch(100);
+        for (int i = 0; i < 100; i++) {
+            final int n = i;
+            executor.execute("same trigger", 0, new Runnable() {
+                @Override
+                public void run() {
+                    executed.add(n);
+                    done.countDown();
+                }
+            });
+        }
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        for (int i = 0; i < 100; i++) {
+            assertEquals(Integer.valueOf(i), executed.get(i));
+        }
+    }
+
+    /**
+     * With a single busy worker, waiting tasks are executed by priority and
+     * the lowest priority ones are discarded when the queue is full.
+     */
+    @Test
+    public void testPriorityAndRejection() throws InterruptedException {
+        AutomationExecutor executor = new AutomationExecutor(1, 2, RejectionPolicy.DISCARD_LOWEST_PRIORITY);
+        final CountDownLatch blocker = new CountDownLatch(1);
+        final CountDownLatch started = new CountDownLatch(1);
+        final List<String> executed = Collections.synchronizedList(new ArrayList<String>());
+        final CountDownLatch done = new CountDownLatch(2);
+
+        executor.execute("blocker", 0, new Runnable() {
+            @Override
+            public void run() {
+                started.countDown();
+                try {
+                    blocker.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+
+        executor.execute("low", 1, record("low", executed, done));
+        executor.execute("medium", 5, record("medium", executed, done));
+        // queue is full, "low" is discarded
+        assertTrue(executor.execute("high", 10, record("high", executed, done)));
+        // queue is full and nothing has a lower priority
+        assertFalse(executor.execute("lowest", 0, record("lowest", executed, done)));
+        assertEquals(2, executor.getQueueSize());
+        assertEquals(2, executor.getRejectedCount());
+
+        blocker.countDown();
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertEquals("high", executed.get(0));
+        assertEquals("medium", executed.get(1));
+        assertEquals(2, executed.size());
+    }
+
+    /**
+     * When the queue is full the BLOCK policy makes the caller wait for a free
+     * place, the task is then executed in its lane after the previous tasks
+     * with the same key and never concurrently with them.
+     */
+    @Test
+    public void testBlockKeepsLaneOrder() throws InterruptedException {
+        final AutomationExecutor executor = new AutomationExecutor(2, 1, RejectionPolicy.BLOCK);
+        final CountDownLatch blocker = new CountDownLatch(1);
+        final CountDownLatch started = new CountDownLatch(1);
+        final List<String> executed = Collections.synchronizedList(new ArrayList<String>());
+        final CountDownLatch done = new CountDownLatch(3);
+
+        executor.execute("lane", 0, new Runnable() {
+            @Override
+            public void run() {
+                started.countDown();
+                try {
+                    blocker.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                executed.add("first");
+                done.countDown();
+            }
+        });
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        // the queue is now full
+        assertTrue(executor.execute("lane", 0, record("second", executed, done)));
+
+        final CountDownLatch submitted = new CountDownLatch(1);
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                if (executor.execute("lane", 0, record("third", executed, done))) {
+                    submitted.countDown();
+                }
+            }
+        });
+        producer.start();
+        // the producer waits, nothing is executed out of the lane
+        assertFalse(submitted.await(200, TimeUnit.MILLISECONDS));
+        assertTrue(executed.isEmpty());
+
+        blocker.countDown();
+        assertTrue(submitted.await(10, TimeUnit.SECONDS));
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertEquals(3, executed.size());
+        assertEquals("first", executed.get(0));
+        assertEquals("second", executed.get(1));
+        assertEquals("third", executed.get(2));
+        assertEquals(0, executor.getRejectedCount());
+        executor.shutdown();
+    }
+
+    private static Runnable record(final String name, final List<String> executed, final CountDownLatch done) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                executed.add(name);
+                done.countDown();
+            }
+        };
+    }
+
+    /**
+     * After the shutdown waiting tasks are discarded, the running task is
+     * interrupted and new tasks are rejected.
+     */
+    @Test
+    public void testShutdown() throws InterruptedException {
+        AutomationExecutor executor = new AutomationExecutor("test-executor", 1, 10, RejectionPolicy.DISCARD);
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch interrupted = new CountDownLatch(1);
+        final List<String> executed = Collections.synchronizedList(new ArrayList<String>());
+
+        executor.execute("running", 0, new Runnable() {
+            @Override
+            public void run() {
+                started.countDown();
+                try {
+                    Thread.sleep(10000);
+                } catch (InterruptedException e) {
+                    interrupted.countDown();
+                }
+            }
+        });
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        executor.execute("waiting", 0, new Runnable() {
+            @Override
+            public void run() {
+                executed.add("waiting");
+            }
+        });
+
+        assertEquals(1, executor.shutdown());
+        assertTrue(interrupted.await(10, TimeUnit.SECONDS));
+        assertFalse(executor.execute("late", 0, new Runnable() {
+            @Override
+            public void run() {
+                executed.add("late");
+            }
+        }));
+        Thread.sleep(100);
+        assertTrue(executed.isEmpty());
+        assertEquals(0, executor.getQueueSize());
+    }
+
+    /**
+     * A task leaving the interrupted flag set must not stop its worker, the
+     * next tasks are executed by the same worker with the flag cleared.
+     */
+    @Test
+    public void testSelfInterruptingTask() throws InterruptedException {
+        AutomationExecutor executor = new AutomationExecutor(1, 10, RejectionPolicy.DISCARD);
+        final List<Boolean> interrupted = Collections.synchronizedList(new ArrayList<Boolean>());
+        final CountDownLatch done = new CountDownLatch(2);
+
+        executor.execute("interrupting", 0, new Runnable() {
+            @Override
+            public void run() {
+                Thread.currentThread().interrupt();
+                done.countDown();
+            }
+        });
+        executor.execute("next", 0, new Runnable() {
+            @Override
+            public void run() {
+                interrupted.add(Thread.currentThread().isInterrupted());
+                done.countDown();
+            }
+        });
+
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertEquals(Collections.singletonList(false), interrupted);
+        assertEquals(2, executor.getExecutedCount());
+        executor.shutdown();
+    }
+
+    /**
+     * The rejections, the wait times and the queue sizes are published in the
+     * metrics with the executor name.
+     */
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testMetrics() throws InterruptedException {
+        AutomationExecutor executor = new AutomationExecutor("metrics-executor", 1, 1, RejectionPolicy.DISCARD);
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(1);
+
+        executor.execute("blocking", 0, new Runnable() {
+            @Override
+            public void run() {
+                started.countDown();
+                try {
+                    release.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        assertTrue(executor.execute("waiting", 0, new Runnable() {
+            @Override
+            public void run() {
+                done.countDown();
+            }
+        }));
+        assertFalse(executor.execute("rejected", 0, new Runnable() {
+            @Override
+            public void run() {
+            }
+        }));
+
+        Map<String, Object> metrics = Metrics.snapshot();
+        assertEquals(1L, metrics.get(Metrics.EXECUTOR_REJECTED + "metrics-executor"));
+        assertEquals(1L, metrics.get(Metrics.EXECUTOR_QUEUE_SIZE + "metrics-executor"));
+        assertEquals(1L, metrics.get(Metrics.EXECUTOR_QUEUE_MAX + "metrics-executor"));
+
+        release.countDown();
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        executor.shutdown();
+        metrics = Metrics.snapshot();
+        Map<String, Object> wait = (Map<String, Object>) metrics.get(Metrics.EXECUTOR_WAIT + "metrics-executor");
+        assertEquals(2L, wait.get("count"));
+        assertFalse(metrics.containsKey(Metrics.EXECUTOR_QUEUE_SIZE + "metrics-executor"));
+    }
+}
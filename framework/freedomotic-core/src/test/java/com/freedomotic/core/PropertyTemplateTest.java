@@ -0,0 +1,156 @@
+/**
+ *
+ * Copyright (c) 2009-2016 Freedomotic team http://freedomotic.com
+ *
+ * This file is part of Freedomotic
+ *
+ * This Program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2, or (at your option) any later version.
+ *
+ * This Program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Freedomotic; see the file COPYING. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.freedomotic.core;
+
+import com.freedomotic.exceptions.VariableResolutionException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import javax.script.ScriptEngineManager;
+import javax.script.ScriptException;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ * Resolution of the property templates, as text and as scripts with
+ * variables.
+ */
+public class PropertyTemplateTest {
+
+    private static final List<String> EVENT = Collections.singletonList("event.");
+
+    private final Map<String, String> values = new HashMap<String, String>();
+    private final PropertyTemplate.Lookup lookup = new PropertyTemplate.Lookup() {
+        @Override
+        public String lookup(String reference) throws VariableResolutionException {
+            String value = values.get(reference);
+            if (value == null) {
+                throw new VariableResolutionException("Variable '" + reference + "' cannot be resolved");
+            }
+            return value;
+        }
+    };
+
+    /**
+     * References in the code become variables with the value of the same
+     * literal, references in a string literal make the whole literal a
+     * variable.
+     */
+    @Test
+    public void testToScript() throws VariableResolutionException {
+        values.put("event.temperature", "25");
+        values.put("event.zone", "Kitchen");
+        PropertyTemplate template = PropertyTemplate.compile(
+                "= t=\"In @event.zone it's @event.temperature°C\" + (@event.temperature*1.8+32) + '@current.zone';");
+        Map<String, Object> variables = new HashMap<String, Object>();
+        assertEquals("= t=__ref0 + (__ref1*1.8+32) + '@current.zone';", template.toScript(EVENT, lookup, variables));
+        assertEquals("In Kitchen it's 25°C", variables.get("__ref0"));
+        assertEquals(25, variables.get("__ref1"));
+
+        // the script does not depend on the values
+        values.put("event.temperature", "21.5");
+        variables.clear();
+        assertEquals("= t=__ref0 + (__ref1*1.8+32) + '@current.zone';", template.toScript(EVENT, lookup, variables));
+        assertEquals(21.5, variables.get("__ref1"));
+    }
+
+    /**
+     * Values which are not plain numbers or booleans cannot be passed as
+     * variables in the code, neither values changing a string literal.
+     */
+    @Test
+    public void testToScriptNotPossible() throws VariableResolutionException {
+        values.put("event.value", "Kitchen");
+        assertNull(PropertyTemplate.compile("= v=@event.value;").toScript(EVENT, lookup, new HashMap<String, Object>()));
+        values.put("event.value", "-5");
+        assertNull(PropertyTemplate.compile("= v=1-@event.value;").toScript(EVENT, lookup, new HashMap<String, Object>()));
+        values.put("event.value", "010");
+        assertNull(PropertyTemplate.compile("= v=@event.value;").toScript(EVENT, lookup, new HashMap<String, Object>()));
+        values.put("event.value", "it's");
+        assertNull(PropertyTemplate.compile("= v='@event.value';").toScript(EVENT, lookup, new HashMap<String, Object>()));
+        values.put("event.value", "true");
+        Map<String, Object> variables = new HashMap<String, Object>();
+        assertEquals("= v=!__ref0;", PropertyTemplate.compile("= v=!@event.value;").toScript(EVENT, lookup, variables));
+        assertEquals(Boolean.TRUE, variables.get("__ref0"));
+    }
+
+    /**
+     * A quote in a regular expression literal is not the start of a string
+     * literal and a reference in a template literal is text, when the source
+     * has such literals the resolved value is evaluated instead.
+     */
+    @Test
+    public void testToScriptRegexAndTemplateLiterals() throws VariableResolutionException {
+        values.put("event.zone", "Kitchen");
+        values.put("event.temperature", "25");
+        assertNull(PropertyTemplate.compile("= r=/'/.test('@event.zone') ? '@event.zone' : 'none';")
+                .toScript(EVENT, lookup, new HashMap<String, Object>()));
+        assertNull(PropertyTemplate.compile("= if (@event.temperature > 20) r=/hot'/; else r='@event.zone';")
+                .toScript(EVENT, lookup, new HashMap<String, Object>()));
+        assertNull(PropertyTemplate.compile("= r=`@event.zone is ${@event.temperature}`;")
+                .toScript(EVENT, lookup, new HashMap<String, Object>()));
+        // the literals after the last reference do not matter
+        Map<String, Object> variables = new HashMap<String, Object>();
+        assertEquals("= r=(__ref0).replace(/'/g, '');",
+                PropertyTemplate.compile("= r=('@event.zone').replace(/'/g, '');").toScript(EVENT, lookup, variables));
+        // a division is not a regular expression
+        variables.clear();
+        assertEquals("= r=(__ref0 + 5) / 2 + __ref1/10;",
+                PropertyTemplate.compile("= r=(@event.temperature + 5) / 2 + @event.temperature/10;")
+                .toScript(EVENT, lookup, variables));
+        assertEquals(25, variables.get("__ref0"));
+    }
+
+    /**
+     * A script evaluated with variables gives the same result of the script
+     * with the references replaced by their values.
+     */
+    @Test
+    public void testSameResult() throws VariableResolutionException, ScriptException {
+        if (new ScriptEngineManager().getEngineByName("JavaScript") == null) {
+            return;
+        }
+        ScriptEvaluator evaluator = new ScriptEvaluator(1, 16, 0);
+        values.put("event.zone", "Living \"room\"");
+        String[] scripts = {
+            "= r=@event.temperature+40;",
+            "= r=@event.temperature*1.8+32;",
+            "= r=\"@event.zone is \\t@event.temperature degrees\";",
+            "= r='@event.zone' + // @event.zone\n @event.temperature;",
+            "= if (@event.temperature > 20) r='hot'; else r='cold';",
+            "= r=(@event.temperature + 1) / 2 + ' ' + '@event.zone';"};
+        String[] temperatures = {"25", "21.5", "1e3", "0"};
+        StringBuilder buffer = new StringBuilder();
+        for (String source : scripts) {
+            for (String temperature : temperatures) {
+                values.put("event.temperature", temperature);
+                PropertyTemplate template = PropertyTemplate.compile(source);
+                Map<String, Object> variables = new HashMap<String, Object>();
+                String script = template.toScript(EVENT, lookup, variables);
+                if (script != null) {
+                    assertEquals(source + " with " + temperature,
+                            evaluator.eval(template.resolve(EVENT, lookup, buffer).substring(1), "r"),
+                            evaluator.eval(script.substring(1), "r", variables));
+                }
+            }
+        }
+    }
+}
@@ -38,6 +38,8 @@ import org.junit.Test;
  */
 public class ResolverTest {
 
+    private final ScriptEvaluator scriptEvaluator = new ScriptEvaluator(1, 16, 0);
+
     /**
      *
      */
@@ -98,7 +100,7 @@ public class ResolverTest {
         event.addProperty("zone", "Kitchen");
         event.addProperty("temperature", "25");
         event.addProperty("object.name", "Indoor Thermometer");
-        Resolver resolver = new Resolver();
+        Resolver resolver = new Resolver(scriptEvaluator);
         resolver.addContext("event.", event.getPayload());
         Command result = new Command();
         try {
@@ -144,7 +146,7 @@ public class ResolverTest {
         event.addProperty("zone", "Kitchen");
         event.addProperty("temperature", "25");
         event.addProperty("object.name", "Indoor Thermometer");
-        Resolver resolver = new Resolver();
+        Resolver resolver = new Resolver(scriptEvaluator);
         resolver.addContext("event.", event.getPayload());
         Trigger result = null;
         try {
@@ -166,4 +168,74 @@ public class ResolverTest {
         //assertEquals("15", result.getPayload().getStatements("nine").get(0).getValue());
         assertEquals("it's hot", result.getPayload().getStatements("behaviorValue").get(0).getValue());
     }
+
+    /**
+     *
+     */
+    @Test
+    public void testResolve_CommandWithSpecialCharacters() {
+        System.out.println("Commands resolving references whose values contain regex special characters");
+        Command c = new Command();
+        c.setName("send a price");
+        c.setProperty("price", "price is @event.price, was @event.price#");
+        c.setProperty("email", "write to user@example.com about @event.zone.");
+        c.setProperty("other", "@current.zone is not resolved");
+        GenericEvent event = new GenericEvent(this);
+        event.addProperty("price", "$10 \\ 20");
+        event.addProperty("zone", "Kitchen");
+        Resolver resolver = new Resolver(scriptEvaluator);
+        resolver.addContext("event.", event.getPayload());
+        Command result = null;
+        try {
+            result = resolver.resolve(c);
+        } catch (CloneNotSupportedException ex) {
+            Assert.fail(ex.getMessage());
+        } catch (VariableResolutionException ex) {
+            Assert.fail(ex.getMessage());
+        }
+        assertEquals("price is $10 \\ 20, was $10 \\ 20", result.getProperty("price"));
+        assertEquals("write to user@example.com about Kitchen.", result.getProperty("email"));
+        assertEquals("@current.zone is not resolved", result.getProperty("other"));
+    }
+
+    /**
+     * The date and time of the event are resolved without copying them in the
+     * event payload.
+     */
+    @Test
+    public void testResolve_CommandWithDateAndTime() throws Exception {
+        System.out.println("Commands resolving the date and time of the event");
+        Command c = new Command();
+        c.setName("say the time");
+        c.setProperty("time", "it is @event.time.hour:@event.time.minute of @event.date.year in @event.zone");
+        GenericEvent event = new GenericEvent(this);
+        event.addProperty("zone", "Kitchen");
+        Resolver resolver = new Resolver(scriptEvaluator);
+        resolver.addContext("event.", event.getPayload());
+        Command result = resolver.resolve(c);
+        assertEquals("it is " + event.getProperty("time.hour") + ":" + event.getProperty("time.minute")
+                + " of " + event.getProperty("date.year") + " in Kitchen", result.getProperty("time"));
+    }
+
+    /**
+     * The script of a property is compiled once, the event values are passed
+     * to it as variables.
+     */
+    @Test
+    public void testResolve_ScriptCompiledOnce() throws Exception {
+        System.out.println("Scripts referring to the event are compiled once for all the events");
+        Command c = new Command();
+        c.setName("convert temperature");
+        c.setProperty("fahrenheit", "= fahrenheit=\"@event.zone: \" + Math.floor(@event.temperature*1.8+32);");
+        for (int temperature = 20; temperature < 25; temperature++) {
+            GenericEvent event = new GenericEvent(this);
+            event.addProperty("zone", "Kitchen");
+            event.addProperty("temperature", String.valueOf(temperature));
+            Resolver resolver = new Resolver(scriptEvaluator);
+            resolver.addContext("event.", event.getPayload());
+            Command result = resolver.resolve(c);
+            assertEquals("Kitchen: " + (int) Math.floor(temperature * 1.8 + 32), result.getProperty("fahrenheit"));
+        }
+        assertEquals(1, scriptEvaluator.getCompilationCount());
+    }
 }
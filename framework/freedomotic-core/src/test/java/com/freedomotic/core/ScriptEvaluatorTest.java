@@ -0,0 +1,129 @@
+/**
+ *
+ * Copyright (c) 2009-2016 Freedomotic team http://freedomotic.com
+ *
+ * This file is part of Freedomotic
+ *
+ * This Program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2, or (at your option) any later version.
+ *
+ * This Program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Freedomotic; see the file COPYING. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.freedomotic.core;
+
+import java.util.HashMap;
+import java.util.Map;
+import javax.script.ScriptEngineManager;
+import javax.script.ScriptException;
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeNotNull;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ScriptEvaluatorTest {
+
+    /**
+     * The tests require a JavaScript engine in the running JVM
+     */
+    @Before
+    public void setUp() {
+        assumeNotNull(new ScriptEngineManager().getEngineByName("JavaScript"));
+    }
+
+    /**
+     * A script is compiled only once and its variables are not visible to
+     * the next evaluations.
+     */
+    @Test
+    public void testCompiledOnceAndIsolated() throws ScriptException {
+        ScriptEvaluator evaluator = new ScriptEvaluator(1, 16, 0);
+        assertEquals("15", evaluator.eval("total=Math.floor(10+5).toString();", "total"));
+        assertEquals("15", evaluator.eval("total=Math.floor(10+5).toString();", "total"));
+        assertNull(evaluator.eval("other=1;", "total"));
+        assertEquals(3, evaluator.getEvaluationCount());
+        assertEquals(2, evaluator.getCompilationCount());
+        assertEquals(0, evaluator.getFailureCount());
+    }
+
+    /**
+     * A script running longer than its timeout releases the caller and its
+     * engine is replaced.
+     */
+    @Test
+    public void testTimeout() throws ScriptException {
+        ScriptEvaluator evaluator = new ScriptEvaluator(1, 16, 0);
+        try {
+            evaluator.eval("while (true) {}", "never", 200);
+            fail("The evaluation should time out");
+        } catch (ScriptException e) {
+            assertEquals(1, evaluator.getTimeoutCount());
+        }
+        assertEquals("ok", evaluator.eval("result='ok';", "result"));
+    }
+
+    /**
+     * Invalid scripts are reported as failures.
+     */
+    @Test(expected = ScriptException.class)
+    public void testInvalidScript() throws ScriptException {
+        new ScriptEvaluator(1, 16, 0).eval("result=(;", "result");
+    }
+
+    /**
+     * The same script evaluated with different variables is compiled once,
+     * the variables are not visible to the next evaluations.
+     */
+    @Test
+    public void testVariables() throws ScriptException {
+        ScriptEvaluator evaluator = new ScriptEvaluator(1, 16, 0);
+        Map<String, Object> variables = new HashMap<String, Object>();
+        variables.put("__ref0", 25);
+        assertEquals("77", evaluator.eval("f=Math.floor(__ref0*1.8+32);", "f", variables));
+        variables.put("__ref0", 30);
+        assertEquals("86", evaluator.eval("f=Math.floor(__ref0*1.8+32);", "f", variables));
+        assertEquals(1, evaluator.getCompilationCount());
+        assertEquals("undefined", evaluator.eval("v=typeof __ref0;", "v"));
+    }
+
+    /**
+     * Timed out scripts keep running in their thread until they end, when all
+     * the threads are busy with them the evaluations with a timeout fail
+     * without creating more threads.
+     */
+    @Test
+    public void testAbandonedEvaluations() throws Exception {
+        // one engine: one thread for the evaluations and one for an abandoned script
+        ScriptEvaluator evaluator = new ScriptEvaluator(1, 16, 0);
+        String slow = "var end=Date.now()+1500; while (Date.now()<end) {}";
+        for (int i = 0; i < 2; i++) {
+            try {
+                evaluator.eval(slow, "end", 100);
+                fail("The evaluation should time out");
+            } catch (ScriptException e) {
+                assertEquals(i + 1, evaluator.getAbandonedCount());
+            }
+        }
+        try {
+            evaluator.eval("result='ok';", "result", 1000);
+            fail("The evaluation should be rejected");
+        } catch (ScriptException e) {
+            assertEquals(2, evaluator.getTimeoutCount());
+        }
+        assertEquals("ok", evaluator.eval("result='ok';", "result"));
+
+        long deadline = System.currentTimeMillis() + 10000;
+        while (evaluator.getAbandonedCount() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        assertEquals(0, evaluator.getAbandonedCount());
+        assertEquals("ok", evaluator.eval("result='ok';", "result", 1000));
+    }
+}
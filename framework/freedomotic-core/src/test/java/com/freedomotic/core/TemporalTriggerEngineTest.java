@@ -0,0 +1,218 @@
+/**
+ *
+ * Copyright (c) 2009-2016 Freedomotic team http://freedomotic.com
+ *
+ * This file is part of Freedomotic
+ *
+ * This Program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2, or (at your option) any later version.
+ *
+ * This Program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Freedomotic; see the file COPYING. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.freedomotic.core;
+
+import com.freedomotic.api.EventTemplate;
+import com.freedomotic.reactions.Trigger;
+import com.freedomotic.rules.Statement;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.List;
+import static org.junit.Assert.*;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TemporalTriggerEngineTest {
+
+    private final List<String> checked = Collections.synchronizedList(new ArrayList<String>());
+    private final TriggerCheck triggerCheck = new TriggerCheck(null, null, null, null, null, null, null) {
+        @Override
+        public boolean check(EventTemplate event, Trigger trigger) {
+            checked.add(trigger.getName());
+            return true;
+        }
+    };
+    private TemporalTriggerEngine engine;
+    // the start of the next second, the simulated time starts from it
+    private long base;
+
+    @Before
+    public void setUp() {
+        engine = new TemporalTriggerEngine(true, triggerCheck, false);
+        base = (System.currentTimeMillis() / 1000 + 1) * 1000;
+    }
+
+    /**
+     * Only the triggers on the scheduled events channel are accepted, the
+     * triggers which cannot be analyzed are polled.
+     */
+    @Test
+    public void testRegistration() {
+        Trigger always = trigger("always");
+        Trigger other = trigger("other");
+        other.setChannel("app.event.sensor.object.behavior.change");
+        assertTrue(engine.accepts(always));
+        assertFalse(engine.accepts(other));
+        assertFalse(new TemporalTriggerEngine(false, triggerCheck, false).accepts(always));
+
+        Trigger polled = trigger("polled", Statement.AND, "object.name", Statement.EQUALS, "Light");
+        engine.schedule(always);
+        engine.schedule(polled);
+        assertEquals(2, engine.size());
+        assertEquals(1, engine.getScheduledCount());
+        assertEquals(1, engine.getPolledCount());
+
+        // registering the same trigger again replaces it
+        engine.schedule(always);
+        assertEquals(2, engine.size());
+        assertEquals(1, engine.getScheduledCount());
+    }
+
+    /**
+     * A cancelled trigger is not checked anymore until it is registered again
+     */
+    @Test
+    public void testCancelAndRegisterAgain() {
+        Trigger always = trigger("always");
+        engine.schedule(always);
+        assertTrue(engine.cancel(always));
+        assertFalse(engine.cancel(always));
+        assertEquals(0, engine.size());
+        assertEquals(0, engine.getScheduledCount());
+        engine.tick(base);
+        assertTrue(checked.isEmpty());
+
+        engine.schedule(always);
+        engine.tick(base + 1000);
+        assertEquals(Collections.singletonList("always"), checked);
+    }
+
+    /**
+     * A due trigger is checked exactly once per due second, also when the
+     * ticks are late or repeated, and all the due triggers of a second share
+     * a single event.
+     */
+    @Test
+    public void testCheckedOncePerDueSecond() {
+        engine.schedule(trigger("always"));
+        long second = time(base + 3000, Calendar.SECOND);
+        engine.schedule(trigger("at second", Statement.AND, "time.second", Statement.EQUALS, String.valueOf(second)));
+
+        for (long now = base; now < base + 5000; now += 1000) {
+            engine.tick(now);
+            engine.tick(now + 500);
+        }
+        assertEquals(6, checked.size());
+        assertEquals(1, Collections.frequency(checked, "at second"));
+        assertEquals(5, engine.getEventCount());
+        assertEquals(6, engine.getCheckCount());
+
+        // the ticks of two seconds are missed
+        engine.tick(base + 7000);
+        assertEquals(7, checked.size());
+        engine.tick(base + 8000);
+        assertEquals(8, checked.size());
+    }
+
+    /**
+     * Polled triggers are checked every second
+     */
+    @Test
+    public void testPolledTriggers() {
+        engine.schedule(trigger("polled", Statement.AND, "object.name", Statement.EQUALS, "Light"));
+        for (long now = base; now < base + 3000; now += 1000) {
+            engine.tick(now);
+        }
+        assertEquals(3, checked.size());
+        assertEquals(0, engine.getScheduledCount());
+    }
+
+    /**
+     * An executed trigger is not checked until its suspension time has
+     * elapsed, and never again after its last execution
+     */
+    @Test
+    public void testExecuted() {
+        Trigger suspended = trigger("suspended");
+        suspended.setSuspensionTime(10000);
+        Trigger once = trigger("once");
+        once.setMaxExecutions(1);
+        engine.schedule(suspended);
+        engine.schedule(once);
+
+        engine.tick(base);
+        assertEquals(2, checked.size());
+        // recorded later by the automation executor
+        suspended.setExecuted();
+        engine.executed(suspended);
+        once.setExecuted();
+        engine.executed(once);
+        assertEquals(1, engine.getScheduledCount());
+
+        for (long now = base + 1000; now < base + 9000; now += 1000) {
+            engine.tick(now);
+        }
+        assertEquals(2, checked.size());
+        // the suspension ends between base + 9s and base + 10s
+        engine.tick(base + 9000);
+        engine.tick(base + 10000);
+        assertEquals(1, Collections.frequency(checked, "once"));
+        assertTrue(Collections.frequency(checked, "suspended") > 1);
+    }
+
+    /**
+     * The triggers are scheduled again when the system clock is changed: the
+     * ones skipped by a clock set forward are not fired, the ones due again
+     * after a clock set backward are.
+     */
+    @Test
+    public void testClockChange() {
+        long target = base + 30000;
+        engine.schedule(trigger("daily",
+                Statement.AND, "time.hour", Statement.EQUALS, String.valueOf(time(target, Calendar.HOUR_OF_DAY)),
+                Statement.AND, "time.minute", Statement.EQUALS, String.valueOf(time(target, Calendar.MINUTE)),
+                Statement.AND, "time.second", Statement.EQUALS, String.valueOf(time(target, Calendar.SECOND))));
+        engine.tick(base);
+
+        // set back by an hour
+        long now = base - 3600000;
+        for (; now <= target; now += 1000) {
+            engine.tick(now);
+        }
+        assertEquals(Collections.singletonList("daily"), checked);
+
+        // set forward by ten minutes, skipping the next fire time
+        engine.schedule(trigger("daily",
+                Statement.AND, "time.hour", Statement.EQUALS, String.valueOf(time(now + 300000, Calendar.HOUR_OF_DAY)),
+                Statement.AND, "time.minute", Statement.EQUALS, String.valueOf(time(now + 300000, Calendar.MINUTE)),
+                Statement.AND, "time.second", Statement.EQUALS, String.valueOf(time(now + 300000, Calendar.SECOND))));
+        engine.tick(now + 600000);
+        engine.tick(now + 601000);
+        assertEquals(1, checked.size());
+        assertEquals(2, engine.getScheduledCount());
+    }
+
+    private static Trigger trigger(String name, String... statements) {
+        Trigger trigger = new Trigger();
+        trigger.setName(name);
+        trigger.setChannel(TemporalTriggerEngine.CHANNEL);
+        for (int i = 0; i < statements.length; i += 4) {
+            trigger.getPayload().addStatement(statements[i], statements[i + 1], statements[i + 2], statements[i + 3]);
+        }
+        return trigger;
+    }
+
+    private static int time(long millis, int field) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(millis);
+        return calendar.get(field);
+    }
+}
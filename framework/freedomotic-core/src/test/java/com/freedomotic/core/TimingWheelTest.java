@@ -0,0 +1,90 @@
+/**
+ *
+ * Copyright (c) 2009-2016 Freedomotic team http://freedomotic.com
+ *
+ * This file is part of Freedomotic
+ *
+ * This Program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2, or (at your option) any later version.
+ *
+ * This Program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Freedomotic; see the file COPYING. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.freedomotic.core;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+public class TimingWheelTest {
+
+    /**
+     * Items expire at their tick, also after being cascaded from the coarser
+     * wheels or the overflow list.
+     */
+    @Test
+    public void testExpiration() {
+        long start = 1457600000000L;
+        TimingWheel<Long> wheel = new TimingWheel<Long>(1000, start);
+        Random random = new Random(42);
+        List<Long> deadlines = new ArrayList<Long>();
+        long[] ranges = {60, 3600, 86400, 86400L * 600};
+        for (int i = 0; i < 2000; i++) {
+            long deadline = start + 1000 * (1 + (long) (random.nextDouble() * ranges[i % ranges.length]));
+            // the item is its deadline, truncated to the tick
+            deadline = deadline / 1000 * 1000;
+            deadlines.add(deadline);
+            wheel.schedule(deadline, deadline);
+        }
+        assertEquals(2000, wheel.size());
+
+        int expiredCount = 0;
+        List<Long> expired = new ArrayList<Long>();
+        for (long now = start; now <= start + 86400L * 1000 * 601; now += 1000 * 37) {
+            wheel.advance(now, expired);
+            for (Long deadline : expired) {
+                assertTrue("Expired too early", deadline <= now);
+                assertTrue("Expired too late", deadline > now - 1000 * 37);
+            }
+            expiredCount += expired.size();
+            expired.clear();
+        }
+        assertEquals(2000, expiredCount);
+        assertEquals(0, wheel.size());
+    }
+
+    /**
+     * Cancelled items never expire, items scheduled in the past expire at the
+     * next advance.
+     */
+    @Test
+    public void testCancelAndOverdue() {
+        TimingWheel<String> wheel = new TimingWheel<String>(1000, 0);
+        TimingWheel.Timeout<String> cancelled = wheel.schedule("cancelled", 5000);
+        wheel.schedule("kept", 7200 * 1000);
+        assertTrue(wheel.cancel(cancelled));
+        assertFalse(wheel.cancel(cancelled));
+        assertFalse(cancelled.isPending());
+
+        List<String> expired = new ArrayList<String>();
+        wheel.advance(3600 * 1000, expired);
+        assertTrue(expired.isEmpty());
+        wheel.schedule("overdue", 1000);
+        wheel.advance(3600 * 1000, expired);
+        assertEquals(1, expired.size());
+        assertEquals("overdue", expired.get(0));
+        wheel.advance(7200 * 1000, expired);
+        assertEquals(2, expired.size());
+        assertEquals("kept", expired.get(1));
+        assertEquals(0, wheel.size());
+    }
+}
@@ -0,0 +1,241 @@
+/**
+ *
+ * Copyright (c) 2009-2016 Freedomotic team http://freedomotic.com
+ *
+ * This file is part of Freedomotic
+ *
+ * This Program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2, or (at your option) any later version.
+ *
+ * This Program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Freedomotic; see the file COPYING. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.freedomotic.core;
+
+import com.freedomotic.api.EventTemplate;
+import com.freedomotic.app.Freedomotic;
+import com.freedomotic.bus.BusService;
+import com.freedomotic.events.GenericEvent;
+import com.freedomotic.model.object.EnvObject;
+import com.freedomotic.reactions.CommandRepository;
+import com.freedomotic.reactions.ReactionRepository;
+import com.freedomotic.reactions.Trigger;
+import com.freedomotic.reactions.TriggerRepository;
+import com.freedomotic.things.EnvObjectLogic;
+import com.freedomotic.things.ThingRepository;
+import com.google.inject.AbstractModule;
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import javax.jms.MessageConsumer;
+import javax.jms.MessageListener;
+import javax.jms.ObjectMessage;
+import javax.jms.Session;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+public class TriggerDispatcherTest {
+
+    // the bus listeners of the channels, in creation order
+    private final List<MessageListener> listeners = Collections.synchronizedList(new ArrayList<MessageListener>());
+    private final List<String> checked = Collections.synchronizedList(new ArrayList<String>());
+    private final CountDownLatch release = new CountDownLatch(1);
+    private final CountDownLatch blocked = new CountDownLatch(1);
+    private final TriggerCheck triggerCheck = new TriggerCheck(null, null, null, null, null, null, null) {
+        @Override
+        public boolean check(EventTemplate event, Trigger trigger) {
+            if (trigger.getName().equals("slow")) {
+                blocked.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            checked.add(trigger.getName() + " " + event.getProperty("sequence"));
+            if (trigger.getName().equals("failing")) {
+                throw new IllegalStateException("Failing trigger check");
+            }
+            return true;
+        }
+    };
+    private final TriggerDispatcher dispatcher = new TriggerDispatcher(busService(),
+            triggerCheck, new TemporalTriggerEngine(false, triggerCheck, false));
+
+    /**
+     * A slow trigger check delays only the events of its own channel, which
+     * are still checked in the order they are received.
+     */
+    @Test(timeout = 10000)
+    public void testChannelsAreDispatchedConcurrently() throws Exception {
+        dispatcher.register(trigger("slow", "app.event.sensor.slow"));
+        dispatcher.register(trigger("fast", "app.event.sensor.fast"));
+        assertEquals(2, listeners.size());
+        MessageListener slow = listeners.get(0);
+        MessageListener fast = listeners.get(1);
+
+        slow.onMessage(message(1));
+        slow.onMessage(message(2));
+        assertTrue(blocked.await(5, TimeUnit.SECONDS));
+        fast.onMessage(message(1));
+        waitFor(1);
+        assertEquals("fast 1", checked.get(0));
+
+        release.countDown();
+        waitFor(3);
+        assertEquals("slow 1", checked.get(1));
+        assertEquals("slow 2", checked.get(2));
+        assertEquals(Long.valueOf(2), dispatcher.getReceivedEventCounts().get("app.event.sensor.slow"));
+    }
+
+    /**
+     * A trigger check throwing an exception does not prevent the check of the
+     * other triggers nor of the next events.
+     */
+    @Test(timeout = 10000)
+    public void testFailingCheckDoesNotStopDispatching() throws Exception {
+        dispatcher.register(trigger("failing", "app.event.sensor.test"));
+        dispatcher.register(trigger("working", "app.event.sensor.test"));
+        assertEquals(1, listeners.size());
+
+        listeners.get(0).onMessage(message(1));
+        listeners.get(0).onMessage(message(2));
+        waitFor(4);
+        assertTrue(checked.containsAll(Arrays.asList("failing 1", "working 1", "failing 2", "working 2")));
+    }
+
+    /**
+     * The triggers referring to a renamed thing must still be candidates for
+     * the events of the thing with its new name.
+     */
+    @Test(timeout = 10000)
+    public void testRenamedThingTriggersStillFire() throws Exception {
+        Injector previousInjector = Freedomotic.INJECTOR;
+        Freedomotic.INJECTOR = Guice.createInjector(new AbstractModule() {
+            @Override
+            protected void configure() {
+                bind(TriggerDispatcher.class).toInstance(dispatcher);
+            }
+        });
+        try {
+            Trigger trigger = trigger("Light turns on", "app.event.sensor.object.behavior.change");
+            trigger.getPayload().addStatement("object.name", "Light");
+            trigger.register();
+
+            new Thing("Light", trigger).rename("Kitchen light");
+            assertEquals("Kitchen light turns on", trigger.getName());
+
+            listeners.get(0).onMessage(message(1, "Kitchen light"));
+            waitFor(1);
+            assertEquals("Kitchen light turns on 1", checked.get(0));
+        } finally {
+            Freedomotic.INJECTOR = previousInjector;
+        }
+    }
+
+    private void waitFor(int checks) throws InterruptedException {
+        long timeout = System.currentTimeMillis() + 5000;
+        while (checked.size() < checks && System.currentTimeMillis() < timeout) {
+            Thread.sleep(5);
+        }
+        assertEquals(checks, checked.size());
+    }
+
+    private static Trigger trigger(String name, String channel) {
+        Trigger trigger = new Trigger();
+        trigger.setName(name);
+        trigger.setChannel(channel);
+        return trigger;
+    }
+
+    private static ObjectMessage message(int sequence) {
+        return message(sequence, "Thing");
+    }
+
+    private static ObjectMessage message(int sequence, String objectName) {
+        final GenericEvent event = new GenericEvent(TriggerDispatcherTest.class);
+        event.addProperty("sequence", String.valueOf(sequence));
+        event.addProperty("object.name", objectName);
+        return stub(ObjectMessage.class, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                return method.getName().equals("getObject") ? event : null;
+            }
+        });
+    }
+
+    /*
+     * A bus whose message consumers only record the listener they are given
+     */
+    private BusService busService() {
+        final MessageConsumer consumer = stub(MessageConsumer.class, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                if (method.getName().equals("setMessageListener")) {
+                    listeners.add((MessageListener) args[0]);
+                }
+                return null;
+            }
+        });
+        final Session session = stub(Session.class, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                return method.getName().equals("createConsumer") ? consumer : null;
+            }
+        });
+        return stub(BusService.class, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                return method.getName().endsWith("Session") ? session : null;
+            }
+        });
+    }
+
+    /*
+     * A repository whose methods returning a list return the given one
+     */
+    private static <T> T repository(Class<T> type, final List<?> items) {
+        return stub(type, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                return List.class.isAssignableFrom(method.getReturnType()) ? items : null;
+            }
+        });
+    }
+
+    /**
+     * A thing whose triggers are the given one, without commands and
+     * reactions
+     */
+    private static final class Thing extends EnvObjectLogic {
+
+        Thing(String name, Trigger trigger) {
+            EnvObject pojo = new EnvObject();
+            pojo.setName(name);
+            setPojo(pojo);
+            thingRepository = repository(ThingRepository.class, Collections.emptyList());
+            triggerRepository = repository(TriggerRepository.class, Collections.singletonList(trigger));
+            commandRepository = repository(CommandRepository.class, Collections.emptyList());
+            reactionRepository = repository(ReactionRepository.class, Collections.emptyList());
+        }
+    }
+
+    private static <T> T stub(Class<T> type, InvocationHandler handler) {
+        return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type}, handler));
+    }
+}
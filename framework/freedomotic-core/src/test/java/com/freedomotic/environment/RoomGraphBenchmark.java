@@ -0,0 +1,128 @@
+/**
+ *
+ * Copyright (c) 2009-2016 Freedomotic team http://freedomotic.com
+ *
+ * This file is part of Freedomotic
+ *
+ * This Program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2, or (at your option) any later version.
+ *
+ * This Program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Freedomotic; see the file COPYING. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.freedomotic.environment;
+
+import com.freedomotic.environment.RoomGraphTest.TestGate;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import org.junit.Ignore;
+
+/**
+ * Compares the gate toggles handled by {@link RoomGraph} with a visit of the
+ * rooms graph from every room (as done before on every gate change) in a
+ * synthetic building. It is not a unit test, run it with
+ * <code>java -cp ... com.freedomotic.environment.RoomGraphBenchmark</code>
+ */
+@Ignore
+public class RoomGraphBenchmark {
+
+    private static final int ROOMS = 500;
+    private static final int GATES = 2000;
+    private static final int VISIT_TOGGLES = 50;
+    private static final int GRAPH_TOGGLES = 200000;
+
+    public static void main(String[] args) {
+        Random random = new Random(ROOMS);
+        List<Room> rooms = new ArrayList<Room>();
+        for (int i = 0; i < ROOMS; i++) {
+            rooms.add(RoomGraphTest.room("Room " + i));
+        }
+        // a corridor connecting all the rooms plus gates between near rooms
+        List<TestGate> gates = new ArrayList<TestGate>();
+        for (int i = 1; i < ROOMS; i++) {
+            gates.add(new TestGate(rooms.get(i - 1), rooms.get(i)));
+        }
+        while (gates.size() < GATES) {
+            int from = random.nextInt(ROOMS);
+            int to = Math.min(ROOMS - 1, from + 2 + random.nextInt(20));
+            gates.add(new TestGate(rooms.get(from), rooms.get(to)));
+        }
+        for (TestGate gate : gates) {
+            gate.open = random.nextBoolean();
+        }
+
+        // the graph shape used before: room -> set of gates
+        Map<Room, Set<TestGate>> adjacency = new HashMap<Room, Set<TestGate>>();
+        for (TestGate gate : gates) {
+            adjacency(adjacency, gate.from).add(gate);
+            adjacency(adjacency, gate.to).add(gate);
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < VISIT_TOGGLES; i++) {
+            TestGate gate = gates.get(random.nextInt(GATES));
+            gate.open = !gate.open;
+            for (Room room : rooms) {
+                visit(adjacency, room);
+            }
+        }
+        long visitTime = System.nanoTime() - start;
+
+        RoomGraph graph = new RoomGraph();
+        for (TestGate gate : gates) {
+            graph.setGate(gate, gate.from, gate.to, gate.open);
+        }
+        start = System.nanoTime();
+        long changed = 0;
+        for (int i = 0; i < GRAPH_TOGGLES; i++) {
+            TestGate gate = gates.get(random.nextInt(GATES));
+            gate.open = !gate.open;
+            changed += graph.setGate(gate, gate.from, gate.to, gate.open).size();
+        }
+        long graphTime = System.nanoTime() - start;
+
+        System.out.println(String.format("%d rooms, %d gates: full visit %10.1f toggles/sec, "
+                + "RoomGraph %10.1f toggles/sec (%d changed rooms)",
+                ROOMS, GATES,
+                VISIT_TOGGLES / (visitTime / 1e9),
+                GRAPH_TOGGLES / (graphTime / 1e9),
+                changed));
+    }
+
+    private static Set<TestGate> adjacency(Map<Room, Set<TestGate>> adjacency, Room room) {
+        Set<TestGate> gates = adjacency.get(room);
+        if (gates == null) {
+            gates = new HashSet<TestGate>();
+            adjacency.put(room, gates);
+        }
+        return gates;
+    }
+
+    private static void visit(Map<Room, Set<TestGate>> adjacency, Room start) {
+        Set<Room> visited = new HashSet<Room>();
+        ArrayDeque<Room> queue = new ArrayDeque<Room>();
+        queue.add(start);
+        visited.add(start);
+        while (!queue.isEmpty()) {
+            Room room = queue.poll();
+            for (TestGate gate : adjacency.get(room)) {
+                Room next = gate.from == room ? gate.to : gate.from;
+                if (gate.open && visited.add(next)) {
+                    queue.add(next);
+                }
+            }
+        }
+    }
+}
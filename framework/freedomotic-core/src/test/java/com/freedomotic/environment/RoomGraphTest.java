@@ -0,0 +1,248 @@
+/**
+ *
+ * Copyright (c) 2009-2016 Freedomotic team http://freedomotic.com
+ *
+ * This file is part of Freedomotic
+ *
+ * This Program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2, or (at your option) any later version.
+ *
+ * This Program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Freedomotic; see the file COPYING. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.freedomotic.environment;
+
+import com.freedomotic.model.environment.Zone;
+import com.freedomotic.things.GenericGate;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+public class RoomGraphTest {
+
+    @Test
+    public void testOpenAndCloseGates() {
+        Room kitchen = room("kitchen");
+        Room hall = room("hall");
+        Room bedroom = room("bedroom");
+        TestGate kitchenDoor = new TestGate(kitchen, hall);
+        TestGate bedroomDoor = new TestGate(hall, bedroom);
+        RoomGraph graph = new RoomGraph();
+
+        assertTrue(graph.setGate(kitchenDoor, kitchen, hall, false).isEmpty());
+        assertTrue(graph.getReachable(kitchen).isEmpty());
+
+        assertEquals(2, graph.setGate(kitchenDoor, kitchen, hall, true).size());
+        assertEquals(3, graph.setGate(bedroomDoor, hall, bedroom, true).size());
+        assertEquals(names(hall, bedroom), names(graph.getReachable(kitchen)));
+        assertTrue(graph.isReachable(bedroom, kitchen));
+
+        // nothing changes if the gate state is the same
+        assertTrue(graph.setGate(kitchenDoor, kitchen, hall, true).isEmpty());
+
+        assertEquals(3, graph.setGate(bedroomDoor, hall, bedroom, false).size());
+        assertEquals(names(hall), names(graph.getReachable(kitchen)));
+        assertFalse(graph.isReachable(bedroom, kitchen));
+
+        // the gate is moved between the hall and the bedroom
+        graph.setGate(kitchenDoor, hall, bedroom, true);
+        assertTrue(graph.getReachable(kitchen).isEmpty());
+        assertEquals(names(bedroom), names(graph.getReachable(hall)));
+
+        graph.removeRoom(bedroom);
+        assertTrue(graph.getReachable(hall).isEmpty());
+        assertTrue(graph.getReachable(bedroom).isEmpty());
+    }
+
+    /**
+     * Removed gates are forgotten with the rooms left without gates, their
+     * ids are reused by the next ones
+     */
+    @Test
+    public void testRemovedGatesAndRoomsAreForgotten() {
+        Room kitchen = room("kitchen");
+        Room hall = room("hall");
+        Room bedroom = room("bedroom");
+        TestGate kitchenDoor = new TestGate(kitchen, hall);
+        TestGate bedroomDoor = new TestGate(hall, bedroom);
+        RoomGraph graph = new RoomGraph();
+        graph.setGate(kitchenDoor, kitchen, hall, true);
+        graph.setGate(bedroomDoor, hall, bedroom, true);
+        assertEquals(3, graph.getRoomCount());
+        assertEquals(2, graph.getGateCount());
+
+        assertEquals(3, graph.removeGate(kitchenDoor).size());
+        assertEquals(2, graph.getRoomCount());
+        assertEquals(1, graph.getGateCount());
+        assertTrue(graph.removeGate(kitchenDoor).isEmpty());
+
+        // the gate is moved away from the bedroom
+        graph.setGate(bedroomDoor, hall, kitchen, true);
+        assertEquals(2, graph.getRoomCount());
+        assertEquals(names(hall), names(graph.getReachable(kitchen)));
+        assertTrue(graph.getReachable(bedroom).isEmpty());
+
+        graph.removeRoom(hall);
+        assertEquals(0, graph.getRoomCount());
+        assertEquals(0, graph.getGateCount());
+
+        // many gates added and removed do not grow the graph
+        for (int i = 0; i < 1000; i++) {
+            Room from = room("from " + i);
+            Room to = room("to " + i);
+            TestGate gate = new TestGate(from, to);
+            graph.setGate(gate, from, to, true);
+            graph.setGate(kitchenDoor, kitchen, to, true);
+            assertEquals(names(to, kitchen), names(graph.getReachable(from)));
+            graph.removeGate(gate);
+            graph.removeGate(kitchenDoor);
+        }
+        assertEquals(0, graph.getRoomCount());
+        assertEquals(0, graph.getGateCount());
+    }
+
+    /**
+     * Reachable rooms must be the same computed by a visit of the graph after
+     * every gate change
+     */
+    @Test
+    public void testSameResultsOfGraphVisit() {
+        Random random = new Random(42);
+        List<Room> rooms = new ArrayList<Room>();
+        for (int i = 0; i < 60; i++) {
+            rooms.add(room("room " + i));
+        }
+        List<TestGate> gates = new ArrayList<TestGate>();
+        RoomGraph graph = new RoomGraph();
+        for (int i = 0; i < 90; i++) {
+            TestGate gate = new TestGate(rooms.get(random.nextInt(rooms.size())), rooms.get(random.nextInt(rooms.size())));
+            gates.add(gate);
+            graph.setGate(gate, gate.from, gate.to, gate.open);
+        }
+
+        for (int i = 0; i < 500; i++) {
+            TestGate gate = gates.get(random.nextInt(gates.size()));
+            Map<Room, Set<String>> before = visitAll(rooms, gates);
+            if (random.nextInt(10) == 0) {
+                // moved between other rooms
+                gate.from = rooms.get(random.nextInt(rooms.size()));
+                gate.to = rooms.get(random.nextInt(rooms.size()));
+            } else {
+                gate.open = !gate.open;
+            }
+            Set<String> changed = names(graph.setGate(gate, gate.from, gate.to, gate.open));
+            Map<Room, Set<String>> after = visitAll(rooms, gates);
+
+            for (Room room : rooms) {
+                assertEquals(after.get(room), names(graph.getReachable(room)));
+                if (!before.get(room).equals(after.get(room))) {
+                    assertTrue(changed.contains(room.getPojo().getName()));
+                }
+            }
+            // only the gates connecting two rooms and their rooms are kept
+            Set<Room> connected = Collections.newSetFromMap(new IdentityHashMap<Room, Boolean>());
+            int connecting = 0;
+            for (TestGate other : gates) {
+                if (other.from != other.to) {
+                    connected.add(other.from);
+                    connected.add(other.to);
+                    connecting++;
+                }
+            }
+            assertEquals(connecting, graph.getGateCount());
+            assertEquals(connected.size(), graph.getRoomCount());
+        }
+    }
+
+    private static Map<Room, Set<String>> visitAll(List<Room> rooms, List<TestGate> gates) {
+        Map<Room, Set<String>> result = new IdentityHashMap<Room, Set<String>>();
+        for (Room start : rooms) {
+            Set<Room> visited = Collections.newSetFromMap(new IdentityHashMap<Room, Boolean>());
+            Deque<Room> queue = new ArrayDeque<Room>();
+            queue.add(start);
+            visited.add(start);
+            while (!queue.isEmpty()) {
+                Room room = queue.poll();
+                for (TestGate gate : gates) {
+                    if (gate.open && gate.from != gate.to && (gate.from == room || gate.to == room)) {
+                        Room next = gate.from == room ? gate.to : gate.from;
+                        if (visited.add(next)) {
+                            queue.add(next);
+                        }
+                    }
+                }
+            }
+            visited.remove(start);
+            result.put(start, names(new ArrayList<Room>(visited)));
+        }
+        return result;
+    }
+
+    private static Set<String> names(Room... rooms) {
+        return names(Arrays.asList(rooms));
+    }
+
+    private static Set<String> names(List<Room> rooms) {
+        Set<String> names = new HashSet<String>();
+        for (Room room : rooms) {
+            names.add(room.getPojo().getName());
+        }
+        return names;
+    }
+
+    static Room room(String name) {
+        Zone zone = new Zone();
+        zone.setName(name);
+        return new Room(zone);
+    }
+
+    static class TestGate implements GenericGate {
+
+        Room from;
+        Room to;
+        boolean open;
+
+        TestGate(Room from, Room to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        public void evaluateGate() {
+        }
+
+        @Override
+        public Room getFrom() {
+            return from;
+        }
+
+        @Override
+        public Room getTo() {
+            return to;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return open;
+        }
+    }
+}
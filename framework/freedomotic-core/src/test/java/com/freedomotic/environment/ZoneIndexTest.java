@@ -0,0 +1,120 @@
+/**
+ *
+ * Copyright (c) 2009-2016 Freedomotic team http://freedomotic.com
+ *
+ * This file is part of Freedomotic
+ *
+ * This Program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2, or (at your option) any later version.
+ *
+ * This Program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Freedomotic; see the file COPYING. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.freedomotic.environment;
+
+import com.freedomotic.model.environment.Zone;
+import com.freedomotic.model.geometry.FreedomPoint;
+import com.freedomotic.model.geometry.FreedomPolygon;
+import com.freedomotic.util.TopologyUtils;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+public class ZoneIndexTest {
+
+    @Test
+    public void testFindContaining() {
+        ZoneLogic kitchen = zone("kitchen", 0, 0, 100, 100);
+        ZoneLogic livingRoom = zone("living room", 100, 0, 300, 100);
+        ZoneLogic floor = zone("floor", -50, -50, 400, 200);
+        ZoneIndex index = new ZoneIndex(Arrays.asList(kitchen, livingRoom, floor));
+
+        assertEquals(Arrays.asList(kitchen, floor), index.findContaining(new FreedomPoint(50, 50)));
+        assertEquals(Arrays.asList(livingRoom, floor), index.findContaining(new FreedomPoint(250, 10)));
+        assertEquals(Arrays.asList(floor), index.findContaining(new FreedomPoint(-10, 150)));
+        assertTrue(index.findContaining(new FreedomPoint(1000, 1000)).isEmpty());
+    }
+
+    @Test
+    public void testFindIntersecting() {
+        ZoneLogic kitchen = zone("kitchen", 0, 0, 100, 100);
+        ZoneLogic livingRoom = zone("living room", 100, 0, 300, 100);
+        ZoneIndex index = new ZoneIndex(Arrays.asList(kitchen, livingRoom));
+
+        assertEquals(Arrays.asList(kitchen), index.findIntersecting(rectangle(10, 10, 30, 30)));
+        assertEquals(Arrays.asList(kitchen, livingRoom), index.findIntersecting(rectangle(90, 10, 110, 30)));
+        assertTrue(index.findIntersecting(rectangle(500, 500, 510, 510)).isEmpty());
+    }
+
+    /**
+     * The index must return the same zones of a check of every zone
+     */
+    @Test
+    public void testSameResultsOfTopologyUtils() {
+        Random random = new Random(42);
+        List<ZoneLogic> zones = new ArrayList<ZoneLogic>();
+        for (int i = 0; i < 300; i++) {
+            int x = random.nextInt(2000) - 500;
+            int y = random.nextInt(2000) - 500;
+            FreedomPolygon shape = new FreedomPolygon();
+            // random triangles and quadrilaterals, also concave
+            for (int j = 0, points = 3 + random.nextInt(2); j < points; j++) {
+                shape.append(x + random.nextInt(300), y + random.nextInt(300));
+            }
+            zones.add(zone("zone " + i, shape));
+        }
+        ZoneIndex index = new ZoneIndex(zones);
+
+        for (int i = 0; i < 2000; i++) {
+            FreedomPoint point = new FreedomPoint(random.nextInt(2600) - 600, random.nextInt(2600) - 600);
+            List<ZoneLogic> expected = new ArrayList<ZoneLogic>();
+            for (ZoneLogic zone : zones) {
+                if (TopologyUtils.contains(zone.getPojo().getShape(), point)) {
+                    expected.add(zone);
+                }
+            }
+            assertEquals(expected, index.findContaining(point));
+
+            int size = 1 + random.nextInt(400);
+            FreedomPolygon thing = rectangle(point.getX(), point.getY(), point.getX() + size, point.getY() + size);
+            expected.clear();
+            for (ZoneLogic zone : zones) {
+                if (TopologyUtils.intersects(thing, zone.getPojo().getShape())) {
+                    expected.add(zone);
+                }
+            }
+            assertEquals(expected, index.findIntersecting(thing));
+        }
+    }
+
+    private static ZoneLogic zone(String name, int x1, int y1, int x2, int y2) {
+        return zone(name, rectangle(x1, y1, x2, y2));
+    }
+
+    private static ZoneLogic zone(String name, FreedomPolygon shape) {
+        Zone zone = new Zone();
+        zone.setName(name);
+        zone.setShape(shape);
+        return new ZoneLogic(zone);
+    }
+
+    private static FreedomPolygon rectangle(int x1, int y1, int x2, int y2) {
+        FreedomPolygon shape = new FreedomPolygon();
+        shape.append(x1, y1);
+        shape.append(x2, y1);
+        shape.append(x2, y2);
+        shape.append(x1, y2);
+        return shape;
+    }
+}
@@ -0,0 +1,92 @@
+/**
+ *
+ * Copyright (c) 2009-2016 Freedomotic team http://freedomotic.com
+ *
+ * This file is part of Freedomotic
+ *
+ * This Program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2, or (at your option) any later version.
+ *
+ * This Program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Freedomotic; see the file COPYING. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.freedomotic.environment;
+
+import com.freedomotic.model.environment.Environment;
+import com.freedomotic.model.environment.Zone;
+import com.freedomotic.model.object.EnvObject;
+import com.freedomotic.things.EnvObjectLogic;
+import java.util.ArrayList;
+import java.util.List;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+public class ZoneLogicTest {
+
+    /**
+     * The things inside a removed zone are told to forget it and the zone no
+     * more keeps a reference to them.
+     */
+    @Test
+    public void testRemovedZoneIsForgotten() {
+        EnvironmentLogic environment = new EnvironmentLogic();
+        environment.setPojo(new Environment());
+        ZoneLogic kitchen = zone("kitchen");
+        ZoneLogic bedroom = zone("bedroom");
+        environment.getPojo().getZones().add(kitchen.getPojo());
+        environment.getPojo().getZones().add(bedroom.getPojo());
+        environment.init();
+        kitchen = environment.getZones().get(0);
+        bedroom = environment.getZones().get(1);
+
+        Thing lamp = new Thing("lamp");
+        Thing fridge = new Thing("fridge");
+        kitchen.addThing(lamp);
+        kitchen.addThing(fridge);
+        bedroom.addThing(lamp);
+        kitchen.removeThing(fridge);
+        assertEquals(1, kitchen.getPojo().getObjects().size());
+
+        environment.removeZone(kitchen);
+        assertEquals(1, lamp.removedZones.size());
+        assertSame(kitchen, lamp.removedZones.get(0));
+        assertTrue(fridge.removedZones.isEmpty());
+
+        // the zone does not list its things anymore
+        kitchen.removed();
+        assertEquals(1, lamp.removedZones.size());
+
+        environment.clear();
+        assertEquals(2, lamp.removedZones.size());
+        assertSame(bedroom, lamp.removedZones.get(1));
+    }
+
+    private static ZoneLogic zone(String name) {
+        Zone zone = new Zone();
+        zone.setName(name);
+        return new ZoneLogic(zone);
+    }
+
+    private static final class Thing extends EnvObjectLogic {
+
+        private final List<ZoneLogic> removedZones = new ArrayList<ZoneLogic>();
+
+        Thing(String name) {
+            EnvObject pojo = new EnvObject();
+            pojo.setName(name);
+            setPojo(pojo);
+        }
+
+        @Override
+        public void zoneRemoved(ZoneLogic zone) {
+            removedZones.add(zone);
+        }
+    }
+}
@@ -0,0 +1,86 @@
+/**
+ *
+ * Copyright (c) 2009-2016 Freedomotic team http://freedomotic.com
+ *
+ * This file is part of Freedomotic
+ *
+ * This Program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2, or (at your option) any later version.
+ *
+ * This Program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Freedomotic; see the file COPYING. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.freedomotic.metrics;
+
+import java.util.Map;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class HistogramTest {
+
+    /**
+     * Every value falls in a bucket whose highest value is at most 1/16
+     * greater, buckets are contiguous
+     */
+    @Test
+    public void bucketsHaveBoundedError() {
+        long[] values = {0, 1, 31, 32, 33, 63, 64, 1000, 123456789, Long.MAX_VALUE / 3, Long.MAX_VALUE};
+        for (long value : values) {
+            int bucket = Histogram.bucketOf(value);
+            long highest = Histogram.highestValueOf(bucket);
+            Assert.assertTrue(value + " above its bucket", value <= highest);
+            Assert.assertTrue(value + " too far from its bucket", highest - value <= value / 16);
+            if (bucket > 0) {
+                Assert.assertEquals(bucket - 1, Histogram.bucketOf(Histogram.highestValueOf(bucket - 1)));
+                Assert.assertEquals(bucket, Histogram.bucketOf(Histogram.highestValueOf(bucket - 1) + 1));
+            }
+        }
+    }
+
+    /**
+     * Percentiles are reported within the histogram precision
+     */
+    @Test
+    public void percentiles() {
+        Histogram histogram = Metrics.histogram("test.percentiles");
+        for (int i = 1; i <= 10000; i++) {
+            histogram.record(i);
+        }
+        Histogram.Snapshot snapshot = histogram.snapshot();
+        Assert.assertEquals(10000, snapshot.getCount());
+        Assert.assertEquals(5000.5, snapshot.getMean(), 0.001);
+        Assert.assertEquals(10000, snapshot.getMax());
+        Assert.assertEquals(5000, snapshot.getPercentile(50), 5000 / 16);
+        Assert.assertEquals(9900, snapshot.getPercentile(99), 9900 / 16);
+        Assert.assertEquals(9990, snapshot.getPercentile(99.9), 9990 / 16);
+        Assert.assertEquals(10000, snapshot.getPercentile(100));
+        Assert.assertEquals(1, snapshot.getPercentile(0));
+    }
+
+    /**
+     * Metrics are shared by name and reported in the snapshot
+     */
+    @Test
+    @SuppressWarnings("unchecked")
+    public void registryReportsMetrics() {
+        Metrics.counter("test.counter").add(2);
+        Metrics.counter("test.counter").increment();
+        Metrics.histogram("test.latency").record(1500);
+
+        Map<String, Object> snapshot = Metrics.snapshot();
+        Assert.assertEquals(3L, snapshot.get("test.counter"));
+        Map<String, Object> latency = (Map<String, Object>) snapshot.get("test.latency");
+        Assert.assertEquals(1L, latency.get("count"));
+        Assert.assertEquals(1.5, (Double) latency.get("max"), 0.001);
+        Assert.assertTrue(latency.containsKey("p999"));
+        Assert.assertTrue(Metrics.print().contains("test.counter 3\n"));
+        Assert.assertTrue(Metrics.print().contains("test.latency count=1 mean=1.500 p50=1.500"));
+    }
+}
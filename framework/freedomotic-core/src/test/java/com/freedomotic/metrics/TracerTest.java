@@ -0,0 +1,112 @@
+/**
+ *
+ * Copyright (c) 2009-2016 Freedomotic team http://freedomotic.com
+ *
+ * This file is part of Freedomotic
+ *
+ * This Program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2, or (at your option) any later version.
+ *
+ * This Program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Freedomotic; see the file COPYING. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.freedomotic.metrics;
+
+import java.util.List;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TracerTest {
+
+    /**
+     *
+     */
+    @Before
+    public void setUp() {
+        Tracer.configure(true, 8);
+    }
+
+    /**
+     *
+     */
+    @After
+    public void tearDown() {
+        Tracer.configure(true, 4096);
+    }
+
+    /**
+     * Spans started in the same thread are children of the current span, the
+     * previous span is restored when a span ends
+     */
+    @Test
+    public void spansAreChainedInTheSameThread() {
+        Span root = Tracer.start("root");
+        Span child = Tracer.start("child");
+        Assert.assertSame(child, Tracer.current());
+        Assert.assertEquals(root.getTraceId(), child.getTraceId());
+        Assert.assertEquals(root.getSpanId(), child.getParentId());
+        child.end();
+        Assert.assertSame(root, Tracer.current());
+        root.end();
+        Assert.assertNull(Tracer.current());
+
+        List<Span> trace = Tracer.getTrace(root.getTraceId());
+        Assert.assertEquals(2, trace.size());
+        Assert.assertTrue(child.getDuration() >= 0);
+    }
+
+    /**
+     * A received trace context takes precedence over the current span,
+     * discarded spans are not recorded
+     */
+    @Test
+    public void receivedContextIsUsed() {
+        Span received = Tracer.start("received", "remote-trace", "remote-span");
+        Assert.assertEquals("remote-trace", received.getTraceId());
+        Assert.assertEquals("remote-span", received.getParentId());
+        Span discarded = Tracer.start("discarded");
+        discarded.discard();
+        Assert.assertSame(received, Tracer.current());
+        received.end();
+
+        Assert.assertEquals(1, Tracer.getTrace("remote-trace").size());
+    }
+
+    /**
+     * The oldest spans are overwritten, recent spans are returned most
+     * recent first
+     */
+    @Test
+    public void bufferKeepsTheLastSpans() {
+        for (int i = 0; i < 20; i++) {
+            Tracer.startDetached("span-" + i, null, null).end();
+        }
+        List<Span> recent = Tracer.getRecentSpans(100);
+        Assert.assertEquals(8, recent.size());
+        Assert.assertEquals("span-19", recent.get(0).getName());
+        Assert.assertEquals("span-12", recent.get(7).getName());
+        Assert.assertEquals(3, Tracer.getRecentSpans(3).size());
+    }
+
+    /**
+     * A disabled tracer does not bind nor record spans
+     */
+    @Test
+    public void disabledTracerRecordsNothing() {
+        Tracer.configure(false, 8);
+        Span span = Tracer.start("ignored");
+        Assert.assertNull(span.getTraceId());
+        Assert.assertNull(Tracer.current());
+        span.end();
+        Assert.assertTrue(Tracer.getRecentSpans(10).isEmpty());
+    }
+}
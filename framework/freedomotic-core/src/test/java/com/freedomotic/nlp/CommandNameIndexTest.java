@@ -0,0 +1,154 @@
+/**
+ *
+ * Copyright (c) 2009-2016 Freedomotic team http://freedomotic.com
+ *
+ * This file is part of Freedomotic
+ *
+ * This Program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2, or (at your option) any later version.
+ *
+ * This Program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Freedomotic; see the file COPYING. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.freedomotic.nlp;
+
+import com.freedomotic.nlp.Nlp.DescendingRankComparator;
+import com.freedomotic.nlp.Nlp.Rank;
+import com.freedomotic.reactions.Command;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import org.junit.Test;
+
+public class CommandNameIndexTest {
+
+    private static final String[] WORDS = {"turn", "on", "off", "kitchen", "light", "living", "room",
+        "lamp", "open", "close", "gate", "set", "temperature", "to", "increase", "decrease",
+        "brightness", "its", "this", "switch", "power", "state", "bedroom", "window", "a", "tv"};
+
+    @Test
+    public void testBoundedDistance() {
+        Random random = new Random(42);
+        DamerauLevenshtein full = new DamerauLevenshtein();
+        DamerauLevenshtein bounded = new DamerauLevenshtein();
+        for (int i = 0; i < 20000; i++) {
+            String a = randomWord(random);
+            String b = random.nextBoolean() ? typo(random, a) : randomWord(random);
+            int max = random.nextInt(5);
+            full.setWordsToCompare(a, b);
+            int expected = full.getSimilarity();
+            assertEquals(a + " / " + b + " max " + max,
+                    Math.min(expected, max + 1), bounded.getDistance(a, b, max));
+        }
+    }
+
+    @Test
+    public void testSameRankingOfFullComparison() {
+        Random random = new Random(42);
+        List<Command> commands = new ArrayList<Command>();
+        CommandNameIndex index = new CommandNameIndex();
+        for (int i = 0; i < 500; i++) {
+            StringBuilder name = new StringBuilder();
+            for (int j = 0, words = 2 + random.nextInt(4); j < words; j++) {
+                name.append(j > 0 ? " " : "").append(WORDS[random.nextInt(WORDS.length)]);
+            }
+            name.append(" ").append(randomWord(random));
+            Command command = new Command();
+            command.setName(name.toString());
+            commands.add(command);
+        }
+        index.sync(commands);
+
+        for (int i = 0; i < 300; i++) {
+            if (i % 100 == 99) {
+                // some commands are removed and added back at the end
+                List<Command> moved = new ArrayList<Command>(commands.subList(0, 10));
+                commands.removeAll(moved);
+                index.sync(commands);
+                commands.addAll(moved);
+                index.sync(commands);
+            }
+            StringBuilder phrase = new StringBuilder();
+            for (int j = 0, words = 1 + random.nextInt(5); j < words; j++) {
+                String word = WORDS[random.nextInt(WORDS.length)];
+                phrase.append(j > 0 ? " " : "").append(random.nextBoolean() ? typo(random, word) : word.toUpperCase());
+            }
+            int maxResults = 1 + random.nextInt(20);
+            List<Rank<Command>> expected = fullComparison(commands, phrase.toString(), maxResults);
+            List<Rank<Command>> actual = index.rank(phrase.toString(), maxResults);
+
+            assertEquals(phrase.toString(), expected.size(), actual.size());
+            for (int j = 0; j < expected.size(); j++) {
+                assertEquals(phrase.toString(), expected.get(j).getSimilarity(), actual.get(j).getSimilarity());
+                assertSame(phrase.toString(), expected.get(j).getElement(), actual.get(j).getElement());
+            }
+        }
+    }
+
+    /*
+     * The ranking computed comparing the input with every command
+     */
+    private static List<Rank<Command>> fullComparison(List<Command> commands, String input, int maxResults) {
+        List<Rank<Command>> ranking = new ArrayList<Rank<Command>>();
+        DamerauLevenshtein algorithm = new DamerauLevenshtein();
+        for (Command command : commands) {
+            int similarity = 0;
+            for (String inputWord : input.split(" ")) {
+                for (String commandWord : command.getName().split(" ")) {
+                    algorithm.setWordsToCompare(inputWord.trim().toLowerCase(), commandWord.trim().toLowerCase());
+                    int distance = algorithm.getSimilarity();
+                    double distancePercent = ((double) (distance * 100)) / ((double) inputWord.length());
+                    if (distancePercent == 0) {
+                        similarity += 30;
+                    } else if (distancePercent <= 30) {
+                        similarity += 15;
+                    }
+                }
+            }
+            ranking.add(new Rank<Command>(similarity, command));
+        }
+        Collections.sort(ranking, new DescendingRankComparator());
+        return ranking.subList(0, Math.min(maxResults, ranking.size()));
+    }
+
+    private static String randomWord(Random random) {
+        char[] chars = new char[1 + random.nextInt(10)];
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = (char) ('a' + random.nextInt(6));
+        }
+        return new String(chars);
+    }
+
+    private static String typo(Random random, String word) {
+        StringBuilder result = new StringBuilder(word);
+        for (int i = 0, typos = random.nextInt(3); i < typos && result.length() > 1; i++) {
+            int position = random.nextInt(result.length() - 1);
+            switch (random.nextInt(4)) {
+                case 0:
+                    result.deleteCharAt(position);
+                    break;
+                case 1:
+                    result.insert(position, (char) ('a' + random.nextInt(26)));
+                    break;
+                case 2:
+                    result.setCharAt(position, (char) ('a' + random.nextInt(26)));
+                    break;
+                default:
+                    char swap = result.charAt(position);
+                    result.setCharAt(position, result.charAt(position + 1));
+                    result.setCharAt(position + 1, swap);
+            }
+        }
+        return result.toString();
+    }
+}
@@ -0,0 +1,117 @@
+/**
+ *
+ * Copyright (c) 2009-2016 Freedomotic team http://freedomotic.com
+ *
+ * This file is part of Freedomotic
+ *
+ * This Program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2, or (at your option) any later version.
+ *
+ * This Program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Freedomotic; see the file COPYING. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.freedomotic.persistence;
+
+import com.freedomotic.app.FreedomoticInjector;
+import com.freedomotic.model.object.EnvObject;
+import com.freedomotic.settings.Info;
+import com.google.inject.Guice;
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Ignore;
+
+/**
+ * Compares the time and the heap needed to load the things from their XML
+ * files (DTD validation and XStream parsing) and from the {@link DataSnapshot}.
+ * The things of data-example are copied many times in a temporary folder. It
+ * is not a unit test, run it with
+ * <code>java -cp ... com.freedomotic.persistence.DataSnapshotBenchmark [copies]</code>
+ */
+@Ignore
+public class DataSnapshotBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int copies = args.length > 0 ? Integer.parseInt(args[0]) : 400;
+        // configures the XStream converters
+        Guice.createInjector(new FreedomoticInjector());
+
+        File source = new File(Info.PATHS.PATH_WORKDIR.getParentFile().getParentFile()
+                + "/data-example/furn/df28cda0-a866-11e2-9e96-0800200c9a66/data/obj");
+        File folder = Files.createTempDirectory("snapshot-benchmark").toFile();
+        File snapshotFile = new File(folder, "snapshot.bin");
+        long xmlSize = 0;
+        for (File thing : source.listFiles()) {
+            for (int i = 0; i < copies; i++) {
+                File copy = new File(folder, i + "-" + thing.getName());
+                Files.copy(thing.toPath(), copy.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                xmlSize += copy.length();
+            }
+        }
+        File[] files = folder.listFiles();
+
+        ParallelFileLoader.Parser<EnvObject> parser = new ParallelFileLoader.Parser<EnvObject>() {
+            @Override
+            public EnvObject parse(File file) throws Exception {
+                String xml = XmlPreprocessor.validate(file, Info.PATHS.PATH_CONFIG_FOLDER + "/validator/object.dtd");
+                return (EnvObject) FreedomXStream.getXstream().fromXML(xml);
+            }
+        };
+
+        // fill the snapshot, it also warms up the parser
+        DataSnapshot snapshot = new DataSnapshot(true);
+        snapshot.open(snapshotFile, "benchmark");
+        load(files, snapshot.cached(parser));
+        snapshot.save();
+
+        for (int run = 0; run < 2; run++) {
+            // the first run is the warm up
+            boolean print = run == 1;
+            measure("xml", files, parser, print);
+            snapshot = new DataSnapshot(true);
+            snapshot.open(snapshotFile, "benchmark");
+            measure("snapshot", files, snapshot.cached(parser), print);
+        }
+        System.out.println(String.format("%d things: xml files %d KB, snapshot %d KB",
+                files.length, xmlSize / 1024, snapshotFile.length() / 1024));
+    }
+
+    private static void measure(String name, File[] files, ParallelFileLoader.Parser<EnvObject> parser, boolean print)
+            throws Exception {
+        long heapBefore = usedHeap();
+        long start = System.nanoTime();
+        List<EnvObject> things = load(files, parser);
+        long time = System.nanoTime() - start;
+        long heapAfter = usedHeap();
+        if (print) {
+            System.out.println(String.format("%-8s %6d things loaded in %6d ms, retained heap %6d KB",
+                    name, things.size(), time / 1000000, (heapAfter - heapBefore) / 1024));
+        }
+    }
+
+    private static List<EnvObject> load(File[] files, ParallelFileLoader.Parser<EnvObject> parser) throws Exception {
+        List<EnvObject> things = new ArrayList<EnvObject>(files.length);
+        for (ParallelFileLoader.Result<EnvObject> result : ParallelFileLoader.load(files, parser)) {
+            things.add(result.get());
+        }
+        return things;
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(50);
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
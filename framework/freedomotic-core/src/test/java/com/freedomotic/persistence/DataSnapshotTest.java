@@ -0,0 +1,144 @@
+/**
+ *
+ * Copyright (c) 2009-2016 Freedomotic team http://freedomotic.com
+ *
+ * This file is part of Freedomotic
+ *
+ * This Program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2, or (at your option) any later version.
+ *
+ * This Program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Freedomotic; see the file COPYING. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.freedomotic.persistence;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class DataSnapshotTest {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    private File snapshotFile;
+    private File first;
+    private File second;
+    private final AtomicInteger parsed = new AtomicInteger();
+    private final ParallelFileLoader.Parser<String> parser = new ParallelFileLoader.Parser<String>() {
+        @Override
+        public String parse(File file) throws Exception {
+            parsed.incrementAndGet();
+            return new String(Files.readAllBytes(file.toPath()), UTF8);
+        }
+    };
+
+    @Before
+    public void setUp() throws Exception {
+        snapshotFile = new File(folder.getRoot(), "snapshot.bin");
+        first = write("first.xtrg", "first trigger");
+        second = write("second.xtrg", "second trigger");
+        // fill the snapshot
+        DataSnapshot snapshot = new DataSnapshot(true);
+        snapshot.open(snapshotFile, "1.0/1.0");
+        load(snapshot);
+        snapshot.save();
+        Assert.assertEquals(2, snapshot.getMisses());
+        Assert.assertTrue(snapshotFile.isFile());
+        parsed.set(0);
+    }
+
+    /**
+     * Unchanged files are decoded from the snapshot, changed ones are parsed
+     *
+     * @throws Exception
+     */
+    @Test
+    public void unchangedFilesAreNotParsed() throws Exception {
+        DataSnapshot snapshot = new DataSnapshot(true);
+        snapshot.open(snapshotFile, "1.0/1.0");
+        Assert.assertEquals("first trigger", snapshot.cached(parser).parse(first));
+        Assert.assertEquals("second trigger", snapshot.cached(parser).parse(second));
+        Assert.assertEquals(0, parsed.get());
+        Assert.assertEquals(2, snapshot.getHits());
+
+        write("second.xtrg", "second trigger, changed");
+        snapshot.open(snapshotFile, "1.0/1.0");
+        load(snapshot);
+        Assert.assertEquals(1, parsed.get());
+        Assert.assertEquals(1, snapshot.getHits());
+        Assert.assertEquals(1, snapshot.getMisses());
+    }
+
+    /**
+     * A snapshot of another version or with a wrong checksum is ignored
+     *
+     * @throws Exception
+     */
+    @Test
+    public void invalidSnapshotsAreIgnored() throws Exception {
+        DataSnapshot snapshot = new DataSnapshot(true);
+        snapshot.open(snapshotFile, "2.0/1.0");
+        load(snapshot);
+        Assert.assertEquals(2, parsed.get());
+        Assert.assertEquals(0, snapshot.getHits());
+
+        // the snapshot of the current version is written again
+        snapshot.save();
+        parsed.set(0);
+        snapshot.open(snapshotFile, "2.0/1.0");
+        load(snapshot);
+        Assert.assertEquals(0, parsed.get());
+
+        try (RandomAccessFile file = new RandomAccessFile(snapshotFile, "rw")) {
+            file.seek(file.length() / 2);
+            int value = file.read();
+            file.seek(file.length() / 2);
+            file.write(value ^ 0xff);
+        }
+        snapshot.open(snapshotFile, "2.0/1.0");
+        load(snapshot);
+        Assert.assertEquals(2, parsed.get());
+        Assert.assertEquals(0, snapshot.getHits());
+    }
+
+    /**
+     * A disabled snapshot always uses the given parser
+     *
+     * @throws Exception
+     */
+    @Test
+    public void disabledSnapshotIsNotUsed() throws Exception {
+        DataSnapshot snapshot = new DataSnapshot(false);
+        snapshot.open(snapshotFile, "1.0/1.0");
+        Assert.assertSame(parser, snapshot.cached(parser));
+    }
+
+    private void load(DataSnapshot snapshot) throws Exception {
+        for (ParallelFileLoader.Result<String> result
+                : ParallelFileLoader.load(new File[]{first, second}, snapshot.cached(parser))) {
+            Assert.assertEquals(new String(Files.readAllBytes(result.getFile().toPath()), UTF8), result.get());
+        }
+    }
+
+    private File write(String name, String content) throws IOException {
+        File file = new File(folder.getRoot(), name);
+        Files.write(file.toPath(), content.getBytes(UTF8));
+        return file;
+    }
+}
@@ -0,0 +1,118 @@
+/**
+ *
+ * Copyright (c) 2009-2016 Freedomotic team http://freedomotic.com
+ *
+ * This file is part of Freedomotic
+ *
+ * This Program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2, or (at your option) any later version.
+ *
+ * This Program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Freedomotic; see the file COPYING. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.freedomotic.persistence;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class FolderPersisterTest {
+
+    private static final long OLD_TIMESTAMP = 1000000000000L;
+    private File folder;
+
+    /**
+     *
+     * @throws IOException
+     */
+    @Before
+    public void setUp() throws IOException {
+        folder = Files.createTempDirectory("folder-persister").toFile();
+    }
+
+    /**
+     *
+     */
+    @After
+    public void tearDown() {
+        File[] files = folder.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        folder.delete();
+    }
+
+    /**
+     * Only new and changed entities are written, unchanged files are not
+     * touched
+     *
+     * @throws IOException
+     */
+    @Test
+    public void onlyChangedEntitiesAreWritten() throws IOException {
+        FolderPersister persister = FolderPersister.of(folder, ".xtst");
+        Map<String, Object> entities = new LinkedHashMap<String, Object>();
+        entities.put("a", "first");
+        entities.put("b", "second");
+        Assert.assertEquals(2, persister.save(entities));
+        new File(folder, "a.xtst").setLastModified(OLD_TIMESTAMP);
+        new File(folder, "b.xtst").setLastModified(OLD_TIMESTAMP);
+
+        entities.put("b", "changed");
+        entities.put("c", "third");
+        Assert.assertEquals(2, persister.save(entities));
+        Assert.assertEquals(OLD_TIMESTAMP, new File(folder, "a.xtst").lastModified());
+        Assert.assertTrue(new File(folder, "b.xtst").lastModified() != OLD_TIMESTAMP);
+        Assert.assertTrue(new File(folder, "c.xtst").isFile());
+
+        Assert.assertEquals(0, persister.save(entities));
+    }
+
+    /**
+     * Files of removed entities and leftovers of an interrupted save are
+     * deleted, files deleted by someone else are written again
+     *
+     * @throws IOException
+     */
+    @Test
+    public void folderContentFollowsEntities() throws IOException {
+        FolderPersister persister = FolderPersister.of(folder, ".xtst");
+        Map<String, Object> entities = new LinkedHashMap<String, Object>();
+        entities.put("a", "first");
+        entities.put("b", "second");
+        persister.save(entities);
+
+        Assert.assertTrue(new File(folder, "a.xtst.tmp").createNewFile());
+        Assert.assertTrue(new File(folder, "b.xtst").delete());
+        entities.remove("a");
+        Assert.assertEquals(1, persister.save(entities));
+
+        Assert.assertFalse(new File(folder, "a.xtst").exists());
+        Assert.assertFalse(new File(folder, "a.xtst.tmp").exists());
+        Assert.assertTrue(new File(folder, "b.xtst").isFile());
+    }
+
+    /**
+     * The same persister is returned for the same folder and extension
+     */
+    @Test
+    public void onePersisterPerFolder() {
+        Assert.assertSame(FolderPersister.of(folder, ".xtst"), FolderPersister.of(new File(folder.getPath()), ".xtst"));
+        Assert.assertNotSame(FolderPersister.of(folder, ".xtst"), FolderPersister.of(folder, ".xoth"));
+    }
+}
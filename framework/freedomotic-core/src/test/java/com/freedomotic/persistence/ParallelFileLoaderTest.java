@@ -0,0 +1,96 @@
+/**
+ *
+ * Copyright (c) 2009-2016 Freedomotic team http://freedomotic.com
+ *
+ * This file is part of Freedomotic
+ *
+ * This Program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2, or (at your option) any later version.
+ *
+ * This Program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Freedomotic; see the file COPYING. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.freedomotic.persistence;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ParallelFileLoaderTest {
+
+    /**
+     * Results are returned in files order even if parsed concurrently
+     *
+     * @throws Exception
+     */
+    @Test
+    public void resultsFollowFilesOrder() throws Exception {
+        File[] files = new File[200];
+        for (int i = 0; i < files.length; i++) {
+            files[i] = new File("file-" + i + ".xml");
+        }
+        List<ParallelFileLoader.Result<String>> results = ParallelFileLoader.load(files,
+                new ParallelFileLoader.Parser<String>() {
+                    @Override
+                    public String parse(File file) throws Exception {
+                        // slow down the first files so that the last ones are parsed before
+                        int index = Integer.parseInt(file.getName().replaceAll("\\D", ""));
+                        if (index < 4) {
+                            Thread.sleep(20);
+                        }
+                        return file.getName().toUpperCase();
+                    }
+                });
+
+        Assert.assertEquals(files.length, results.size());
+        for (int i = 0; i < files.length; i++) {
+            Assert.assertSame(files[i], results.get(i).getFile());
+            Assert.assertEquals("FILE-" + i + ".XML", results.get(i).get());
+        }
+    }
+
+    /**
+     * The exception thrown by the parser is rethrown by the result of the
+     * failed file only
+     *
+     * @throws Exception
+     */
+    @Test
+    public void parserExceptionsAreRethrown() throws Exception {
+        File[] files = {new File("a.xml"), new File("broken.xml"), new File("c.xml")};
+        List<ParallelFileLoader.Result<String>> results = ParallelFileLoader.load(files,
+                new ParallelFileLoader.Parser<String>() {
+                    @Override
+                    public String parse(File file) throws Exception {
+                        if (file.getName().startsWith("broken")) {
+                            throw new IOException("Cannot read " + file.getName());
+                        }
+                        return file.getName();
+                    }
+                });
+
+        Assert.assertEquals("a.xml", results.get(0).get());
+        try {
+            results.get(1).get();
+            Assert.fail("The parser exception should be rethrown");
+        } catch (IOException e) {
+            Assert.assertEquals("Cannot read broken.xml", e.getMessage());
+        }
+        Assert.assertEquals("c.xml", results.get(2).get());
+        Assert.assertTrue(ParallelFileLoader.load(null, new ParallelFileLoader.Parser<String>() {
+            @Override
+            public String parse(File file) {
+                return null;
+            }
+        }).isEmpty());
+    }
+}
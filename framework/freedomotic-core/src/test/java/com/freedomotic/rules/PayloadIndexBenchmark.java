@@ -0,0 +1,126 @@
+/**
+ *
+ * Copyright (c) 2009-2016 Freedomotic team http://freedomotic.com
+ *
+ * This file is part of Freedomotic
+ *
+ * This Program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2, or (at your option) any later version.
+ *
+ * This Program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Freedomotic; see the file COPYING. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.freedomotic.rules;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.junit.Ignore;
+
+/**
+ * Compares the trigger matching performed with a {@link PayloadIndex} with the
+ * full scan of {@link Payload#equals(Object)} over all the triggers of a
+ * channel. It is not a unit test, run it with
+ * <code>java -cp ... com.freedomotic.rules.PayloadIndexBenchmark</code>
+ */
+@Ignore
+public class PayloadIndexBenchmark {
+
+    private static final int EVENTS = 2000;
+    private static final int[] TRIGGERS = {100, 1000, 10000};
+
+    public static void main(String[] args) {
+        for (int triggers : TRIGGERS) {
+            run(triggers);
+        }
+    }
+
+    private static void run(int numTriggers) {
+        Random random = new Random(numTriggers);
+        List<Payload> triggers = new ArrayList<Payload>();
+        PayloadIndex<Payload> index = new PayloadIndex<Payload>();
+
+        // like the triggers created by things: one per object and behavior value
+        for (int i = 0; i < numTriggers; i++) {
+            Payload trigger = new Payload();
+            trigger.addStatement("object.name", "Thing " + (i / 4));
+            switch (i % 4) {
+                case 0:
+                    trigger.addStatement("object.behavior.powered", "true");
+                    break;
+                case 1:
+                    trigger.addStatement("object.behavior.powered", "false");
+                    break;
+                case 2:
+                    trigger.addStatement(Statement.AND, "object.behavior.temperature", Statement.GREATER_THAN, "25");
+                    break;
+                default:
+                    trigger.addStatement(Statement.AND, "object.behavior.temperature", Statement.LESS_THAN, "18");
+            }
+            triggers.add(trigger);
+            index.add(trigger, trigger);
+        }
+
+        List<Payload> events = new ArrayList<Payload>();
+        for (int i = 0; i < EVENTS; i++) {
+            Payload event = new Payload();
+            event.addStatement("object.name", "Thing " + random.nextInt(numTriggers / 4));
+            event.addStatement("object.behavior.powered", Boolean.toString(random.nextBoolean()));
+            event.addStatement("object.behavior.temperature", 10 + random.nextInt(25));
+            events.add(event);
+        }
+
+        // warm up both paths
+        long matchesScan = scan(triggers, events);
+        long matchesIndex = indexed(index, events);
+        if (matchesScan != matchesIndex) {
+            throw new IllegalStateException("Index and scan results differ: " + matchesIndex + " != " + matchesScan);
+        }
+
+        long start = System.nanoTime();
+        scan(triggers, events);
+        long scanTime = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        indexed(index, events);
+        long indexTime = System.nanoTime() - start;
+
+        System.out.println(String.format("%6d triggers: Payload.equals scan %10.1f events/sec, "
+                + "PayloadIndex %10.1f events/sec (%d matches)",
+                numTriggers,
+                EVENTS / (scanTime / 1e9),
+                EVENTS / (indexTime / 1e9),
+                matchesScan));
+    }
+
+    private static long scan(List<Payload> triggers, List<Payload> events) {
+        long matches = 0;
+        for (Payload event : events) {
+            for (Payload trigger : triggers) {
+                if (trigger.equals(event)) {
+                    matches++;
+                }
+            }
+        }
+        return matches;
+    }
+
+    private static long indexed(PayloadIndex<Payload> index, List<Payload> events) {
+        long matches = 0;
+        for (Payload event : events) {
+            for (Payload trigger : index.candidates(event)) {
+                if (trigger.equals(event)) {
+                    matches++;
+                }
+            }
+        }
+        return matches;
+    }
+}
@@ -0,0 +1,141 @@
+/**
+ *
+ * Copyright (c) 2009-2016 Freedomotic team http://freedomotic.com
+ *
+ * This file is part of Freedomotic
+ *
+ * This Program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2, or (at your option) any later version.
+ *
+ * This Program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Freedomotic; see the file COPYING. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.freedomotic.rules;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.junit.Assert;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+public class PayloadIndexTest {
+
+    private static final String[] ATTRIBUTES = {"object.name", "number", "text", "click"};
+    private static final String[] OPERANDS = {Statement.EQUALS, Statement.GREATER_THAN, Statement.LESS_THAN,
+        Statement.GREATER_EQUAL_THAN, Statement.LESS_EQUAL_THAN, Statement.REGEX};
+
+    /**
+     * Test of candidates method, of class PayloadIndex.
+     */
+    @Test
+    public void testCandidatesFilterByValue() {
+        PayloadIndex<String> index = new PayloadIndex<String>();
+        index.add("light on", payload(Statement.AND, "object.name", Statement.EQUALS, "Light 1",
+                Statement.AND, "object.behavior.powered", Statement.EQUALS, "true"));
+        index.add("light off", payload(Statement.AND, "object.name", Statement.EQUALS, "Light 1",
+                Statement.AND, "object.behavior.powered", Statement.EQUALS, "false"));
+        index.add("hot", payload(Statement.AND, "temperature", Statement.GREATER_THAN, "25"));
+        index.add("cold", payload(Statement.AND, "temperature", Statement.LESS_EQUAL_THAN, "18"));
+        index.add("any", payload(Statement.AND, "object.name", Statement.EQUALS, Statement.ANY));
+
+        Payload event = payload(Statement.AND, "object.name", Statement.EQUALS, "light 1",
+                Statement.AND, "object.behavior.powered", Statement.EQUALS, "TRUE");
+        List<String> candidates = index.candidates(event);
+        assertEquals(2, candidates.size());
+        assertTrue(candidates.contains("light on"));
+        assertTrue(candidates.contains("any"));
+
+        candidates = index.candidates(payload(Statement.AND, "temperature", Statement.EQUALS, "18"));
+        assertEquals(1, candidates.size());
+        assertEquals("cold", candidates.get(0));
+
+        index.remove("cold");
+        assertTrue(index.candidates(payload(Statement.AND, "temperature", Statement.EQUALS, "18")).isEmpty());
+        assertEquals(4, index.size());
+    }
+
+    /**
+     * Payloads which cannot be indexed and runtime resolved values must always
+     * be candidates if the attribute is present.
+     */
+    @Test
+    public void testNotIndexablePayloads() {
+        PayloadIndex<String> index = new PayloadIndex<String>();
+        index.add("or", payload(Statement.OR, "number", Statement.EQUALS, "1"));
+        index.add("set", payload(Statement.SET, "number", Statement.EQUALS, "1"));
+        index.add("reference", payload(Statement.AND, "number", Statement.EQUALS, "@event.other"));
+        index.add("script", payload(Statement.AND, "number", Statement.EQUALS, "= number=1+1;"));
+        index.add("only event", payload(Statement.AND, "event.number", Statement.EQUALS, "2"));
+
+        List<String> candidates = index.candidates(payload(Statement.AND, "number", Statement.EQUALS, "5"));
+        assertEquals(5, candidates.size());
+        candidates = index.candidates(payload(Statement.AND, "text", Statement.EQUALS, "5"));
+        assertEquals(3, candidates.size());
+        assertFalse(candidates.contains("reference"));
+        assertFalse(candidates.contains("script"));
+    }
+
+    /**
+     * Every payload consistent with an event according to
+     * {@link Payload#equals(Object)} must be returned as candidate.
+     */
+    @Test
+    public void testNoFalseNegatives() {
+        Random random = new Random(42);
+        PayloadIndex<Payload> index = new PayloadIndex<Payload>();
+        List<Payload> triggers = new ArrayList<Payload>();
+        for (int i = 0; i < 500; i++) {
+            Payload trigger = new Payload();
+            int statements = 1 + random.nextInt(3);
+            for (int j = 0; j < statements; j++) {
+                String logical = random.nextInt(10) == 0 ? Statement.OR : Statement.AND;
+                String value = random.nextInt(10) == 0 ? Statement.ANY : Integer.toString(random.nextInt(10));
+                trigger.addStatement(logical, ATTRIBUTES[random.nextInt(ATTRIBUTES.length)],
+                        OPERANDS[random.nextInt(OPERANDS.length)], value);
+            }
+            triggers.add(trigger);
+            index.add(trigger, trigger);
+        }
+
+        for (int i = 0; i < 500; i++) {
+            Payload event = new Payload();
+            for (String attribute : ATTRIBUTES) {
+                if (random.nextBoolean()) {
+                    event.addStatement(attribute, Integer.toString(random.nextInt(10)));
+                }
+            }
+            List<Payload> candidates = index.candidates(event);
+            for (Payload trigger : triggers) {
+                if (trigger.equals(event)) {
+                    Assert.assertTrue("Consistent payload not returned by the index", containsSame(candidates, trigger));
+                }
+            }
+        }
+    }
+
+    // Payload.equals() is the matching function, compare by identity
+    private static boolean containsSame(List<Payload> candidates, Payload trigger) {
+        for (Payload candidate : candidates) {
+            if (candidate == trigger) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static Payload payload(String... values) {
+        Payload payload = new Payload();
+        for (int i = 0; i < values.length; i += 4) {
+            payload.addStatement(values[i], values[i + 1], values[i + 2], values[i + 3]);
+        }
+        return payload;
+    }
+}
@@ -210,4 +210,62 @@ public class PayloadTest {
 
         assertEquals(4, payload.getStatements("yes").size());
     }
+
+    /**
+     * Date and time statements are added in front of the payload only when
+     * read, and matched like the other statements.
+     */
+    @Test
+    public void testTimeContext() {
+        LOG.info("Date and time statements are copied in the payload only when read");
+        long now = System.currentTimeMillis();
+        TimeContext context = TimeContext.at(now);
+        assertSame(context, TimeContext.at(now));
+
+        Payload event = new Payload();
+        event.setTimeContext(context);
+        event.addStatement("sender", "test");
+        assertTrue(event.getStatements("sender").size() == 1);
+        assertEquals(1, event.getExplicitStatements().size());
+
+        Payload trigger = new Payload();
+        trigger.addStatement("date.year", context.getStatements().get(4).getValue());
+        assertTrue(trigger.equals(event));
+        assertEquals(12, event.getExplicitStatements().size());
+        assertEquals("date.day.name", event.getStatements().get(0).getAttribute());
+        assertEquals("sender", event.getStatements().get(11).getAttribute());
+        assertNotSame(context.getStatements().get(0), event.getStatements().get(0));
+    }
+
+    /**
+     * The date and time statements added to a resolution context with a
+     * prefix, or merged in another payload, are copied only when read.
+     */
+    @Test
+    public void testPrefixedTimeContext() {
+        LOG.info("Prefixed date and time statements are copied only when read");
+        TimeContext context = TimeContext.at(System.currentTimeMillis());
+        assertSame(context.withPrefix("event."), context.withPrefix("event."));
+
+        Payload event = new Payload();
+        event.setTimeContext(context);
+        event.addStatement("sender", "test");
+
+        Payload resolution = new Payload();
+        resolution.addStatements("event.", event);
+        assertEquals(1, event.getExplicitStatements().size());
+        assertEquals(1, resolution.getExplicitStatements().size());
+        assertEquals("event.sender", resolution.getExplicitStatements().get(0).getAttribute());
+
+        Payload trigger = new Payload();
+        trigger.addStatement("sender", "test");
+        trigger.merge(resolution);
+        assertTrue(trigger.equals(event));
+        assertEquals(2, trigger.getExplicitStatements().size());
+        assertEquals(1, event.getExplicitStatements().size());
+
+        assertEquals(context.getStatements().get(4).getValue(), trigger.getStatementValue("event.date.year"));
+        assertEquals(13, trigger.getExplicitStatements().size());
+        assertEquals("", trigger.getStatementValue("date.year"));
+    }
 }
@@ -0,0 +1,177 @@
+/**
+ *
+ * Copyright (c) 2009-2016 Freedomotic team http://freedomotic.com
+ *
+ * This file is part of Freedomotic
+ *
+ * This Program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2, or (at your option) any later version.
+ *
+ * This Program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Freedomotic; see the file COPYING. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.freedomotic.rules;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.List;
+import java.util.Random;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+public class TimeConditionTest {
+
+    private static final String[] ATTRIBUTES = {"time.hour", "time.minute", "time.second", "time",
+        "date.day", "date.dow", "date.month"};
+    private static final int[] MAX_VALUES = {24, 60, 60, 240000, 32, 8, 13};
+    private static final String[] OPERANDS = {Statement.EQUALS, Statement.GREATER_THAN, Statement.LESS_THAN,
+        Statement.GREATER_EQUAL_THAN, Statement.LESS_EQUAL_THAN};
+
+    /**
+     * A trigger bound to a time of the day fires once a day at that time.
+     */
+    @Test
+    public void testTimeOfDay() {
+        TimeCondition condition = TimeCondition.compile(payload(Statement.AND, "time.hour", Statement.EQUALS, "8",
+                Statement.AND, "time.minute", Statement.EQUALS, "0",
+                Statement.AND, "time.second", Statement.EQUALS, "0"));
+        long from = time(2016, Calendar.MARCH, 10, 9, 30, 15);
+        assertEquals(time(2016, Calendar.MARCH, 11, 8, 0, 0), condition.next(from, from + days(2)));
+        assertEquals(time(2016, Calendar.MARCH, 11, 8, 0, 0), condition.next(time(2016, Calendar.MARCH, 11, 8, 0, 0), from + days(2)));
+        assertEquals(-1, condition.next(from, time(2016, Calendar.MARCH, 11, 8, 0, 0)));
+    }
+
+    /**
+     * Statements are combined in order, as the trigger check does.
+     */
+    @Test
+    public void testLogicalOperators() {
+        TimeCondition night = TimeCondition.compile(payload(Statement.AND, "time.hour", Statement.GREATER_THAN, "21",
+                Statement.OR, "time.hour", Statement.LESS_THAN, "8"));
+        long from = time(2016, Calendar.MARCH, 10, 12, 0, 0);
+        assertEquals(time(2016, Calendar.MARCH, 10, 22, 0, 0), night.next(from, from + days(1)));
+        assertEquals(from - 1000 * 3600 * 5, night.next(from - 1000 * 3600 * 5, from));
+
+        TimeCondition set = TimeCondition.compile(payload(Statement.AND, "time.hour", Statement.EQUALS, "99",
+                Statement.SET, "time.minute", Statement.EQUALS, "99"));
+        assertEquals(from, set.next(from, from + days(1)));
+    }
+
+    /**
+     * The time statement can be compared with a BETWEEN_TIME interval, also
+     * crossing midnight.
+     */
+    @Test
+    public void testBetweenTime() {
+        TimeCondition morning = TimeCondition.compile(payload(Statement.AND, "time", Statement.BETWEEN_TIME, "08:30:00-09:00:00"));
+        long from = time(2016, Calendar.MARCH, 10, 12, 0, 0);
+        assertEquals(time(2016, Calendar.MARCH, 11, 8, 30, 1), morning.next(from, from + days(1)));
+
+        TimeCondition night = TimeCondition.compile(payload(Statement.AND, "time", Statement.BETWEEN_TIME, "23:00:00-01:00:00"));
+        assertEquals(time(2016, Calendar.MARCH, 10, 23, 0, 0), night.next(from, from + days(1)));
+        assertEquals(time(2016, Calendar.MARCH, 11, 0, 30, 0),
+                night.next(time(2016, Calendar.MARCH, 11, 0, 30, 0), from + days(1)));
+    }
+
+    /**
+     * Triggers bound to a date far in the future are found, the ones bound to
+     * a past date never fire.
+     */
+    @Test
+    public void testDates() {
+        TimeCondition leapDay = TimeCondition.compile(payload(Statement.AND, "date.month", Statement.EQUALS, "2",
+                Statement.AND, "date.day", Statement.EQUALS, "29"));
+        long from = time(2017, Calendar.JANUARY, 1, 0, 0, 0);
+        assertEquals(time(2020, Calendar.FEBRUARY, 29, 0, 0, 0), leapDay.next(from, from + days(5 * 366)));
+
+        TimeCondition past = TimeCondition.compile(payload(Statement.AND, "date.year", Statement.EQUALS, "2015",
+                Statement.AND, "time.second", Statement.EQUALS, "0"));
+        assertEquals(-1, past.next(from, from + days(5 * 366)));
+
+        TimeCondition sunday = TimeCondition.compile(payload(Statement.AND, "date.day.name", Statement.EQUALS, "sunday",
+                Statement.AND, "time.hour", Statement.EQUALS, "10"));
+        assertEquals(time(2017, Calendar.JANUARY, 1, 10, 0, 0), sunday.next(from, from + days(7)));
+        assertEquals(time(2017, Calendar.JANUARY, 8, 10, 0, 0),
+                sunday.next(time(2017, Calendar.JANUARY, 1, 11, 0, 0), from + days(14)));
+    }
+
+    /**
+     * Payloads with other statements or runtime resolved values cannot be
+     * compiled, event.* statements are ignored.
+     */
+    @Test
+    public void testNotCompilable() {
+        assertNull(TimeCondition.compile(payload(Statement.AND, "object.name", Statement.EQUALS, "Light")));
+        assertNull(TimeCondition.compile(payload(Statement.AND, "time.hour", Statement.EQUALS, "@event.hour")));
+        assertNull(TimeCondition.compile(payload(Statement.AND, "time.hour", Statement.EQUALS, "= hour=8;")));
+        assertNull(TimeCondition.compile(payload(Statement.AND, "time.hour", "SIMILAR", "8")));
+        assertTrue(TimeCondition.compile(new Payload()).isUnconditional());
+        assertTrue(TimeCondition.compile(payload(Statement.AND, "event.sender", Statement.EQUALS, "x")).isUnconditional());
+    }
+
+    /**
+     * The found second must be the first one in which the payload is
+     * consistent with the time context of an event.
+     */
+    @Test
+    public void testSameResultOfPayloadEquals() {
+        Random random = new Random(42);
+        List<Payload> triggers = new ArrayList<Payload>();
+        for (int i = 0; i < 40; i++) {
+            Payload trigger = new Payload();
+            int statements = 1 + random.nextInt(3);
+            for (int j = 0; j < statements; j++) {
+                String logical = random.nextInt(5) == 0 ? Statement.OR : Statement.AND;
+                int attribute = random.nextInt(ATTRIBUTES.length);
+                trigger.addStatement(logical, ATTRIBUTES[attribute], OPERANDS[random.nextInt(OPERANDS.length)],
+                        Integer.toString(random.nextInt(MAX_VALUES[attribute])));
+            }
+            triggers.add(trigger);
+        }
+        triggers.add(payload(Statement.AND, "time", Statement.BETWEEN_TIME, "23:59:58-00:00:01"));
+
+        long from = time(2016, Calendar.FEBRUARY, 28, 20, 0, 0);
+        long until = from + days(1);
+        long[] expected = new long[triggers.size()];
+        Arrays.fill(expected, -1);
+        for (long second = from; second < until; second += 1000) {
+            Payload event = new Payload();
+            event.setTimeContext(TimeContext.at(second));
+            for (int i = 0; i < triggers.size(); i++) {
+                if (expected[i] < 0 && triggers.get(i).equals(event)) {
+                    expected[i] = second;
+                }
+            }
+        }
+        for (int i = 0; i < triggers.size(); i++) {
+            assertEquals(triggers.get(i).toString(), expected[i], TimeCondition.compile(triggers.get(i)).next(from, until));
+        }
+    }
+
+    private static long time(int year, int month, int day, int hour, int minute, int second) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.clear();
+        calendar.set(year, month, day, hour, minute, second);
+        return calendar.getTimeInMillis();
+    }
+
+    private static long days(int days) {
+        return days * 24L * 3600 * 1000;
+    }
+
+    private static Payload payload(String... values) {
+        Payload payload = new Payload();
+        for (int i = 0; i < values.length; i += 4) {
+            payload.addStatement(values[i], values[i + 1], values[i + 2], values[i + 3]);
+        }
+        return payload;
+    }
+}
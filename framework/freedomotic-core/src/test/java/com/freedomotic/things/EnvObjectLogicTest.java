@@ -0,0 +1,115 @@
+/**
+ *
+ * Copyright (c) 2009-2016 Freedomotic team http://freedomotic.com
+ *
+ * This file is part of Freedomotic
+ *
+ * This Program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2, or (at your option) any later version.
+ *
+ * This Program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Freedomotic; see the file COPYING. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.freedomotic.things;
+
+import com.freedomotic.nlp.NlpCommandStringDistanceImpl;
+import com.freedomotic.reactions.Command;
+import com.freedomotic.reactions.CommandRepository;
+import com.freedomotic.reactions.ReactionRepository;
+import com.freedomotic.reactions.TriggerRepository;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+public class EnvObjectLogicTest {
+
+    /**
+     * The commands referring to a renamed thing are renamed in the repository
+     * and found by their new name, also by the natural language search.
+     */
+    @Test
+    public void testRenamedCommandIsFoundByNewName() throws Exception {
+        CommandRepository commands = commands();
+        NlpCommandStringDistanceImpl nlp = new NlpCommandStringDistanceImpl(commands);
+        Command command = new Command();
+        command.setName("Turn on Thing Light");
+        command.setProperty("object", "Thing Light");
+        commands.create(command);
+        assertSame(command, nlp.computeSimilarity("turn on thing light", 2).get(0).getElement());
+
+        TestThing thing = new TestThing("Light");
+        thing.thingRepository = empty(ThingRepository.class);
+        thing.triggerRepository = empty(TriggerRepository.class);
+        thing.reactionRepository = empty(ReactionRepository.class);
+        thing.commandRepository = commands;
+        thing.rename("Kitchen light");
+
+        assertEquals("Turn on Kitchen light", command.getName());
+        assertEquals("Kitchen light", command.getProperty("object"));
+        assertEquals(Collections.singletonList(command), commands.findByName("Turn on Kitchen light"));
+        assertSame(command, nlp.computeSimilarity("turn on kitchen light", 2).get(0).getElement());
+    }
+
+    /*
+     * An in memory command repository whose version changes when a command is
+     * created or deleted
+     */
+    private static CommandRepository commands() {
+        final List<Command> commands = new ArrayList<Command>();
+        final long[] version = new long[1];
+        return stub(CommandRepository.class, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                String name = method.getName();
+                if (name.equals("create")) {
+                    version[0]++;
+                    return commands.add((Command) args[0]);
+                } else if (name.equals("delete")) {
+                    version[0]++;
+                    return commands.remove(args[0]);
+                } else if (name.equals("getVersion")) {
+                    return version[0];
+                } else if (name.equals("findByName")) {
+                    List<Command> found = new ArrayList<Command>();
+                    for (Command command : commands) {
+                        if (command.getName().equalsIgnoreCase((String) args[0])) {
+                            found.add(command);
+                        }
+                    }
+                    return found;
+                } else if (List.class.isAssignableFrom(method.getReturnType())) {
+                    return new ArrayList<Command>(commands);
+                }
+                return null;
+            }
+        });
+    }
+
+    /*
+     * A repository without items
+     */
+    private static <T> T empty(Class<T> type) {
+        return stub(type, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                return List.class.isAssignableFrom(method.getReturnType()) ? Collections.emptyList() : null;
+            }
+        });
+    }
+
+    private static <T> T stub(Class<T> type, InvocationHandler handler) {
+        return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type}, handler));
+    }
+}
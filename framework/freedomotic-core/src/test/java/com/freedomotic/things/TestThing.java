@@ -0,0 +1,68 @@
+/**
+ *
+ * Copyright (c) 2009-2016 Freedomotic team http://freedomotic.com
+ *
+ * This file is part of Freedomotic
+ *
+ * This Program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2, or (at your option) any later version.
+ *
+ * This Program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Freedomotic; see the file COPYING. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.freedomotic.things;
+
+import com.freedomotic.behaviors.BooleanBehaviorLogic;
+import com.freedomotic.events.ObjectHasChangedBehavior;
+import com.freedomotic.model.object.BooleanBehavior;
+import com.freedomotic.model.object.EnvObject;
+
+/**
+ * A thing with boolean behaviors, not bound to the framework services
+ */
+class TestThing extends EnvObjectLogic {
+
+    TestThing(String uuid, String... behaviors) {
+        EnvObject pojo = new EnvObject();
+        pojo.setUUID(uuid);
+        pojo.setName("Thing " + uuid);
+        pojo.setProtocol("test");
+        pojo.setPhisicalAddress(uuid);
+        pojo.setType("EnvObject.ElectricDevice.Light");
+        pojo.initTags();
+        setPojo(pojo);
+        for (String name : behaviors) {
+            BooleanBehavior behavior = new BooleanBehavior();
+            behavior.setName(name);
+            registerBehavior(new BooleanBehaviorLogic(behavior));
+        }
+    }
+
+    /**
+     * Changes the value of a behavior, marking it as changed
+     *
+     * @param behavior the behavior name
+     * @param value the new value
+     * @return this thing
+     */
+    TestThing set(String behavior, boolean value) {
+        ((BooleanBehaviorLogic) getBehavior(behavior)).setValue(value);
+        return this;
+    }
+
+    /**
+     * Returns the event of the behaviors changed since the last one
+     *
+     * @return the event
+     */
+    ObjectHasChangedBehavior event() {
+        return new ObjectHasChangedBehavior(this, this);
+    }
+}
@@ -0,0 +1,120 @@
+/**
+ *
+ * Copyright (c) 2009-2016 Freedomotic team http://freedomotic.com
+ *
+ * This file is part of Freedomotic
+ *
+ * This Program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2, or (at your option) any later version.
+ *
+ * This Program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Freedomotic; see the file COPYING. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.freedomotic.things;
+
+import com.freedomotic.api.EventTemplate;
+import com.freedomotic.bus.BusService;
+import com.freedomotic.events.ObjectHasChangedBehavior;
+import com.freedomotic.settings.AppConfig;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+public class ThingChangeNotifierTest {
+
+    private static final int WINDOW = 300;
+    private final List<ObjectHasChangedBehavior> sent = Collections.synchronizedList(new ArrayList<ObjectHasChangedBehavior>());
+
+    /**
+     * Without a window every change is notified right away
+     */
+    @Test
+    public void testNoWindow() {
+        ThingChangeNotifier notifier = new ThingChangeNotifier(config(0), busService());
+        TestThing thing = new TestThing("uuid-1", "powered");
+
+        notifier.changed(thing.set("powered", true));
+        notifier.changed(thing.set("powered", false));
+        assertEquals(2, sent.size());
+        assertEquals("true", sent.get(0).getProperty("object.behavior.powered"));
+        assertEquals("false", sent.get(1).getProperty("object.behavior.powered"));
+    }
+
+    /**
+     * The changes within the window are notified in a single event at its
+     * end, with the last value of every changed behavior. The changes after
+     * the event open a new window.
+     */
+    @Test
+    public void testCoalescingWindow() throws InterruptedException {
+        ThingChangeNotifier notifier = new ThingChangeNotifier(config(WINDOW), busService());
+        TestThing thing = new TestThing("uuid-1", "powered", "muted");
+        TestThing other = new TestThing("uuid-2", "powered");
+
+        notifier.changed(thing.set("powered", true));
+        notifier.changed(thing.set("muted", true));
+        notifier.changed(other.set("powered", true));
+        notifier.changed(thing.set("powered", false));
+        assertTrue(sent.isEmpty());
+
+        awaitSize(2);
+        ObjectHasChangedBehavior event = sent.get(0).getProperty("object.uuid").equals("uuid-1") ? sent.get(0) : sent.get(1);
+        assertEquals("false", event.getProperty("object.behavior.powered"));
+        assertEquals("true", event.getProperty("object.behavior.muted"));
+        assertEquals(1, event.getPayload().getStatements("object.behavior.powered").size());
+
+        notifier.changed(thing.set("muted", false));
+        Thread.sleep(WINDOW / 2);
+        assertEquals(2, sent.size());
+        awaitSize(3);
+        assertEquals("false", sent.get(2).getProperty("object.behavior.muted"));
+        assertTrue(sent.get(2).getPayload().getStatements("object.behavior.powered").isEmpty());
+    }
+
+    private void awaitSize(int size) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10 * WINDOW;
+        while (sent.size() < size && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Thread.sleep(50);
+        assertEquals(size, sent.size());
+    }
+
+    private static AppConfig config(final int window) {
+        return (AppConfig) Proxy.newProxyInstance(AppConfig.class.getClassLoader(), new Class<?>[]{AppConfig.class},
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        if (method.getName().equals("getIntProperty") && "KEY_THING_CHANGE_WINDOW".equals(args[0])) {
+                            return window;
+                        }
+                        return args != null && args.length > 1 ? args[1] : null;
+                    }
+                });
+    }
+
+    private BusService busService() {
+        return (BusService) Proxy.newProxyInstance(BusService.class.getClassLoader(), new Class<?>[]{BusService.class},
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        if (method.getName().equals("send") && args.length == 1 && args[0] instanceof EventTemplate) {
+                            sent.add((ObjectHasChangedBehavior) args[0]);
+                        }
+                        return null;
+                    }
+                });
+    }
+}
@@ -0,0 +1,135 @@
+/**
+ *
+ * Copyright (c) 2009-2016 Freedomotic team http://freedomotic.com
+ *
+ * This file is part of Freedomotic
+ *
+ * This Program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2, or (at your option) any later version.
+ *
+ * This Program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Freedomotic; see the file COPYING. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.freedomotic.things;
+
+import com.freedomotic.events.ObjectHasChangedBehavior;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+public class ThingChangeRateLimiterTest {
+
+    private static final long INTERVAL = 300;
+    private final List<ObjectHasChangedBehavior> received = Collections.synchronizedList(new ArrayList<ObjectHasChangedBehavior>());
+    private final ThingChangeRateLimiter limiter = new ThingChangeRateLimiter(INTERVAL, new ThingChangeRateLimiter.Receiver() {
+        @Override
+        public void receive(ObjectHasChangedBehavior event) {
+            received.add(event);
+        }
+    });
+
+    /**
+     * The merged event carries the last value of every behavior changed in
+     * the merged events, the received events are not modified.
+     */
+    @Test
+    public void testMerge() {
+        TestThing thing = new TestThing("uuid-1", "powered", "muted");
+        ObjectHasChangedBehavior older = thing.set("powered", true).set("muted", true).event();
+        ObjectHasChangedBehavior newer = thing.set("powered", false).event();
+
+        int olderSize = older.getPayload().size();
+        int newerSize = newer.getPayload().size();
+
+        ObjectHasChangedBehavior merged = ThingChangeRateLimiter.merge(older, newer);
+        assertNotSame(newer, merged);
+        assertEquals("false", merged.getProperty("object.behavior.powered"));
+        assertEquals("true", merged.getProperty("object.behavior.muted"));
+        assertEquals(1, merged.getPayload().getStatements("object.behavior.powered").size());
+        assertEquals(newer.getProperty("object.uuid"), merged.getProperty("object.uuid"));
+        assertEquals(newer.getCreation(), merged.getCreation());
+
+        assertEquals(olderSize, older.getPayload().size());
+        assertEquals(newerSize, newer.getPayload().size());
+        assertEquals("", newer.getProperty("object.behavior.muted"));
+    }
+
+    /**
+     * The first event is delivered right away, the ones arriving within the
+     * interval are delivered merged at its end, and the next event waits for
+     * a new interval.
+     */
+    @Test
+    public void testFlush() throws InterruptedException {
+        TestThing thing = new TestThing("uuid-1", "powered", "muted");
+        long start = System.nanoTime();
+        limiter.offer(thing.set("powered", true).event());
+        assertEquals(1, received.size());
+
+        limiter.offer(thing.set("muted", true).event());
+        limiter.offer(thing.set("powered", false).event());
+        assertEquals(1, received.size());
+
+        awaitSize(2);
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= INTERVAL - 20);
+        ObjectHasChangedBehavior merged = received.get(1);
+        assertEquals("false", merged.getProperty("object.behavior.powered"));
+        assertEquals("true", merged.getProperty("object.behavior.muted"));
+
+        start = System.nanoTime();
+        limiter.offer(thing.set("muted", false).event());
+        assertEquals(2, received.size());
+        awaitSize(3);
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= INTERVAL - 20);
+        assertEquals("false", received.get(2).getProperty("object.behavior.muted"));
+    }
+
+    /**
+     * Things are rate limited independently
+     */
+    @Test
+    public void testThingsAreIndependent() {
+        limiter.offer(new TestThing("uuid-1", "powered").set("powered", true).event());
+        limiter.offer(new TestThing("uuid-2", "powered").set("powered", true).event());
+        assertEquals(2, received.size());
+    }
+
+    /**
+     * The state of the things with nothing left to deliver is removed once
+     * their interval has elapsed.
+     */
+    @Test
+    public void testStatesAreRemoved() throws InterruptedException {
+        for (int i = 0; i < 100; i++) {
+            limiter.offer(new TestThing("uuid-" + i, "powered").set("powered", true).event());
+        }
+        TestThing pending = new TestThing("pending", "powered");
+        limiter.offer(pending.set("powered", true).event());
+        limiter.offer(pending.set("powered", false).event());
+        assertEquals(101, limiter.size());
+
+        // the pending event is delivered after an interval, its state expires after another one
+        Thread.sleep(2 * INTERVAL + 50);
+        limiter.offer(new TestThing("last", "powered").set("powered", true).event());
+        assertEquals(1, limiter.size());
+        assertEquals(103, received.size());
+    }
+
+    private void awaitSize(int size) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10 * INTERVAL;
+        while (received.size() < size && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(size, received.size());
+    }
+}
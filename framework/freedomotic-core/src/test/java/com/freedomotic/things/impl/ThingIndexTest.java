@@ -0,0 +1,102 @@
+/**
+ *
+ * Copyright (c) 2009-2016 Freedomotic team http://freedomotic.com
+ *
+ * This file is part of Freedomotic
+ *
+ * This Program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2, or (at your option) any later version.
+ *
+ * This Program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Freedomotic; see the file COPYING. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.freedomotic.things.impl;
+
+import com.freedomotic.model.object.EnvObject;
+import com.freedomotic.things.EnvObjectLogic;
+import java.util.Arrays;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+public class ThingIndexTest {
+
+    private static EnvObjectLogic thing(String uuid, String name, String protocol, String address, String environment, String... tags) {
+        EnvObject pojo = new EnvObject();
+        pojo.setUUID(uuid);
+        pojo.setName(name);
+        pojo.setProtocol(protocol);
+        pojo.setPhisicalAddress(address);
+        pojo.setEnvironmentID(environment);
+        pojo.initTags();
+        pojo.getTagsList().addAll(Arrays.asList(tags));
+        TestThing thing = new TestThing();
+        thing.setPojo(pojo);
+        return thing;
+    }
+
+    /**
+     * Lookups ignore case (tags excluded) and return only matching things.
+     */
+    @Test
+    public void testLookups() {
+        ThingIndex index = new ThingIndex();
+        EnvObjectLogic light = thing("uuid-1", "Kitchen Light", "X10", "A01", "env-1", "light", "kitchen");
+        EnvObjectLogic sensor = thing("uuid-2", "Kitchen Sensor", "zwave", "7", "env-1", "sensor", "kitchen");
+        index.add(light);
+        index.add(sensor);
+
+        assertSame(light, index.findByUuid("UUID-1"));
+        assertEquals(Arrays.asList(light), index.findByName("kitchen light"));
+        assertEquals(Arrays.asList(light), index.findByAddress("x10", "a01"));
+        assertTrue(index.findByAddress("zwave", "A01").isEmpty());
+        assertEquals(Arrays.asList(sensor), index.findByProtocol("ZWAVE"));
+        assertEquals(2, index.findByEnvironment("ENV-1").size());
+        assertEquals(2, index.findByTags(Arrays.asList("kitchen", "light")).size());
+        assertTrue(index.findByTags(Arrays.asList("Kitchen")).isEmpty());
+
+        index.remove("uuid-1");
+        assertNull(index.findByUuid("uuid-1"));
+        assertTrue(index.findByAddress("X10", "A01").isEmpty());
+        assertEquals(Arrays.asList(sensor), index.findByTags(Arrays.asList("kitchen")));
+    }
+
+    /**
+     * A changed thing is found with its new values after reindexing and never
+     * with the old ones.
+     */
+    @Test
+    public void testUpdate() {
+        ThingIndex index = new ThingIndex();
+        EnvObjectLogic light = thing("uuid-1", "Light", "X10", "A01", "env-1");
+        index.add(light);
+
+        light.getPojo().setName("Hall Light");
+        light.getPojo().setPhisicalAddress("B02");
+        assertTrue(index.findByName("Light").isEmpty());
+        assertTrue(index.findByAddress("X10", "A01").isEmpty());
+
+        index.update(light);
+        assertEquals(Arrays.asList(light), index.findByName("hall light"));
+        assertEquals(Arrays.asList(light), index.findByAddress("X10", "B02"));
+
+        // things not in the index are ignored
+        EnvObjectLogic other = thing("uuid-3", "Other", "X10", "B02", "env-1");
+        index.update(other);
+        assertEquals(Arrays.asList(light), index.findByAddress("X10", "B02"));
+    }
+
+    private static class TestThing extends EnvObjectLogic {
+
+        @Override
+        protected void setPojo(EnvObject pojo) {
+            super.setPojo(pojo);
+        }
+    }
+}
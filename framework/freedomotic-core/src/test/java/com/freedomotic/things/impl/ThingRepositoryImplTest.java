@@ -0,0 +1,177 @@
+/**
+ *
+ * Copyright (c) 2009-2016 Freedomotic team http://freedomotic.com
+ *
+ * This file is part of Freedomotic
+ *
+ * This Program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2, or (at your option) any later version.
+ *
+ * This Program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Freedomotic; see the file COPYING. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.freedomotic.things.impl;
+
+import com.freedomotic.core.SynchAction;
+import com.freedomotic.model.object.EnvObject;
+import com.freedomotic.things.EnvObjectLogic;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import static org.junit.Assert.*;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ThingRepositoryImplTest {
+
+    private static final int WRITERS = 4;
+    private static final int READERS = 4;
+    private static final int THINGS_PER_WRITER = 500;
+    private ThingRepositoryImpl repository;
+
+    @Before
+    public void setUp() {
+        repository = new ThingRepositoryImpl(null, null, null);
+        repository.deleteAll();
+    }
+
+    private static EnvObjectLogic thing(String uuid) {
+        EnvObject pojo = new EnvObject();
+        pojo.setUUID(uuid);
+        pojo.setName("Thing " + uuid);
+        pojo.setProtocol("test");
+        pojo.setPhisicalAddress(uuid);
+        pojo.setEnvironmentID("env");
+        pojo.initTags();
+        TestThing thing = new TestThing();
+        thing.setPojo(pojo);
+        return thing;
+    }
+
+    /**
+     * Readers iterate and search the repository while writers add and remove
+     * things: no reader fails and no change is lost.
+     */
+    @Test
+    public void testConcurrentReadersAndWriters() throws InterruptedException {
+        final long initialVersion = ThingRepositoryImpl.getVersion();
+        final AtomicBoolean writing = new AtomicBoolean(true);
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        final CountDownLatch writersDone = new CountDownLatch(WRITERS);
+        final CountDownLatch readersDone = new CountDownLatch(READERS);
+        List<Thread> threads = new ArrayList<Thread>();
+
+        for (int w = 0; w < WRITERS; w++) {
+            final int writer = w;
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < THINGS_PER_WRITER; i++) {
+                            assertTrue(repository.create(thing(writer + "-" + i)));
+                            // every other thing is removed again
+                            if (i % 2 == 1) {
+                                assertTrue(repository.delete(writer + "-" + (i - 1)));
+                            }
+                        }
+                    } catch (Throwable t) {
+                        failure.compareAndSet(null, t);
+                    } finally {
+                        writersDone.countDown();
+                    }
+                }
+            }));
+        }
+        for (int r = 0; r < READERS; r++) {
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        while (writing.get()) {
+                            int count = 0;
+                            for (EnvObjectLogic thing : repository.findAll()) {
+                                count++;
+                            }
+                            assertTrue(count <= WRITERS * THINGS_PER_WRITER);
+                            repository.findByName("Thing 0-0");
+                            repository.findByAddress("test", "1-1");
+                            repository.findByEnvironment("env");
+                        }
+                    } catch (Throwable t) {
+                        failure.compareAndSet(null, t);
+                    } finally {
+                        readersDone.countDown();
+                    }
+                }
+            }));
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        assertTrue(writersDone.await(60, TimeUnit.SECONDS));
+        writing.set(false);
+        assertTrue(readersDone.await(10, TimeUnit.SECONDS));
+
+        if (failure.get() != null) {
+            throw new AssertionError(failure.get());
+        }
+        int expected = WRITERS * THINGS_PER_WRITER / 2;
+        assertEquals(expected, repository.findAll().size());
+        assertEquals(expected, repository.findByEnvironment("env").size());
+        for (int w = 0; w < WRITERS; w++) {
+            for (int i = 0; i < THINGS_PER_WRITER; i++) {
+                String uuid = w + "-" + i;
+                assertEquals(i % 2 == 1, repository.findOne(uuid) != null);
+                assertEquals(i % 2 == 1, repository.findByAddress("test", uuid).size() == 1);
+            }
+        }
+        // one version for every creation and deletion
+        assertEquals(initialVersion + WRITERS * THINGS_PER_WRITER + expected, ThingRepositoryImpl.getVersion());
+    }
+
+    /**
+     * A snapshot returned by findAll() is not affected by later changes.
+     */
+    @Test
+    public void testSnapshotIsImmutable() {
+        repository.create(thing("a"));
+        List<EnvObjectLogic> snapshot = repository.findAll();
+        repository.create(thing("b"));
+        assertEquals(1, snapshot.size());
+        assertEquals(2, repository.findAll().size());
+        try {
+            snapshot.clear();
+            fail("A snapshot must not be modifiable");
+        } catch (UnsupportedOperationException e) {
+            // expected
+        }
+    }
+
+    private static class TestThing extends EnvObjectLogic {
+
+        @Override
+        protected void setPojo(EnvObject pojo) {
+            super.setPojo(pojo);
+        }
+
+        @Override
+        public void init() {
+            // no behaviors, triggers or commands
+        }
+
+        @Override
+        public void setChanged(SynchAction action) {
+            // no bus
+        }
+    }
+}
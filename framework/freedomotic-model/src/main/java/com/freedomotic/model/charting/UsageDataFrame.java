@@ -42,6 +42,7 @@ public class UsageDataFrame implements Serializable {
     public final static int INCREMENTAL_UPDATE = 2;
     private int frameType;
     private List<UsageData> data;
+    private String continuation;
 
     /**
      *
@@ -81,22 +82,50 @@ public class UsageDataFrame implements Serializable {
      * @return
      */
     public List<HashMap<String, String>> getDataAsMap() {
-        List<HashMap<String, String>> lst = new ArrayList<HashMap<String, String>>();
+        List<HashMap<String, String>> lst = new ArrayList<HashMap<String, String>>(data.size());
         for (UsageData dat : data) {
-            HashMap<String, String> map = new HashMap<String, String>();
-            map.put("address", dat.objaddress);
-            map.put("uuid", dat.uuid);
-            map.put("rowId", String.valueOf(dat.id));
-            map.put("datetime", dat.datetime.toString());
-            map.put("behavior", dat.objbehavior);
-            map.put("name", dat.objname);
-            map.put("protocol", dat.objprotocol);
-            map.put("behaviorValue", dat.objvalue);
-            lst.add(map);
+            lst.add(toMap(dat));
         }
         return lst;
     }
 
+    /**
+     * Converts a value to the map used as command tuple.
+     *
+     * @param dat the value
+     * @return the value properties
+     */
+    public static HashMap<String, String> toMap(UsageData dat) {
+        HashMap<String, String> map = new HashMap<String, String>();
+        map.put("address", dat.objaddress);
+        map.put("uuid", dat.uuid);
+        map.put("rowId", String.valueOf(dat.id));
+        map.put("datetime", dat.datetime.toString());
+        map.put("behavior", dat.objbehavior);
+        map.put("name", dat.objname);
+        map.put("protocol", dat.objprotocol);
+        map.put("behaviorValue", dat.objvalue);
+        return map;
+    }
+
+    /**
+     * Returns the token used to request the frame following this one, when
+     * the data is sent in pages.
+     *
+     * @return the continuation token, or null if this is the last frame
+     */
+    public String getContinuation() {
+        return continuation;
+    }
+
+    /**
+     *
+     * @param continuation
+     */
+    public void setContinuation(String continuation) {
+        this.continuation = continuation;
+    }
+
     /**
      *
      * @param type
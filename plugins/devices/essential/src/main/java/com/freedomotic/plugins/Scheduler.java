@@ -64,6 +64,12 @@ public class Scheduler
     @Override
     protected void onStart() {
         TIMER_RESOLUTION = configuration.getIntProperty("timer-resolution", 1000);
+        // the core fires the time based triggers on its own, unless disabled in config.xml
+        boolean scheduledByCore = getApi().getConfig().getBooleanProperty("KEY_TEMPORAL_TRIGGERS", true);
+        if (!configuration.getBooleanProperty("broadcast-events", !scheduledByCore)) {
+            setDescription("Time based triggers are scheduled by the core");
+            return;
+        }
         timer = new Timer("FreedomClock", true);
         awake = new Awake();
         timer.scheduleAtFixedRate(awake, TIMER_RESOLUTION, TIMER_RESOLUTION);
@@ -77,8 +83,10 @@ public class Scheduler
 
     @Override
     protected void onStop() {
-        awake.cancel();
-        timer.cancel();
+        if (timer != null) {
+            awake.cancel();
+            timer.cancel();
+        }
         awake = null;
         timer = null;
     }
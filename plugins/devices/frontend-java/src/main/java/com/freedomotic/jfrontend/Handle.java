@@ -125,6 +125,7 @@ public class Handle {
     protected void remove() {
         if (zone.getPojo().getShape().getPoints().contains(this.point)) {
             zone.getPojo().getShape().remove(this.point);
+            invalidateZoneIndex();
         }
     }
 
@@ -137,6 +138,7 @@ public class Handle {
         point.setX(x);
         point.setY(y);
         handle.setBounds(x - 13, y - 13, 26, 26);
+        invalidateZoneIndex();
     }
 
     /**
@@ -163,9 +165,20 @@ public class Handle {
 //        //apply pitagora to find the middle between previous point and current one
 //        FreedomPoint added = zone.getPojo().getShape().insert(midPoint(previous));
         FreedomPoint added = zone.getPojo().getShape().insert(midPoint(point));
+        invalidateZoneIndex();
         return added;
     }
 
+    /*
+     * The zone shape is changed in place, the environment must rebuild its
+     * spatial index
+     */
+    private void invalidateZoneIndex() {
+        if (zone != null && zone.getEnv() != null) {
+            zone.getEnv().invalidateZoneIndex();
+        }
+    }
+
     private FreedomPoint midPoint(FreedomPoint p) {
         int mx = (p.getX() + point.getX()) / 2;
         int my = (p.getY() + point.getY()) / 2;
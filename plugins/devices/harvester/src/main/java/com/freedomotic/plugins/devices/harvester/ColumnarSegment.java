@@ -0,0 +1,499 @@
+/**
+ *
+ * Copyright (c) 2009-2016 Freedomotic team http://freedomotic.com
+ *
+ * This file is part of Freedomotic
+ *
+ * This Program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2, or (at your option) any later version.
+ *
+ * This Program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Freedomotic; see the file COPYING. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.freedomotic.plugins.devices.harvester;
+
+import com.freedomotic.model.charting.UsageData;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.math.BigDecimal;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An append-only file holding one day of values of a single series (a
+ * behavior of a thing).
+ * <p>
+ * The file starts with a header (magic number, format version and the start
+ * of the day in milliseconds) followed by the records. Every record starts with
+ * a byte telling how its value is encoded and whether the thing name,
+ * protocol and address follow (they are only written when they change). Then
+ * comes the timestamp, encoded as the zigzag varint of the difference between
+ * its delta and the delta of the previous record (delta-of-delta), so values
+ * sampled at a regular interval take a single byte. The value is encoded as:
+ * <ul>
+ * <li>REPEAT: the same value of the previous record, nothing is written</li>
+ * <li>NUMBER: decimal values, the scale and the zigzag varint of the unscaled
+ * value, as a delta from the previous number if it had the same scale</li>
+ * <li>DICTIONARY: the index of a string already seen in this file</li>
+ * <li>STRING: a new string, added to the dictionary of the file</li>
+ * </ul>
+ * Every file is self contained, so the state of the encoder is rebuilt by
+ * reading it again when it is reopened for appending.
+ * </p>
+ */
+final class ColumnarSegment {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ColumnarSegment.class.getName());
+    /**
+     * The time span of a segment
+     */
+    static final long DURATION = TimeUnit.DAYS.toMillis(1);
+    static final String EXTENSION = ".seg";
+    private static final int MAGIC = 0x46445453; // FDTS
+    private static final byte VERSION = 1;
+    private static final int HEADER_SIZE = 13;
+    private static final int MAX_DICTIONARY_SIZE = 4096;
+    // value encodings, in the low bits of the record header
+    private static final int REPEAT = 0;
+    private static final int NUMBER = 1;
+    private static final int DICTIONARY = 2;
+    private static final int STRING = 3;
+    private static final int KIND_MASK = 0x07;
+    private static final int METADATA_FLAG = 0x08;
+    private final File file;
+    private final long start;
+    private final State state;
+    private final Map<String, Integer> dictionaryIndex = new HashMap<>();
+    // encoded records not yet written to the file
+    private final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+
+    private ColumnarSegment(File file, long start) {
+        this.file = file;
+        this.start = start;
+        this.state = new State(start);
+    }
+
+    /**
+     * Opens the segment of the given day for appending, it is created if it
+     * does not exist yet.
+     *
+     * @param folder the folder of the series
+     * @param start the start of the day, see {@link #startOf(long)}
+     * @return the segment
+     * @throws IOException if the segment cannot be read
+     */
+    static ColumnarSegment open(File folder, long start) throws IOException {
+        if (!folder.isDirectory() && !folder.mkdirs()) {
+            throw new IOException("Cannot create folder " + folder.getAbsolutePath());
+        }
+        ColumnarSegment segment = new ColumnarSegment(new File(folder, start + EXTENSION), start);
+        if (segment.file.length() > 0 && !segment.restore()) {
+            File corrupted = new File(folder, segment.file.getName() + ".corrupted");
+            LOG.warn("Harvester segment {} has an invalid header, it is renamed to {}",
+                    segment.file.getAbsolutePath(), corrupted.getName());
+            if (!segment.file.renameTo(corrupted)) {
+                throw new IOException("Cannot rename " + segment.file.getAbsolutePath());
+            }
+        }
+        // a crash may have left an empty file, created before the header was written
+        if (segment.file.length() == 0) {
+            segment.writeHeader();
+        }
+        return segment;
+    }
+
+    /**
+     * Returns the start of the segment holding the given timestamp
+     *
+     * @param timestamp a time in milliseconds
+     * @return the start of the segment in milliseconds
+     */
+    static long startOf(long timestamp) {
+        long offset = timestamp % DURATION;
+        return offset < 0 ? timestamp - offset - DURATION : timestamp - offset;
+    }
+
+    /**
+     * Returns the start of the segment stored in the given file, from its name
+     *
+     * @param file a file in a series folder
+     * @return the start of the segment in milliseconds, or null if the file is
+     * not a segment
+     */
+    static Long startOf(File file) {
+        String name = file.getName();
+        if (!name.endsWith(EXTENSION)) {
+            return null;
+        }
+        try {
+            return Long.valueOf(name.substring(0, name.length() - EXTENSION.length()));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    long getStart() {
+        return start;
+    }
+
+    boolean hasPending() {
+        return pending.size() > 0;
+    }
+
+    /**
+     * Encodes a value, it is written to the file on {@link #flush()}
+     *
+     * @param timestamp the time of the value in milliseconds
+     * @param value the value
+     * @param name the thing name
+     * @param protocol the thing protocol
+     * @param address the thing address
+     */
+    void append(long timestamp, String value, String name, String protocol, String address) {
+        boolean metadata = !Objects.equals(name, state.name)
+                || !Objects.equals(protocol, state.protocol)
+                || !Objects.equals(address, state.address);
+        BigDecimal number = null;
+        Integer index = null;
+        int kind;
+        if (Objects.equals(value, state.value)) {
+            kind = REPEAT;
+        } else if ((number = toNumber(value)) != null) {
+            kind = NUMBER;
+        } else if (value != null && (index = dictionaryIndex.get(value)) != null) {
+            kind = DICTIONARY;
+        } else {
+            kind = STRING;
+        }
+
+        pending.write(metadata ? kind | METADATA_FLAG : kind);
+        if (metadata) {
+            writeString(pending, name);
+            writeString(pending, protocol);
+            writeString(pending, address);
+            state.name = name;
+            state.protocol = protocol;
+            state.address = address;
+        }
+        long delta = timestamp - state.timestamp;
+        writeVarLong(pending, zigzag(delta - state.delta));
+        switch (kind) {
+            case NUMBER:
+                long unscaled = number.unscaledValue().longValue();
+                writeVarLong(pending, number.scale());
+                writeVarLong(pending, zigzag(number.scale() == state.scale ? unscaled - state.unscaled : unscaled));
+                state.unscaled = unscaled;
+                state.scale = number.scale();
+                break;
+            case DICTIONARY:
+                writeVarLong(pending, index);
+                break;
+            case STRING:
+                writeString(pending, value);
+                if (value != null && state.dictionary.size() < MAX_DICTIONARY_SIZE) {
+                    dictionaryIndex.put(value, state.dictionary.size());
+                    state.dictionary.add(value);
+                }
+                break;
+            default:
+                break;
+        }
+        state.timestamp = timestamp;
+        state.delta = delta;
+        state.value = value;
+    }
+
+    /**
+     * Appends the encoded values to the file
+     *
+     * @throws IOException if the file cannot be written, the values not
+     * written are lost and the segment must be reopened
+     */
+    void flush() throws IOException {
+        if (pending.size() == 0) {
+            return;
+        }
+        try (FileOutputStream out = new FileOutputStream(file, true)) {
+            pending.writeTo(out);
+        } finally {
+            pending.reset();
+        }
+    }
+
+    /**
+     * Reads the values of a segment file in the given time range. The file is
+     * memory mapped, so only the pages actually read are loaded.
+     *
+     * @param file the segment file
+     * @param from the start of the range (inclusive) in milliseconds
+     * @param to the end of the range (inclusive) in milliseconds
+     * @param uuid the uuid of the thing the series belongs to
+     * @param behavior the behavior name of the series
+     * @param skip the number of records to skip from the start of the file
+     * @param result where the values in range are added
+     * @param limit the max size of the result
+     * @return the number of records read before the result was full, or -1
+     * if the end of the file is reached
+     * @throws IOException if the file cannot be read
+     */
+    static int scan(File file, long from, long to, String uuid, String behavior, int skip,
+            List<UsageData> result, int limit) throws IOException {
+        MappedByteBuffer buffer;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel()) {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        Long segmentStart = readHeader(buffer);
+        if (segmentStart == null) {
+            LOG.warn("Skipping harvester segment {}, it has an invalid header", file.getAbsolutePath());
+            return -1;
+        }
+        State cursor = new State(segmentStart);
+        int index = 0;
+        try {
+            // records are read from the start even when skipped, the encoding depends on the previous ones
+            for (; buffer.hasRemaining(); index++) {
+                cursor.read(buffer);
+                if (index >= skip && cursor.timestamp >= from && cursor.timestamp <= to) {
+                    if (result.size() >= limit) {
+                        return index;
+                    }
+                    UsageData data = new UsageData();
+                    data.setDateTime(new Date(cursor.timestamp));
+                    data.setUuid(uuid);
+                    data.setObjBehavior(behavior);
+                    data.setObjValue(cursor.value);
+                    data.setObjName(cursor.name);
+                    data.setObjProtocol(cursor.protocol);
+                    data.setObjAddress(cursor.address);
+                    result.add(data);
+                }
+            }
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            // an incomplete record at the end of the file, left by a crash
+            LOG.debug("Incomplete record at the end of harvester segment {}", file.getAbsolutePath());
+        }
+        return -1;
+    }
+
+    /*
+     * Rebuilds the encoder state reading the whole file. An incomplete record
+     * at the end of the file (eg: a crash while writing) is removed. Returns
+     * false if the file is not a segment of this day.
+     */
+    private boolean restore() throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw"); FileChannel channel = raf.getChannel()) {
+            ByteBuffer buffer = ByteBuffer.allocate((int) channel.size());
+            while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+                // read the whole file
+            }
+            buffer.flip();
+            Long segmentStart = readHeader(buffer);
+            if (segmentStart == null || segmentStart != start) {
+                return false;
+            }
+            int valid = buffer.position();
+            try {
+                while (buffer.hasRemaining()) {
+                    state.read(buffer);
+                    valid = buffer.position();
+                }
+            } catch (BufferUnderflowException | IllegalArgumentException e) {
+                LOG.warn("Removing an incomplete record at the end of harvester segment {}", file.getAbsolutePath());
+                channel.truncate(valid);
+            }
+        }
+        for (int i = 0; i < state.dictionary.size(); i++) {
+            dictionaryIndex.put(state.dictionary.get(i), i);
+        }
+        return true;
+    }
+
+    private void writeHeader() {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).put(VERSION).putLong(start);
+        pending.write(header.array(), 0, HEADER_SIZE);
+    }
+
+    private static Long readHeader(ByteBuffer buffer) {
+        if (buffer.remaining() < HEADER_SIZE || buffer.getInt() != MAGIC || buffer.get() != VERSION) {
+            return null;
+        }
+        return buffer.getLong();
+    }
+
+    /*
+     * Returns the value as a decimal number only if it is written back exactly
+     * the same way, otherwise it is stored as a string
+     */
+    private static BigDecimal toNumber(String value) {
+        if (value == null || value.isEmpty() || value.length() > 20) {
+            return null;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if ((c < '0' || c > '9') && c != '-' && c != '.') {
+                return null;
+            }
+        }
+        try {
+            BigDecimal number = new BigDecimal(value);
+            if (number.scale() < 0 || number.precision() > 18 || !number.toPlainString().equals(value)) {
+                return null;
+            }
+            return number;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static void writeVarLong(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static long readVarLong(ByteBuffer in) {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = in.get();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Malformed varint");
+    }
+
+    private static void writeString(ByteArrayOutputStream out, String value) {
+        if (value == null) {
+            writeVarLong(out, 0);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeVarLong(out, bytes.length + 1L);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    private static String readString(ByteBuffer in) {
+        long length = readVarLong(in) - 1;
+        if (length < 0) {
+            return null;
+        }
+        if (length > in.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        byte[] bytes = new byte[(int) length];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * The values of the last record, the encoding of a record depends on them
+     */
+    private static final class State {
+
+        private long timestamp;
+        private long delta;
+        private String value;
+        private long unscaled;
+        private int scale = -1;
+        private String name;
+        private String protocol;
+        private String address;
+        private final List<String> dictionary = new ArrayList<>();
+
+        State(long start) {
+            this.timestamp = start;
+        }
+
+        /*
+         * Decodes the next record. The state is changed only if the whole
+         * record can be read
+         */
+        void read(ByteBuffer in) {
+            int header = in.get() & 0xFF;
+            int kind = header & KIND_MASK;
+            boolean metadata = (header & METADATA_FLAG) != 0;
+            String newName = name;
+            String newProtocol = protocol;
+            String newAddress = address;
+            if (metadata) {
+                newName = readString(in);
+                newProtocol = readString(in);
+                newAddress = readString(in);
+            }
+            long newDelta = delta + unzigzag(readVarLong(in));
+            String newValue = value;
+            long newUnscaled = unscaled;
+            int newScale = scale;
+            boolean added = false;
+            switch (kind) {
+                case REPEAT:
+                    break;
+                case NUMBER:
+                    newScale = (int) readVarLong(in);
+                    long encoded = unzigzag(readVarLong(in));
+                    newUnscaled = newScale == scale ? unscaled + encoded : encoded;
+                    newValue = BigDecimal.valueOf(newUnscaled, newScale).toPlainString();
+                    break;
+                case DICTIONARY:
+                    long index = readVarLong(in);
+                    if (index >= dictionary.size()) {
+                        throw new IllegalArgumentException("Invalid dictionary index " + index);
+                    }
+                    newValue = dictionary.get((int) index);
+                    break;
+                case STRING:
+                    newValue = readString(in);
+                    added = newValue != null && dictionary.size() < MAX_DICTIONARY_SIZE;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Invalid record header " + header);
+            }
+            // the whole record is read, update the state
+            name = newName;
+            protocol = newProtocol;
+            address = newAddress;
+            timestamp += newDelta;
+            delta = newDelta;
+            value = newValue;
+            unscaled = newUnscaled;
+            scale = newScale;
+            if (added) {
+                dictionary.add(newValue);
+            }
+        }
+    }
+}
@@ -0,0 +1,218 @@
+/**
+ *
+ * Copyright (c) 2009-2016 Freedomotic team http://freedomotic.com
+ *
+ * This file is part of Freedomotic
+ *
+ * This Program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2, or (at your option) any later version.
+ *
+ * This Program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Freedomotic; see the file COPYING. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.freedomotic.plugins.devices.harvester;
+
+import com.freedomotic.model.charting.UsageData;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Stores the behavior values in append-only files, without a database. Every
+ * series (a behavior of a thing) has its own folder, named after the thing
+ * uuid and the behavior name, holding a {@link ColumnarSegment} file per day.
+ * <p>
+ * Reading a time range only opens the segments of the days in range, and
+ * every segment only holds the timestamps and the compressed values of a
+ * single series. Values are buffered in memory and written on
+ * {@link #flush()}, so the values received in the last flush interval are
+ * lost if the process crashes. Unlike the JPA store the uuid is matched
+ * exactly, without wildcards.
+ * </p>
+ */
+final class ColumnarStore implements HarvesterStore {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ColumnarStore.class.getName());
+    private static final Comparator<UsageData> BY_TIME = new Comparator<UsageData>() {
+        @Override
+        public int compare(UsageData o1, UsageData o2) {
+            return o1.getDateTime().compareTo(o2.getDateTime());
+        }
+    };
+    private final File folder;
+    // series folder -> segment currently appended
+    private final Map<File, ColumnarSegment> segments = new HashMap<>();
+
+    /**
+     * Creates a store saving its files in the given folder
+     *
+     * @param folder the store folder, created if missing
+     * @throws IOException if the folder cannot be created
+     */
+    ColumnarStore(File folder) throws IOException {
+        if (!folder.isDirectory() && !folder.mkdirs()) {
+            throw new IOException("Cannot create folder " + folder.getAbsolutePath());
+        }
+        this.folder = folder;
+    }
+
+    @Override
+    public synchronized void append(UsageData data) throws IOException {
+        if (data.getUuid() == null || data.getObjBehavior() == null || data.getDateTime() == null) {
+            throw new IllegalArgumentException("Cannot store a value without uuid, behavior or date");
+        }
+        long timestamp = data.getDateTime().getTime();
+        long start = ColumnarSegment.startOf(timestamp);
+        File seriesFolder = seriesFolder(data.getUuid(), data.getObjBehavior());
+        ColumnarSegment segment = segments.get(seriesFolder);
+        if (segment == null || segment.getStart() != start) {
+            if (segment != null) {
+                flush(seriesFolder, segment);
+            }
+            segment = ColumnarSegment.open(seriesFolder, start);
+            segments.put(seriesFolder, segment);
+        }
+        segment.append(timestamp, data.getObjValue(), data.getObjName(), data.getObjProtocol(), data.getObjAddress());
+    }
+
+    @Override
+    public synchronized void flush() throws IOException {
+        int failed = 0;
+        Iterator<Map.Entry<File, ColumnarSegment>> it = segments.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<File, ColumnarSegment> entry = it.next();
+            if (entry.getValue().hasPending() && !flush(entry.getKey(), entry.getValue())) {
+                it.remove();
+                failed++;
+            }
+        }
+        if (failed > 0) {
+            throw new IOException("Cannot write the values of " + failed + " series");
+        }
+    }
+
+    /*
+     * Returns false if the segment cannot be written, it must be reopened to
+     * be used again
+     */
+    private boolean flush(File seriesFolder, ColumnarSegment segment) {
+        try {
+            segment.flush();
+            return true;
+        } catch (IOException e) {
+            LOG.error("Cannot write harvester values to {}: {}", seriesFolder.getAbsolutePath(), e.getLocalizedMessage());
+            return false;
+        }
+    }
+
+    @Override
+    public synchronized Page read(String uuid, String behavior, Date from, Date to, String continuation, int limit) throws IOException {
+        // the continuation token is the start of a segment and the index of a record in it
+        long firstSegment = Long.MIN_VALUE;
+        int skip = 0;
+        if (continuation != null) {
+            String[] position = continuation.split(":");
+            try {
+                firstSegment = Long.parseLong(position[0]);
+                skip = Integer.parseInt(position[1]);
+            } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                throw new IllegalArgumentException("Invalid continuation token " + continuation);
+            }
+            if (position.length != 2 || skip < 0) {
+                throw new IllegalArgumentException("Invalid continuation token " + continuation);
+            }
+        }
+
+        File seriesFolder = seriesFolder(uuid, behavior);
+        ColumnarSegment segment = segments.get(seriesFolder);
+        if (segment != null && segment.hasPending() && !flush(seriesFolder, segment)) {
+            segments.remove(seriesFolder);
+        }
+
+        // the segments overlapping the range, ordered by time
+        TreeMap<Long, File> files = new TreeMap<>();
+        File[] content = seriesFolder.listFiles();
+        if (content != null) {
+            for (File file : content) {
+                Long start = ColumnarSegment.startOf(file);
+                if (start != null && start >= firstSegment
+                        && start <= to.getTime() && start + ColumnarSegment.DURATION > from.getTime()) {
+                    files.put(start, file);
+                }
+            }
+        }
+
+        List<UsageData> result = new ArrayList<>(Math.min(limit, 1024));
+        for (Map.Entry<Long, File> file : files.entrySet()) {
+            int next = ColumnarSegment.scan(file.getValue(), from.getTime(), to.getTime(), uuid, behavior,
+                    file.getKey() == firstSegment ? skip : 0, result, limit);
+            if (next >= 0) {
+                sortByTime(result);
+                return new Page(result, file.getKey() + ":" + next);
+            }
+        }
+        sortByTime(result);
+        return new Page(result, null);
+    }
+
+    /*
+     * Values are appended in arrival order, which is almost always time order
+     */
+    private static void sortByTime(List<UsageData> values) {
+        for (int i = 1; i < values.size(); i++) {
+            if (values.get(i).getDateTime().before(values.get(i - 1).getDateTime())) {
+                Collections.sort(values, BY_TIME);
+                return;
+            }
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        try {
+            flush();
+        } catch (IOException e) {
+            LOG.error("Error closing the harvester store: {}", e.getLocalizedMessage());
+        }
+        segments.clear();
+    }
+
+    private File seriesFolder(String uuid, String behavior) {
+        return new File(new File(folder, toFileName(uuid)), toFileName(behavior));
+    }
+
+    /*
+     * Escapes all the characters which are not letters, digits, '-' or '_',
+     * so that any string is a valid file name (and never "." or "..")
+     */
+    static String toFileName(String value) {
+        StringBuilder name = new StringBuilder(value.length());
+        for (byte b : value.getBytes(StandardCharsets.UTF_8)) {
+            char c = (char) (b & 0xFF);
+            if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '-' || c == '_') {
+                name.append(c);
+            } else {
+                name.append('%').append(String.format("%02X", b & 0xFF));
+            }
+        }
+        return name.toString();
+    }
+}
@@ -27,26 +27,26 @@ import com.freedomotic.exceptions.UnableToExecuteException;
 import com.freedomotic.model.charting.UsageData;
 import com.freedomotic.model.charting.UsageDataFrame;
 import com.freedomotic.model.ds.Tuples;
-import com.freedomotic.things.EnvObjectLogic;
 import com.freedomotic.reactions.Command;
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.sql.Timestamp;
-import java.util.Collection;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
-import javax.persistence.EntityManager;
-import javax.persistence.EntityManagerFactory;
-import javax.persistence.Persistence;
-import javax.persistence.Query;
 import org.apache.openjpa.persistence.ArgumentException;
 import org.codehaus.jackson.map.ObjectMapper;
 import org.slf4j.Logger;
@@ -58,13 +58,20 @@ import org.slf4j.LoggerFactory;
  */
 public final class HarvesterProtocol extends Protocol {
 
-    //Connection connection;
-    //PreparedStatement prep;
-    EntityManagerFactory factory;
-    EntityManager em;
+    private static final String COLUMNAR_DRIVER = "columnar";
+    HarvesterStore store;
+    RollupStore rollups;
+    IngestionPipeline pipeline;
     Properties props;
     String dbType;
+    // the storage description and the counters of the last stats update
+    private String storeDescription;
+    private long lastWritten;
+    private long lastStats;
     private final static Logger LOG = LoggerFactory.getLogger(HarvesterProtocol.class.getName());
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    // uuid + behavior -> query addresses receiving the values saved after an EXTRACT-DATA with subscribe=true
+    private final ConcurrentMap<String, Set<String>> subscriptions = new ConcurrentHashMap<>();
 
     /**
      *
@@ -77,11 +84,17 @@ public final class HarvesterProtocol extends Protocol {
 
     @Override
     protected void onRun() {
-
-        if (em != null && em.getTransaction().isActive()) {
-            em.getTransaction().commit();
+        // values are saved by the pipeline, here only its stats are published
+        if (pipeline != null) {
+            long now = System.currentTimeMillis();
+            long written = pipeline.getWritten();
+            double rate = lastStats == 0 ? 0 : (written - lastWritten) * 1000d / Math.max(1, now - lastStats);
+            lastWritten = written;
+            lastStats = now;
+            setDescription(String.format("%s - %.1f values/s, %d queued, lag %d ms, %d dropped, %d failed",
+                    storeDescription, rate, pipeline.getQueueSize(), pipeline.getLag(),
+                    pipeline.getDropped(), pipeline.getFailed()));
         }
-        //em.getTransaction().begin();
     }
 
     @Override
@@ -90,19 +103,40 @@ public final class HarvesterProtocol extends Protocol {
         try {
             dbType = configuration.getStringProperty("driver", "h2");
 
-            props = new Properties();
-            props.loadFromXML(new FileInputStream(this.getFile().getParent() + File.separator + dbType + ".xml"));
-            props.put("openjpa.MetaDataFactory", "org.apache.openjpa.persistence.jdbc.PersistenceMappingFactory(Types=" + UsageData.class.getCanonicalName() + ";)");
-            props.put("openjpa.TransactionMode", "local");
-            props.put("openjpa.jdbc.SynchronizeMappings", "buildSchema");
-            props.put("openjpa.RemoteCommitProvider", "sjvm");
-            props.put("openjpa.Log", configuration.getStringProperty("log.options", "DefaultLevel=WARN, Runtime=INFO, Tool=INFO"));
-
-            factory = Persistence.createEntityManagerFactory("UsageData", props);
-            em = factory.createEntityManager();
-            //setDescription("Saving data to: " + em.getProperties().get("openjpa.ConnectionURL")); // works only with JPA 2.0
-            setDescription("Connected to database");
-            setPollingWait(2000);
+            if (dbType.equalsIgnoreCase(COLUMNAR_DRIVER)) {
+                File folder = getFolder("columnar.folder", "series");
+                store = new ColumnarStore(folder);
+                storeDescription = "Saving data to " + folder.getAbsolutePath();
+            } else {
+                props = new Properties();
+                props.loadFromXML(new FileInputStream(this.getFile().getParent() + File.separator + dbType + ".xml"));
+                props.put("openjpa.Log", configuration.getStringProperty("log.options", "DefaultLevel=WARN, Runtime=INFO, Tool=INFO"));
+
+                store = new JpaStore(props);
+                //setDescription("Saving data to: " + em.getProperties().get("openjpa.ConnectionURL")); // works only with JPA 2.0
+                storeDescription = "Connected to database";
+            }
+            if (configuration.getBooleanProperty("rollups", true)) {
+                rollups = new RollupStore(getFolder("rollups.folder", "rollups"),
+                        TimeUnit.SECONDS.toMillis(configuration.getIntProperty("rollups.checkpoint", 300)));
+            }
+            pipeline = new IngestionPipeline(store, rollups,
+                    configuration.getIntProperty("ingestion.queue-size", 65536),
+                    configuration.getIntProperty("ingestion.batch-size", 500),
+                    configuration.getIntProperty("ingestion.max-delay", 1000),
+                    IngestionPipeline.parsePolicy(configuration.getStringProperty("ingestion.overflow-policy", "BLOCK")),
+                    configuration.getIntProperty("ingestion.block-timeout", 1000));
+            pipeline.setListener(new IngestionPipeline.Listener() {
+                @Override
+                public void onSaved(List<UsageData> values) {
+                    publish(values);
+                }
+            });
+            pipeline.start();
+            lastWritten = 0;
+            lastStats = 0;
+            setDescription(storeDescription);
+            setPollingWait(configuration.getIntProperty("ingestion.stats-interval", 10000));
         } catch (FileNotFoundException e) {
             LOG.error("Unable to find configuration file for harvester of type: {}", dbType);
         } catch (ArgumentException e) {
@@ -119,27 +153,44 @@ public final class HarvesterProtocol extends Protocol {
     public void onStop() {
         setPollingWait(-1); // disable polling
 
-        try {
-            if (em.getTransaction().isActive()) {
-                em.getTransaction().commit();
-            }
-            em.close();
-            factory.close();
-        } catch (Exception e) {
-            LOG.error("Error stopping Harvester: {}", e.getLocalizedMessage());
+        subscriptions.clear();
+        if (pipeline != null) {
+            pipeline.stop(configuration.getIntProperty("ingestion.stop-timeout", 30000));
+            pipeline = null;
+        }
+        if (store != null) {
+            store.close();
+            store = null;
+        }
+        if (rollups != null) {
+            rollups.close();
+            rollups = null;
         }
         this.setDescription("Disconnected");
 
     }
 
+    /*
+     * Returns the folder set in the given manifest property, relative to the
+     * plugin folder if not absolute
+     */
+    private File getFolder(String property, String defaultValue) {
+        File folder = new File(configuration.getStringProperty(property, defaultValue));
+        if (!folder.isAbsolute()) {
+            folder = new File(this.getFile().getParent(), folder.getPath());
+        }
+        return folder;
+    }
+
     @Override
     protected void onCommand(Command c) throws IOException, UnableToExecuteException {
         if (isRunning()) {
             if (c.getProperty("command") == null || c.getProperty("command").isEmpty() || c.getProperty("command").equalsIgnoreCase("SAVE-DATA")) {
                 saveData(c);
             } else if (c.getProperty("command").equals("EXTRACT-DATA")) { //extract data
-                UsageDataFrame data = extractData(c);
-                sendPoints(data, c);
+                extractData(c);
+            } else if (c.getProperty("command").equals("UNSUBSCRIBE-DATA")) {
+                unsubscribe(c);
             }
         }
     }
@@ -154,86 +205,197 @@ public final class HarvesterProtocol extends Protocol {
         throw new UnsupportedOperationException("Not supported yet.");
     }
 
-    private UsageDataFrame extractData(Command c) {
+    /*
+     * Reads the requested values page by page. With a QueryAddress every page
+     * is sent as soon as it is read (the first one as a full update, the
+     * others as incremental updates), otherwise the first page is returned in
+     * the command tuples. A page carries the continuation token to request the
+     * next one.
+     */
+    private void extractData(Command c) throws IOException {
         String type, id;
 
-        if (c.getProperty("QueryAddress") != null) {
-            String[] searchParam = c.getProperty("QueryAddress").split(":");
+        String queryAddress = c.getProperty("QueryAddress");
+        if (queryAddress != null) {
+            String[] searchParam = queryAddress.split(":");
             type = searchParam[0];
             id = searchParam[1];
         } else {
             type = c.getProperty("FilterType");
             id = c.getProperty("FilterID");
         }
-        if (type != null && id != null) {
-            Query q = null;
-
-            if (type.startsWith("obj")) {
-                // extract data for an object 
-                q = em.createNamedQuery("powered");
-
-                String date = c.getProperty("startDate");
-                if (date == null || date.isEmpty() || date.equals("CURRENT_DATE")) {
-                    q.setParameter("startDate", new Date(0));
-                } else {
-                    q.setParameter("startDate", new Date(Long.parseLong(date)));
-                }
-
-                date = c.getProperty("stopDate");
-                if (date == null || date.isEmpty() || date.equals("CURRENT_DATE")) {
-                    q.setParameter("stopDate", new Date());
-                } else {
-                    q.setParameter("stopDate", new Date(Long.parseLong(date)));
-                }
-
-                q.setParameter("uuid", id.trim());
-                q.setParameter("protocol", "%");
-
-            } else if (type.equals("tag")) {
-                Collection<EnvObjectLogic> objs = getApi().things().findAll();
+        if (type == null || id == null) {
+            LOG.warn("Harvester cannot extract data if it misses FilterType or FilterID properties");
+            return;
+        }
+        if (!type.startsWith("obj")) {
+            // extraction by tag, protocol, room or environment is not implemented
+            deliver(c, UsageDataFrame.FULL_UPDATE, Collections.<UsageData>emptyList(), null);
+            return;
+        }
 
-            } else if (type.startsWith("prot")) {
-                Collection<EnvObjectLogic> objs = getApi().things().findByProtocol(id);
+        // extract data for an object 
+        String uuid = id.trim();
+        Date startDate;
+        String date = c.getProperty("startDate");
+        if (date == null || date.isEmpty() || date.equals("CURRENT_DATE")) {
+            startDate = new Date(0);
+        } else {
+            startDate = new Date(Long.parseLong(date));
+        }
 
-            } else if (type.equals("room")) {
-                // to be implemented
-            } else if (type.startsWith("env")) {
-                Collection<EnvObjectLogic> objs = getApi().things().findByEnvironment(id);
+        Date stopDate;
+        date = c.getProperty("stopDate");
+        if (date == null || date.isEmpty() || date.equals("CURRENT_DATE")) {
+            stopDate = new Date();
+        } else {
+            stopDate = new Date(Long.parseLong(date));
+        }
 
-            }
+        String behavior = c.getProperty("behavior");
+        if (behavior == null || behavior.isEmpty()) {
+            behavior = "powered";
+        }
+        String maxPoints = c.getProperty("maxPoints");
+        if (maxPoints != null && !maxPoints.isEmpty() && rollups != null) {
+            deliver(c, UsageDataFrame.FULL_UPDATE,
+                    extractRollups(uuid, behavior, startDate, stopDate, Integer.parseInt(maxPoints), c.getProperty("aggregate")), null);
+            return;
+        }
 
-            UsageDataFrame df = new UsageDataFrame(UsageDataFrame.FULL_UPDATE, q.getResultList());
-            LOG.info(df.toString());
-            return df;
-        } else {
-            LOG.warn("Harvester cannot extract data if it misses FilterType or FilterID properties");
-            return null;
+        int pageSize = configuration.getIntProperty("extract.page-size", 1000);
+        if (c.getProperty("pageSize") != null && !c.getProperty("pageSize").isEmpty()) {
+            pageSize = Integer.parseInt(c.getProperty("pageSize"));
+        }
+        pageSize = Math.max(1, pageSize);
+        String continuation = c.getProperty("continuation");
+        if (continuation != null && continuation.isEmpty()) {
+            continuation = null;
         }
+        if (queryAddress != null && "true".equalsIgnoreCase(c.getProperty("subscribe"))) {
+            // before reading, so that no value is lost between the last page and the live values
+            subscribe(queryAddress, uuid, behavior);
+        }
+        boolean stream = queryAddress != null && !"false".equalsIgnoreCase(c.getProperty("stream"));
+
+        int frameType = continuation == null ? UsageDataFrame.FULL_UPDATE : UsageDataFrame.INCREMENTAL_UPDATE;
+        int pages = 0;
+        do {
+            HarvesterStore.Page page = store.read(uuid, behavior, startDate, stopDate, continuation, pageSize);
+            continuation = page.getContinuation();
+            deliver(c, frameType, page.getValues(), continuation);
+            frameType = UsageDataFrame.INCREMENTAL_UPDATE;
+            pages++;
+        } while (stream && continuation != null && isRunning());
+        LOG.debug("Harvester sent {} pages of {} values of {}", new Object[]{pages, behavior, uuid});
     }
 
-    private void sendPoints(UsageDataFrame df, Command c) {
-        // find command sender (in order to reply)
-        // create response, filling data from List
+    /*
+     * Returns at most maxPoints aggregated values, read from the coarsest
+     * rollup giving enough detail
+     */
+    private List<UsageData> extractRollups(String uuid, String behavior, Date startDate, Date stopDate,
+            int maxPoints, String aggregate) throws IOException {
+        RollupStore.Aggregate function = RollupStore.Aggregate.AVG;
+        if (aggregate != null && !aggregate.isEmpty()) {
+            function = RollupStore.Aggregate.valueOf(aggregate.trim().toUpperCase());
+        }
+        return rollups.extract(uuid, behavior, startDate.getTime(), stopDate.getTime(), maxPoints, function);
+    }
 
+    /*
+     * Sends a frame to the QueryAddress of the command, or fills the command
+     * tuples if the command has no QueryAddress
+     */
+    private void deliver(Command c, int frameType, List<UsageData> values, String continuation) {
         if (c.getProperty("QueryAddress") != null) {
-            ProtocolRead ev = new ProtocolRead(this, "harvester", c.getProperty("QueryAddress"));
-            ObjectMapper om = new ObjectMapper();
-            ByteArrayOutputStream os = new ByteArrayOutputStream();
-            try {
-                om.writeValue(os, df);
-            } catch (IOException ex) {
-                LOG.error(ex.getLocalizedMessage());
-            }
-            ev.addProperty("behaviorValue", os.toString());
-            this.notifyEvent(ev);
+            sendFrame(c.getProperty("QueryAddress"), frameType, values, continuation);
         } else {
             Tuples t = c.getProperties().getTuples();
             t.clear();
-            for (HashMap<String, String> data : df.getDataAsMap()) {
-                t.add(data);
+            for (UsageData value : values) {
+                t.add(UsageDataFrame.toMap(value));
+            }
+            if (continuation != null) {
+                c.setProperty("continuation", continuation);
+            }
+        }
+    }
+
+    private void sendFrame(String queryAddress, int frameType, List<UsageData> values, String continuation) {
+        UsageDataFrame frame = new UsageDataFrame(frameType, values);
+        frame.setContinuation(continuation);
+        ProtocolRead ev = new ProtocolRead(this, "harvester", queryAddress);
+        try {
+            ev.addProperty("behaviorValue", MAPPER.writeValueAsString(frame));
+        } catch (IOException ex) {
+            LOG.error(ex.getLocalizedMessage());
+            return;
+        }
+        if (continuation != null) {
+            ev.addProperty("continuation", continuation);
+        }
+        this.notifyEvent(ev);
+    }
+
+    private static String seriesKey(String uuid, String behavior) {
+        return uuid + '\n' + behavior;
+    }
+
+    private void subscribe(String queryAddress, String uuid, String behavior) {
+        String key = seriesKey(uuid, behavior);
+        Set<String> addresses = subscriptions.get(key);
+        if (addresses == null) {
+            Set<String> created = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+            addresses = subscriptions.putIfAbsent(key, created);
+            if (addresses == null) {
+                addresses = created;
             }
         }
+        addresses.add(queryAddress);
+    }
+
+    /*
+     * Stops sending the live values of any series to the QueryAddress of the
+     * command
+     */
+    private void unsubscribe(Command c) {
+        String queryAddress = c.getProperty("QueryAddress");
+        if (queryAddress == null) {
+            LOG.warn("Harvester cannot unsubscribe without a QueryAddress property");
+            return;
+        }
+        for (Set<String> addresses : subscriptions.values()) {
+            addresses.remove(queryAddress);
+        }
+    }
 
+    /*
+     * Called by the ingestion pipeline after a batch is saved, sends the saved
+     * values to the subscribers of their series
+     */
+    private void publish(List<UsageData> values) {
+        if (subscriptions.isEmpty()) {
+            return;
+        }
+        Map<String, List<UsageData>> bySeries = new HashMap<>();
+        for (UsageData value : values) {
+            String key = seriesKey(value.getUuid(), value.getObjBehavior());
+            Set<String> addresses = subscriptions.get(key);
+            if (addresses != null && !addresses.isEmpty()) {
+                List<UsageData> series = bySeries.get(key);
+                if (series == null) {
+                    series = new ArrayList<>();
+                    bySeries.put(key, series);
+                }
+                series.add(value);
+            }
+        }
+        for (Map.Entry<String, List<UsageData>> series : bySeries.entrySet()) {
+            for (String address : subscriptions.get(series.getKey())) {
+                sendFrame(address, UsageDataFrame.INCREMENTAL_UPDATE, series.getValue(), null);
+            }
+        }
     }
 
     @Override
@@ -269,11 +431,8 @@ public final class HarvesterProtocol extends Protocol {
                     item2.setObjBehavior(fits.group(1));
                     item2.setObjValue((String) entry.getValue());
 
-                    if (isRunning() && em != null) {
-                        if (!em.getTransaction().isActive()) {
-                            em.getTransaction().begin();
-                        }
-                        em.persist(item2);
+                    if (isRunning() && pipeline != null) {
+                        pipeline.submit(item2);
                     }
                 }
             }
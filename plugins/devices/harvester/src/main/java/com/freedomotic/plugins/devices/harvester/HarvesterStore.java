@@ -0,0 +1,101 @@
+/**
+ *
+ * Copyright (c) 2009-2016 Freedomotic team http://freedomotic.com
+ *
+ * This file is part of Freedomotic
+ *
+ * This Program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2, or (at your option) any later version.
+ *
+ * This Program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Freedomotic; see the file COPYING. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.freedomotic.plugins.devices.harvester;
+
+import com.freedomotic.model.charting.UsageData;
+import java.io.IOException;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * The storage engine used by the harvester to save and query the behavior
+ * values of the things. The engine is chosen with the <code>driver</code>
+ * property of the plugin manifest.
+ * <p>
+ * Implementations must be thread safe, commands are executed concurrently.
+ * </p>
+ */
+interface HarvesterStore {
+
+    /**
+     * Stores a behavior value. The value may be buffered until the next
+     * {@link #flush()}.
+     *
+     * @param data the behavior value, uuid and behavior name are required
+     * @throws IOException if the value cannot be stored
+     */
+    void append(UsageData data) throws IOException;
+
+    /**
+     * Makes the buffered values durable.
+     *
+     * @throws IOException if the values cannot be written
+     */
+    void flush() throws IOException;
+
+    /**
+     * Returns a page of the values of a behavior of a thing in a time range.
+     * The values are in time order, except the ones saved late.
+     *
+     * @param uuid the uuid of the thing
+     * @param behavior the behavior name
+     * @param from the start of the range (inclusive)
+     * @param to the end of the range (inclusive)
+     * @param continuation the token returned with the previous page, or null
+     * to read the first page
+     * @param limit the max number of values of the page, at least 1
+     * @return the values in the page and the token to read the next one
+     * @throws IOException if the values cannot be read
+     * @throws IllegalArgumentException if the continuation token is not valid
+     */
+    Page read(String uuid, String behavior, Date from, Date to, String continuation, int limit) throws IOException;
+
+    /**
+     * Flushes the buffered values and releases the resources of the store.
+     */
+    void close();
+
+    /**
+     * Some of the values in a range
+     */
+    final class Page {
+
+        private final List<UsageData> values;
+        private final String continuation;
+
+        Page(List<UsageData> values, String continuation) {
+            this.values = values;
+            this.continuation = continuation;
+        }
+
+        List<UsageData> getValues() {
+            return values;
+        }
+
+        /**
+         * Returns the token used to read the next page
+         *
+         * @return the token, or null if this is the last page
+         */
+        String getContinuation() {
+            return continuation;
+        }
+    }
+}
@@ -0,0 +1,329 @@
+/**
+ *
+ * Copyright (c) 2009-2016 Freedomotic team http://freedomotic.com
+ *
+ * This file is part of Freedomotic
+ *
+ * This Program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2, or (at your option) any later version.
+ *
+ * This Program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Freedomotic; see the file COPYING. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.freedomotic.plugins.devices.harvester;
+
+import com.freedomotic.metrics.Counter;
+import com.freedomotic.metrics.Histogram;
+import com.freedomotic.metrics.Metrics;
+import com.freedomotic.model.charting.UsageData;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Decouples the threads executing the harvester commands from the storage.
+ * <p>
+ * The values to save are put in an {@link IngestionQueue} and a single writer
+ * thread saves them in batches: a batch is written when it reaches the batch
+ * size or when its oldest value has waited for the max delay. Every batch is
+ * saved to the {@link HarvesterStore} and the {@link RollupStore} and then
+ * flushed, so a database driver commits a transaction per batch. When the
+ * queue is full (eg: the disk is slower than the incoming values) the
+ * {@link OverflowPolicy} is applied.
+ * </p>
+ */
+final class IngestionPipeline {
+
+    private static final Logger LOG = LoggerFactory.getLogger(IngestionPipeline.class.getName());
+    private static final long BLOCK_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+
+    /**
+     * What to do with a value when the queue is full
+     */
+    enum OverflowPolicy {
+
+        /**
+         * The caller waits for free space up to the block timeout, slowing
+         * down the commands, then the value is dropped
+         */
+        BLOCK,
+        /**
+         * The value is dropped immediately
+         */
+        DROP
+    }
+
+    /**
+     * Notified by the writer thread after every saved batch
+     */
+    interface Listener {
+
+        /**
+         * Called after the values are saved and can be read from the store
+         *
+         * @param values the saved values
+         */
+        void onSaved(List<UsageData> values);
+    }
+
+    private final IngestionQueue<Entry> queue;
+    private final HarvesterStore store;
+    private final RollupStore rollups;
+    private final int batchSize;
+    private final long maxDelay;
+    private final OverflowPolicy policy;
+    private final long blockTimeout;
+    private final Thread writer;
+    private volatile boolean running;
+    private volatile Listener listener;
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong written = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    // lag (in microseconds) of the oldest value of the last written batch
+    private volatile long lastLag;
+    private final Counter writtenCounter = Metrics.counter("harvester.values.written");
+    private final Counter droppedCounter = Metrics.counter("harvester.values.dropped");
+    private final Histogram lagHistogram = Metrics.histogram("harvester.ingestion.lag");
+    private final Histogram batchHistogram = Metrics.histogram("harvester.ingestion.batch");
+
+    /**
+     * Creates a pipeline, values are accepted after {@link #start()}
+     *
+     * @param store where the values are saved
+     * @param rollups where the values are aggregated, can be null
+     * @param capacity the max number of queued values
+     * @param batchSize the max number of values written together
+     * @param maxDelay the max time (in milliseconds) a value waits in the
+     * queue before its batch is written
+     * @param policy what to do when the queue is full
+     * @param blockTimeout the max time (in milliseconds) a caller waits with
+     * the {@link OverflowPolicy#BLOCK} policy
+     */
+    IngestionPipeline(HarvesterStore store, RollupStore rollups, int capacity, int batchSize,
+            long maxDelay, OverflowPolicy policy, long blockTimeout) {
+        if (batchSize < 1 || maxDelay < 1 || policy == null) {
+            throw new IllegalArgumentException("Invalid harvester ingestion configuration");
+        }
+        this.queue = new IngestionQueue<>(capacity);
+        this.store = store;
+        this.rollups = rollups;
+        this.batchSize = batchSize;
+        this.maxDelay = TimeUnit.MILLISECONDS.toNanos(maxDelay);
+        this.policy = policy;
+        this.blockTimeout = TimeUnit.MILLISECONDS.toNanos(blockTimeout);
+        this.writer = new Thread(new Writer(), "harvester-writer");
+        this.writer.setDaemon(true);
+    }
+
+    static OverflowPolicy parsePolicy(String value) {
+        try {
+            return OverflowPolicy.valueOf(value.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            LOG.warn("Unknown harvester overflow policy ''{}'', using {}", value, OverflowPolicy.BLOCK);
+            return OverflowPolicy.BLOCK;
+        }
+    }
+
+    void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    void start() {
+        running = true;
+        writer.start();
+        LOG.info("Harvester values are written in batches of {} (max delay {} ms) from a queue of {} ({} when full)",
+                new Object[]{batchSize, TimeUnit.NANOSECONDS.toMillis(maxDelay), queue.capacity(), policy});
+    }
+
+    /**
+     * Queues a value to be saved, can be called by any thread
+     *
+     * @param data the value to save
+     * @return false if the value has been dropped
+     */
+    boolean submit(UsageData data) {
+        if (!running) {
+            return false;
+        }
+        Entry entry = new Entry(data, System.nanoTime());
+        if (offer(entry)) {
+            return true;
+        }
+        if (policy == OverflowPolicy.BLOCK) {
+            long deadline = System.nanoTime() + blockTimeout;
+            while (running && System.nanoTime() < deadline) {
+                LockSupport.unpark(writer);
+                LockSupport.parkNanos(this, BLOCK_PARK_NANOS);
+                if (offer(entry)) {
+                    return true;
+                }
+            }
+        }
+        long count = dropped.incrementAndGet();
+        droppedCounter.increment();
+        if (count == 1 || count % 1000 == 0) {
+            LOG.warn("Harvester queue is full ({} values), {} values dropped so far", queue.capacity(), count);
+        }
+        return false;
+    }
+
+    private boolean offer(Entry entry) {
+        if (!queue.offer(entry)) {
+            return false;
+        }
+        if (queue.size() >= batchSize) {
+            LockSupport.unpark(writer);
+        }
+        return true;
+    }
+
+    /**
+     * Stops accepting values and waits for the writer to save the queued ones
+     *
+     * @param timeout the max time to wait in milliseconds
+     */
+    void stop(long timeout) {
+        running = false;
+        LockSupport.unpark(writer);
+        try {
+            writer.join(timeout);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (writer.isAlive()) {
+            LOG.warn("Harvester writer has not saved all the queued values in {} ms, {} values are lost",
+                    timeout, queue.size());
+        }
+    }
+
+    int getQueueSize() {
+        return queue.size();
+    }
+
+    long getWritten() {
+        return written.get();
+    }
+
+    long getDropped() {
+        return dropped.get();
+    }
+
+    long getFailed() {
+        return failed.get();
+    }
+
+    /**
+     * Returns how long the oldest value of the last batch waited before being
+     * saved
+     *
+     * @return the lag in milliseconds
+     */
+    long getLag() {
+        return TimeUnit.MICROSECONDS.toMillis(lastLag);
+    }
+
+    private void write(List<Entry> batch) {
+        long start = System.nanoTime();
+        int saved = 0;
+        Listener current = listener;
+        List<UsageData> values = current != null ? new ArrayList<UsageData>(batch.size()) : null;
+        for (Entry entry : batch) {
+            try {
+                store.append(entry.data);
+                saved++;
+                if (values != null) {
+                    values.add(entry.data);
+                }
+                if (rollups != null) {
+                    rollups.update(entry.data);
+                }
+            } catch (IOException | RuntimeException e) {
+                LOG.error("Cannot save harvester value: {}", e.getLocalizedMessage());
+            }
+        }
+        try {
+            store.flush();
+        } catch (IOException | RuntimeException e) {
+            LOG.error("Cannot save harvester values: {}", e.getLocalizedMessage());
+            saved = 0;
+            values = null;
+        }
+        flushRollups();
+        written.addAndGet(saved);
+        writtenCounter.add(saved);
+        failed.addAndGet(batch.size() - saved);
+
+        lastLag = TimeUnit.NANOSECONDS.toMicros(start - batch.get(0).enqueued);
+        lagHistogram.record(lastLag);
+        batchHistogram.recordSince(start);
+
+        if (values != null && !values.isEmpty()) {
+            try {
+                current.onSaved(values);
+            } catch (RuntimeException e) {
+                LOG.error("Error while notifying saved harvester values", e);
+            }
+        }
+    }
+
+    private void flushRollups() {
+        if (rollups != null) {
+            try {
+                rollups.flush();
+            } catch (IOException e) {
+                LOG.error("Cannot save harvester rollups: {}", e.getLocalizedMessage());
+            }
+        }
+    }
+
+    private static final class Entry {
+
+        private final UsageData data;
+        private final long enqueued;
+
+        Entry(UsageData data, long enqueued) {
+            this.data = data;
+            this.enqueued = enqueued;
+        }
+    }
+
+    private final class Writer implements Runnable {
+
+        @Override
+        public void run() {
+            List<Entry> batch = new ArrayList<>(batchSize);
+            while (running || queue.size() > 0) {
+                queue.drainTo(batch, batchSize - batch.size());
+                long now = System.nanoTime();
+                if (!batch.isEmpty()
+                        && (batch.size() >= batchSize || !running || now - batch.get(0).enqueued >= maxDelay)) {
+                    write(batch);
+                    batch.clear();
+                    continue;
+                }
+                if (batch.isEmpty()) {
+                    // idle, checkpoint the rollups once in a while
+                    flushRollups();
+                    LockSupport.parkNanos(this, maxDelay);
+                } else {
+                    LockSupport.parkNanos(this, maxDelay - (now - batch.get(0).enqueued));
+                }
+            }
+            if (!batch.isEmpty()) {
+                write(batch);
+            }
+        }
+    }
+}
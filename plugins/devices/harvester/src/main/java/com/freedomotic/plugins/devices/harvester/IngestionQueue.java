@@ -0,0 +1,135 @@
+/**
+ *
+ * Copyright (c) 2009-2016 Freedomotic team http://freedomotic.com
+ *
+ * This file is part of Freedomotic
+ *
+ * This Program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2, or (at your option) any later version.
+ *
+ * This Program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Freedomotic; see the file COPYING. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.freedomotic.plugins.devices.harvester;
+
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded, lock free queue for many producers and a single consumer.
+ * <p>
+ * The elements are stored in a ring buffer. Producers claim a slot by
+ * incrementing the tail with a compare and set, then publish the element in
+ * the slot. The consumer reads the slot at the head and frees it, a slot
+ * claimed but not yet published is seen as empty. Only one thread at a time
+ * may call {@link #poll()} and {@link #drainTo(Collection, int)}.
+ * </p>
+ *
+ * @param <E> the type of the elements
+ */
+final class IngestionQueue<E> {
+
+    private final AtomicReferenceArray<E> slots;
+    private final int mask;
+    // next slot claimed by a producer
+    private final AtomicLong tail = new AtomicLong();
+    // next slot read by the consumer, written only by the consumer
+    private final AtomicLong head = new AtomicLong();
+
+    /**
+     * Creates a queue
+     *
+     * @param capacity the min number of elements, rounded up to a power of two
+     */
+    IngestionQueue(int capacity) {
+        if (capacity < 1 || capacity > (1 << 30)) {
+            throw new IllegalArgumentException("Invalid queue capacity " + capacity);
+        }
+        int size = 1;
+        while (size < capacity) {
+            size <<= 1;
+        }
+        this.slots = new AtomicReferenceArray<>(size);
+        this.mask = size - 1;
+    }
+
+    /**
+     * Adds an element, can be called by any thread
+     *
+     * @param element the element to add
+     * @return false if the queue is full
+     */
+    boolean offer(E element) {
+        if (element == null) {
+            throw new IllegalArgumentException("Cannot queue a null element");
+        }
+        while (true) {
+            long claimed = tail.get();
+            if (claimed - head.get() >= slots.length()) {
+                return false;
+            }
+            if (tail.compareAndSet(claimed, claimed + 1)) {
+                slots.lazySet((int) claimed & mask, element);
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Removes the element at the head, can be called only by the consumer
+     *
+     * @return the element or null if the queue is empty
+     */
+    E poll() {
+        long current = head.get();
+        int index = (int) current & mask;
+        E element = slots.get(index);
+        if (element == null) {
+            return null;
+        }
+        slots.lazySet(index, null);
+        head.lazySet(current + 1);
+        return element;
+    }
+
+    /**
+     * Removes up to the given number of elements, can be called only by the
+     * consumer
+     *
+     * @param target where the elements are added
+     * @param max the max number of elements to remove
+     * @return the number of removed elements
+     */
+    int drainTo(Collection<? super E> target, int max) {
+        int count = 0;
+        E element;
+        while (count < max && (element = poll()) != null) {
+            target.add(element);
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Returns the number of elements in the queue, including the ones being
+     * added
+     *
+     * @return the number of elements
+     */
+    int size() {
+        long size = tail.get() - head.get();
+        return (int) Math.max(0, Math.min(size, slots.length()));
+    }
+
+    int capacity() {
+        return slots.length();
+    }
+}
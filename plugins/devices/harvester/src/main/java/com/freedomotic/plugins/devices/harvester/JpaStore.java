@@ -0,0 +1,132 @@
+/**
+ *
+ * Copyright (c) 2009-2016 Freedomotic team http://freedomotic.com
+ *
+ * This file is part of Freedomotic
+ *
+ * This Program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2, or (at your option) any later version.
+ *
+ * This Program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Freedomotic; see the file COPYING. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.freedomotic.plugins.devices.harvester;
+
+import com.freedomotic.model.charting.UsageData;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Properties;
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.Persistence;
+import javax.persistence.Query;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Stores the behavior values as {@link UsageData} rows of a relational
+ * database through OpenJPA. The rows are inserted in a transaction committed
+ * on {@link #flush()}.
+ */
+final class JpaStore implements HarvesterStore {
+
+    private static final Logger LOG = LoggerFactory.getLogger(JpaStore.class.getName());
+    private static final String RANGE_QUERY = "SELECT x FROM harvester x WHERE (x.datetime >= :startDate AND x.datetime <= :stopDate)"
+            + " AND x.objbehavior = :behavior AND x.objprotocol LIKE '%' AND x.uuid LIKE :uuid";
+    private static final String ORDER = " ORDER BY x.datetime, x.id";
+    // the rows after the last one of the previous page, (datetime, id) > (:lastDate, :lastId)
+    private static final String NEXT_PAGE = " AND (x.datetime > :lastDate OR (x.datetime = :lastDate AND x.id > :lastId))";
+    private final EntityManagerFactory factory;
+    private final EntityManager em;
+
+    /**
+     * Connects to the database
+     *
+     * @param props the OpenJPA properties (eg: the connection URL)
+     */
+    JpaStore(Properties props) {
+        props.put("openjpa.MetaDataFactory", "org.apache.openjpa.persistence.jdbc.PersistenceMappingFactory(Types=" + UsageData.class.getCanonicalName() + ";)");
+        props.put("openjpa.TransactionMode", "local");
+        props.put("openjpa.jdbc.SynchronizeMappings", "buildSchema");
+        props.put("openjpa.RemoteCommitProvider", "sjvm");
+        factory = Persistence.createEntityManagerFactory("UsageData", props);
+        em = factory.createEntityManager();
+    }
+
+    @Override
+    public synchronized void append(UsageData data) {
+        if (!em.getTransaction().isActive()) {
+            em.getTransaction().begin();
+        }
+        em.persist(data);
+    }
+
+    @Override
+    public synchronized void flush() {
+        if (em.getTransaction().isActive()) {
+            em.getTransaction().commit();
+        }
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public synchronized Page read(String uuid, String behavior, Date from, Date to, String continuation, int limit) {
+        // the continuation token is the time and the id of the last row read,
+        // so the next page is found through the index instead of skipping rows
+        Date lastDate = null;
+        int lastId = 0;
+        if (continuation != null) {
+            String[] last = continuation.split(":");
+            try {
+                lastDate = new Date(Long.parseLong(last[0]));
+                lastId = Integer.parseInt(last[1]);
+            } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                throw new IllegalArgumentException("Invalid continuation token " + continuation);
+            }
+            if (last.length != 2) {
+                throw new IllegalArgumentException("Invalid continuation token " + continuation);
+            }
+        }
+        // the pending rows are committed before they are detached below
+        flush();
+        Query q = em.createQuery(lastDate == null ? RANGE_QUERY + ORDER : RANGE_QUERY + NEXT_PAGE + ORDER);
+        q.setParameter("startDate", from);
+        q.setParameter("stopDate", to);
+        q.setParameter("behavior", behavior);
+        q.setParameter("uuid", uuid);
+        if (lastDate != null) {
+            q.setParameter("lastDate", lastDate);
+            q.setParameter("lastId", lastId);
+        }
+        // one more row tells whether there is a next page
+        q.setMaxResults(limit + 1);
+        List<UsageData> rows = new ArrayList<UsageData>(q.getResultList());
+        // the rows of a page are not kept in the persistence context
+        em.clear();
+        if (rows.size() <= limit) {
+            return new Page(rows, null);
+        }
+        rows.remove(limit);
+        UsageData last = rows.get(limit - 1);
+        return new Page(rows, last.getDateTime().getTime() + ":" + last.getID());
+    }
+
+    @Override
+    public synchronized void close() {
+        try {
+            flush();
+            em.close();
+            factory.close();
+        } catch (Exception e) {
+            LOG.error("Error closing the harvester database: {}", e.getLocalizedMessage());
+        }
+    }
+}
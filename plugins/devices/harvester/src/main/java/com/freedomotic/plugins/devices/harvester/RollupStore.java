@@ -0,0 +1,517 @@
+/**
+ *
+ * Copyright (c) 2009-2016 Freedomotic team http://freedomotic.com
+ *
+ * This file is part of Freedomotic
+ *
+ * This Program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2, or (at your option) any later version.
+ *
+ * This Program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Freedomotic; see the file COPYING. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.freedomotic.plugins.devices.harvester;
+
+import com.freedomotic.model.charting.UsageData;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps the count, sum, min, max and last value of every series (a behavior
+ * of a thing) in buckets of one minute, one hour and one day. The buckets are
+ * updated on every saved value, so a chart of a long period reads a few
+ * buckets instead of all the saved values.
+ * <p>
+ * Only numeric values are aggregated, <code>true</code> and
+ * <code>false</code> count as 1 and 0. A bucket is written when a value of a
+ * later bucket arrives, when it is open for longer than the checkpoint
+ * interval and when the store is closed. A bucket may be written more than
+ * once (eg: after a checkpoint or a restart, or for values received late), the
+ * partial buckets are merged when read. Buckets are stored as fixed size
+ * records in a file per series, resolution and time partition.
+ * </p>
+ */
+final class RollupStore {
+
+    private static final Logger LOG = LoggerFactory.getLogger(RollupStore.class.getName());
+    // start, count, sum, min, max, last, time of last
+    private static final int RECORD_SIZE = 56;
+    // buckets per partition file
+    private static final int PARTITION_BUCKETS = 1440;
+    private static final String EXTENSION = ".rollup";
+    private final File folder;
+    private final long checkpointInterval;
+    // resolution folder of a series -> bucket being updated
+    private final Map<File, Bucket> open = new HashMap<>();
+    // partition file -> records not yet written
+    private final Map<File, ByteArrayOutputStream> pending = new HashMap<>();
+
+    /**
+     * The bucket sizes, from the finest to the coarsest
+     */
+    enum Resolution {
+
+        MINUTE("1m", TimeUnit.MINUTES.toMillis(1)),
+        HOUR("1h", TimeUnit.HOURS.toMillis(1)),
+        DAY("1d", TimeUnit.DAYS.toMillis(1));
+        private final String folderName;
+        private final long millis;
+
+        Resolution(String folderName, long millis) {
+            this.folderName = folderName;
+            this.millis = millis;
+        }
+
+        long getMillis() {
+            return millis;
+        }
+    }
+
+    /**
+     * The functions used to reduce a bucket to a single value
+     */
+    enum Aggregate {
+
+        AVG, MIN, MAX, LAST, COUNT
+    }
+
+    /**
+     * Creates a store saving its files in the given folder
+     *
+     * @param folder the store folder, created if missing
+     * @param checkpointInterval the max time (in milliseconds) a bucket is
+     * kept only in memory, that is the values lost on a crash
+     * @throws IOException if the folder cannot be created
+     */
+    RollupStore(File folder, long checkpointInterval) throws IOException {
+        if (!folder.isDirectory() && !folder.mkdirs()) {
+            throw new IOException("Cannot create folder " + folder.getAbsolutePath());
+        }
+        this.folder = folder;
+        this.checkpointInterval = checkpointInterval;
+    }
+
+    /**
+     * Adds a saved value to the buckets of its series, non numeric values are
+     * ignored
+     *
+     * @param data the saved value
+     */
+    synchronized void update(UsageData data) {
+        Double value = toDouble(data.getObjValue());
+        if (value == null || data.getUuid() == null || data.getObjBehavior() == null || data.getDateTime() == null) {
+            return;
+        }
+        long timestamp = data.getDateTime().getTime();
+        for (Resolution resolution : Resolution.values()) {
+            File resolutionFolder = resolutionFolder(data.getUuid(), data.getObjBehavior(), resolution);
+            long start = floor(timestamp, resolution.millis);
+            Bucket bucket = open.get(resolutionFolder);
+            if (bucket != null && start < bucket.start) {
+                // a late value, written as a partial bucket merged when read
+                Bucket late = new Bucket(start);
+                late.add(timestamp, value);
+                write(resolutionFolder, late);
+                continue;
+            }
+            if (bucket != null && start > bucket.start) {
+                write(resolutionFolder, bucket);
+                bucket = null;
+            }
+            if (bucket == null) {
+                bucket = new Bucket(start);
+                bucket.opened = System.currentTimeMillis();
+                open.put(resolutionFolder, bucket);
+            }
+            bucket.add(timestamp, value);
+        }
+    }
+
+    /**
+     * Writes the completed buckets, and the open ones not written since the
+     * checkpoint interval
+     *
+     * @throws IOException if some buckets cannot be written
+     */
+    synchronized void flush() throws IOException {
+        long now = System.currentTimeMillis();
+        for (Map.Entry<File, Bucket> entry : open.entrySet()) {
+            Bucket bucket = entry.getValue();
+            if (bucket.count > 0 && now - bucket.opened >= checkpointInterval) {
+                entry.setValue(checkpoint(entry.getKey(), bucket, now));
+            }
+        }
+        write();
+    }
+
+    /**
+     * Writes all the buckets, including the open ones
+     */
+    synchronized void close() {
+        long now = System.currentTimeMillis();
+        for (Map.Entry<File, Bucket> entry : open.entrySet()) {
+            if (entry.getValue().count > 0) {
+                write(entry.getKey(), entry.getValue());
+            }
+        }
+        try {
+            write();
+        } catch (IOException e) {
+            LOG.error("Error closing the harvester rollups: {}", e.getLocalizedMessage());
+        }
+        open.clear();
+    }
+
+    /**
+     * Returns the buckets of a series in a time range
+     *
+     * @param uuid the uuid of the thing
+     * @param behavior the behavior name
+     * @param resolution the bucket size
+     * @param from the start of the range (inclusive) in milliseconds
+     * @param to the end of the range (inclusive) in milliseconds
+     * @return the buckets starting in range, ordered by time
+     * @throws IOException if the buckets cannot be read
+     */
+    synchronized List<Bucket> read(String uuid, String behavior, Resolution resolution, long from, long to) throws IOException {
+        File resolutionFolder = resolutionFolder(uuid, behavior, resolution);
+        // the values not written yet must be read as well
+        Bucket current = open.get(resolutionFolder);
+        if (current != null && current.count > 0) {
+            open.put(resolutionFolder, checkpoint(resolutionFolder, current, System.currentTimeMillis()));
+        }
+        write();
+
+        long partition = resolution.millis * PARTITION_BUCKETS;
+        TreeMap<Long, Bucket> buckets = new TreeMap<>();
+        File[] files = resolutionFolder.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                Long start = partitionOf(file);
+                if (start != null && start <= to && start + partition > from) {
+                    scan(file, from, to, buckets);
+                }
+            }
+        }
+        return new ArrayList<>(buckets.values());
+    }
+
+    /**
+     * Returns at most maxPoints aggregated values of a series in a time range,
+     * read from the coarsest resolution giving enough detail. The time spans
+     * are aligned to their width, so at least two values may be returned.
+     *
+     * @param uuid the uuid of the thing
+     * @param behavior the behavior name
+     * @param from the start of the range (inclusive) in milliseconds
+     * @param to the end of the range (inclusive) in milliseconds
+     * @param maxPoints the max number of values, 2 if lower
+     * @param aggregate the function reducing a time span to a value
+     * @return a value for every non empty time span, ordered by time
+     * @throws IOException if the buckets cannot be read
+     */
+    synchronized List<UsageData> extract(String uuid, String behavior, long from, long to, int maxPoints,
+            Aggregate aggregate) throws IOException {
+        long width = widthFor(to - from, maxPoints);
+        Resolution resolution = resolutionFor(width);
+        List<Bucket> buckets = read(uuid, behavior, resolution, floor(from, width), to);
+        LOG.debug("Extracting {} values of {} from {} rollup buckets of {}",
+                new Object[]{aggregate, behavior, buckets.size(), resolution});
+        return downsample(buckets, uuid, behavior, width, aggregate);
+    }
+
+    /**
+     * Returns the time span of the values extracted from a time range, a
+     * multiple of the resolution read
+     *
+     * @param range the length of the time range in milliseconds
+     * @param maxPoints the max number of values, 2 if lower
+     * @return the time span of a value in milliseconds
+     */
+    static long widthFor(long range, int maxPoints) {
+        // the time spans are aligned to their width, so the range may touch one more of them
+        int spans = Math.max(2, maxPoints) - 1;
+        long width = Math.max(1, (Math.max(0, range) + spans - 1) / spans);
+        long bucket = resolutionFor(width).millis;
+        return (width + bucket - 1) / bucket * bucket;
+    }
+
+    /**
+     * Merges the buckets falling in the same time span of the given width,
+     * then reduces every time span to a value
+     *
+     * @param buckets the buckets, ordered by time
+     * @param uuid the uuid of the thing
+     * @param behavior the behavior name
+     * @param width the time span of the returned values
+     * @param aggregate the function reducing a bucket to a value
+     * @return a value for every non empty time span
+     */
+    static List<UsageData> downsample(List<Bucket> buckets, String uuid, String behavior, long width, Aggregate aggregate) {
+        List<UsageData> result = new ArrayList<>();
+        Bucket merged = null;
+        for (Bucket bucket : buckets) {
+            long start = floor(bucket.start, width);
+            if (merged == null || merged.start != start) {
+                if (merged != null) {
+                    result.add(merged.toUsageData(uuid, behavior, aggregate));
+                }
+                merged = new Bucket(start);
+            }
+            merged.merge(bucket);
+        }
+        if (merged != null) {
+            result.add(merged.toUsageData(uuid, behavior, aggregate));
+        }
+        return result;
+    }
+
+    /**
+     * Returns the coarsest resolution which gives at least the requested
+     * detail, or the finest one if no resolution does
+     *
+     * @param width the requested time span of a value
+     * @return the resolution to read
+     */
+    static Resolution resolutionFor(long width) {
+        Resolution chosen = Resolution.MINUTE;
+        for (Resolution resolution : Resolution.values()) {
+            if (resolution.millis <= width) {
+                chosen = resolution;
+            }
+        }
+        return chosen;
+    }
+
+    /*
+     * Writes the current values of an open bucket and returns the empty bucket
+     * replacing it, the next values of the same bucket are written as a new
+     * partial bucket
+     */
+    private Bucket checkpoint(File resolutionFolder, Bucket bucket, long now) {
+        write(resolutionFolder, bucket);
+        Bucket next = new Bucket(bucket.start);
+        next.opened = now;
+        return next;
+    }
+
+    private void write(File resolutionFolder, Bucket bucket) {
+        Resolution resolution = resolutionOf(resolutionFolder);
+        long partition = floor(bucket.start, resolution.millis * PARTITION_BUCKETS);
+        File file = new File(resolutionFolder, partition + EXTENSION);
+        ByteArrayOutputStream out = pending.get(file);
+        if (out == null) {
+            out = new ByteArrayOutputStream();
+            pending.put(file, out);
+        }
+        ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+        record.putLong(bucket.start).putLong(bucket.count).putDouble(bucket.sum)
+                .putDouble(bucket.min).putDouble(bucket.max).putDouble(bucket.last).putLong(bucket.lastTime);
+        out.write(record.array(), 0, RECORD_SIZE);
+    }
+
+    /*
+     * Appends the pending records to their files. An incomplete record at the
+     * end of a file (eg: a crash while writing) is removed first
+     */
+    private void write() throws IOException {
+        int failed = 0;
+        Iterator<Map.Entry<File, ByteArrayOutputStream>> it = pending.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<File, ByteArrayOutputStream> entry = it.next();
+            File file = entry.getKey();
+            it.remove();
+            try {
+                if (!file.getParentFile().isDirectory() && !file.getParentFile().mkdirs()) {
+                    throw new IOException("Cannot create folder " + file.getParent());
+                }
+                try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                    long length = raf.length() - raf.length() % RECORD_SIZE;
+                    raf.setLength(length);
+                    raf.seek(length);
+                    raf.write(entry.getValue().toByteArray());
+                }
+            } catch (IOException e) {
+                LOG.error("Cannot write harvester rollups to {}: {}", file.getAbsolutePath(), e.getLocalizedMessage());
+                failed++;
+            }
+        }
+        if (failed > 0) {
+            throw new IOException("Cannot write the rollups of " + failed + " files");
+        }
+    }
+
+    private static void scan(File file, long from, long to, Map<Long, Bucket> buckets) throws IOException {
+        MappedByteBuffer buffer;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel()) {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        while (buffer.remaining() >= RECORD_SIZE) {
+            Bucket bucket = new Bucket(buffer.getLong());
+            bucket.count = buffer.getLong();
+            bucket.sum = buffer.getDouble();
+            bucket.min = buffer.getDouble();
+            bucket.max = buffer.getDouble();
+            bucket.last = buffer.getDouble();
+            bucket.lastTime = buffer.getLong();
+            if (bucket.start >= from && bucket.start <= to) {
+                Bucket merged = buckets.get(bucket.start);
+                if (merged == null) {
+                    buckets.put(bucket.start, bucket);
+                } else {
+                    merged.merge(bucket);
+                }
+            }
+        }
+    }
+
+    private File resolutionFolder(String uuid, String behavior, Resolution resolution) {
+        return new File(new File(new File(folder, ColumnarStore.toFileName(uuid)),
+                ColumnarStore.toFileName(behavior)), resolution.folderName);
+    }
+
+    private static Resolution resolutionOf(File resolutionFolder) {
+        for (Resolution resolution : Resolution.values()) {
+            if (resolution.folderName.equals(resolutionFolder.getName())) {
+                return resolution;
+            }
+        }
+        throw new IllegalArgumentException("Not a rollup folder " + resolutionFolder);
+    }
+
+    private static Long partitionOf(File file) {
+        String name = file.getName();
+        if (!name.endsWith(EXTENSION)) {
+            return null;
+        }
+        try {
+            return Long.valueOf(name.substring(0, name.length() - EXTENSION.length()));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    static long floor(long timestamp, long width) {
+        long offset = timestamp % width;
+        return offset < 0 ? timestamp - offset - width : timestamp - offset;
+    }
+
+    private static Double toDouble(String value) {
+        if (value == null || value.isEmpty()) {
+            return null;
+        }
+        if (value.equalsIgnoreCase("true")) {
+            return 1d;
+        }
+        if (value.equalsIgnoreCase("false")) {
+            return 0d;
+        }
+        char first = value.charAt(0);
+        if ((first < '0' || first > '9') && first != '-' && first != '.') {
+            return null;
+        }
+        try {
+            double number = Double.parseDouble(value);
+            return Double.isNaN(number) || Double.isInfinite(number) ? null : number;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * The aggregated values of a series in a time span
+     */
+    static final class Bucket {
+
+        private final long start;
+        private long count;
+        private double sum;
+        private double min = Double.POSITIVE_INFINITY;
+        private double max = Double.NEGATIVE_INFINITY;
+        private double last;
+        private long lastTime = Long.MIN_VALUE;
+        // when the bucket has been opened or last written
+        private long opened;
+
+        Bucket(long start) {
+            this.start = start;
+        }
+
+        void add(long timestamp, double value) {
+            count++;
+            sum += value;
+            min = Math.min(min, value);
+            max = Math.max(max, value);
+            if (timestamp >= lastTime) {
+                last = value;
+                lastTime = timestamp;
+            }
+        }
+
+        void merge(Bucket other) {
+            count += other.count;
+            sum += other.sum;
+            min = Math.min(min, other.min);
+            max = Math.max(max, other.max);
+            if (other.lastTime >= lastTime) {
+                last = other.last;
+                lastTime = other.lastTime;
+            }
+        }
+
+        double getValue(Aggregate aggregate) {
+            switch (aggregate) {
+                case MIN:
+                    return min;
+                case MAX:
+                    return max;
+                case LAST:
+                    return last;
+                case COUNT:
+                    return count;
+                default:
+                    return sum / count;
+            }
+        }
+
+        UsageData toUsageData(String uuid, String behavior, Aggregate aggregate) {
+            UsageData data = new UsageData();
+            data.setDateTime(new Date(start));
+            data.setUuid(uuid);
+            data.setObjBehavior(behavior);
+            data.setObjValue(format(getValue(aggregate)));
+            return data;
+        }
+
+        private static String format(double value) {
+            if (value == 0) {
+                return "0";
+            }
+            return new BigDecimal(value).round(new MathContext(12)).stripTrailingZeros().toPlainString();
+        }
+    }
+}
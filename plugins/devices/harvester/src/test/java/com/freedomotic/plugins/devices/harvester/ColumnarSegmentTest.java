@@ -0,0 +1,179 @@
+/**
+ *
+ * Copyright (c) 2009-2016 Freedomotic team http://freedomotic.com
+ *
+ * This file is part of Freedomotic
+ *
+ * This Program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2, or (at your option) any later version.
+ *
+ * This Program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Freedomotic; see the file COPYING. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.freedomotic.plugins.devices.harvester;
+
+import com.freedomotic.model.charting.UsageData;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import static org.junit.Assert.*;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ColumnarSegmentTest {
+
+    // 2016-07-01 00:00 UTC
+    private static final long DAY = 1467331200000L;
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+    private File folder;
+    private File file;
+
+    @Before
+    public void setUp() {
+        folder = new File(temp.getRoot(), "series");
+        file = new File(folder, DAY + ColumnarSegment.EXTENSION);
+    }
+
+    /**
+     * Every value encoding is read back as written, also after the segment is
+     * reopened and its encoder state is rebuilt from the file.
+     */
+    @Test
+    public void testRoundTrip() throws IOException {
+        String[] values = {"1", "1", "1.5", "1.75", "-2.25", "-2.25", "on", "off", "on", "off",
+            null, "007", "", "1e3", "è aperta", "42", "123456789012345678", "0.000001", "on"};
+        long[] times = {0, 1000, 2000, 3000, 3500, 10000, 10001, 10002, 9000, 60000,
+            61000, 62000, 63000, 64000, 65000, 66000, 67000, 68000, 86399999};
+        List<UsageData> expected = new ArrayList<>();
+
+        ColumnarSegment segment = ColumnarSegment.open(folder, DAY);
+        for (int i = 0; i < values.length; i++) {
+            if (i == values.length / 2) {
+                segment.flush();
+                segment = ColumnarSegment.open(folder, DAY);
+            }
+            String name = i < 5 ? "Light" : "Kitchen light";
+            String address = i < 15 ? "1" : null;
+            segment.append(DAY + times[i], values[i], name, "test", address);
+            expected.add(data(DAY + times[i], values[i], name, "test", address));
+        }
+        segment.flush();
+
+        assertEquals(toString(expected), toString(scanAll()));
+    }
+
+    /**
+     * Values sampled at a regular interval take two bytes: the record header
+     * and the delta-of-delta of the timestamp.
+     */
+    @Test
+    public void testRegularInterval() throws IOException {
+        ColumnarSegment segment = ColumnarSegment.open(folder, DAY);
+        segment.append(DAY, "20.5", "Thermometer", "test", "1");
+        segment.append(DAY + 1000, "20.5", "Thermometer", "test", "1");
+        segment.flush();
+        long length = file.length();
+
+        for (int i = 2; i < 102; i++) {
+            segment.append(DAY + i * 1000, "20.5", "Thermometer", "test", "1");
+        }
+        segment.flush();
+
+        assertEquals(length + 200, file.length());
+        assertEquals(102, scanAll().size());
+    }
+
+    /**
+     * A record partially written by a crash is skipped by the readers and
+     * removed when the segment is reopened for appending.
+     */
+    @Test
+    public void testIncompleteRecord() throws IOException {
+        ColumnarSegment segment = ColumnarSegment.open(folder, DAY);
+        segment.append(DAY, "on", "Light", "test", "1");
+        segment.append(DAY + 1000, "off", "Light", "test", "1");
+        segment.flush();
+        long valid = file.length();
+        segment.append(DAY + 2000, "a value that will be truncated", "Light", "test", "1");
+        segment.flush();
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(valid + 5);
+        }
+
+        assertEquals(2, scanAll().size());
+
+        segment = ColumnarSegment.open(folder, DAY);
+        assertEquals(valid, file.length());
+        segment.append(DAY + 3000, "on", "Light", "test", "1");
+        segment.flush();
+        assertEquals(toString(Arrays.asList(
+                data(DAY, "on", "Light", "test", "1"),
+                data(DAY + 1000, "off", "Light", "test", "1"),
+                data(DAY + 3000, "on", "Light", "test", "1"))),
+                toString(scanAll()));
+    }
+
+    /**
+     * An empty file left by a crash before the header was written gets a new
+     * header.
+     */
+    @Test
+    public void testEmptyFile() throws IOException {
+        assertTrue(folder.mkdirs());
+        assertTrue(file.createNewFile());
+
+        ColumnarSegment segment = ColumnarSegment.open(folder, DAY);
+        segment.append(DAY + 1000, "on", "Light", "test", "1");
+        segment.flush();
+
+        assertEquals(toString(Arrays.asList(data(DAY + 1000, "on", "Light", "test", "1"))),
+                toString(scanAll()));
+    }
+
+    private List<UsageData> scanAll() throws IOException {
+        List<UsageData> result = new ArrayList<>();
+        assertEquals(-1, ColumnarSegment.scan(file, DAY, DAY + ColumnarSegment.DURATION, "uuid", "behavior",
+                0, result, Integer.MAX_VALUE));
+        return result;
+    }
+
+    private static UsageData data(long time, String value, String name, String protocol, String address) {
+        UsageData data = new UsageData();
+        data.setDateTime(new Date(time));
+        data.setUuid("uuid");
+        data.setObjBehavior("behavior");
+        data.setObjValue(value);
+        data.setObjName(name);
+        data.setObjProtocol(protocol);
+        data.setObjAddress(address);
+        return data;
+    }
+
+    private static String toString(List<UsageData> list) {
+        List<String> result = new ArrayList<>();
+        for (UsageData data : list) {
+            result.add(toString(data));
+        }
+        return result.toString();
+    }
+
+    private static String toString(UsageData data) {
+        return data.getDateTime().getTime() + " " + data.getUuid() + " " + data.getObjBehavior() + " "
+                + data.getObjValue() + " " + data.getObjName() + " " + data.getObjProtocol() + " "
+                + data.getObjAddress();
+    }
+}
@@ -0,0 +1,196 @@
+/**
+ *
+ * Copyright (c) 2009-2016 Freedomotic team http://freedomotic.com
+ *
+ * This file is part of Freedomotic
+ *
+ * This Program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2, or (at your option) any later version.
+ *
+ * This Program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Freedomotic; see the file COPYING. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.freedomotic.plugins.devices.harvester;
+
+import com.freedomotic.model.charting.UsageData;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import static org.junit.Assert.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ColumnarStoreTest {
+
+    // 2016-07-01 00:00 UTC
+    private static final long DAY1 = 1467331200000L;
+    private static final long DAY2 = DAY1 + ColumnarSegment.DURATION;
+    private static final Date FROM = new Date(DAY1);
+    private static final Date TO = new Date(DAY2 + ColumnarSegment.DURATION);
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+    private ColumnarStore store;
+
+    @Before
+    public void setUp() throws IOException {
+        store = new ColumnarStore(temp.getRoot());
+    }
+
+    @After
+    public void tearDown() {
+        store.close();
+    }
+
+    /**
+     * Page boundaries inside a segment continue from the next record
+     */
+    @Test
+    public void testPagesInsideSegment() throws IOException {
+        append(DAY1, 10);
+
+        HarvesterStore.Page page = store.read("uuid", "behavior", FROM, TO, null, 3);
+        assertValues(page, DAY1, 3);
+        assertEquals(DAY1 + ":3", page.getContinuation());
+        page = store.read("uuid", "behavior", FROM, TO, page.getContinuation(), 3);
+        assertValues(page, DAY1 + 3000, 3);
+        page = store.read("uuid", "behavior", FROM, TO, page.getContinuation(), 3);
+        assertValues(page, DAY1 + 6000, 3);
+        page = store.read("uuid", "behavior", FROM, TO, page.getContinuation(), 3);
+        assertValues(page, DAY1 + 9000, 1);
+        assertNull(page.getContinuation());
+    }
+
+    /**
+     * A page can hold the last values of a segment and the first ones of the
+     * next segment, and a page ending with a segment continues from the start
+     * of the next one
+     */
+    @Test
+    public void testPagesAcrossSegments() throws IOException {
+        append(DAY1, 5);
+        append(DAY2, 5);
+
+        HarvesterStore.Page page = store.read("uuid", "behavior", FROM, TO, null, 4);
+        assertValues(page, DAY1, 4);
+        page = store.read("uuid", "behavior", FROM, TO, page.getContinuation(), 4);
+        assertEquals(4, page.getValues().size());
+        assertValues(page.getValues().subList(0, 1), DAY1 + 4000, 1);
+        assertValues(page.getValues().subList(1, 4), DAY2, 3);
+        assertEquals(DAY2 + ":3", page.getContinuation());
+        page = store.read("uuid", "behavior", FROM, TO, page.getContinuation(), 4);
+        assertValues(page, DAY2 + 3000, 2);
+        assertNull(page.getContinuation());
+
+        page = store.read("uuid", "behavior", FROM, TO, null, 5);
+        assertValues(page, DAY1, 5);
+        assertEquals(DAY2 + ":0", page.getContinuation());
+        page = store.read("uuid", "behavior", FROM, TO, page.getContinuation(), 5);
+        assertValues(page, DAY2, 5);
+        assertNull(page.getContinuation());
+    }
+
+    /**
+     * Only the values in range are returned, the skipped records count the
+     * values out of range as well
+     */
+    @Test
+    public void testPagesInRange() throws IOException {
+        append(DAY1, 10);
+
+        Date from = new Date(DAY1 + 2000);
+        Date to = new Date(DAY1 + 8000);
+        HarvesterStore.Page page = store.read("uuid", "behavior", from, to, null, 4);
+        assertValues(page, DAY1 + 2000, 4);
+        page = store.read("uuid", "behavior", from, to, page.getContinuation(), 4);
+        assertValues(page, DAY1 + 6000, 3);
+        assertNull(page.getContinuation());
+    }
+
+    /**
+     * A token of a segment deleted in the meantime, or pointing past the end
+     * of its segment, continues from the next segment. Values saved after the
+     * token was returned are read as well.
+     */
+    @Test
+    public void testStaleToken() throws IOException {
+        append(DAY1, 5);
+        append(DAY2, 5);
+        store.flush();
+
+        HarvesterStore.Page page = store.read("uuid", "behavior", FROM, TO, DAY1 + ":100", 10);
+        assertValues(page, DAY2, 5);
+
+        page = store.read("uuid", "behavior", FROM, TO, null, 3);
+        String continuation = page.getContinuation();
+        append(DAY1 + 5000, 2);
+        page = store.read("uuid", "behavior", FROM, TO, continuation, 4);
+        assertValues(page, DAY1 + 3000, 4);
+
+        store.close();
+        assertTrue(new File(new File(new File(temp.getRoot(), "uuid"), "behavior"),
+                DAY1 + ColumnarSegment.EXTENSION).delete());
+        page = store.read("uuid", "behavior", FROM, TO, continuation, 10);
+        assertValues(page, DAY2, 5);
+        assertNull(page.getContinuation());
+    }
+
+    /**
+     * Tokens not returned by the store are refused
+     */
+    @Test
+    public void testInvalidToken() throws IOException {
+        append(DAY1, 5);
+        String[] tokens = {"", "abc", String.valueOf(DAY1), DAY1 + ":", DAY1 + ":x", DAY1 + ":-1", DAY1 + ":1:2", ":1"};
+        for (String token : tokens) {
+            try {
+                store.read("uuid", "behavior", FROM, TO, token, 10);
+                fail("Token '" + token + "' accepted");
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+
+    /*
+     * Saves a value every second starting from the given time
+     */
+    private void append(long start, int count) throws IOException {
+        for (int i = 0; i < count; i++) {
+            UsageData data = new UsageData();
+            data.setDateTime(new Date(start + i * 1000));
+            data.setUuid("uuid");
+            data.setObjBehavior("behavior");
+            data.setObjValue(String.valueOf(start + i * 1000));
+            store.append(data);
+        }
+    }
+
+    private static void assertValues(HarvesterStore.Page page, long start, int count) {
+        assertValues(page.getValues(), start, count);
+    }
+
+    private static void assertValues(List<UsageData> values, long start, int count) {
+        List<Long> expected = new ArrayList<>();
+        List<Long> actual = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            expected.add(start + i * 1000);
+        }
+        for (UsageData data : values) {
+            assertEquals(String.valueOf(data.getDateTime().getTime()), data.getObjValue());
+            actual.add(data.getDateTime().getTime());
+        }
+        assertEquals(expected, actual);
+    }
+}
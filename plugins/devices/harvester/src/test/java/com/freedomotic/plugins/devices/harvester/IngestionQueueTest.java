@@ -0,0 +1,119 @@
+/**
+ *
+ * Copyright (c) 2009-2016 Freedomotic team http://freedomotic.com
+ *
+ * This file is part of Freedomotic
+ *
+ * This Program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2, or (at your option) any later version.
+ *
+ * This Program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Freedomotic; see the file COPYING. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.freedomotic.plugins.devices.harvester;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+public class IngestionQueueTest {
+
+    /**
+     * Elements are refused when the ring is full and accepted again when the
+     * consumer frees a slot, in FIFO order across the wrap around.
+     */
+    @Test
+    public void testFullRing() {
+        IngestionQueue<Integer> queue = new IngestionQueue<>(5);
+        assertEquals(8, queue.capacity());
+        for (int i = 0; i < 8; i++) {
+            assertTrue(queue.offer(i));
+        }
+        assertEquals(8, queue.size());
+        assertFalse(queue.offer(8));
+
+        assertEquals(Integer.valueOf(0), queue.poll());
+        assertTrue(queue.offer(8));
+        assertFalse(queue.offer(9));
+
+        List<Integer> drained = new ArrayList<>();
+        assertEquals(3, queue.drainTo(drained, 3));
+        for (int i = 9; i < 12; i++) {
+            assertTrue(queue.offer(i));
+        }
+        assertEquals(8, queue.drainTo(drained, 100));
+        for (int i = 0; i < drained.size(); i++) {
+            assertEquals(Integer.valueOf(i + 1), drained.get(i));
+        }
+        assertNull(queue.poll());
+        assertEquals(0, queue.size());
+    }
+
+    /**
+     * Elements of concurrent producers, retrying while the small ring is
+     * full, are all received once and in the order of each producer.
+     */
+    @Test
+    public void testManyProducers() throws InterruptedException {
+        final int producers = 4;
+        final int elements = 200000;
+        final IngestionQueue<long[]> queue = new IngestionQueue<>(64);
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        for (int p = 0; p < producers; p++) {
+            final int producer = p;
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < elements; i++) {
+                        long[] element = {producer, i};
+                        while (!queue.offer(element)) {
+                            Thread.yield();
+                        }
+                    }
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+
+        start.countDown();
+        long[] next = new long[producers];
+        int received = 0;
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(60);
+        List<long[]> drained = new ArrayList<>();
+        while (received < producers * elements) {
+            assertTrue("Elements lost, received " + received, System.nanoTime() < deadline);
+            drained.clear();
+            if (queue.drainTo(drained, 100) == 0) {
+                Thread.yield();
+            }
+            for (long[] element : drained) {
+                int producer = (int) element[0];
+                assertEquals("Element of producer " + producer, next[producer], element[1]);
+                next[producer]++;
+                received++;
+            }
+        }
+        for (Thread thread : threads) {
+            thread.join(10000);
+        }
+        assertNull(queue.poll());
+        assertEquals(0, queue.size());
+    }
+}
@@ -0,0 +1,199 @@
+/**
+ *
+ * Copyright (c) 2009-2016 Freedomotic team http://freedomotic.com
+ *
+ * This file is part of Freedomotic
+ *
+ * This Program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2, or (at your option) any later version.
+ *
+ * This Program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Freedomotic; see the file COPYING. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package com.freedomotic.plugins.devices.harvester;
+
+import com.freedomotic.model.charting.UsageData;
+import com.freedomotic.plugins.devices.harvester.RollupStore.Aggregate;
+import com.freedomotic.plugins.devices.harvester.RollupStore.Resolution;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import static org.junit.Assert.*;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class RollupStoreTest {
+
+    // 2016-07-01 00:00 UTC
+    private static final long START = 1467331200000L;
+    private static final long DAY = Resolution.DAY.getMillis();
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+    // the raw rows, numeric values only
+    private final TreeMap<Long, Double> rows = new TreeMap<>();
+
+    /**
+     * Saves three days of values with a restart, checkpoints (partial buckets
+     * merged when read) and values received late
+     */
+    @Before
+    public void setUp() throws IOException {
+        Random random = new Random(42);
+        Set<Long> used = new HashSet<>();
+        RollupStore store = new RollupStore(temp.getRoot(), 0);
+        for (int i = 0; i < 5000; i++) {
+            long timestamp = START + (long) (random.nextDouble() * 3 * DAY);
+            if (i % 10 != 0) {
+                // mostly in order, sometimes late
+                timestamp = START + i * (3 * DAY / 5000) + random.nextInt(60000);
+            }
+            if (!used.add(timestamp)) {
+                continue;
+            }
+            String value;
+            switch (random.nextInt(10)) {
+                case 0:
+                    value = random.nextBoolean() ? "true" : "false";
+                    rows.put(timestamp, value.equals("true") ? 1d : 0d);
+                    break;
+                case 1:
+                    value = "unavailable";
+                    break;
+                default:
+                    double number = Math.round((random.nextDouble() * 200 - 100) * 100) / 100d;
+                    value = String.valueOf(number);
+                    rows.put(timestamp, number);
+                    break;
+            }
+            store.update(data(timestamp, value));
+            if (i % 500 == 0) {
+                store.flush();
+            }
+            if (i == 2500) {
+                store.close();
+                store = new RollupStore(temp.getRoot(), 0);
+            }
+        }
+        store.close();
+    }
+
+    /**
+     * The buckets of every resolution, merged from their partial records,
+     * hold the same values as the raw rows of their time span
+     */
+    @Test
+    public void testBucketsMatchRawRows() throws IOException {
+        RollupStore store = new RollupStore(temp.getRoot(), 0);
+        for (Resolution resolution : Resolution.values()) {
+            long width = resolution.getMillis();
+            List<RollupStore.Bucket> buckets = store.read("uuid", "behavior", resolution, START, START + 3 * DAY);
+            for (Aggregate aggregate : Aggregate.values()) {
+                assertMatch(aggregate, width, START, START + 3 * DAY,
+                        RollupStore.downsample(buckets, "uuid", "behavior", width, aggregate));
+            }
+        }
+    }
+
+    /**
+     * The values extracted for a chart are the raw rows aggregated in time
+     * spans of the computed width
+     */
+    @Test
+    public void testExtractMatchesRawRows() throws IOException {
+        RollupStore store = new RollupStore(temp.getRoot(), 0);
+        long[][] ranges = {
+            {START, START + 3 * DAY},
+            {START + 12345678, START + DAY + 3600000},
+            {START + DAY + 60000, START + DAY + 3 * 3600000},
+            {START + 2 * DAY + 30000, START + 2 * DAY + 90000}};
+        int[] maxPoints = {1, 2, 10, 100, 1000};
+        for (long[] range : ranges) {
+            for (int points : maxPoints) {
+                long width = RollupStore.widthFor(range[1] - range[0], points);
+                for (Aggregate aggregate : Aggregate.values()) {
+                    List<UsageData> extracted = store.extract("uuid", "behavior", range[0], range[1], points, aggregate);
+                    assertTrue(extracted.size() + " values for " + points, extracted.size() <= Math.max(2, points));
+                    assertMatch(aggregate, width, range[0], range[1], extracted);
+                }
+            }
+        }
+    }
+
+    /*
+     * Aggregates the raw rows falling in the buckets read for the range
+     * (aligned to the width, up to the bucket holding the end of the range)
+     */
+    private void assertMatch(Aggregate aggregate, long width, long from, long to, List<UsageData> actual) {
+        long resolution = RollupStore.resolutionFor(width).getMillis();
+        long first = RollupStore.floor(from, width);
+        Map<Long, List<Double>> spans = new TreeMap<>();
+        for (Map.Entry<Long, Double> row : rows.subMap(first, true, RollupStore.floor(to, resolution) + resolution, false).entrySet()) {
+            long span = RollupStore.floor(row.getKey(), width);
+            List<Double> values = spans.get(span);
+            if (values == null) {
+                values = new ArrayList<>();
+                spans.put(span, values);
+            }
+            values.add(row.getValue());
+        }
+
+        String message = aggregate + " of " + width + "ms from " + from + " to " + to;
+        assertEquals(message, spans.size(), actual.size());
+        int i = 0;
+        for (Map.Entry<Long, List<Double>> span : spans.entrySet()) {
+            UsageData data = actual.get(i++);
+            assertEquals(message, span.getKey().longValue(), data.getDateTime().getTime());
+            assertEquals(message, aggregate(aggregate, span.getValue()),
+                    Double.parseDouble(data.getObjValue()), 1e-9);
+        }
+    }
+
+    private static double aggregate(Aggregate aggregate, List<Double> values) {
+        double sum = 0;
+        double min = Double.POSITIVE_INFINITY;
+        double max = Double.NEGATIVE_INFINITY;
+        for (double value : values) {
+            sum += value;
+            min = Math.min(min, value);
+            max = Math.max(max, value);
+        }
+        switch (aggregate) {
+            case MIN:
+                return min;
+            case MAX:
+                return max;
+            case LAST:
+                // the rows are ordered by time
+                return values.get(values.size() - 1);
+            case COUNT:
+                return values.size();
+            default:
+                return sum / values.size();
+        }
+    }
+
+    private static UsageData data(long timestamp, String value) {
+        UsageData data = new UsageData();
+        data.setDateTime(new Date(timestamp));
+        data.setUuid("uuid");
+        data.setObjBehavior("behavior");
+        data.setObjValue(value);
+        return data;
+    }
+}
@@ -23,17 +23,23 @@ import com.freedomotic.api.API;
 import com.freedomotic.app.Freedomotic;
 import com.freedomotic.app.FreedomoticInjector;
 import com.freedomotic.events.GenericEvent;
+import com.freedomotic.metrics.Metrics;
+import com.freedomotic.metrics.Tracer;
 import com.freedomotic.plugins.devices.restapiv3.filters.ForbiddenException;
 import com.freedomotic.settings.Info;
 import com.google.inject.Guice;
 import com.google.inject.Injector;
 import com.wordnik.swagger.annotations.Api;
 import com.wordnik.swagger.annotations.ApiOperation;
+import com.wordnik.swagger.annotations.ApiParam;
 import javax.inject.Singleton;
+import javax.ws.rs.DefaultValue;
 import javax.ws.rs.GET;
 import javax.ws.rs.POST;
 import javax.ws.rs.Path;
+import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 
@@ -81,6 +87,42 @@ public class SystemResource {
         return Response.ok(api.getI18n().getAvailableLocales()).build();
     }
 
+    @GET
+    @Path("/metrics")
+    @ApiOperation(value = "Show runtime metrics (counters and latencies in milliseconds)")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response listMetrics() {
+        return Response.ok(Metrics.snapshot()).build();
+    }
+
+    @GET
+    @Path("/metrics/text")
+    @ApiOperation(value = "Show runtime metrics as plain text, one metric per line")
+    @Produces(MediaType.TEXT_PLAIN)
+    public Response printMetrics() {
+        return Response.ok(Metrics.print()).build();
+    }
+
+    @GET
+    @Path("/traces")
+    @ApiOperation(value = "Show the last recorded trace spans, most recent first")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response listRecentSpans(
+            @ApiParam(value = "Max number of spans", required = false)
+            @DefaultValue("100") @QueryParam("limit") int limit) {
+        return Response.ok(Tracer.getRecentSpans(limit)).build();
+    }
+
+    @GET
+    @Path("/traces/{id}")
+    @ApiOperation(value = "Show the recorded spans of a trace, sorted by start time")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response listTrace(
+            @ApiParam(value = "ID of the trace", required = true)
+            @PathParam("id") String traceId) {
+        return Response.ok(Tracer.getTrace(traceId)).build();
+    }
+
     @POST
     @Path("/exit")
     @ApiOperation(value = "Initiate shutdown procedure")
@@ -23,7 +23,6 @@ package com.freedomotic.things.impl;
 import com.freedomotic.things.GenericGate;
 import com.freedomotic.environment.EnvironmentLogic;
 import com.freedomotic.environment.Room;
-import com.freedomotic.environment.ZoneLogic;
 import com.freedomotic.model.ds.Config;
 import com.freedomotic.model.geometry.FreedomPolygon;
 import com.freedomotic.model.object.BooleanBehavior;
@@ -160,21 +159,12 @@ public class Gate extends EnvObjectLogic implements GenericGate {
      */
     @Override
     public final void setChanged(boolean value) {
-        //update the room that can be reached
-        for (EnvironmentLogic env : environmentRepository.findAll()) {
-            for (ZoneLogic z : env.getZones()) {
-                if (z instanceof Room) {
-                    final Room room = (Room) z;
-                    //the gate is opened or closed we update the reachable rooms
-                    room.visit();
-                }
-            }
-
-            for (ZoneLogic z : env.getZones()) {
-                if (z instanceof Room) {
-                    final Room room = (Room) z;
-                    room.updateDescription();
-                }
+        //update the rooms whose reachable rooms are changed by this gate
+        EnvironmentLogic env = environmentRepository.findOne(getPojo().getEnvironmentID());
+        if (env != null) {
+            for (Room room : env.updateGate(this)) {
+                room.visit();
+                room.updateDescription();
             }
         }
 
@@ -262,6 +252,10 @@ public class Gate extends EnvObjectLogic implements GenericGate {
             from.addGate(this); //informs the room that it has a gate to another room
             to.addGate(this); //informs the room that it has a gate to another room
         } else {
+            //the gate no more connects two rooms
+            if (env != null) {
+                env.updateGate(this);
+            }
             //the gate interects two equals zones
             if (from != null) {
                 LOG.warning("The gate '" + getPojo().getName() + "' connects the same zones ["